@@ -5,7 +5,6 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.os.Bundle;
-import android.os.Handler;
 import android.support.v7.app.AppCompatActivity;
 import android.text.TextUtils;
 import android.util.Log;
@@ -17,13 +16,16 @@ import android.widget.TextView;
 
 import com.hill.libblemanager.BLEData;
 import com.hill.libblemanager.BLEDevice;
+import com.hill.libblemanager.BLEManager;
+import com.hill.libblemanager.BLERssiMonitor;
+import com.hill.libblemanager.BLEService;
+import com.hill.libblemanager.BLEServiceClient;
 
 import java.util.List;
 
 public class DeviceInfoActivity extends AppCompatActivity {
     private static final String TAG = "DeviceInfoActivity";
 
-    private Handler mHandler = null;
     private BLEDeviceManager mBLEDevMng = null;
 
     @Override
@@ -31,20 +33,32 @@ public class DeviceInfoActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_device_info);
 
-        mHandler = new Handler();
         mBLEDevMng = BLEDeviceManager.getInstance();
 
         initView();
 
-        connectDevice();
+        // The service keeps the device connected when this Activity is recreated or reopened soon
+        mServiceClient = new BLEServiceClient(this, new BLEServiceClient.Listener() {
+            @Override
+            public void onAttached(final BLEService service) {
+                connectDevice(service);
+                startQueryRSSI();
+            }
 
-        startQueryRSSI();
+            @Override
+            public void onDetached() {
+                Log.w(TAG, "BLE service is gone");
+                finish();
+            }
+        });
+        mServiceClient.attach();
     }
 
     @Override
     protected void onDestroy() {
         stopQueryRSSI();
-        disconnectDevice();
+        releaseDevice();
+        mServiceClient.detach();
         super.onDestroy();
     }
 
@@ -130,80 +144,62 @@ public class DeviceInfoActivity extends AppCompatActivity {
     }
 
     // Connect methods
+    private BLEServiceClient mServiceClient = null;
     private BLEDevice mDevice = null;
-    private void connectDevice() {
-        mDevice = mBLEDevMng.getCurDevice();
-        if (mDevice == null) {
+    private final BLEService.DeviceListener mDeviceListener = new BLEService.DeviceListener() {
+        @Override
+        public void onConnectionStateChanged(final BLEDevice device, final boolean connected) {
+            if (device == mDevice && connected) {
+                queryServices();
+            }
+        }
+    };
+
+    private void connectDevice(final BLEService service) {
+        final BLEDevice device = mBLEDevMng.getCurDevice();
+        if (device == null) {
             Log.e(TAG, "No device is set yet");
             finish();
             return;
         }
         showLoading();
+        service.addDeviceListener(mDeviceListener);
+        mDevice = service.acquire(device);
         updateTitle(mDevice.btDevice);
         updateRSSI(mDevice.deviceRssi);
-        mDevice.connect(getBaseContext(), false, new BLEDevice.ConnectionListener() {
-            @Override
-            public void onConnectionStateChanged(boolean connected) {
-                if (connected) {
-                    queryServices();
-                }
-            }
-        });
+        // Receive all device callbacks on UI thread
+        mDevice.setCallbackLooper(getMainLooper());
+        if (mDevice.isConnected()) {
+            queryServices();
+        }
     }
 
-    private void disconnectDevice() {
-        if (mDevice != null) {
-            mDevice.disconnect();
+    private void releaseDevice() {
+        final BLEService service = mServiceClient.getService();
+        if (service != null && mDevice != null) {
+            service.removeDeviceListener(mDeviceListener);
+            service.release(mDevice.getAddress());
         }
     }
 
     // Query RSSI methods
-    private BLEDevice.QueryRssiValueListener mQueryRssiValueListener = new BLEDevice.QueryRssiValueListener() {
+    private BLERssiMonitor.RssiListener mRssiListener = new BLERssiMonitor.RssiListener() {
         @Override
-        public void onGotRssi(final boolean success, final int rssi) {
-            runOnUiThread(new Runnable() {
-                @Override
-                public void run() {
-                    Log.d(TAG, "onGotRssi, success: "+success+" rssi: "+rssi);
-                    if (success) {
-                        mDevice.deviceRssi = rssi;
-                        updateRSSI(rssi);
-                    }
-                }
-            });
+        public void onRssiChanged(final int rssi, final float smoothedRssi) {
+            Log.d(TAG, "onRssiChanged, rssi: "+rssi+" smoothed: "+smoothedRssi);
+            updateRSSI(Math.round(smoothedRssi));
         }
     };
 
-    private Runnable mQueryRSSIRunnable = null;
     private void startQueryRSSI() {
-        if (mQueryRSSIRunnable == null) {
-            mQueryRSSIRunnable = new Runnable() {
-                @Override
-                public void run() {
-                    mDevice.queryRemoteRssi(mQueryRssiValueListener);
-                    queryRSSIDelayed(DEFAULT_QUERY_RSSI_INTERVAL);
-                }
-            };
-            queryRSSIDelayed(0);
-        }
-    }
-
-    private static final long DEFAULT_QUERY_RSSI_INTERVAL = 1000;
-    private void queryRSSIDelayed(final long timeout) {
-        if (mQueryRSSIRunnable == null) {
-            return;
-        }
-        if (timeout > 0) {
-            mHandler.postDelayed(mQueryRSSIRunnable, timeout);
-        } else {
-            mHandler.post(mQueryRSSIRunnable);
+        if (mDevice != null) {
+            mDevice.getRssiMonitor().addListener(mRssiListener);
         }
     }
 
     private void stopQueryRSSI() {
-        if (mQueryRSSIRunnable != null) {
-            mHandler.removeCallbacks(mQueryRSSIRunnable);
-            mQueryRSSIRunnable = null;
+        if (mDevice != null) {
+            mDevice.getRssiMonitor().removeListener(mRssiListener);
         }
     }
 
@@ -212,15 +208,12 @@ public class DeviceInfoActivity extends AppCompatActivity {
         mDevice.queryServices(new BLEDevice.QueryResultsListener() {
             @Override
             public void onGotResults(final List<BLEData> dataList) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        hideLoading();
-                        if (dataList != null) {
-                            updateDataList(dataList);
-                        }
-                    }
-                });
+                hideLoading();
+                if (dataList != null) {
+                    // Remember the device with its services, so it can be connected again without scanning
+                    BLEManager.getInstance().getKnownDevices(getBaseContext()).remember(mDevice);
+                    updateDataList(dataList);
+                }
             }
         });
     }
@@ -235,17 +228,12 @@ public class DeviceInfoActivity extends AppCompatActivity {
         mDevice.queryIncludedServices(serviceData, new BLEDevice.QueryResultsListener() {
             @Override
             public void onGotResults(final List<BLEData> dataList) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (dataList != null) {
-                            updateDataList(dataList);
-                            listCharacteristics(serviceData);
-                        } else {
-                            hideLoading();
-                        }
-                    }
-                });
+                if (dataList != null) {
+                    updateDataList(dataList);
+                    listCharacteristics(serviceData);
+                } else {
+                    hideLoading();
+                }
             }
         });
     }
@@ -254,15 +242,10 @@ public class DeviceInfoActivity extends AppCompatActivity {
         mDevice.queryCharacters(serviceData, true, new BLEDevice.QueryResultsListener() {
             @Override
             public void onGotResults(final List<BLEData> dataList) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        hideLoading();
-                        if (dataList != null) {
-                            appendDataList(dataList);
-                        }
-                    }
-                });
+                hideLoading();
+                if (dataList != null) {
+                    appendDataList(dataList);
+                }
             }
         });
     }
@@ -274,15 +257,10 @@ public class DeviceInfoActivity extends AppCompatActivity {
         mDevice.queryDescriptors(characterData, true, new BLEDevice.QueryResultsListener() {
             @Override
             public void onGotResults(final List<BLEData> dataList) {
-                runOnUiThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        hideLoading();
-                        if (dataList != null) {
-                            updateDataList(dataList);
-                        }
-                    }
-                });
+                hideLoading();
+                if (dataList != null) {
+                    updateDataList(dataList);
+                }
             }
         });
     }
@@ -0,0 +1,50 @@
+package com.hill.libblemanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Per-advertisement cost of parsing scan records
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BLEAdvertisementBenchmark {
+    private byte[] mScanRecord;
+    private UUID mShortServiceUuid;
+
+    @Setup
+    public void setup() {
+        mScanRecord = BLEBenchmarkData.scanRecord();
+        mShortServiceUuid = BLEUuid.fromShortUuid(0x180F);
+    }
+
+    @Benchmark
+    public BLEAdvertisement parse() {
+        return BLEAdvertisement.parse(mScanRecord);
+    }
+
+    @Benchmark
+    public boolean hasShortServiceUuid() {
+        return BLEAdvertisement.hasServiceUuid(mScanRecord, mShortServiceUuid);
+    }
+
+    @Benchmark
+    public boolean hasLongServiceUuid() {
+        return BLEAdvertisement.hasServiceUuid(mScanRecord, BLEBenchmarkData.VENDOR_SERVICE_UUID);
+    }
+}
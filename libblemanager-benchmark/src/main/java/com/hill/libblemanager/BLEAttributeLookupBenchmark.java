@@ -0,0 +1,70 @@
+package com.hill.libblemanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Cost of looking up characteristics of a connected device in its BLEGattTree, by UUID and by instance id
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BLEAttributeLookupBenchmark {
+    private static final int SERVICE_COUNT = 20;
+    private static final int CHARACTERISTICS_PER_SERVICE = 10;
+
+    private BLEGattTree mTree;
+    private UUID mShortUuid;
+    private UUID mLongUuid;
+    private int mInstanceId;
+
+    @Setup
+    public void setup() {
+        final BLESimulatedPeripheral peripheral = new BLESimulatedPeripheral("00:11:22:33:44:55", "Lookup");
+        // Half of the characteristics are standard ones with 16-bit UUIDs, half are vendor ones
+        BLESimulatedAttribute last = null;
+        int index = 0;
+        for (int i = 0; i < SERVICE_COUNT; i++) {
+            final BLESimulatedAttribute service = peripheral.addService(BLEUuid.fromShortUuid(0x1800 + i));
+            for (int j = 0; j < CHARACTERISTICS_PER_SERVICE; j++, index++) {
+                final UUID uuid = index % 2 == 0 ? BLEUuid.fromShortUuid(0x2A00 + index)
+                        : new UUID(0x6E40000000000000L + index, 0xB5A3F393E0A9E50EL);
+                last = service.addCharacteristic(uuid, BLEAttribute.PROPERTY_READ | BLEAttribute.PROPERTY_NOTIFY);
+            }
+        }
+        mTree = BLEGattTree.build(new ArrayList<BLEAttribute>(peripheral.getServices()));
+        mShortUuid = BLEUuid.fromShortUuid(0x2A00 + index - 2);
+        mLongUuid = new UUID(0x6E40000000000000L + index - 1, 0xB5A3F393E0A9E50EL);
+        mInstanceId = last.getInstanceId();
+    }
+
+    @Benchmark
+    public BLEData lookupShortUuid() {
+        return mTree.getCharacteristic(mShortUuid);
+    }
+
+    @Benchmark
+    public BLEData lookupLongUuid() {
+        return mTree.getCharacteristic(mLongUuid);
+    }
+
+    @Benchmark
+    public BLEData lookupInstanceId() {
+        return mTree.getCharacteristicByInstanceId(mInstanceId);
+    }
+}
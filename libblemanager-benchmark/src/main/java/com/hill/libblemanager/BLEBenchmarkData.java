@@ -0,0 +1,29 @@
+package com.hill.libblemanager;
+
+import java.util.UUID;
+
+/**
+ * <p>Data shared by the benchmarks, shaped like what real devices send
+ */
+final class BLEBenchmarkData {
+    static final UUID VENDOR_SERVICE_UUID = UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E");
+
+    private BLEBenchmarkData() {
+    }
+
+    /**
+     * @return A 62 bytes scan record of a heart rate sensor: flags, two 16-bit services, a 128-bit service,
+     * manufacturer data and the name, padded with zeros like the records of the Android stack
+     */
+    static byte[] scanRecord() {
+        final BLESimulatedPeripheral peripheral = new BLESimulatedPeripheral("00:11:22:33:44:55", "HRM Sensor 1234");
+        peripheral.addAdvertisedServiceUuid(BLEUuid.fromShortUuid(0x180D));
+        peripheral.addAdvertisedServiceUuid(BLEUuid.fromShortUuid(0x180F));
+        peripheral.addAdvertisedServiceUuid(VENDOR_SERVICE_UUID);
+        peripheral.setManufacturerData(0x004C, new byte[] {0x02, 0x15, 0x01, 0x02, 0x03, 0x04});
+        final byte[] record = peripheral.getScanRecord();
+        final byte[] padded = new byte[62];
+        System.arraycopy(record, 0, padded, 0, Math.min(record.length, padded.length));
+        return padded;
+    }
+}
@@ -0,0 +1,118 @@
+package com.hill.libblemanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Per-notification cost of delivering notifications from a peripheral to the GATT callback,
+ * through the simulated transport without radio latency
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BLENotificationBenchmark {
+    private static final int BATCH = 100;
+    private static final UUID SERVICE_UUID = BLEUuid.fromShortUuid(0x180D);
+    private static final UUID CHARACTERISTIC_UUID = BLEUuid.fromShortUuid(0x2A37);
+
+    private BLESimulator mSimulator;
+    private BLESimulatedPeripheral mPeripheral;
+    private BLESimulatedAttribute mCharacteristic;
+    private BLEGattTransport mGatt;
+    private final byte[] mValue = new byte[] {0x00, 72};
+    private final Semaphore mDelivered = new Semaphore(0);
+
+    @Setup
+    public void setup() throws InterruptedException {
+        mSimulator = new BLESimulator(1, 0);
+        mSimulator.setLatency(0, 0);
+        mPeripheral = new BLESimulatedPeripheral("00:11:22:33:44:55", "HRM");
+        mCharacteristic = mPeripheral.addService(SERVICE_UUID)
+                .addCharacteristic(CHARACTERISTIC_UUID, BLEAttribute.PROPERTY_NOTIFY);
+        mSimulator.addPeripheral(mPeripheral);
+
+        final BlockingQueue<Integer> results = new LinkedBlockingQueue<Integer>();
+        mGatt = mSimulator.connectGatt(mPeripheral.getAddress(), false, new BLEGattTransport.Callback() {
+            @Override
+            public void onConnectionStateChange(BLEGattTransport transport, int status, int newState) {
+                results.add(status);
+            }
+
+            @Override
+            public void onServicesDiscovered(BLEGattTransport transport, int status) {
+                results.add(status);
+            }
+
+            @Override
+            public void onAttributeRead(BLEGattTransport transport, BLEAttribute attribute, byte[] value, int status) {
+            }
+
+            @Override
+            public void onAttributeWrite(BLEGattTransport transport, BLEAttribute attribute, int status) {
+                results.add(status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(BLEGattTransport transport, BLEAttribute characteristic, byte[] value) {
+                mDelivered.release();
+            }
+
+            @Override
+            public void onRemoteRssiRead(BLEGattTransport transport, int rssi, int status) {
+            }
+
+            @Override
+            public void onMtuChanged(BLEGattTransport transport, int mtu, int status) {
+            }
+        });
+        awaitSuccess(results);
+        mGatt.discoverServices();
+        awaitSuccess(results);
+        final BLEAttribute characteristic = mGatt.getServices().get(0).getChildren().get(0);
+        mGatt.setNotification(characteristic, true);
+        mGatt.writeAttribute(characteristic.getChildren().get(0), new byte[] {0x01, 0x00},
+                BLEGattTransport.WRITE_TYPE_DEFAULT);
+        awaitSuccess(results);
+    }
+
+    private static void awaitSuccess(final BlockingQueue<Integer> results) throws InterruptedException {
+        final Integer status = results.poll(5, TimeUnit.SECONDS);
+        if (status == null || status != BLEGattTransport.STATUS_SUCCESS) {
+            throw new IllegalStateException("Failed to set up the connection: "+status);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mGatt.close();
+        mSimulator.shutdown();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void dispatch() throws InterruptedException {
+        for (int i = 0; i < BATCH; i++) {
+            mPeripheral.notifyValueChanged(mCharacteristic, mValue);
+        }
+        mDelivered.acquire(BATCH);
+    }
+}
@@ -0,0 +1,58 @@
+package com.hill.libblemanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Cost of building the scan filter when a scan starts, and of checking every advertisement against it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BLEScanFilterBenchmark {
+    private UUID[] mServiceUuids;
+    private BLEScanFilter mFilter;
+    private UUID mAdvertisedUuid;
+    private byte[] mScanRecord;
+
+    @Setup
+    public void setup() {
+        mServiceUuids = new UUID[] {
+                BLEUuid.fromShortUuid(0x180D),
+                BLEUuid.fromShortUuid(0x180F),
+                UUID.fromString("6E400001-B5A3-F393-E0A9-E50E24DCCA9E")
+        };
+        mFilter = BLEScanFilter.fromServiceUuids(mServiceUuids);
+        mAdvertisedUuid = BLEUuid.fromShortUuid(0x180F);
+        mScanRecord = BLEBenchmarkData.scanRecord();
+    }
+
+    @Benchmark
+    public BLEScanFilter buildFilter() {
+        return BLEScanFilter.fromServiceUuids(mServiceUuids);
+    }
+
+    @Benchmark
+    public boolean matchUuid() {
+        return mFilter.matches(mAdvertisedUuid);
+    }
+
+    @Benchmark
+    public boolean matchScanRecord() {
+        return mFilter.matchesExactly(mScanRecord);
+    }
+}
@@ -0,0 +1,71 @@
+package com.hill.libblemanager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Per-notification cost of decoding characteristic values
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+@Fork(3)
+public class BLEValueCodecBenchmark {
+    private byte[] mValue;
+    private BLEValueSchema mSchema;
+    private double[] mDecoded;
+
+    @Setup
+    public void setup() {
+        // Flags, UINT16 heart rate, SFLOAT temperature, FLOAT32 acceleration, UINT32 timestamp
+        mValue = new byte[15];
+        BLEValueCodec.putLong(mValue, BLEValueFormat.FORMAT_UINT8, 0, 0x01);
+        BLEValueCodec.putLong(mValue, BLEValueFormat.FORMAT_UINT16, 1, 72);
+        BLEValueCodec.putIEEE11073(mValue, BLEValueFormat.FORMAT_SFLOAT, 3, 366, -1);
+        BLEValueCodec.putDouble(mValue, BLEValueFormat.FORMAT_FLOAT32, 5, 9.81, ByteOrder.LITTLE_ENDIAN);
+        BLEValueCodec.putLong(mValue, BLEValueFormat.FORMAT_UINT32, 9, 123456789);
+        mSchema = new BLEValueSchema.Builder()
+                .setByteOrder(ByteOrder.LITTLE_ENDIAN)
+                .addField("flags", BLEValueFormat.FORMAT_UINT8)
+                .addField("heartRate", BLEValueFormat.FORMAT_UINT16)
+                .addField("temperature", BLEValueFormat.FORMAT_SFLOAT)
+                .addField("acceleration", BLEValueFormat.FORMAT_FLOAT32)
+                .addField("timestamp", BLEValueFormat.FORMAT_UINT32)
+                .build();
+        mDecoded = new double[mSchema.getFieldCount()];
+    }
+
+    @Benchmark
+    public long decodeUint16() {
+        return BLEValueCodec.getLong(mValue, BLEValueFormat.FORMAT_UINT16, 1);
+    }
+
+    @Benchmark
+    public double decodeSfloat() {
+        return BLEValueCodec.getDouble(mValue, BLEValueFormat.FORMAT_SFLOAT, 3);
+    }
+
+    @Benchmark
+    public double decodeFloat32() {
+        return BLEValueCodec.getDouble(mValue, BLEValueFormat.FORMAT_FLOAT32, 5);
+    }
+
+    @Benchmark
+    public double[] decodeSchema() {
+        mSchema.decode(mValue, mDecoded);
+        return mDecoded;
+    }
+}
@@ -0,0 +1,271 @@
+package com.hill.libblemanager;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>Parsed advertising data of a scan record, see {@link BLEScanResult#scanRecord}.
+ * <p>The record is a sequence of AD structures of length, type and data. Parsing stops at the first
+ * zero length, which pads the records of the Android stack, or at a truncated structure.
+ */
+public final class BLEAdvertisement {
+    // AD types of the Bluetooth Assigned Numbers
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_COMPLETE_NAME = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_UUID16 = 0x16;
+    public static final int TYPE_SERVICE_DATA_UUID32 = 0x20;
+    public static final int TYPE_SERVICE_DATA_UUID128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] mBytes;
+    private final int mFlags;
+    private final List<UUID> mServiceUuids;
+    private final String mLocalName;
+    private final int mTxPowerLevel;
+    private final Map<Integer, byte[]> mManufacturerData;
+    private final Map<UUID, byte[]> mServiceData;
+
+    private BLEAdvertisement(final byte[] bytes, final int flags, final List<UUID> serviceUuids, final String localName,
+                             final int txPowerLevel, final Map<Integer, byte[]> manufacturerData,
+                             final Map<UUID, byte[]> serviceData) {
+        mBytes = bytes;
+        mFlags = flags;
+        mServiceUuids = serviceUuids;
+        mLocalName = localName;
+        mTxPowerLevel = txPowerLevel;
+        mManufacturerData = manufacturerData;
+        mServiceData = serviceData;
+    }
+
+    /**
+     * <p>Method to parse a scan record
+     * @param scanRecord The advertising data followed by the scan response
+     * @return The parsed advertisement, or null if the record is null
+     */
+    public static BLEAdvertisement parse(final byte[] scanRecord) {
+        if (scanRecord == null) {
+            return null;
+        }
+        int flags = -1;
+        List<UUID> serviceUuids = null;
+        String shortName = null;
+        String completeName = null;
+        int txPowerLevel = TX_POWER_UNKNOWN;
+        Map<Integer, byte[]> manufacturerData = null;
+        Map<UUID, byte[]> serviceData = null;
+
+        for (int offset = 0; offset < scanRecord.length; offset = nextStructure(scanRecord, offset)) {
+            final int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[offset + 1] & 0xFF;
+            final int dataOffset = offset + 2;
+            final int dataLength = length - 1;
+            switch (type) {
+                case TYPE_FLAGS:
+                    if (dataLength > 0) {
+                        flags = scanRecord[dataOffset] & 0xFF;
+                    }
+                    break;
+                case TYPE_UUID16_INCOMPLETE:
+                case TYPE_UUID16:
+                case TYPE_UUID32_INCOMPLETE:
+                case TYPE_UUID32:
+                case TYPE_UUID128_INCOMPLETE:
+                case TYPE_UUID128:
+                    if (serviceUuids == null) {
+                        serviceUuids = new ArrayList<UUID>();
+                    }
+                    final int uuidSize = uuidSizeOf(type);
+                    for (int i = 0; i + uuidSize <= dataLength; i += uuidSize) {
+                        serviceUuids.add(readUuid(scanRecord, dataOffset + i, uuidSize));
+                    }
+                    break;
+                case TYPE_SHORT_NAME:
+                    shortName = new String(scanRecord, dataOffset, dataLength, UTF8);
+                    break;
+                case TYPE_COMPLETE_NAME:
+                    completeName = new String(scanRecord, dataOffset, dataLength, UTF8);
+                    break;
+                case TYPE_TX_POWER_LEVEL:
+                    if (dataLength > 0) {
+                        txPowerLevel = scanRecord[dataOffset];
+                    }
+                    break;
+                case TYPE_SERVICE_DATA_UUID16:
+                case TYPE_SERVICE_DATA_UUID32:
+                case TYPE_SERVICE_DATA_UUID128:
+                    final int dataUuidSize = uuidSizeOf(type);
+                    if (dataLength >= dataUuidSize) {
+                        if (serviceData == null) {
+                            serviceData = new LinkedHashMap<UUID, byte[]>();
+                        }
+                        serviceData.put(readUuid(scanRecord, dataOffset, dataUuidSize),
+                                Arrays.copyOfRange(scanRecord, dataOffset + dataUuidSize, dataOffset + dataLength));
+                    }
+                    break;
+                case TYPE_MANUFACTURER_DATA:
+                    if (dataLength >= 2) {
+                        if (manufacturerData == null) {
+                            manufacturerData = new HashMap<Integer, byte[]>();
+                        }
+                        final int manufacturerId = (scanRecord[dataOffset] & 0xFF) | (scanRecord[dataOffset + 1] & 0xFF) << 8;
+                        manufacturerData.put(manufacturerId,
+                                Arrays.copyOfRange(scanRecord, dataOffset + 2, dataOffset + dataLength));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return new BLEAdvertisement(scanRecord, flags,
+                serviceUuids != null ? Collections.unmodifiableList(serviceUuids) : Collections.<UUID>emptyList(),
+                completeName != null ? completeName : shortName, txPowerLevel,
+                manufacturerData != null ? manufacturerData : Collections.<Integer, byte[]>emptyMap(),
+                serviceData != null ? serviceData : Collections.<UUID, byte[]>emptyMap());
+    }
+
+    /**
+     * <p>Method to check whether the scan record advertises the service UUID, without parsing the whole record
+     * @param scanRecord The advertising data followed by the scan response
+     * @param uuid The service UUID
+     * @return Whether the UUID is in any list of service UUIDs of the record
+     */
+    public static boolean hasServiceUuid(final byte[] scanRecord, final UUID uuid) {
+        if (scanRecord == null || uuid == null) {
+            return false;
+        }
+        for (int offset = 0; offset < scanRecord.length; offset = nextStructure(scanRecord, offset)) {
+            final int length = scanRecord[offset] & 0xFF;
+            if (length == 0 || offset + length >= scanRecord.length) {
+                break;
+            }
+            final int type = scanRecord[offset + 1] & 0xFF;
+            if (type < TYPE_UUID16_INCOMPLETE || type > TYPE_UUID128) {
+                continue;
+            }
+            final int uuidSize = uuidSizeOf(type);
+            for (int i = 0; i + uuidSize <= length - 1; i += uuidSize) {
+                if (uuidEquals(scanRecord, offset + 2 + i, uuidSize, uuid)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static int nextStructure(final byte[] scanRecord, final int offset) {
+        return offset + 1 + (scanRecord[offset] & 0xFF);
+    }
+
+    private static int uuidSizeOf(final int type) {
+        switch (type) {
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16:
+            case TYPE_SERVICE_DATA_UUID16:
+                return 2;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32:
+            case TYPE_SERVICE_DATA_UUID32:
+                return 4;
+            default:
+                return 16;
+        }
+    }
+
+    private static long readLittleEndian(final byte[] bytes, final int offset, final int size) {
+        long value = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            value = value << 8 | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static UUID readUuid(final byte[] bytes, final int offset, final int size) {
+        if (size == 16) {
+            return new UUID(readLittleEndian(bytes, offset + 8, 8), readLittleEndian(bytes, offset, 8));
+        }
+        return BLEUuid.fromSigUuid(readLittleEndian(bytes, offset, size));
+    }
+
+    private static boolean uuidEquals(final byte[] bytes, final int offset, final int size, final UUID uuid) {
+        if (size == 16) {
+            return readLittleEndian(bytes, offset + 8, 8) == uuid.getMostSignificantBits()
+                    && readLittleEndian(bytes, offset, 8) == uuid.getLeastSignificantBits();
+        }
+        return BLEUuid.isSigUuid(uuid, readLittleEndian(bytes, offset, size));
+    }
+
+    /**
+     * @return The raw scan record
+     */
+    public byte[] getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return The advertising flags, or -1 if they aren't advertised
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * @return The advertised service UUIDs, in the order of the record
+     */
+    public List<UUID> getServiceUuids() {
+        return mServiceUuids;
+    }
+
+    /**
+     * @return The complete local name, or the shortened one if there is only that, or null
+     */
+    public String getLocalName() {
+        return mLocalName;
+    }
+
+    /**
+     * @return The TX power level in dBm, or {@link #TX_POWER_UNKNOWN}
+     */
+    public int getTxPowerLevel() {
+        return mTxPowerLevel;
+    }
+
+    /**
+     * <p>Get the manufacturer specific data of the company
+     * @param manufacturerId Company identifier assigned by the Bluetooth SIG
+     * @return The data without the company identifier, or null if it's not advertised
+     */
+    public byte[] getManufacturerData(final int manufacturerId) {
+        return mManufacturerData.get(manufacturerId);
+    }
+
+    /**
+     * <p>Get the service data of the service
+     * @param serviceUuid UUID of the service
+     * @return The data without the service UUID, or null if it's not advertised
+     */
+    public byte[] getServiceData(final UUID serviceUuid) {
+        return mServiceData.get(serviceUuid);
+    }
+}
@@ -0,0 +1,113 @@
+package com.hill.libblemanager;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * <p>Reassembly of the data of extended advertisements reported in several parts. A controller reports the
+ * data of a chain of AUX_CHAIN_IND packets as partial reports with the status {@link #DATA_INCOMPLETE} followed
+ * by a last one with {@link #DATA_COMPLETE}, or {@link #DATA_TRUNCATED} if the rest of the chain is lost.
+ * Parts are kept per advertiser and advertising set id, and parts older than the timeout are dropped.
+ * <p>It's thread safe.
+ */
+public final class BLEAdvertisingDataAssembler {
+    // Data statuses of the HCI LE Extended Advertising Report event, ScanResult.getDataStatus() on Android
+    public static final int DATA_COMPLETE = 0;
+    public static final int DATA_INCOMPLETE = 1;
+    public static final int DATA_TRUNCATED = 2;
+
+    public static final long DEFAULT_TIMEOUT_NANOS = 1000000000L;
+
+    private static final class Partial {
+        byte[] data = new byte[0];
+        long updateNanos;
+    }
+
+    private final long mTimeoutNanos;
+    private final Map<String, Partial> mPartials = new HashMap<String, Partial>();
+    private long mLastEvictNanos = 0;
+
+    public BLEAdvertisingDataAssembler() {
+        this(DEFAULT_TIMEOUT_NANOS);
+    }
+
+    /**
+     * <p>Construction method of BLEAdvertisingDataAssembler
+     * @param timeoutNanos Time in nanoseconds after which parts of a chain not completed are dropped
+     */
+    public BLEAdvertisingDataAssembler(final long timeoutNanos) {
+        if (timeoutNanos <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: "+timeoutNanos);
+        }
+        mTimeoutNanos = timeoutNanos;
+    }
+
+    /**
+     * <p>Method to add a report
+     * @param address Address of the advertiser
+     * @param advertisingSid Advertising set id of the report
+     * @param dataStatus {@link #DATA_COMPLETE}, {@link #DATA_INCOMPLETE} or {@link #DATA_TRUNCATED}
+     * @param data Data of the report
+     * @param nowNanos Current time in nanoseconds, e.g. {@link System#nanoTime()}
+     * @return The data of the whole chain when the report is its last one, or null if more parts are expected
+     */
+    public synchronized byte[] add(final String address, final int advertisingSid, final int dataStatus,
+                                   final byte[] data, final long nowNanos) {
+        if (nowNanos - mLastEvictNanos > mTimeoutNanos) {
+            evict(nowNanos);
+        }
+        final String key = address + '/' + advertisingSid;
+        Partial partial = mPartials.get(key);
+        if (partial != null && nowNanos - partial.updateNanos > mTimeoutNanos) { // A stale chain
+            partial = null;
+        }
+        final byte[] part = data != null ? data : new byte[0];
+        if (dataStatus == DATA_INCOMPLETE) {
+            if (partial == null) {
+                partial = new Partial();
+                mPartials.put(key, partial);
+            }
+            partial.data = concat(partial.data, part);
+            partial.updateNanos = nowNanos;
+            if (partial.data.length > BLEScanOptions.MAX_EXTENDED_DATA_LENGTH) { // Not a chain of one advertiser
+                mPartials.remove(key);
+            }
+            return null;
+        }
+        mPartials.remove(key);
+        return partial != null ? concat(partial.data, part) : part;
+    }
+
+    private static byte[] concat(final byte[] first, final byte[] second) {
+        if (first.length == 0) {
+            return second;
+        }
+        final byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private void evict(final long nowNanos) {
+        mLastEvictNanos = nowNanos;
+        final Iterator<Partial> iterator = mPartials.values().iterator();
+        while (iterator.hasNext()) {
+            if (nowNanos - iterator.next().updateNanos > mTimeoutNanos) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * <p>Get the number of chains being reassembled
+     * @return The number
+     */
+    public synchronized int getPendingCount() {
+        return mPartials.size();
+    }
+
+    public synchronized void clear() {
+        mPartials.clear();
+    }
+}
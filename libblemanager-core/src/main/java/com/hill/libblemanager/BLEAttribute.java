@@ -0,0 +1,78 @@
+package com.hill.libblemanager;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>GATT Service, Characteristic or Descriptor of a remote device, as provided by a {@link BLEGattTransport}.
+ * It's the platform independent view wrapped by {@code BLEData}.
+ */
+public interface BLEAttribute {
+    int TYPE_SERVICE = 1;
+    int TYPE_CHARACTERISTIC = 2;
+    int TYPE_DESCRIPTOR = 3;
+
+    // Characteristic properties, the same values as the PROPERTY_* constants of BluetoothGattCharacteristic
+    int PROPERTY_BROADCAST = 0x01;
+    int PROPERTY_READ = 0x02;
+    int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    int PROPERTY_WRITE = 0x08;
+    int PROPERTY_NOTIFY = 0x10;
+    int PROPERTY_INDICATE = 0x20;
+    int PROPERTY_SIGNED_WRITE = 0x40;
+    int PROPERTY_EXTENDED_PROPS = 0x80;
+
+    /**
+     * @return One of {@link #TYPE_SERVICE}, {@link #TYPE_CHARACTERISTIC} or {@link #TYPE_DESCRIPTOR}
+     */
+    int getType();
+
+    UUID getUuid();
+
+    /**
+     * <p>Get the instance id, which tells apart attributes of the same UUID. Descriptors return 0.
+     * @return The instance id
+     */
+    int getInstanceId();
+
+    /**
+     * <p>Get the properties of a characteristic, see PROPERTY_* constants
+     * @return The properties, 0 for services and descriptors
+     */
+    int getProperties();
+
+    /**
+     * <p>Get the locally cached value, updated by reads and notifications
+     * @return The cached value, or null if there is no value
+     */
+    byte[] getValue();
+
+    /**
+     * <p>Method to update the locally cached value, e.g. before writing it
+     * @param value The new value
+     * @return Whether the value is set, services have no value
+     */
+    boolean setValue(final byte[] value);
+
+    /**
+     * @return The service of a characteristic, the characteristic of a descriptor, or null for services
+     */
+    BLEAttribute getParent();
+
+    /**
+     * @return The characteristics of a service, the descriptors of a characteristic, or an empty list for descriptors
+     */
+    List<BLEAttribute> getChildren();
+
+    /**
+     * @return The included services of a service, or an empty list for other types
+     */
+    List<BLEAttribute> getIncludedServices();
+
+    /**
+     * <p>Get the platform object behind this attribute, e.g. BluetoothGattCharacteristic on Android.
+     * It's what {@code BLEData.data} holds.
+     * @return The platform object, or this attribute if there is none
+     */
+    Object getNativeObject();
+}
@@ -0,0 +1,84 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Pool of byte arrays in power of two sizes, to reuse the buffers of reassembled messages instead of
+ * allocating one per message. Arrays larger than the largest size class are allocated and dropped as usual.
+ * <p>It's thread safe.
+ */
+public final class BLEBufferPool {
+    public static final int MIN_BUFFER_SIZE = 64;
+    public static final int MAX_BUFFER_SIZE = 64 * 1024;
+    public static final int DEFAULT_BUFFERS_PER_SIZE = 4;
+
+    private static final int MIN_SHIFT = 6;
+    private static final int SIZE_CLASS_COUNT = 11; // 64 bytes to 64 KB
+
+    private final List<ArrayDeque<byte[]>> mFreeBuffers = new ArrayList<ArrayDeque<byte[]>>(SIZE_CLASS_COUNT);
+    private final int mBuffersPerSize;
+
+    public BLEBufferPool() {
+        this(DEFAULT_BUFFERS_PER_SIZE);
+    }
+
+    /**
+     * <p>Construction method of BLEBufferPool
+     * @param buffersPerSize Max number of free arrays kept for every size
+     */
+    public BLEBufferPool(final int buffersPerSize) {
+        if (buffersPerSize < 0) {
+            throw new IllegalArgumentException("Invalid buffers per size: "+buffersPerSize);
+        }
+        mBuffersPerSize = buffersPerSize;
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            mFreeBuffers.add(new ArrayDeque<byte[]>(buffersPerSize));
+        }
+    }
+
+    private static int sizeClassOf(final int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * <p>Get an array of at least the size, its content is undefined
+     * @param size The min size
+     * @return The array, give it back by {@link #release} when it's not used any more
+     */
+    public byte[] acquire(final int size) {
+        if (size > MAX_BUFFER_SIZE) {
+            return new byte[size];
+        }
+        final int sizeClass = sizeClassOf(size);
+        synchronized (this) {
+            final byte[] buffer = mFreeBuffers.get(sizeClass).poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[MIN_BUFFER_SIZE << sizeClass];
+    }
+
+    /**
+     * <p>Method to give back an array got from {@link #acquire}, it must not be used after it
+     * @param buffer The array
+     */
+    public void release(final byte[] buffer) {
+        final int size = buffer.length;
+        if (size < MIN_BUFFER_SIZE || size > MAX_BUFFER_SIZE || (size & (size - 1)) != 0) {
+            return; // Not from this pool
+        }
+        final int sizeClass = sizeClassOf(size);
+        synchronized (this) {
+            final ArrayDeque<byte[]> freeBuffers = mFreeBuffers.get(sizeClass);
+            if (freeBuffers.size() < mBuffersPerSize) {
+                freeBuffers.add(buffer);
+            }
+        }
+    }
+}
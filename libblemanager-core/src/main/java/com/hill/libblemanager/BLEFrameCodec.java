@@ -0,0 +1,215 @@
+package com.hill.libblemanager;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Framing of messages larger than one characteristic value into fragments, and their reassembly.
+ * Every fragment starts with a header byte: {@link #FLAG_FIRST} and {@link #FLAG_LAST} mark the first and the
+ * last fragment of a message, and the low 6 bits count the fragments modulo 64, so lost fragments are detected.
+ * The first fragment carries the length of the message as an unsigned 16 bits little endian value after the
+ * header, so the receiver takes a buffer of the right size at once.
+ * <p>An encoder and a decoder keep the sequence of one direction of one connection, {@link Decoder#reset()}
+ * it when the connection is made again.
+ */
+public final class BLEFrameCodec {
+    public static final int FLAG_FIRST = 0x80;
+    public static final int FLAG_LAST = 0x40;
+    public static final int SEQUENCE_MASK = 0x3F;
+    public static final int HEADER_SIZE = 1;
+    public static final int LENGTH_SIZE = 2;
+    public static final int MAX_MESSAGE_SIZE = 0xFFFF;
+
+    // Reasons of dropped messages
+    public static final int DROP_LOST_FRAGMENTS = 1;
+    public static final int DROP_INVALID_FRAGMENT = 2;
+
+    private BLEFrameCodec() {
+    }
+
+    /**
+     * <p>Encoder of the messages of one direction
+     */
+    public static final class Encoder {
+        private int mSequence = 0;
+
+        /**
+         * <p>Method to split a message into fragments
+         * @param message The message, up to {@link #MAX_MESSAGE_SIZE} bytes
+         * @param maxFragmentSize Max size of a fragment including its header, e.g. the MTU minus 3, at least 4
+         * @return The fragments to write in order
+         */
+        public synchronized List<byte[]> encode(final byte[] message, final int maxFragmentSize) {
+            if (message.length > MAX_MESSAGE_SIZE) {
+                throw new IllegalArgumentException("Message too large: "+message.length);
+            }
+            if (maxFragmentSize < HEADER_SIZE + LENGTH_SIZE + 1) {
+                throw new IllegalArgumentException("Invalid fragment size: "+maxFragmentSize);
+            }
+            final List<byte[]> fragments = new ArrayList<byte[]>(getFragmentCount(message.length, maxFragmentSize));
+            int offset = 0;
+            do {
+                final boolean first = offset == 0;
+                final int headerSize = first ? HEADER_SIZE + LENGTH_SIZE : HEADER_SIZE;
+                final int payloadSize = Math.min(message.length - offset, maxFragmentSize - headerSize);
+                final boolean last = offset + payloadSize == message.length;
+                final byte[] fragment = new byte[headerSize + payloadSize];
+                fragment[0] = (byte) ((first ? FLAG_FIRST : 0) | (last ? FLAG_LAST : 0) | mSequence);
+                if (first) {
+                    fragment[1] = (byte) message.length;
+                    fragment[2] = (byte) (message.length >>> 8);
+                }
+                System.arraycopy(message, offset, fragment, headerSize, payloadSize);
+                fragments.add(fragment);
+                mSequence = (mSequence + 1) & SEQUENCE_MASK;
+                offset += payloadSize;
+            } while (offset < message.length);
+            return fragments;
+        }
+
+        /**
+         * <p>Get the number of fragments of a message
+         * @param messageSize Size of the message
+         * @param maxFragmentSize Max size of a fragment including its header
+         * @return The number of fragments
+         */
+        public static int getFragmentCount(final int messageSize, final int maxFragmentSize) {
+            final int firstPayload = maxFragmentSize - HEADER_SIZE - LENGTH_SIZE;
+            if (messageSize <= firstPayload) {
+                return 1;
+            }
+            final int payload = maxFragmentSize - HEADER_SIZE;
+            return 1 + (messageSize - firstPayload + payload - 1) / payload;
+        }
+
+        public synchronized void reset() {
+            mSequence = 0;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * <p>Callback method of a reassembled message. The buffer goes back to the pool when it returns,
+         * copy the content to keep it.
+         * @param message Read only view of the message, from its position to its limit
+         */
+        void onMessage(final ByteBuffer message);
+
+        /**
+         * <p>Callback method when a message is dropped
+         * @param reason {@link #DROP_LOST_FRAGMENTS} or {@link #DROP_INVALID_FRAGMENT}
+         * @param lostFragments Number of fragments found missing, 0 if unknown
+         */
+        void onMessageDropped(final int reason, final int lostFragments);
+    }
+
+    /**
+     * <p>Decoder of the messages of one direction, fragments are copied once into a buffer of the pool
+     * of the size of the message. It isn't thread safe, feed it on one thread.
+     */
+    public static final class Decoder {
+        private final BLEBufferPool mPool;
+        private final Listener mListener;
+        private int mExpectedSequence = -1;
+        private byte[] mBuffer = null;
+        private int mLength = 0;
+        private int mFilled = 0;
+        private long mMessageCount = 0;
+        private long mDroppedCount = 0;
+
+        /**
+         * <p>Construction method of Decoder
+         * @param pool Pool of the message buffers
+         * @param listener Listener to receive the messages
+         */
+        public Decoder(final BLEBufferPool pool, final Listener listener) {
+            mPool = pool;
+            mListener = listener;
+        }
+
+        /**
+         * <p>Method to feed a received fragment
+         * @param fragment The fragment, e.g. the value of a notification
+         */
+        public void decode(final byte[] fragment) {
+            if (fragment == null || fragment.length < HEADER_SIZE) {
+                drop(DROP_INVALID_FRAGMENT, 0);
+                return;
+            }
+            final int header = fragment[0] & 0xFF;
+            final int sequence = header & SEQUENCE_MASK;
+            final boolean first = (header & FLAG_FIRST) != 0;
+            if (mExpectedSequence >= 0 && sequence != mExpectedSequence) {
+                drop(DROP_LOST_FRAGMENTS, (sequence - mExpectedSequence) & SEQUENCE_MASK);
+            }
+            mExpectedSequence = (sequence + 1) & SEQUENCE_MASK;
+            int offset = HEADER_SIZE;
+            if (first) {
+                if (mBuffer != null) { // The last fragment of the previous message is missing
+                    drop(DROP_LOST_FRAGMENTS, 0);
+                }
+                if (fragment.length < HEADER_SIZE + LENGTH_SIZE) {
+                    drop(DROP_INVALID_FRAGMENT, 0);
+                    return;
+                }
+                mLength = (fragment[1] & 0xFF) | (fragment[2] & 0xFF) << 8;
+                mFilled = 0;
+                mBuffer = mPool.acquire(mLength);
+                offset += LENGTH_SIZE;
+            } else if (mBuffer == null) { // Rest of a dropped message
+                return;
+            }
+            final int payloadSize = fragment.length - offset;
+            if (mFilled + payloadSize > mLength) {
+                drop(DROP_INVALID_FRAGMENT, 0);
+                return;
+            }
+            System.arraycopy(fragment, offset, mBuffer, mFilled, payloadSize);
+            mFilled += payloadSize;
+            if ((header & FLAG_LAST) == 0) {
+                return;
+            }
+            if (mFilled != mLength) {
+                drop(DROP_INVALID_FRAGMENT, 0);
+                return;
+            }
+            final byte[] buffer = mBuffer;
+            mBuffer = null;
+            mMessageCount++;
+            try {
+                mListener.onMessage(ByteBuffer.wrap(buffer, 0, mLength).asReadOnlyBuffer());
+            } finally {
+                mPool.release(buffer);
+            }
+        }
+
+        private void drop(final int reason, final int lostFragments) {
+            if (mBuffer != null) {
+                mPool.release(mBuffer);
+                mBuffer = null;
+            }
+            mDroppedCount++;
+            mListener.onMessageDropped(reason, lostFragments);
+        }
+
+        /**
+         * <p>Method to drop the message being reassembled and accept any sequence, e.g. after a reconnection
+         */
+        public void reset() {
+            if (mBuffer != null) {
+                mPool.release(mBuffer);
+                mBuffer = null;
+            }
+            mExpectedSequence = -1;
+        }
+
+        public long getMessageCount() {
+            return mMessageCount;
+        }
+
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+    }
+}
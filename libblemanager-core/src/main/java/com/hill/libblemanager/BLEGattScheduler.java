@@ -0,0 +1,321 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Scheduler of the GATT operations of all connections. The Bluetooth stack runs the operations of all
+ * connections one at a time anyway, so this scheduler picks which one goes next instead of the order they
+ * are issued in, and a device doing a bulk transfer doesn't hold back the control writes of another one.
+ * <p>Every operation has a priority class, {@link #PRIORITY_INTERACTIVE}, {@link #PRIORITY_BACKGROUND} or
+ * {@link #PRIORITY_BULK}. Operations are picked by weighted fair queuing over the classes of every connection:
+ * a class gets air time by its weight, so interactive operations wait little while bulk ones still progress.
+ * The number of operations in flight is limited in total and per connection.
+ * <p>It's disabled by default, enable it by {@link #setEnabled(boolean)} before connecting the devices,
+ * and set the priorities of their characteristics by {@code BLEDevice.setGattPriority}.
+ */
+public final class BLEGattScheduler {
+    private static final String TAG = "BLEGattScheduler";
+
+    // Priority classes
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+    public static final int PRIORITY_BULK = 2;
+    static final int PRIORITY_COUNT = 3;
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    public static final int DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION = 1;
+    /** Time after which an operation without a result is considered lost, in milliseconds */
+    public static final long DEFAULT_OPERATION_TIMEOUT = 30000;
+
+    private static final class InstanceHolder {
+        private static final BLEGattScheduler INSTANCE = new BLEGattScheduler();
+    }
+
+    public static BLEGattScheduler getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    /**
+     * <p>GATT operation, it's run by the executor of its connection once it's picked
+     */
+    abstract static class Operation implements Runnable {
+        final int priority;
+        final int cost;
+        Connection connection = null;
+        int generation = 0;
+        double finishTag = 0;
+        ScheduledFuture<?> timeout = null;
+        volatile boolean done = false;
+
+        /**
+         * @param priority One of the PRIORITY_* constants
+         * @param cost Cost of the operation, e.g. the bytes it carries
+         */
+        Operation(final int priority, final int cost) {
+            this.priority = priority;
+            this.cost = Math.max(1, cost);
+        }
+
+        /**
+         * <p>Method called on the timer thread when the operation is released by the timeout, see
+         * {@link #setOperationTimeout}
+         */
+        void onTimeout() {
+        }
+    }
+
+    /**
+     * <p>Operations of a connection
+     */
+    final class Connection {
+        private final Executor mExecutor;
+        private final List<ArrayDeque<Operation>> mQueues = new ArrayList<ArrayDeque<Operation>>(PRIORITY_COUNT);
+        private final double[] mLastFinishTags = new double[PRIORITY_COUNT];
+        private int mInFlight = 0;
+        // Incremented when the operations in flight are released, so their late completions are ignored
+        private int mGeneration = 0;
+        private boolean mClosed = false;
+
+        private Connection(final Executor executor) {
+            mExecutor = executor;
+            for (int i = 0; i < PRIORITY_COUNT; i++) {
+                mQueues.add(new ArrayDeque<Operation>());
+            }
+        }
+
+        /**
+         * <p>Method to queue an operation
+         * @param operation The operation
+         * @return false if the connection is closed
+         */
+        boolean submit(final Operation operation) {
+            return BLEGattScheduler.this.submit(this, operation);
+        }
+
+        /**
+         * <p>Method to report an operation is done, calling it again for the same operation is ignored
+         * @param operation The operation run by the executor
+         */
+        void complete(final Operation operation) {
+            BLEGattScheduler.this.complete(operation);
+        }
+
+        /**
+         * <p>Method to drop the queued operations, e.g. when disconnected, those in flight are considered done
+         * @return The dropped operations
+         */
+        List<Operation> clear() {
+            return BLEGattScheduler.this.clear(this, false);
+        }
+
+        /**
+         * <p>Method to remove the connection, operations can't be queued after it
+         * @return The dropped operations
+         */
+        List<Operation> close() {
+            return BLEGattScheduler.this.clear(this, true);
+        }
+    }
+
+    private final List<Connection> mConnections = new ArrayList<Connection>();
+    private final double[] mWeights = new double[] {16, 4, 1};
+    private final ScheduledExecutorService mTimer;
+    private volatile boolean mEnabled = false;
+    private int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int mMaxInFlightPerConnection = DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION;
+    private long mOperationTimeout = DEFAULT_OPERATION_TIMEOUT;
+    private int mInFlight = 0;
+    private int mQueued = 0;
+    // Self-clocked virtual time, the finish tag of the last picked operation
+    private double mVirtualTime = 0;
+
+    BLEGattScheduler() {
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Settings
+    /**
+     * <p>Method to enable or disable scheduling, it applies to the connections made after it
+     * @param enabled Whether to enable
+     */
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * <p>Method to set the share of air time of a priority class against the others
+     * @param priority One of the PRIORITY_* constants
+     * @param weight The weight, 16, 4 and 1 for interactive, background and bulk by default
+     */
+    public synchronized void setWeight(final int priority, final double weight) {
+        if (!(weight > 0)) {
+            throw new IllegalArgumentException("Invalid weight: "+weight);
+        }
+        mWeights[priority] = weight;
+    }
+
+    /**
+     * <p>Method to set the max number of operations in flight
+     * @param maxInFlight The limit of all connections, {@link #DEFAULT_MAX_IN_FLIGHT} by default
+     * @param maxInFlightPerConnection The limit of a connection, {@link #DEFAULT_MAX_IN_FLIGHT_PER_CONNECTION}
+     *                                 by default since BluetoothGatt runs one operation at a time
+     */
+    public void setMaxInFlight(final int maxInFlight, final int maxInFlightPerConnection) {
+        if (maxInFlight < 1 || maxInFlightPerConnection < 1) {
+            throw new IllegalArgumentException("Invalid limits: "+maxInFlight+", "+maxInFlightPerConnection);
+        }
+        synchronized (this) {
+            mMaxInFlight = maxInFlight;
+            mMaxInFlightPerConnection = maxInFlightPerConnection;
+        }
+        dispatch();
+    }
+
+    /**
+     * <p>Method to set the time after which an operation in flight is considered lost, so it doesn't hold
+     * back the other connections when the stack never reports its result
+     * @param timeout The timeout in milliseconds
+     */
+    public synchronized void setOperationTimeout(final long timeout) {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Invalid timeout: "+timeout);
+        }
+        mOperationTimeout = timeout;
+    }
+
+    public synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    public synchronized int getInFlightCount() {
+        return mInFlight;
+    }
+
+    // Scheduling methods
+    /**
+     * <p>Method to add a connection
+     * @param executor Executor to run the operations of the connection, it must not run them in the caller
+     * @return The connection
+     */
+    synchronized Connection register(final Executor executor) {
+        final Connection connection = new Connection(executor);
+        mConnections.add(connection);
+        return connection;
+    }
+
+    private boolean submit(final Connection connection, final Operation operation) {
+        synchronized (this) {
+            if (connection.mClosed) {
+                return false;
+            }
+            operation.connection = connection;
+            final int priority = operation.priority;
+            final double startTag = Math.max(mVirtualTime, connection.mLastFinishTags[priority]);
+            operation.finishTag = startTag + operation.cost / mWeights[priority];
+            connection.mLastFinishTags[priority] = operation.finishTag;
+            connection.mQueues.get(priority).add(operation);
+            mQueued++;
+        }
+        dispatch();
+        return true;
+    }
+
+    private boolean complete(final Operation operation) {
+        synchronized (this) {
+            if (operation.done || operation.generation != operation.connection.mGeneration) {
+                return false;
+            }
+            operation.done = true;
+            if (operation.timeout != null) {
+                operation.timeout.cancel(false);
+            }
+            mInFlight--;
+            operation.connection.mInFlight--;
+        }
+        dispatch();
+        return true;
+    }
+
+    private List<Operation> clear(final Connection connection, final boolean close) {
+        final List<Operation> dropped = new ArrayList<Operation>();
+        synchronized (this) {
+            if (close) {
+                connection.mClosed = true;
+                mConnections.remove(connection);
+            }
+            for (final ArrayDeque<Operation> queue : connection.mQueues) {
+                dropped.addAll(queue);
+                mQueued -= queue.size();
+                queue.clear();
+            }
+            mInFlight -= connection.mInFlight;
+            connection.mInFlight = 0;
+            connection.mGeneration++;
+        }
+        dispatch();
+        return dropped;
+    }
+
+    // Picks the queued operation of the smallest finish tag among the connections below their limit
+    private synchronized Operation pick() {
+        if (mInFlight >= mMaxInFlight) {
+            return null;
+        }
+        ArrayDeque<Operation> pickedQueue = null;
+        for (final Connection connection : mConnections) {
+            if (connection.mInFlight >= mMaxInFlightPerConnection) {
+                continue;
+            }
+            for (final ArrayDeque<Operation> queue : connection.mQueues) {
+                final Operation head = queue.peek();
+                if (head != null && (pickedQueue == null || head.finishTag < pickedQueue.peek().finishTag)) {
+                    pickedQueue = queue;
+                }
+            }
+        }
+        if (pickedQueue == null) {
+            return null;
+        }
+        final Operation operation = pickedQueue.poll();
+        mQueued--;
+        mInFlight++;
+        operation.connection.mInFlight++;
+        operation.generation = operation.connection.mGeneration;
+        mVirtualTime = operation.finishTag;
+        operation.timeout = mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (complete(operation)) {
+                    operation.onTimeout();
+                }
+            }
+        }, mOperationTimeout, TimeUnit.MILLISECONDS);
+        return operation;
+    }
+
+    private void dispatch() {
+        Operation operation;
+        while ((operation = pick()) != null) {
+            operation.connection.mExecutor.execute(operation);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.hill.libblemanager;
+
+import java.util.List;
+
+/**
+ * <p>GATT client connection to a remote device, the layer beneath {@code BLEDevice}. It's opened by
+ * {@link BLETransport#connectGatt} and its results are reported to the {@link Callback} given there.
+ * <p>Like BluetoothGatt on Android, only one request can be outstanding at a time, request methods
+ * return false if the request can't be started.
+ */
+public interface BLEGattTransport {
+    // Connection states, the same values as BluetoothProfile
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+    int STATE_DISCONNECTING = 3;
+
+    // Statuses, the same values as BluetoothGatt
+    int STATUS_SUCCESS = 0;
+    int STATUS_READ_NOT_PERMITTED = 0x02;
+    int STATUS_WRITE_NOT_PERMITTED = 0x03;
+    int STATUS_INSUFFICIENT_AUTHENTICATION = 0x05;
+    int STATUS_REQUEST_NOT_SUPPORTED = 0x06;
+    int STATUS_INVALID_OFFSET = 0x07;
+    int STATUS_CONNECTION_TIMEOUT = 0x08;
+    int STATUS_INVALID_ATTRIBUTE_LENGTH = 0x0D;
+    int STATUS_INSUFFICIENT_ENCRYPTION = 0x0F;
+    int STATUS_CONNECTION_TERMINATED = 0x13;
+    /** Generic error of the Android stack, often transient */
+    int STATUS_GATT_ERROR = 0x85;
+    int STATUS_FAILURE = 0x101;
+
+    // Write types, the same values as BluetoothGattCharacteristic
+    int WRITE_TYPE_NO_RESPONSE = 1;
+    int WRITE_TYPE_DEFAULT = 2;
+    int WRITE_TYPE_SIGNED = 4;
+
+    int DEFAULT_MTU = 23;
+
+    interface Callback {
+        void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState);
+
+        void onServicesDiscovered(final BLEGattTransport transport, final int status);
+
+        /**
+         * <p>Callback method of {@link #readAttribute}, the cached value of the attribute is updated already
+         * @param value The read value
+         */
+        void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status);
+
+        void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status);
+
+        /**
+         * <p>Callback method of notifications and indications, the cached value of the characteristic is updated already
+         * @param value The value carried by the notification
+         */
+        void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value);
+
+        void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status);
+
+        void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status);
+    }
+
+    /**
+     * @return The address of the remote device
+     */
+    String getAddress();
+
+    boolean discoverServices();
+
+    /**
+     * <p>Get the services found by {@link #discoverServices()}
+     * @return The services, empty if they haven't been discovered
+     */
+    List<BLEAttribute> getServices();
+
+    /**
+     * <p>Method to read the value of a characteristic or descriptor
+     * @param attribute The characteristic or descriptor got from {@link #getServices()}
+     * @return Whether the request is started
+     */
+    boolean readAttribute(final BLEAttribute attribute);
+
+    /**
+     * <p>Method to write the value of a characteristic or descriptor
+     * @param attribute The characteristic or descriptor got from {@link #getServices()}
+     * @param value The value to write
+     * @param writeType One of WRITE_TYPE_* constants, ignored for descriptors
+     * @return Whether the request is started
+     */
+    boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType);
+
+    /**
+     * <p>Method to enable or disable local delivery of notifications of the characteristic. The remote device
+     * only sends them after its Client Characteristic Configuration descriptor is written.
+     * @param characteristic The characteristic got from {@link #getServices()}
+     * @param enable Whether to enable
+     * @return Whether it's set
+     */
+    boolean setNotification(final BLEAttribute characteristic, final boolean enable);
+
+    boolean readRemoteRssi();
+
+    boolean requestMtu(final int mtu);
+
+    /**
+     * <p>Method to disconnect, {@link Callback#onConnectionStateChange} is called when it's done
+     */
+    void disconnect();
+
+    /**
+     * <p>Method to release the connection, no callback is called after it
+     */
+    void close();
+}
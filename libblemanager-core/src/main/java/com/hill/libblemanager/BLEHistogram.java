@@ -0,0 +1,182 @@
+package com.hill.libblemanager;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Histogram of non-negative values with fixed memory, recorded without locks or allocation.
+ * <p>Values are counted in log-linear buckets like HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKET_COUNT} linear buckets, so percentiles are accurate to about 6% over the whole range.
+ * Values up to 2^{@link #MAX_EXPONENT} are kept apart, larger ones are counted in the last bucket.
+ */
+public final class BLEHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    public static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** Values of nanoseconds up to about 18 minutes are kept apart */
+    public static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    static int bucketOf(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long lowestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        final long subBucket = bucket % SUB_BUCKET_COUNT;
+        return (1L << exponent) | subBucket << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long highestValueOf(final int bucket) {
+        if (bucket < SUB_BUCKET_COUNT) {
+            return bucket;
+        }
+        final int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+        return lowestValueOf(bucket) + (1L << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+    /**
+     * <p>Method to record a value, negative values are ignored
+     * @param value The value
+     */
+    public void record(final long value) {
+        if (value < 0) {
+            return;
+        }
+        mBuckets.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long min = mMin.get();
+        while (value < min && !mMin.compareAndSet(min, value)) {
+            min = mMin.get();
+        }
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    /**
+     * <p>Method to clear all recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    /**
+     * <p>Get a copy of the recorded values. Values recorded while copying may be partly included.
+     * @return The snapshot
+     */
+    public Snapshot snapshot() {
+        final long[] buckets = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(buckets, count, mSum.get(), count > 0 ? mMin.get() : 0, count > 0 ? mMax.get() : 0);
+    }
+
+    /**
+     * <p>Immutable copy of a histogram
+     */
+    public static final class Snapshot {
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(final long[] buckets, final long count, final long sum, final long min, final long max) {
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mMin;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount > 0 ? (double) mSum / mCount : 0;
+        }
+
+        /**
+         * <p>Get the value at the percentile
+         * @param percentile The percentile, from 0 to 100
+         * @return The highest value of the bucket of the percentile, bounded by the max value, or 0 if it's empty
+         */
+        public long getPercentile(final double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(mCount * Math.min(100, Math.max(0, percentile)) / 100));
+            long seen = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                seen += mBuckets[i];
+                if (seen >= rank) {
+                    return Math.max(mMin, Math.min(highestValueOf(i), mMax));
+                }
+            }
+            return mMax;
+        }
+
+        /**
+         * <p>Get the difference of this snapshot and an earlier one of the same histogram, e.g. to get
+         * the percentiles of the last period. Min and max are the ones of this snapshot.
+         * @param earlier The earlier snapshot
+         * @return The snapshot of the values recorded after the earlier one
+         */
+        public Snapshot since(final Snapshot earlier) {
+            final long[] buckets = new long[mBuckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = Math.max(0, mBuckets[i] - earlier.mBuckets[i]);
+                count += buckets[i];
+            }
+            return new Snapshot(buckets, count, mSum - earlier.mSum, mMin, mMax);
+        }
+
+        @Override
+        public String toString() {
+            return "count="+mCount+" min="+mMin+" p50="+getPercentile(50)+" p90="+getPercentile(90)
+                    +" p99="+getPercentile(99)+" max="+mMax;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.hill.libblemanager;
+
+import java.util.Arrays;
+
+/**
+ * <p>Open addressing map from int keys to non-negative int values, without boxing
+ */
+final class BLEIntIndexMap {
+    private final int[] mKeys;
+    private final int[] mValues;
+    private final int mMask;
+
+    BLEIntIndexMap(final int expectedSize) {
+        int capacity = 4;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new int[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        Arrays.fill(mValues, -1);
+    }
+
+    private int slotOf(final int key) {
+        int slot = (key * 0x9E3779B9) >>> 16 & mMask;
+        while (mValues[slot] >= 0 && mKeys[slot] != key) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    /**
+     * @return The existing value of the key, or -1 if the value is put
+     */
+    int putIfAbsent(final int key, final int value) {
+        final int slot = slotOf(key);
+        if (mValues[slot] >= 0) {
+            return mValues[slot];
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        return -1;
+    }
+
+    /**
+     * @return The value of the key, or -1 if it's not found
+     */
+    int get(final int key) {
+        return mValues[slotOf(key)];
+    }
+}
@@ -0,0 +1,113 @@
+package com.hill.libblemanager;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Immutable record of a device connected before, kept to connect it again without scanning.
+ * Use the with* methods to get an updated copy.
+ */
+public final class BLEKnownDevice {
+    // Bond states, the same values as BluetoothDevice of Android SDK
+    public static final int BOND_NONE = 10;
+    public static final int BOND_BONDING = 11;
+    public static final int BOND_BONDED = 12;
+
+    /** RSSI value when it's never read, the same value as ScanResult of Android SDK */
+    public static final int RSSI_UNKNOWN = 127;
+    /** GATT hash value when the services are never discovered */
+    public static final long GATT_HASH_UNKNOWN = 0;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    public final String address;
+    public final String name;
+    /** Hash of the discovered attributes, see {@link #gattHashOf} */
+    public final long gattHash;
+    public final int bondState;
+    public final int lastRssi;
+    /** Time of the last connection in milliseconds since epoch, 0 if it's never connected */
+    public final long lastConnectedTime;
+
+    /**
+     * <p>Construction method of BLEKnownDevice
+     * @param address Address of the device
+     * @param name Name of the device, it can be null
+     * @param gattHash Hash of the discovered attributes, or {@link #GATT_HASH_UNKNOWN}
+     * @param bondState One of the BOND_* constants
+     * @param lastRssi The last RSSI value, or {@link #RSSI_UNKNOWN}
+     * @param lastConnectedTime Time of the last connection in milliseconds since epoch, or 0
+     */
+    public BLEKnownDevice(final String address, final String name, final long gattHash, final int bondState,
+                          final int lastRssi, final long lastConnectedTime) {
+        if (address == null) {
+            throw new IllegalArgumentException("Address is null");
+        }
+        this.address = address;
+        this.name = name;
+        this.gattHash = gattHash;
+        this.bondState = bondState;
+        this.lastRssi = lastRssi;
+        this.lastConnectedTime = lastConnectedTime;
+    }
+
+    public BLEKnownDevice withName(final String name) {
+        return new BLEKnownDevice(address, name != null ? name : this.name, gattHash, bondState, lastRssi, lastConnectedTime);
+    }
+
+    public BLEKnownDevice withGattHash(final long gattHash) {
+        return new BLEKnownDevice(address, name, gattHash, bondState, lastRssi, lastConnectedTime);
+    }
+
+    public BLEKnownDevice withBondState(final int bondState) {
+        return new BLEKnownDevice(address, name, gattHash, bondState, lastRssi, lastConnectedTime);
+    }
+
+    public BLEKnownDevice withLastRssi(final int lastRssi) {
+        return new BLEKnownDevice(address, name, gattHash, bondState, lastRssi, lastConnectedTime);
+    }
+
+    public BLEKnownDevice withLastConnectedTime(final long lastConnectedTime) {
+        return new BLEKnownDevice(address, name, gattHash, bondState, lastRssi, lastConnectedTime);
+    }
+
+    /**
+     * <p>Method to hash the discovered attributes, to find out whether the GATT database of the device changed
+     * since the last connection. The type, UUID, instance id and properties of every attribute are hashed
+     * in discovery order, values aren't.
+     * @param services The services got from {@link BLEGattTransport#getServices()}
+     * @return The 64 bits FNV-1a hash, never {@link #GATT_HASH_UNKNOWN}
+     */
+    public static long gattHashOf(final List<BLEAttribute> services) {
+        final long hash = hashAttributes(FNV_OFFSET_BASIS, services);
+        return hash != GATT_HASH_UNKNOWN ? hash : 1;
+    }
+
+    private static long hashAttributes(long hash, final List<BLEAttribute> attributes) {
+        for (final BLEAttribute attribute : attributes) {
+            hash = hashLong(hash, attribute.getType());
+            final UUID uuid = attribute.getUuid();
+            hash = hashLong(hash, uuid.getMostSignificantBits());
+            hash = hashLong(hash, uuid.getLeastSignificantBits());
+            hash = hashLong(hash, attribute.getInstanceId());
+            hash = hashLong(hash, attribute.getProperties());
+            hash = hashAttributes(hash, attribute.getChildren());
+        }
+        return hash;
+    }
+
+    private static long hashLong(long hash, final long value) {
+        for (int shift = 0; shift < 64; shift += 8) {
+            hash ^= (value >>> shift) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "BLEKnownDevice{address="+address+", name="+name+", gattHash="+Long.toHexString(gattHash)
+                +", bondState="+bondState+", lastRssi="+lastRssi+", lastConnectedTime="+lastConnectedTime+"}";
+    }
+}
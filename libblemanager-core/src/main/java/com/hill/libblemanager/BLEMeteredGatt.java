@@ -0,0 +1,325 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>{@link BLEGattTransport} recording the latency, traffic and failed statuses of another transport to
+ * {@link BLEMetrics}, and its operations to a {@link BLETrace}. Pass {@link #getTransportCallback()} to the
+ * transport when connecting, then {@link #attach} the opened transport; the callback given to the constructor
+ * receives this object as the transport of every callback.
+ * <p>Several requests may be outstanding, e.g. when a scheduler beneath queues them, so every request keeps its
+ * own start time and is matched on completion by its type and attribute, the oldest first.
+ */
+final class BLEMeteredGatt implements BLEGattTransport {
+    private static final int ATT_HEADER_SIZE = 3;
+    // Request types besides the LATENCY_* constants of BLEMetrics
+    private static final int REQUEST_MTU = BLEMetrics.LATENCY_TYPE_COUNT;
+    // Requests never completed by the transport are dropped beyond it
+    private static final int MAX_PENDING_REQUESTS = 64;
+
+    // Request started and not completed yet
+    private static final class Request {
+        final int type;
+        final String event;
+        final UUID uuid;
+        final Object nativeAttribute;
+        final long startNanos;
+
+        Request(final int type, final String event, final BLEAttribute attribute) {
+            this.type = type;
+            this.event = event;
+            this.uuid = attribute != null ? attribute.getUuid() : null;
+            this.nativeAttribute = attribute != null ? attribute.getNativeObject() : null;
+            this.startNanos = System.nanoTime();
+        }
+
+        boolean matches(final int type, final BLEAttribute attribute) {
+            return this.type == type
+                    && (attribute == null || nativeAttribute == null || nativeAttribute == attribute.getNativeObject());
+        }
+    }
+
+    private final BLEMetrics mMetrics;
+    private final BLETrace mTrace;
+    private final Callback mCallback;
+    private volatile BLEGattTransport mTransport = null;
+    private volatile int mMtu = DEFAULT_MTU;
+
+    // Requests in the order they're started
+    private final List<Request> mPending = new ArrayList<Request>();
+    private volatile long mConnectStartNanos;
+    private volatile boolean mConnecting = true;
+    private volatile boolean mConnected = false;
+
+    /**
+     * <p>Construction method of BLEMeteredGatt, the connection is timed from here
+     * @param metrics Where to record metrics, null to not record them
+     * @param trace Where to record the operations, null to not record them
+     * @param callback The callback of the user of this transport
+     */
+    BLEMeteredGatt(final BLEMetrics metrics, final BLETrace trace, final Callback callback) {
+        mMetrics = metrics;
+        mTrace = trace;
+        mCallback = callback;
+        mConnectStartNanos = System.nanoTime();
+    }
+
+    Callback getTransportCallback() {
+        return mTransportCallback;
+    }
+
+    /**
+     * <p>Method to attach the opened transport
+     * @param transport The transport opened with {@link #getTransportCallback()}
+     * @return This object, or null if the transport is null
+     */
+    BLEMeteredGatt attach(final BLEGattTransport transport) {
+        if (transport == null) {
+            recordStatus(STATUS_FAILURE);
+            endConnect(STATUS_FAILURE);
+            return null;
+        }
+        mTransport = transport;
+        return this;
+    }
+
+    private void recordStatus(final int status) {
+        if (mMetrics != null) {
+            mMetrics.recordStatus(status);
+        }
+    }
+
+    private void increment(final int counter, final long delta) {
+        if (mMetrics != null) {
+            mMetrics.increment(counter, delta);
+        }
+    }
+
+    private int packetsOf(final int length) {
+        final int payload = mMtu - ATT_HEADER_SIZE;
+        return Math.max(1, (length + payload - 1) / payload);
+    }
+
+    private Request startRequest(final int type, final String event, final BLEAttribute attribute) {
+        final Request request = new Request(type, event, attribute);
+        synchronized (mPending) {
+            if (mPending.size() == MAX_PENDING_REQUESTS) {
+                mPending.remove(0);
+            }
+            mPending.add(request);
+        }
+        return request;
+    }
+
+    private boolean checkStarted(final Request request, final boolean started) {
+        if (!started) {
+            final boolean removed;
+            synchronized (mPending) {
+                removed = mPending.remove(request);
+            }
+            if (removed) {
+                endRequest(request, STATUS_FAILURE);
+            }
+            recordStatus(STATUS_FAILURE);
+        }
+        return started;
+    }
+
+    private void finishRequest(final int type, final BLEAttribute attribute, final int status) {
+        Request completed = null;
+        synchronized (mPending) {
+            for (int i = 0; i < mPending.size(); i++) {
+                if (mPending.get(i).matches(type, attribute)) {
+                    completed = mPending.remove(i);
+                    break;
+                }
+            }
+        }
+        if (completed != null) {
+            endRequest(completed, status);
+        }
+        recordStatus(status);
+    }
+
+    private void endRequest(final Request request, final int status) {
+        if (mMetrics != null && request.type < BLEMetrics.LATENCY_TYPE_COUNT) {
+            mMetrics.recordLatency(request.type, System.nanoTime() - request.startNanos);
+        }
+        if (mTrace != null) {
+            mTrace.complete(request.event, request.uuid, request.startNanos, status);
+        }
+    }
+
+    private void endConnect(final int status) {
+        if (mConnecting) {
+            mConnecting = false;
+            if (mTrace != null) {
+                mTrace.complete(BLETrace.EVENT_CONNECT, null, mConnectStartNanos, status);
+            }
+        }
+    }
+
+    private final Callback mTransportCallback = new Callback() {
+        @Override
+        public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+            if (newState == STATE_CONNECTED) {
+                mConnected = true;
+                if (mMetrics != null) {
+                    mMetrics.recordLatency(BLEMetrics.LATENCY_CONNECT, System.nanoTime() - mConnectStartNanos);
+                }
+                increment(BLEMetrics.COUNTER_CONNECTIONS, 1);
+                if (mConnecting) {
+                    endConnect(status);
+                } else if (mTrace != null) { // Reconnected by autoConnect
+                    mTrace.instant(BLETrace.EVENT_CONNECTED, null, status);
+                }
+            } else if (newState == STATE_DISCONNECTED) {
+                // The pending requests never complete, end their slices without counting their statuses
+                final List<Request> terminated;
+                synchronized (mPending) {
+                    terminated = new ArrayList<Request>(mPending);
+                    mPending.clear();
+                }
+                if (mTrace != null) {
+                    for (final Request request : terminated) {
+                        mTrace.complete(request.event, request.uuid, request.startNanos, STATUS_CONNECTION_TERMINATED);
+                    }
+                }
+                if (mConnecting) {
+                    endConnect(status);
+                } else if (mTrace != null) {
+                    mTrace.instant(BLETrace.EVENT_DISCONNECTED, null, status);
+                }
+                if (mConnected) {
+                    increment(BLEMetrics.COUNTER_DISCONNECTIONS, 1);
+                }
+                mConnected = false;
+                mMtu = DEFAULT_MTU;
+                // An autoConnect transport may connect again, time it from now
+                mConnectStartNanos = System.nanoTime();
+            }
+            recordStatus(status);
+            mCallback.onConnectionStateChange(BLEMeteredGatt.this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+            finishRequest(BLEMetrics.LATENCY_DISCOVERY, null, status);
+            mCallback.onServicesDiscovered(BLEMeteredGatt.this, status);
+        }
+
+        @Override
+        public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+            finishRequest(BLEMetrics.LATENCY_READ, attribute, status);
+            if (value != null) {
+                increment(BLEMetrics.COUNTER_BYTES_IN, value.length);
+                increment(BLEMetrics.COUNTER_PACKETS_IN, packetsOf(value.length));
+            }
+            mCallback.onAttributeRead(BLEMeteredGatt.this, attribute, value, status);
+        }
+
+        @Override
+        public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+            finishRequest(BLEMetrics.LATENCY_WRITE, attribute, status);
+            mCallback.onAttributeWrite(BLEMeteredGatt.this, attribute, status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+            increment(BLEMetrics.COUNTER_NOTIFICATIONS, 1);
+            if (value != null) {
+                increment(BLEMetrics.COUNTER_BYTES_IN, value.length);
+                increment(BLEMetrics.COUNTER_PACKETS_IN, 1);
+            }
+            if (mTrace != null) {
+                mTrace.instant(BLETrace.EVENT_NOTIFICATION, characteristic.getUuid(), STATUS_SUCCESS);
+            }
+            mCallback.onCharacteristicChanged(BLEMeteredGatt.this, characteristic, value);
+        }
+
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+            finishRequest(BLEMetrics.LATENCY_RSSI, null, status);
+            mCallback.onRemoteRssiRead(BLEMeteredGatt.this, rssi, status);
+        }
+
+        @Override
+        public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+            if (status == STATUS_SUCCESS) {
+                mMtu = mtu;
+            }
+            finishRequest(REQUEST_MTU, null, status);
+            mCallback.onMtuChanged(BLEMeteredGatt.this, mtu, status);
+        }
+    };
+
+    @Override
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        final Request request = startRequest(BLEMetrics.LATENCY_DISCOVERY, BLETrace.EVENT_DISCOVERY, null);
+        return checkStarted(request, mTransport.discoverServices());
+    }
+
+    @Override
+    public List<BLEAttribute> getServices() {
+        return mTransport.getServices();
+    }
+
+    @Override
+    public boolean readAttribute(final BLEAttribute attribute) {
+        final Request request = startRequest(BLEMetrics.LATENCY_READ, BLETrace.EVENT_READ, attribute);
+        return checkStarted(request, mTransport.readAttribute(attribute));
+    }
+
+    @Override
+    public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+        final Request request = startRequest(BLEMetrics.LATENCY_WRITE, BLETrace.EVENT_WRITE, attribute);
+        final boolean started = mTransport.writeAttribute(attribute, value, writeType);
+        if (started && value != null) {
+            increment(BLEMetrics.COUNTER_BYTES_OUT, value.length);
+            increment(BLEMetrics.COUNTER_PACKETS_OUT, packetsOf(value.length));
+        }
+        return checkStarted(request, started);
+    }
+
+    @Override
+    public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+        final boolean result = mTransport.setNotification(characteristic, enable);
+        if (mTrace != null) {
+            mTrace.instant(BLETrace.EVENT_SET_NOTIFICATION, characteristic.getUuid(), result ? STATUS_SUCCESS : STATUS_FAILURE);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        final Request request = startRequest(BLEMetrics.LATENCY_RSSI, BLETrace.EVENT_RSSI, null);
+        return checkStarted(request, mTransport.readRemoteRssi());
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        final Request request = startRequest(REQUEST_MTU, BLETrace.EVENT_MTU, null);
+        return checkStarted(request, mTransport.requestMtu(mtu));
+    }
+
+    @Override
+    public void disconnect() {
+        if (mTrace != null) {
+            mTrace.instant(BLETrace.EVENT_DISCONNECT, null, STATUS_SUCCESS);
+        }
+        mTransport.disconnect();
+    }
+
+    @Override
+    public void close() {
+        endConnect(STATUS_FAILURE);
+        mTransport.close();
+    }
+}
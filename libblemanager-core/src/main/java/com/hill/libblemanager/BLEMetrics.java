@@ -0,0 +1,226 @@
+package com.hill.libblemanager;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Registry of the latency and throughput metrics of all devices. Operations are recorded by the library,
+ * get them by {@link #snapshot()} or receive them periodically by {@link #setListener}.
+ * <p>Recording takes a few atomic increments on fixed memory, so it's enabled by default.
+ */
+public final class BLEMetrics {
+    // Latency histograms, in nanoseconds
+    public static final int LATENCY_CONNECT = 0;
+    public static final int LATENCY_DISCOVERY = 1;
+    public static final int LATENCY_READ = 2;
+    public static final int LATENCY_WRITE = 3;
+    public static final int LATENCY_RSSI = 4;
+    /** Time from the notification arriving from the stack to its delivery to the listeners */
+    public static final int LATENCY_NOTIFICATION = 5;
+    static final int LATENCY_TYPE_COUNT = 6;
+
+    // Counters
+    public static final int COUNTER_BYTES_IN = 0;
+    public static final int COUNTER_BYTES_OUT = 1;
+    /** ATT PDUs received, a long value read or notified takes several of them */
+    public static final int COUNTER_PACKETS_IN = 2;
+    public static final int COUNTER_PACKETS_OUT = 3;
+    public static final int COUNTER_NOTIFICATIONS = 4;
+    public static final int COUNTER_SCAN_RESULTS = 5;
+    public static final int COUNTER_CONNECTIONS = 6;
+    public static final int COUNTER_DISCONNECTIONS = 7;
+    /** Reads joining a read of the same characteristic in flight instead of reading it again */
+    public static final int COUNTER_COALESCED_READS = 8;
+    /** GATT reads and writes retried by a {@link BLERetryPolicy} */
+    public static final int COUNTER_RETRIES = 9;
+    static final int COUNTER_TYPE_COUNT = 10;
+
+    private static final class InstanceHolder {
+        private static final BLEMetrics INSTANCE = new BLEMetrics();
+    }
+
+    /**
+     * <p>Get the registry the library records to
+     * @return The registry
+     */
+    public static BLEMetrics getInstance() {
+        return InstanceHolder.INSTANCE;
+    }
+
+    public interface Listener {
+        /**
+         * <p>Callback method of the periodic report, called on the thread of the registry
+         * @param snapshot The metrics, use {@link BLEMetricsSnapshot#since} with the previous one to get the period
+         */
+        void onMetrics(final BLEMetricsSnapshot snapshot);
+    }
+
+    private final BLEHistogram[] mLatencies = new BLEHistogram[LATENCY_TYPE_COUNT];
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_TYPE_COUNT);
+    private final Map<Integer, AtomicLong> mStatusCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+    private final AtomicInteger mQueueDepth = new AtomicInteger();
+    private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+    private volatile boolean mEnabled = true;
+
+    private final Object mListenerLock = new Object();
+    private ScheduledExecutorService mExecutor = null;
+    private ScheduledFuture<?> mListenerTask = null;
+
+    /**
+     * <p>Construction method of a BLEMetrics registry, the library records to {@link #getInstance()}
+     */
+    public BLEMetrics() {
+        for (int i = 0; i < LATENCY_TYPE_COUNT; i++) {
+            mLatencies[i] = new BLEHistogram();
+        }
+    }
+
+    /**
+     * <p>Method to enable or disable recording, disabled recording costs one volatile read
+     * @param enabled Whether to record
+     */
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    // Recording methods
+    /**
+     * <p>Method to record the latency of an operation
+     * @param type One of the LATENCY_* constants
+     * @param nanos The latency in nanoseconds
+     */
+    public void recordLatency(final int type, final long nanos) {
+        if (mEnabled) {
+            mLatencies[type].record(nanos);
+        }
+    }
+
+    /**
+     * <p>Method to add to a counter
+     * @param counter One of the COUNTER_* constants
+     * @param delta The value to add
+     */
+    public void increment(final int counter, final long delta) {
+        if (mEnabled) {
+            mCounters.addAndGet(counter, delta);
+        }
+    }
+
+    /**
+     * <p>Method to count a GATT status, successes are ignored
+     * @param status The status, see STATUS_* constants of {@link BLEGattTransport}
+     */
+    public void recordStatus(final int status) {
+        if (!mEnabled || status == BLEGattTransport.STATUS_SUCCESS) {
+            return;
+        }
+        AtomicLong count = mStatusCounts.get(status);
+        if (count == null) {
+            synchronized (mStatusCounts) {
+                count = mStatusCounts.get(status);
+                if (count == null) {
+                    count = new AtomicLong();
+                    mStatusCounts.put(status, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * <p>Method to count tasks entering or leaving the GATT queues
+     * @param delta 1 when a task is queued, -1 when it's taken
+     */
+    public void updateQueueDepth(final int delta) {
+        final int depth = mQueueDepth.addAndGet(delta);
+        int max = mMaxQueueDepth.get();
+        while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+            max = mMaxQueueDepth.get();
+        }
+    }
+
+    // Report methods
+    /**
+     * <p>Get the current metrics
+     * @return The snapshot of all metrics recorded since the registry is created or reset
+     */
+    public BLEMetricsSnapshot snapshot() {
+        final BLEHistogram.Snapshot[] latencies = new BLEHistogram.Snapshot[LATENCY_TYPE_COUNT];
+        for (int i = 0; i < LATENCY_TYPE_COUNT; i++) {
+            latencies[i] = mLatencies[i].snapshot();
+        }
+        final long[] counters = new long[COUNTER_TYPE_COUNT];
+        for (int i = 0; i < COUNTER_TYPE_COUNT; i++) {
+            counters[i] = mCounters.get(i);
+        }
+        final Map<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+        for (final Map.Entry<Integer, AtomicLong> entry : mStatusCounts.entrySet()) {
+            statusCounts.put(entry.getKey(), entry.getValue().get());
+        }
+        return new BLEMetricsSnapshot(System.nanoTime(), latencies, counters, statusCounts,
+                mQueueDepth.get(), mMaxQueueDepth.get());
+    }
+
+    /**
+     * <p>Method to clear all metrics, the queue depth is kept since queued tasks are still there
+     */
+    public void reset() {
+        for (final BLEHistogram histogram : mLatencies) {
+            histogram.reset();
+        }
+        for (int i = 0; i < COUNTER_TYPE_COUNT; i++) {
+            mCounters.set(i, 0);
+        }
+        mStatusCounts.clear();
+        mMaxQueueDepth.set(mQueueDepth.get());
+    }
+
+    /**
+     * <p>Method to report the metrics periodically on a background thread
+     * @param listener The listener, null to stop reporting
+     * @param period The period in milliseconds
+     */
+    public void setListener(final Listener listener, final long period) {
+        synchronized (mListenerLock) {
+            if (mListenerTask != null) {
+                mListenerTask.cancel(false);
+                mListenerTask = null;
+            }
+            if (listener == null) {
+                return;
+            }
+            if (period <= 0) {
+                throw new IllegalArgumentException("Invalid period: "+period);
+            }
+            if (mExecutor == null) {
+                mExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "BLEMetrics");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+            mListenerTask = mExecutor.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMetrics(snapshot());
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.hill.libblemanager;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * <p>Immutable copy of the metrics of a {@link BLEMetrics} registry
+ */
+public final class BLEMetricsSnapshot {
+    /** Time of the snapshot in nanoseconds, in the time base of {@link System#nanoTime()} */
+    public final long timestampNanos;
+    /** Length of the period the snapshot covers in nanoseconds, 0 unless it's made by {@link #since} */
+    public final long periodNanos;
+    private final BLEHistogram.Snapshot[] mLatencies;
+    private final long[] mCounters;
+    private final Map<Integer, Long> mStatusCounts;
+    private final int mQueueDepth;
+    private final int mMaxQueueDepth;
+
+    BLEMetricsSnapshot(final long timestampNanos, final BLEHistogram.Snapshot[] latencies, final long[] counters,
+                       final Map<Integer, Long> statusCounts, final int queueDepth, final int maxQueueDepth) {
+        this(timestampNanos, 0, latencies, counters, statusCounts, queueDepth, maxQueueDepth);
+    }
+
+    private BLEMetricsSnapshot(final long timestampNanos, final long periodNanos, final BLEHistogram.Snapshot[] latencies,
+                               final long[] counters, final Map<Integer, Long> statusCounts, final int queueDepth,
+                               final int maxQueueDepth) {
+        this.timestampNanos = timestampNanos;
+        this.periodNanos = periodNanos;
+        mLatencies = latencies;
+        mCounters = counters;
+        mStatusCounts = Collections.unmodifiableMap(statusCounts);
+        mQueueDepth = queueDepth;
+        mMaxQueueDepth = maxQueueDepth;
+    }
+
+    /**
+     * <p>Get the latency histogram of an operation
+     * @param type One of the LATENCY_* constants of {@link BLEMetrics}
+     * @return The histogram of latencies in nanoseconds
+     */
+    public BLEHistogram.Snapshot getLatency(final int type) {
+        return mLatencies[type];
+    }
+
+    /**
+     * @param counter One of the COUNTER_* constants of {@link BLEMetrics}
+     * @return The value of the counter
+     */
+    public long getCounter(final int counter) {
+        return mCounters[counter];
+    }
+
+    /**
+     * <p>Get the rate of a counter over the period of this snapshot
+     * @param counter One of the COUNTER_* constants of {@link BLEMetrics}
+     * @return The rate per second, 0 if the snapshot has no period
+     */
+    public double getRate(final int counter) {
+        return periodNanos > 0 ? mCounters[counter] * 1e9 / periodNanos : 0;
+    }
+
+    /**
+     * @return Counts of the failed GATT statuses, keyed by status
+     */
+    public Map<Integer, Long> getStatusCounts() {
+        return mStatusCounts;
+    }
+
+    /**
+     * @return Number of tasks waiting in the GATT queues when the snapshot is taken
+     */
+    public int getQueueDepth() {
+        return mQueueDepth;
+    }
+
+    /**
+     * @return Max number of tasks waiting in the GATT queues since the registry is created or reset
+     */
+    public int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    /**
+     * <p>Get the metrics recorded between an earlier snapshot and this one, e.g. to get the scan results
+     * per second of the last period by {@link #getRate}
+     * @param earlier The earlier snapshot of the same registry
+     * @return The snapshot of the period
+     */
+    public BLEMetricsSnapshot since(final BLEMetricsSnapshot earlier) {
+        final BLEHistogram.Snapshot[] latencies = new BLEHistogram.Snapshot[mLatencies.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = mLatencies[i].since(earlier.mLatencies[i]);
+        }
+        final long[] counters = new long[mCounters.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = Math.max(0, mCounters[i] - earlier.mCounters[i]);
+        }
+        final Map<Integer, Long> statusCounts = new TreeMap<Integer, Long>();
+        for (final Map.Entry<Integer, Long> entry : mStatusCounts.entrySet()) {
+            final Long earlierCount = earlier.mStatusCounts.get(entry.getKey());
+            final long count = entry.getValue() - (earlierCount != null ? earlierCount : 0);
+            if (count > 0) {
+                statusCounts.put(entry.getKey(), count);
+            }
+        }
+        return new BLEMetricsSnapshot(timestampNanos, timestampNanos - earlier.timestampNanos, latencies, counters,
+                statusCounts, mQueueDepth, mMaxQueueDepth);
+    }
+}
@@ -0,0 +1,182 @@
+package com.hill.libblemanager;
+
+import java.util.Arrays;
+
+/**
+ * <p>Policy to retry GATT reads and writes failing with a transient status, e.g. {@link BLEGattTransport#STATUS_GATT_ERROR}
+ * (133) or an insufficient authentication which is fixed by the bonding it starts. Build it with {@link Builder}
+ * and set it by {@code BLEDevice.setRetryPolicy}.
+ * <p>Retries wait an exponential backoff, and the retries of a device are limited by a budget per time window,
+ * so a device which keeps failing doesn't hold the GATT queue.
+ */
+public final class BLERetryPolicy {
+    /** Policy which never retries */
+    public static final BLERetryPolicy NONE = new Builder().setMaxAttempts(1).build();
+
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_INITIAL_BACKOFF = 100;
+    public static final long DEFAULT_MAX_BACKOFF = 2000;
+    public static final int DEFAULT_BUDGET = 10;
+    public static final long DEFAULT_BUDGET_WINDOW = 60000;
+
+    /**
+     * <p>Builder of {@link BLERetryPolicy}
+     */
+    public static final class Builder {
+        private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+        private long mMaxBackoff = DEFAULT_MAX_BACKOFF;
+        private double mMultiplier = 2;
+        private int[] mRetryableStatuses = new int[] {
+                BLEGattTransport.STATUS_GATT_ERROR,
+                BLEGattTransport.STATUS_INSUFFICIENT_AUTHENTICATION,
+                BLEGattTransport.STATUS_INSUFFICIENT_ENCRYPTION,
+        };
+        private int mBudget = DEFAULT_BUDGET;
+        private long mBudgetWindow = DEFAULT_BUDGET_WINDOW;
+
+        /**
+         * <p>Method to set the max number of attempts of an operation, {@link #DEFAULT_MAX_ATTEMPTS} by default
+         * @param maxAttempts The number of attempts including the first one, 1 not to retry
+         * @return This builder
+         */
+        public Builder setMaxAttempts(final int maxAttempts) {
+            if (maxAttempts < 1) {
+                throw new IllegalArgumentException("Invalid max attempts: "+maxAttempts);
+            }
+            mMaxAttempts = maxAttempts;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the backoff before the retries, {@link #DEFAULT_INITIAL_BACKOFF} doubled up to
+         * {@link #DEFAULT_MAX_BACKOFF} by default
+         * @param initialBackoff Time before the first retry in milliseconds
+         * @param multiplier Factor of the time before every following retry, at least 1
+         * @param maxBackoff Max time before a retry in milliseconds
+         * @return This builder
+         */
+        public Builder setBackoff(final long initialBackoff, final double multiplier, final long maxBackoff) {
+            if (initialBackoff < 0 || !(multiplier >= 1) || maxBackoff < initialBackoff) {
+                throw new IllegalArgumentException("Invalid backoff: "+initialBackoff+", "+multiplier+", "+maxBackoff);
+            }
+            mInitialBackoff = initialBackoff;
+            mMultiplier = multiplier;
+            mMaxBackoff = maxBackoff;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the statuses to retry, 133, insufficient authentication and insufficient encryption
+         * by default. {@link BLEGattTransport#STATUS_FAILURE} is also reported when a request can't be started,
+         * e.g. while the stack is busy.
+         * @param statuses The statuses, see STATUS_* constants of {@link BLEGattTransport}
+         * @return This builder
+         */
+        public Builder setRetryableStatuses(final int... statuses) {
+            mRetryableStatuses = statuses.clone();
+            return this;
+        }
+
+        /**
+         * <p>Method to set the budget of retries of a device, {@link #DEFAULT_BUDGET} retries in
+         * {@link #DEFAULT_BUDGET_WINDOW} by default. Failures beyond it are reported at once.
+         * @param budget Max number of retries in the window
+         * @param window The window in milliseconds
+         * @return This builder
+         */
+        public Builder setBudget(final int budget, final long window) {
+            if (budget < 0 || window <= 0) {
+                throw new IllegalArgumentException("Invalid budget: "+budget+" in "+window);
+            }
+            mBudget = budget;
+            mBudgetWindow = window;
+            return this;
+        }
+
+        public BLERetryPolicy build() {
+            return new BLERetryPolicy(this);
+        }
+    }
+
+    private final int mMaxAttempts;
+    private final long mInitialBackoff;
+    private final long mMaxBackoff;
+    private final double mMultiplier;
+    private final int[] mRetryableStatuses;
+    private final int mBudget;
+    private final long mBudgetWindow;
+
+    private BLERetryPolicy(final Builder builder) {
+        mMaxAttempts = builder.mMaxAttempts;
+        mInitialBackoff = builder.mInitialBackoff;
+        mMaxBackoff = builder.mMaxBackoff;
+        mMultiplier = builder.mMultiplier;
+        mRetryableStatuses = builder.mRetryableStatuses.clone();
+        Arrays.sort(mRetryableStatuses);
+        mBudget = builder.mBudget;
+        mBudgetWindow = builder.mBudgetWindow;
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public boolean isRetryable(final int status) {
+        return Arrays.binarySearch(mRetryableStatuses, status) >= 0;
+    }
+
+    /**
+     * <p>Method to check whether a failed operation should be retried, regardless of the budget
+     * @param status The status of the failed attempt
+     * @param attempts Number of attempts made so far
+     * @return Whether to retry
+     */
+    public boolean shouldRetry(final int status, final int attempts) {
+        return attempts < mMaxAttempts && isRetryable(status);
+    }
+
+    /**
+     * <p>Get the time to wait before a retry
+     * @param attempts Number of attempts made so far, at least 1
+     * @return The time in milliseconds
+     */
+    public long getBackoff(final int attempts) {
+        final double backoff = mInitialBackoff * Math.pow(mMultiplier, Math.max(0, attempts - 1));
+        return backoff < mMaxBackoff ? (long) backoff : mMaxBackoff;
+    }
+
+    /**
+     * <p>Retries of a device, limited by the budget of the policy
+     */
+    static final class Budget {
+        private final BLERetryPolicy mPolicy;
+        private long mWindowStart = 0;
+        private int mRetries = 0;
+
+        Budget(final BLERetryPolicy policy) {
+            mPolicy = policy;
+        }
+
+        BLERetryPolicy getPolicy() {
+            return mPolicy;
+        }
+
+        /**
+         * <p>Method to take a retry from the budget
+         * @param now Current time in milliseconds
+         * @return false if the budget of the current window is used up
+         */
+        synchronized boolean tryAcquire(final long now) {
+            if (mRetries == 0 || now - mWindowStart >= mPolicy.mBudgetWindow) {
+                mWindowStart = now;
+                mRetries = 0;
+            }
+            if (mRetries >= mPolicy.mBudget) {
+                return false;
+            }
+            mRetries++;
+            return true;
+        }
+    }
+}
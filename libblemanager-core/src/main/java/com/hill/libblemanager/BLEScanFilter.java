@@ -0,0 +1,70 @@
+package com.hill.libblemanager;
+
+import java.util.UUID;
+
+/**
+ * <p>Service UUID filter of a scan. Scanners only take one UUID and a mask per filter, so the UUIDs to scan
+ * are merged into the bits they share: a device passes if its UUID has the same value on all bits of the mask.
+ * It may let devices of other UUIDs through, check them by {@link #matchesExactly} when that matters.
+ */
+public final class BLEScanFilter {
+    public final UUID serviceUuid;
+    public final UUID serviceUuidMask;
+    private final UUID[] mServiceUuids;
+
+    private BLEScanFilter(final UUID serviceUuid, final UUID serviceUuidMask, final UUID[] serviceUuids) {
+        this.serviceUuid = serviceUuid;
+        this.serviceUuidMask = serviceUuidMask;
+        mServiceUuids = serviceUuids;
+    }
+
+    /**
+     * <p>Method to build the filter of the service UUIDs
+     * @param uuids The service UUIDs to scan
+     * @return The filter, or null if there is no UUID
+     */
+    public static BLEScanFilter fromServiceUuids(final UUID[] uuids) {
+        if (uuids == null || uuids.length == 0) {
+            return null;
+        }
+        final UUID first = uuids[0];
+        long msb = first.getMostSignificantBits();
+        long lsb = first.getLeastSignificantBits();
+        long maskMsb = 0xFFFFFFFFFFFFFFFFL;
+        long maskLsb = 0xFFFFFFFFFFFFFFFFL;
+        for (int i=1; i < uuids.length; i++) {
+            final UUID uuid = uuids[i];
+            maskMsb &= ~(first.getMostSignificantBits() ^ uuid.getMostSignificantBits());
+            maskLsb &= ~(first.getLeastSignificantBits() ^ uuid.getLeastSignificantBits());
+            msb |= uuid.getMostSignificantBits();
+            lsb |= uuid.getLeastSignificantBits();
+        }
+        return new BLEScanFilter(new UUID(msb, lsb), new UUID(maskMsb, maskLsb), uuids.clone());
+    }
+
+    /**
+     * <p>Method to check whether the UUID passes the filter, the same way as the scanner does
+     * @param uuid The advertised service UUID
+     * @return Whether it passes
+     */
+    public boolean matches(final UUID uuid) {
+        final long maskMsb = serviceUuidMask.getMostSignificantBits();
+        final long maskLsb = serviceUuidMask.getLeastSignificantBits();
+        return ((uuid.getMostSignificantBits() ^ serviceUuid.getMostSignificantBits()) & maskMsb) == 0
+                && ((uuid.getLeastSignificantBits() ^ serviceUuid.getLeastSignificantBits()) & maskLsb) == 0;
+    }
+
+    /**
+     * <p>Method to check whether the scan record advertises any of the service UUIDs of the filter
+     * @param scanRecord The scan record of the device
+     * @return Whether any UUID is advertised
+     */
+    public boolean matchesExactly(final byte[] scanRecord) {
+        for (final UUID uuid : mServiceUuids) {
+            if (BLEAdvertisement.hasServiceUuid(scanRecord, uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
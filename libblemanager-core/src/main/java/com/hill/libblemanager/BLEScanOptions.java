@@ -0,0 +1,84 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Settings of a scan of {@link BLEScanTransport}, build it by {@link Builder}. By default only legacy
+ * advertisements on the LE 1M PHY are reported, like scans without options.
+ * <p>Extended advertisements, with up to {@link #MAX_EXTENDED_DATA_LENGTH} bytes of data and on the LE Coded PHY
+ * for long range, are reported with {@link Builder#setLegacyOnly(boolean)} false. Transports not supporting
+ * them ignore the options.
+ */
+public final class BLEScanOptions {
+    // Scan modes, the same values as ScanSettings
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    // PHYs, the same values as BluetoothDevice
+    public static final int PHY_LE_1M = 1;
+    public static final int PHY_LE_CODED = 3;
+    public static final int PHY_LE_ALL_SUPPORTED = 255;
+
+    /** Max length of the data of an extended advertisement, chained over several packets */
+    public static final int MAX_EXTENDED_DATA_LENGTH = 1650;
+
+    public static final BLEScanOptions DEFAULT = new Builder().build();
+
+    public final int scanMode;
+    /** Whether only legacy advertisements are reported */
+    public final boolean legacyOnly;
+    /** PHY of the primary advertising channels to scan, used when {@link #legacyOnly} is false */
+    public final int phy;
+
+    private BLEScanOptions(final Builder builder) {
+        scanMode = builder.mScanMode;
+        legacyOnly = builder.mLegacyOnly;
+        phy = builder.mPhy;
+    }
+
+    public static final class Builder {
+        private int mScanMode = SCAN_MODE_LOW_POWER;
+        private boolean mLegacyOnly = true;
+        private int mPhy = PHY_LE_ALL_SUPPORTED;
+
+        /**
+         * <p>Method to set the scan mode, {@link #SCAN_MODE_LOW_POWER} by default
+         * @param scanMode One of SCAN_MODE_* constants
+         */
+        public Builder setScanMode(final int scanMode) {
+            if (scanMode < SCAN_MODE_LOW_POWER || scanMode > SCAN_MODE_LOW_LATENCY) {
+                throw new IllegalArgumentException("Invalid scan mode: "+scanMode);
+            }
+            mScanMode = scanMode;
+            return this;
+        }
+
+        /**
+         * <p>Method to set whether only legacy advertisements are reported, true by default. Set it false to
+         * receive extended advertisements, their chained data is reported once it's complete.
+         */
+        public Builder setLegacyOnly(final boolean legacyOnly) {
+            mLegacyOnly = legacyOnly;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the PHY to scan, {@link #PHY_LE_ALL_SUPPORTED} by default. {@link #PHY_LE_CODED}
+         * finds long range advertisers only, it needs {@link #setLegacyOnly(boolean)} false.
+         * @param phy {@link #PHY_LE_1M}, {@link #PHY_LE_CODED} or {@link #PHY_LE_ALL_SUPPORTED}
+         */
+        public Builder setPhy(final int phy) {
+            if (phy != PHY_LE_1M && phy != PHY_LE_CODED && phy != PHY_LE_ALL_SUPPORTED) {
+                throw new IllegalArgumentException("Invalid PHY: "+phy);
+            }
+            mPhy = phy;
+            return this;
+        }
+
+        public BLEScanOptions build() {
+            if (mLegacyOnly && mPhy == PHY_LE_CODED) {
+                throw new IllegalArgumentException("Legacy advertisements aren't sent on the LE Coded PHY");
+            }
+            return new BLEScanOptions(this);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Advertising packet of a device found by a {@link BLEScanTransport}
+ */
+public final class BLEScanResult {
+    public static final int PHY_UNUSED = 0;
+    public static final int SID_NOT_PRESENT = 255;
+
+    public final String address;
+    public final String name;
+    public final int rssi;
+    /** Advertising data followed by the scan response, the whole chain of an extended advertisement */
+    public final byte[] scanRecord;
+    /** Platform object of the device, e.g. BluetoothDevice on Android, or null if there is none */
+    public final Object nativeDevice;
+    /** Time of the packet in nanoseconds, in the time base of {@link System#nanoTime()} */
+    public final long timestampNanos;
+    /** Whether it's a legacy advertisement, false for an extended advertisement */
+    public final boolean legacy;
+    /** PHY of the primary advertising channel, see the PHY_* constants of {@link BLEScanOptions} */
+    public final int primaryPhy;
+    /** PHY of the secondary advertising channel of an extended advertisement, or {@link #PHY_UNUSED} */
+    public final int secondaryPhy;
+    /** Advertising set id of an extended advertisement, or {@link #SID_NOT_PRESENT} */
+    public final int advertisingSid;
+    /** Whether the controller lost the end of the chained data, the record holds the received part */
+    public final boolean truncated;
+
+    public BLEScanResult(final String address, final String name, final int rssi, final byte[] scanRecord,
+                         final Object nativeDevice, final long timestampNanos) {
+        this(address, name, rssi, scanRecord, nativeDevice, timestampNanos, true, BLEScanOptions.PHY_LE_1M,
+                PHY_UNUSED, SID_NOT_PRESENT, false);
+    }
+
+    /**
+     * <p>Construction method of BLEScanResult of an extended advertisement
+     */
+    public BLEScanResult(final String address, final String name, final int rssi, final byte[] scanRecord,
+                         final Object nativeDevice, final long timestampNanos, final boolean legacy,
+                         final int primaryPhy, final int secondaryPhy, final int advertisingSid,
+                         final boolean truncated) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.scanRecord = scanRecord;
+        this.nativeDevice = nativeDevice;
+        this.timestampNanos = timestampNanos;
+        this.legacy = legacy;
+        this.primaryPhy = primaryPhy;
+        this.secondaryPhy = secondaryPhy;
+        this.advertisingSid = advertisingSid;
+        this.truncated = truncated;
+    }
+}
@@ -0,0 +1,40 @@
+package com.hill.libblemanager;
+
+import java.util.UUID;
+
+/**
+ * <p>Scanner of advertising devices, the layer beneath {@code BLEManager.startScan}. Get it by
+ * {@link BLETransport#getScanTransport()}.
+ */
+public interface BLEScanTransport {
+    // Scan errors, the same values as the SCAN_FAILED_* constants of ScanCallback
+    int ERROR_ALREADY_STARTED = 1;
+    int ERROR_REGISTRATION_FAILED = 2;
+    int ERROR_INTERNAL = 3;
+    int ERROR_UNSUPPORTED = 4;
+
+    interface Callback {
+        void onScanResult(final BLEScanResult result);
+
+        void onScanFailed(final int errorCode);
+    }
+
+    /**
+     * <p>Method to start scanning. Results may be delivered on any thread.
+     * @param serviceUuids Only report devices advertising any of these service UUIDs, null to report all
+     * @param callback Callback to receive the results, it identifies the scan in {@link #stopScan}
+     * @return Whether the scan is started
+     */
+    boolean startScan(final UUID[] serviceUuids, final Callback callback);
+
+    /**
+     * <p>Method to start scanning with settings, e.g. to receive extended advertisements
+     * @param serviceUuids Only report devices advertising any of these service UUIDs, null to report all
+     * @param options The settings, a transport ignores the ones it doesn't support
+     * @param callback Callback to receive the results, it identifies the scan in {@link #stopScan}
+     * @return Whether the scan is started
+     */
+    boolean startScan(final UUID[] serviceUuids, final BLEScanOptions options, final Callback callback);
+
+    void stopScan(final Callback callback);
+}
@@ -0,0 +1,351 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>{@link BLEGattTransport} queuing the requests to another transport in {@link BLEGattScheduler}. Requests
+ * are accepted at once and started when the scheduler picks them; a request the transport refuses to start is
+ * reported to the callback with {@link #STATUS_FAILURE}, so is a request without a result within the operation
+ * timeout of the scheduler, and its late result is dropped. Pass {@link #getTransportCallback()} to the transport
+ * when connecting, then {@link #attach} the opened transport; the callback given to the constructor receives
+ * this object as the transport of every callback.
+ */
+final class BLEScheduledGatt implements BLEGattTransport {
+    // Request types
+    private static final int REQUEST_DISCOVERY = 0;
+    private static final int REQUEST_READ = 1;
+    private static final int REQUEST_WRITE = 2;
+    private static final int REQUEST_RSSI = 3;
+    private static final int REQUEST_MTU = 4;
+
+    private static final int ATT_HEADER_SIZE = 3;
+
+    /**
+     * <p>Priorities of the requests of a device, by characteristic UUID
+     */
+    static final class Priorities {
+        private volatile int mDefaultPriority = BLEGattScheduler.PRIORITY_INTERACTIVE;
+        private final ConcurrentHashMap<UUID, Integer> mPriorities = new ConcurrentHashMap<UUID, Integer>();
+
+        void setDefault(final int priority) {
+            mDefaultPriority = priority;
+        }
+
+        void set(final UUID uuid, final int priority) {
+            mPriorities.put(uuid, priority);
+        }
+
+        void remove(final UUID uuid) {
+            mPriorities.remove(uuid);
+        }
+
+        /**
+         * <p>Get the priority of a request, descriptors take the priority of their characteristic
+         * @param attribute The attribute of the request, or null for requests of the connection
+         * @return One of the PRIORITY_* constants of {@link BLEGattScheduler}
+         */
+        int of(final BLEAttribute attribute) {
+            if (attribute != null && !mPriorities.isEmpty()) {
+                final BLEAttribute characteristic = attribute.getType() == BLEAttribute.TYPE_DESCRIPTOR
+                        ? attribute.getParent() : attribute;
+                final Integer priority = characteristic != null ? mPriorities.get(characteristic.getUuid()) : null;
+                if (priority != null) {
+                    return priority;
+                }
+            }
+            return mDefaultPriority;
+        }
+    }
+
+    private abstract class Request extends BLEGattScheduler.Operation {
+        final int type;
+        final BLEAttribute attribute;
+
+        Request(final int type, final BLEAttribute attribute, final int cost) {
+            super(mPriorities.of(attribute), cost);
+            this.type = type;
+            this.attribute = attribute;
+        }
+
+        boolean matches(final int type, final BLEAttribute attribute) {
+            return this.type == type
+                    && (attribute == null || this.attribute == null
+                    || this.attribute.getNativeObject() == attribute.getNativeObject());
+        }
+
+        /**
+         * <p>Method to start the request on the transport
+         * @return Whether the request is started
+         */
+        abstract boolean start(final BLEGattTransport transport);
+
+        /**
+         * <p>Method to report the request can't be started or timed out
+         */
+        abstract void fail();
+
+        @Override
+        void onTimeout() {
+            if (!mClosed) {
+                fail();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mClosed) {
+                mConnection.complete(this);
+                return;
+            }
+            final BLEGattTransport transport = mTransport;
+            synchronized (mInFlight) {
+                mInFlight.add(this);
+            }
+            if (transport == null || !start(transport)) {
+                synchronized (mInFlight) {
+                    mInFlight.remove(this);
+                }
+                mConnection.complete(this);
+                fail();
+            }
+        }
+    }
+
+    private final BLEGattScheduler.Connection mConnection;
+    private final Priorities mPriorities;
+    private final Callback mCallback;
+    private volatile BLEGattTransport mTransport = null;
+    private volatile boolean mClosed = false;
+    // Requests started on the transport, in start order
+    private final List<Request> mInFlight = new ArrayList<Request>();
+
+    /**
+     * <p>Construction method of BLEScheduledGatt
+     * @param scheduler The scheduler
+     * @param executor Executor to start the requests, it must not run them in the caller
+     * @param priorities The priorities of the requests
+     * @param callback The callback of the user of this transport
+     */
+    BLEScheduledGatt(final BLEGattScheduler scheduler, final Executor executor, final Priorities priorities,
+                     final Callback callback) {
+        mConnection = scheduler.register(executor);
+        mPriorities = priorities;
+        mCallback = callback;
+    }
+
+    Callback getTransportCallback() {
+        return mTransportCallback;
+    }
+
+    /**
+     * <p>Method to attach the opened transport
+     * @param transport The transport opened with {@link #getTransportCallback()}
+     * @return This object, or null if the transport is null
+     */
+    BLEScheduledGatt attach(final BLEGattTransport transport) {
+        if (transport == null) {
+            mConnection.close();
+            return null;
+        }
+        mTransport = transport;
+        return this;
+    }
+
+    /**
+     * <p>Method to release the slot of the first request in flight matching a result. Results come in start order,
+     * so a result matching a timed out request is its late result, it must not release the slot of another one.
+     * @return Whether the result shall be passed to the callback, false for the late result of a timed out request
+     */
+    private boolean complete(final int type, final BLEAttribute attribute) {
+        Request completed = null;
+        synchronized (mInFlight) {
+            final Iterator<Request> iterator = mInFlight.iterator();
+            while (iterator.hasNext()) {
+                final Request request = iterator.next();
+                if (request.matches(type, attribute)) {
+                    iterator.remove();
+                    if (request.done) { // Already reported as failed by the timeout
+                        return false;
+                    }
+                    completed = request;
+                    break;
+                }
+            }
+        }
+        if (completed != null) {
+            mConnection.complete(completed);
+        }
+        return true;
+    }
+
+    private void clear() {
+        synchronized (mInFlight) {
+            mInFlight.clear();
+        }
+        mConnection.clear();
+    }
+
+    private final Callback mTransportCallback = new Callback() {
+        @Override
+        public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+            if (newState == STATE_DISCONNECTED) {
+                // The requests in flight never complete and the queued ones are failed by the user on disconnection
+                clear();
+            }
+            mCallback.onConnectionStateChange(BLEScheduledGatt.this, status, newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+            if (complete(REQUEST_DISCOVERY, null)) {
+                mCallback.onServicesDiscovered(BLEScheduledGatt.this, status);
+            }
+        }
+
+        @Override
+        public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+            if (complete(REQUEST_READ, attribute)) {
+                mCallback.onAttributeRead(BLEScheduledGatt.this, attribute, value, status);
+            }
+        }
+
+        @Override
+        public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+            if (complete(REQUEST_WRITE, attribute)) {
+                mCallback.onAttributeWrite(BLEScheduledGatt.this, attribute, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+            mCallback.onCharacteristicChanged(BLEScheduledGatt.this, characteristic, value);
+        }
+
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+            if (complete(REQUEST_RSSI, null)) {
+                mCallback.onRemoteRssiRead(BLEScheduledGatt.this, rssi, status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+            if (complete(REQUEST_MTU, null)) {
+                mCallback.onMtuChanged(BLEScheduledGatt.this, mtu, status);
+            }
+        }
+    };
+
+    @Override
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mConnection.submit(new Request(REQUEST_DISCOVERY, null, DEFAULT_MTU) {
+            @Override
+            boolean start(final BLEGattTransport transport) {
+                return transport.discoverServices();
+            }
+
+            @Override
+            void fail() {
+                mCallback.onServicesDiscovered(BLEScheduledGatt.this, STATUS_FAILURE);
+            }
+        });
+    }
+
+    @Override
+    public List<BLEAttribute> getServices() {
+        return mTransport.getServices();
+    }
+
+    @Override
+    public boolean readAttribute(final BLEAttribute attribute) {
+        return mConnection.submit(new Request(REQUEST_READ, attribute, DEFAULT_MTU) {
+            @Override
+            boolean start(final BLEGattTransport transport) {
+                return transport.readAttribute(attribute);
+            }
+
+            @Override
+            void fail() {
+                mCallback.onAttributeRead(BLEScheduledGatt.this, attribute, null, STATUS_FAILURE);
+            }
+        });
+    }
+
+    @Override
+    public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+        // The caller may change the array while the write is queued
+        final byte[] queuedValue = value != null ? value.clone() : null;
+        final int cost = (queuedValue != null ? queuedValue.length : 0) + ATT_HEADER_SIZE;
+        return mConnection.submit(new Request(REQUEST_WRITE, attribute, cost) {
+            @Override
+            boolean start(final BLEGattTransport transport) {
+                return transport.writeAttribute(attribute, queuedValue, writeType);
+            }
+
+            @Override
+            void fail() {
+                mCallback.onAttributeWrite(BLEScheduledGatt.this, attribute, STATUS_FAILURE);
+            }
+        });
+    }
+
+    @Override
+    public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+        return mTransport.setNotification(characteristic, enable);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mConnection.submit(new Request(REQUEST_RSSI, null, DEFAULT_MTU) {
+            @Override
+            boolean start(final BLEGattTransport transport) {
+                return transport.readRemoteRssi();
+            }
+
+            @Override
+            void fail() {
+                mCallback.onRemoteRssiRead(BLEScheduledGatt.this, 0, STATUS_FAILURE);
+            }
+        });
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        return mConnection.submit(new Request(REQUEST_MTU, null, DEFAULT_MTU) {
+            @Override
+            boolean start(final BLEGattTransport transport) {
+                return transport.requestMtu(mtu);
+            }
+
+            @Override
+            void fail() {
+                mCallback.onMtuChanged(BLEScheduledGatt.this, DEFAULT_MTU, STATUS_FAILURE);
+            }
+        });
+    }
+
+    @Override
+    public void disconnect() {
+        mTransport.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        synchronized (mInFlight) {
+            mInFlight.clear();
+        }
+        mConnection.close();
+        mTransport.close();
+    }
+}
@@ -0,0 +1,524 @@
+package com.hill.libblemanager;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>{@link BLETransport} recording the scan results, GATT requests and callbacks, and notification payloads
+ * of another transport into a compact append-only binary stream, to be replayed by {@link BLESessionReplayer}.
+ * Set it by {@code BLEManager.setTransport}, and {@link #stop()} it when the session is done.
+ * <p>Records are encoded on the callback threads and written by a background thread, so recording doesn't
+ * block the Bluetooth callbacks. Records waiting to be written are bounded by {@link #DEFAULT_MAX_PENDING_BYTES}
+ * or the limit given to the constructor, records beyond it are dropped and counted by {@link #getDroppedCount()}.
+ * <p>The stream starts with {@link #MAGIC} and {@link #VERSION}, followed by records of a type byte, the time
+ * since the recording started in microseconds and the fields of the type. Integers are written as variable
+ * length integers, so most records take a few bytes besides their payload.
+ */
+public final class BLESessionRecorder implements BLETransport {
+    private static final String TAG = "BLESessionRecorder";
+
+    public static final int MAGIC = 0x424C4552; // "BLER"
+    public static final int VERSION = 1;
+    public static final int DEFAULT_MAX_PENDING_BYTES = 1024 * 1024;
+
+    // Record types
+    static final int RECORD_SCAN_START = 1;
+    static final int RECORD_SCAN_STOP = 2;
+    static final int RECORD_SCAN_RESULT = 3;
+    static final int RECORD_SCAN_FAILED = 4;
+    static final int RECORD_CONNECT = 5;
+    static final int RECORD_REQUEST = 6;
+    static final int RECORD_CONNECTION_STATE = 7;
+    static final int RECORD_SERVICES_DISCOVERED = 8;
+    static final int RECORD_ATTRIBUTE_READ = 9;
+    static final int RECORD_ATTRIBUTE_WRITE = 10;
+    static final int RECORD_CHARACTERISTIC_CHANGED = 11;
+    static final int RECORD_RSSI_READ = 12;
+    static final int RECORD_MTU_CHANGED = 13;
+    static final int RECORD_REQUEST_FAILED = 14;
+
+    // Attribute index of callbacks of attributes which aren't discovered
+    static final int NO_ATTRIBUTE = -1;
+
+    static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final byte[] END_OF_STREAM = new byte[0];
+
+    private final BLETransport mTransport;
+    private final OutputStream mOutput;
+    private final long mMaxPendingBytes;
+    private final long mStartNanos = System.nanoTime();
+    private final BlockingQueue<byte[]> mQueue = new LinkedBlockingQueue<byte[]>();
+    private final AtomicLong mPendingBytes = new AtomicLong(0);
+    private final AtomicLong mDroppedCount = new AtomicLong(0);
+    private final AtomicInteger mNextScanId = new AtomicInteger(0);
+    private final AtomicInteger mNextConnectionId = new AtomicInteger(0);
+    private final Map<BLEScanTransport.Callback, RecordingScan> mScans = new IdentityHashMap<BLEScanTransport.Callback, RecordingScan>();
+    private final Thread mWriter;
+    private volatile boolean mStopped = false;
+    private volatile IOException mError = null;
+
+    /**
+     * <p>Construction method of BLESessionRecorder with {@link #DEFAULT_MAX_PENDING_BYTES}, recording starts at once
+     * @param transport The transport to record
+     * @param output Where to write the recording, it's closed by {@link #stop()}
+     */
+    public BLESessionRecorder(final BLETransport transport, final OutputStream output) {
+        this(transport, output, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * <p>Construction method of BLESessionRecorder, recording starts at once
+     * @param transport The transport to record
+     * @param output Where to write the recording, it's closed by {@link #stop()}
+     * @param maxPendingBytes Max bytes of records waiting to be written
+     */
+    public BLESessionRecorder(final BLETransport transport, final OutputStream output, final long maxPendingBytes) {
+        if (maxPendingBytes <= 0) {
+            throw new IllegalArgumentException("Invalid max pending bytes: "+maxPendingBytes);
+        }
+        mTransport = transport;
+        mOutput = new BufferedOutputStream(output);
+        mMaxPendingBytes = maxPendingBytes;
+        final Record header = new Record();
+        header.writeInt32(MAGIC);
+        header.writeInt32(VERSION);
+        enqueue(header.toByteArray());
+        mWriter = new Thread(mWriteTask, TAG);
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    /**
+     * <p>Method to stop recording, it waits for the pending records to be written and closes the stream
+     * @return The first error writing the stream, or null if all records are written
+     */
+    public IOException stop() {
+        synchronized (this) {
+            if (mStopped) {
+                return mError;
+            }
+            mStopped = true;
+            mQueue.add(END_OF_STREAM);
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return mError;
+    }
+
+    /**
+     * <p>Get the number of records dropped because too many were waiting to be written, or the stream failed
+     * @return The number of dropped records
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    // Writing methods
+    private final Runnable mWriteTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final byte[] record = mQueue.take();
+                    if (record == END_OF_STREAM) {
+                        break;
+                    }
+                    mPendingBytes.addAndGet(-record.length);
+                    if (mError != null) {
+                        mDroppedCount.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        mOutput.write(record);
+                        if (mQueue.isEmpty()) {
+                            mOutput.flush();
+                        }
+                    } catch (IOException e) {
+                        mError = e;
+                        mDroppedCount.incrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                // Stop writing
+            }
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                if (mError == null) {
+                    mError = e;
+                }
+            }
+        }
+    };
+
+    private void enqueue(final byte[] record) {
+        if (mPendingBytes.addAndGet(record.length) > mMaxPendingBytes) {
+            mPendingBytes.addAndGet(-record.length);
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        synchronized (this) {
+            if (!mStopped) {
+                mQueue.add(record);
+                return;
+            }
+        }
+        mPendingBytes.addAndGet(-record.length);
+        mDroppedCount.incrementAndGet();
+    }
+
+    private Record startRecord(final int type) {
+        final Record record = new Record();
+        record.write(type);
+        record.writeVarLong((System.nanoTime() - mStartNanos) / 1000);
+        return record;
+    }
+
+    private void finishRecord(final Record record) {
+        enqueue(record.toByteArray());
+    }
+
+    // Buffer of a record with the encoding of its fields
+    static final class Record extends ByteArrayOutputStream {
+        Record() {
+            super(32);
+        }
+
+        void writeInt32(final int value) {
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        void writeVarLong(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int) (value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        // Zigzag encoded, so small negative values like RSSI stay short
+        void writeSignedVarInt(final int value) {
+            writeVarLong(((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL);
+        }
+
+        void writeValue(final byte[] value) {
+            if (value == null) {
+                writeVarLong(0);
+                return;
+            }
+            writeVarLong(value.length + 1);
+            write(value, 0, value.length);
+        }
+
+        void writeString(final String value) {
+            writeValue(value != null ? value.getBytes(CHARSET_UTF8) : null);
+        }
+
+        void writeUuid(final UUID uuid) {
+            final int shortUuid = BLEUuid.toShortUuid(uuid);
+            if (shortUuid >= 0) {
+                write(0);
+                writeVarLong(shortUuid);
+            } else {
+                write(1);
+                final long most = uuid.getMostSignificantBits();
+                final long least = uuid.getLeastSignificantBits();
+                writeInt32((int) (most >>> 32));
+                writeInt32((int) most);
+                writeInt32((int) (least >>> 32));
+                writeInt32((int) least);
+            }
+        }
+    }
+
+    // Scan methods
+    @Override
+    public BLEScanTransport getScanTransport() {
+        final BLEScanTransport scanner = mTransport.getScanTransport();
+        return scanner != null ? new RecordingScanner(scanner) : null;
+    }
+
+    private final class RecordingScanner implements BLEScanTransport {
+        private final BLEScanTransport mScanner;
+
+        RecordingScanner(final BLEScanTransport scanner) {
+            mScanner = scanner;
+        }
+
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final Callback callback) {
+            return startScan(serviceUuids, BLEScanOptions.DEFAULT, callback);
+        }
+
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final BLEScanOptions options, final Callback callback) {
+            final RecordingScan scan = new RecordingScan(mNextScanId.getAndIncrement(), callback);
+            synchronized (mScans) {
+                mScans.put(callback, scan);
+            }
+            final Record record = startRecord(RECORD_SCAN_START);
+            record.writeVarLong(scan.id);
+            finishRecord(record);
+            if (!mScanner.startScan(serviceUuids, options, scan)) {
+                scan.onScanFailed(ERROR_INTERNAL);
+                synchronized (mScans) {
+                    mScans.remove(callback);
+                }
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void stopScan(final Callback callback) {
+            final RecordingScan scan;
+            synchronized (mScans) {
+                scan = mScans.remove(callback);
+            }
+            if (scan == null) {
+                return;
+            }
+            mScanner.stopScan(scan);
+            final Record record = startRecord(RECORD_SCAN_STOP);
+            record.writeVarLong(scan.id);
+            finishRecord(record);
+        }
+    }
+
+    private final class RecordingScan implements BLEScanTransport.Callback {
+        final int id;
+        final BLEScanTransport.Callback callback;
+
+        RecordingScan(final int id, final BLEScanTransport.Callback callback) {
+            this.id = id;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onScanResult(final BLEScanResult result) {
+            final Record record = startRecord(RECORD_SCAN_RESULT);
+            record.writeVarLong(id);
+            record.writeString(result.address);
+            record.writeString(result.name);
+            record.writeSignedVarInt(result.rssi);
+            record.writeValue(result.scanRecord);
+            finishRecord(record);
+            callback.onScanResult(result);
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            final Record record = startRecord(RECORD_SCAN_FAILED);
+            record.writeVarLong(id);
+            record.writeVarLong(errorCode);
+            finishRecord(record);
+            callback.onScanFailed(errorCode);
+        }
+    }
+
+    // GATT methods
+    @Override
+    public BLEGattTransport connectGatt(final String address, final boolean autoConnect, final BLEGattTransport.Callback callback) {
+        final RecordingGatt gatt = new RecordingGatt(mNextConnectionId.getAndIncrement(), callback);
+        final Record record = startRecord(RECORD_CONNECT);
+        record.writeVarLong(gatt.mId);
+        record.writeString(address);
+        record.write(autoConnect ? 1 : 0);
+        finishRecord(record);
+        final BLEGattTransport transport = mTransport.connectGatt(address, autoConnect, gatt.mTransportCallback);
+        if (transport == null) {
+            return null;
+        }
+        gatt.mTransport = transport;
+        return gatt;
+    }
+
+    private final class RecordingGatt implements BLEGattTransport {
+        private final int mId;
+        private final Callback mCallback;
+        private volatile BLEGattTransport mTransport = null;
+        // Index of the discovered attributes by their platform objects, which are stable while the wrappers aren't
+        private volatile Map<Object, Integer> mAttributeIndex = new IdentityHashMap<Object, Integer>();
+
+        RecordingGatt(final int id, final Callback callback) {
+            mId = id;
+            mCallback = callback;
+        }
+
+        private Record startGattRecord(final int type) {
+            final Record record = startRecord(type);
+            record.writeVarLong(mId);
+            return record;
+        }
+
+        private void writeAttribute(final Record record, final BLEAttribute attribute) {
+            final Integer index = mAttributeIndex.get(attribute.getNativeObject());
+            record.writeSignedVarInt(index != null ? index : NO_ATTRIBUTE);
+        }
+
+        private void recordRequest() {
+            finishRecord(startGattRecord(RECORD_REQUEST));
+        }
+
+        // Requests are recorded before they are started, since their callbacks may come before they return
+        private boolean recordResult(final boolean started) {
+            if (!started) {
+                finishRecord(startGattRecord(RECORD_REQUEST_FAILED));
+            }
+            return started;
+        }
+
+        // Attributes are written in depth first order, their indexes are the order
+        private void writeServices(final Record record, final List<BLEAttribute> attributes, final Map<Object, Integer> index) {
+            record.writeVarLong(attributes.size());
+            for (final BLEAttribute attribute : attributes) {
+                index.put(attribute.getNativeObject(), index.size());
+                record.write(attribute.getType());
+                record.writeUuid(attribute.getUuid());
+                record.writeVarLong(attribute.getInstanceId());
+                record.writeVarLong(attribute.getProperties());
+                writeServices(record, attribute.getChildren(), index);
+            }
+        }
+
+        private final Callback mTransportCallback = new Callback() {
+            @Override
+            public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+                final Record record = startGattRecord(RECORD_CONNECTION_STATE);
+                record.writeVarLong(status);
+                record.writeVarLong(newState);
+                finishRecord(record);
+                mCallback.onConnectionStateChange(RecordingGatt.this, status, newState);
+            }
+
+            @Override
+            public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+                final Record record = startGattRecord(RECORD_SERVICES_DISCOVERED);
+                record.writeVarLong(status);
+                final Map<Object, Integer> index = new IdentityHashMap<Object, Integer>();
+                writeServices(record, transport.getServices(), index);
+                mAttributeIndex = index;
+                finishRecord(record);
+                mCallback.onServicesDiscovered(RecordingGatt.this, status);
+            }
+
+            @Override
+            public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+                final Record record = startGattRecord(RECORD_ATTRIBUTE_READ);
+                writeAttribute(record, attribute);
+                record.writeVarLong(status);
+                record.writeValue(value);
+                finishRecord(record);
+                mCallback.onAttributeRead(RecordingGatt.this, attribute, value, status);
+            }
+
+            @Override
+            public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+                final Record record = startGattRecord(RECORD_ATTRIBUTE_WRITE);
+                writeAttribute(record, attribute);
+                record.writeVarLong(status);
+                finishRecord(record);
+                mCallback.onAttributeWrite(RecordingGatt.this, attribute, status);
+            }
+
+            @Override
+            public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+                final Record record = startGattRecord(RECORD_CHARACTERISTIC_CHANGED);
+                writeAttribute(record, characteristic);
+                record.writeValue(value);
+                finishRecord(record);
+                mCallback.onCharacteristicChanged(RecordingGatt.this, characteristic, value);
+            }
+
+            @Override
+            public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+                final Record record = startGattRecord(RECORD_RSSI_READ);
+                record.writeSignedVarInt(rssi);
+                record.writeVarLong(status);
+                finishRecord(record);
+                mCallback.onRemoteRssiRead(RecordingGatt.this, rssi, status);
+            }
+
+            @Override
+            public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+                final Record record = startGattRecord(RECORD_MTU_CHANGED);
+                record.writeVarLong(mtu);
+                record.writeVarLong(status);
+                finishRecord(record);
+                mCallback.onMtuChanged(RecordingGatt.this, mtu, status);
+            }
+        };
+
+        @Override
+        public String getAddress() {
+            return mTransport.getAddress();
+        }
+
+        @Override
+        public boolean discoverServices() {
+            recordRequest();
+            return recordResult(mTransport.discoverServices());
+        }
+
+        @Override
+        public List<BLEAttribute> getServices() {
+            return mTransport.getServices();
+        }
+
+        @Override
+        public boolean readAttribute(final BLEAttribute attribute) {
+            recordRequest();
+            return recordResult(mTransport.readAttribute(attribute));
+        }
+
+        @Override
+        public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+            recordRequest();
+            return recordResult(mTransport.writeAttribute(attribute, value, writeType));
+        }
+
+        @Override
+        public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+            return mTransport.setNotification(characteristic, enable);
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            recordRequest();
+            return recordResult(mTransport.readRemoteRssi());
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            recordRequest();
+            return recordResult(mTransport.requestMtu(mtu));
+        }
+
+        @Override
+        public void disconnect() {
+            mTransport.disconnect();
+        }
+
+        @Override
+        public void close() {
+            mTransport.close();
+        }
+    }
+}
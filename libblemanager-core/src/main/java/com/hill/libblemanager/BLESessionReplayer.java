@@ -0,0 +1,684 @@
+package com.hill.libblemanager;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>{@link BLETransport} replaying a session recorded by {@link BLESessionRecorder}. Set it by
+ * {@code BLEManager.setTransport}, and the recorded scan results and GATT callbacks go through the listeners
+ * of {@code BLEManager} and {@code BLEDevice} again with their recorded timing, or faster by {@link #setSpeed}.
+ * <p>Every {@link BLEScanTransport#startScan} replays the next recorded scan, and every {@link #connectGatt}
+ * of an address replays the next recorded connection of that address. The callbacks of a request are only
+ * replayed after the same request is made again, so the replay follows the pace of the code under test while
+ * keeping the recorded response times. Requests return what they returned in the recording.
+ * <p>All callbacks are called on one thread in the recorded order, so a replay is repeatable.
+ */
+public final class BLESessionReplayer implements BLETransport {
+    private static final String TAG = "BLESessionReplayer";
+
+    /** Speed to replay without waiting between the callbacks */
+    public static final double SPEED_UNLIMITED = Double.POSITIVE_INFINITY;
+
+    private final ScheduledExecutorService mExecutor;
+    private final LinkedList<Stream> mScans = new LinkedList<Stream>();
+    private final Map<String, LinkedList<Stream>> mConnections = new HashMap<String, LinkedList<Stream>>();
+    private final Scanner mScanner = new Scanner();
+    private volatile double mSpeed = 1;
+
+    // Recorded event, the meaning of the arguments depends on the type
+    private static final class Event {
+        final int type;
+        final long time; // In microseconds
+        int arg0 = 0;
+        int arg1 = 0;
+        int attribute = BLESessionRecorder.NO_ATTRIBUTE;
+        byte[] value = null;
+        String address = null;
+        String name = null;
+        List<BLEAttribute> services = null;
+
+        Event(final int type, final long time) {
+            this.type = type;
+            this.time = time;
+        }
+    }
+
+    // Events of a recorded scan or connection
+    private static final class Stream {
+        final String address;
+        final long startTime;
+        final List<Event> events = new ArrayList<Event>();
+        final List<Event> requests = new ArrayList<Event>();
+
+        Stream(final String address, final long startTime) {
+            this.address = address;
+            this.startTime = startTime;
+        }
+    }
+
+    /**
+     * <p>Construction method of BLESessionReplayer, it reads the whole recording. A recording cut in a record,
+     * e.g. when the recording app is killed, is replayed up to that record.
+     * @param input The recording, it isn't closed
+     * @throws IOException If the recording can't be read or isn't a recording
+     */
+    public BLESessionReplayer(final InputStream input) throws IOException {
+        read(new DataInputStream(new BufferedInputStream(input)));
+        mExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * <p>Method to set the replay speed, it applies to the next callbacks
+     * @param speed 1 for the recorded timing, 2 to replay twice as fast and so on, or {@link #SPEED_UNLIMITED}
+     */
+    public void setSpeed(final double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Invalid speed: "+speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * <p>Get the number of recorded scans which aren't replayed yet
+     * @return The number of scans
+     */
+    public int getScanCount() {
+        synchronized (mScans) {
+            return mScans.size();
+        }
+    }
+
+    /**
+     * <p>Get the number of recorded connections of an address which aren't replayed yet
+     * @param address Address of the device
+     * @return The number of connections
+     */
+    public int getConnectionCount(final String address) {
+        synchronized (mConnections) {
+            final List<Stream> connections = mConnections.get(address);
+            return connections != null ? connections.size() : 0;
+        }
+    }
+
+    /**
+     * <p>Method to stop the replay, no callback is called after it
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    // Reading methods
+    private void read(final DataInputStream input) throws IOException {
+        if (input.readInt() != BLESessionRecorder.MAGIC) {
+            throw new IOException("Not a session recording");
+        }
+        final int version = input.readInt();
+        if (version != BLESessionRecorder.VERSION) {
+            throw new IOException("Unsupported recording version: "+version);
+        }
+        final Map<Integer, Stream> scans = new HashMap<Integer, Stream>();
+        final Map<Integer, Stream> connections = new HashMap<Integer, Stream>();
+        try {
+            int type;
+            while ((type = input.read()) >= 0) {
+                readRecord(input, type, scans, connections);
+            }
+        } catch (EOFException e) {
+            // Cut in a record, keep the records before it
+        }
+    }
+
+    private void readRecord(final DataInputStream input, final int type,
+                            final Map<Integer, Stream> scans, final Map<Integer, Stream> connections) throws IOException {
+        final Event event = new Event(type, readVarLong(input));
+        final int id = (int) readVarLong(input);
+        final Stream stream;
+        switch (type) {
+            case BLESessionRecorder.RECORD_SCAN_START:
+                stream = new Stream(null, event.time);
+                scans.put(id, stream);
+                mScans.add(stream);
+                return;
+            case BLESessionRecorder.RECORD_SCAN_STOP:
+                scans.remove(id);
+                return;
+            case BLESessionRecorder.RECORD_SCAN_RESULT:
+                event.address = readString(input);
+                event.name = readString(input);
+                event.arg0 = readSignedVarInt(input);
+                event.value = readValue(input);
+                stream = scans.get(id);
+                break;
+            case BLESessionRecorder.RECORD_SCAN_FAILED:
+                event.arg0 = (int) readVarLong(input);
+                stream = scans.get(id);
+                break;
+            case BLESessionRecorder.RECORD_CONNECT:
+                final String address = readString(input);
+                input.readUnsignedByte(); // autoConnect, the replay follows the recorded states anyway
+                final Stream connection = new Stream(address, event.time);
+                connections.put(id, connection);
+                LinkedList<Stream> addressConnections = mConnections.get(address);
+                if (addressConnections == null) {
+                    addressConnections = new LinkedList<Stream>();
+                    mConnections.put(address, addressConnections);
+                }
+                addressConnections.add(connection);
+                return;
+            case BLESessionRecorder.RECORD_REQUEST:
+                event.arg0 = 1; // Started
+                stream = connections.get(id);
+                if (stream != null) {
+                    stream.requests.add(event);
+                }
+                break;
+            case BLESessionRecorder.RECORD_REQUEST_FAILED:
+                stream = connections.get(id);
+                if (stream != null && !stream.requests.isEmpty()) {
+                    stream.requests.get(stream.requests.size() - 1).arg0 = 0;
+                }
+                return;
+            case BLESessionRecorder.RECORD_CONNECTION_STATE:
+                event.arg0 = (int) readVarLong(input);
+                event.arg1 = (int) readVarLong(input);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_SERVICES_DISCOVERED:
+                event.arg0 = (int) readVarLong(input);
+                event.services = readServices(input, null);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_ATTRIBUTE_READ:
+                event.attribute = readSignedVarInt(input);
+                event.arg0 = (int) readVarLong(input);
+                event.value = readValue(input);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_ATTRIBUTE_WRITE:
+                event.attribute = readSignedVarInt(input);
+                event.arg0 = (int) readVarLong(input);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_CHARACTERISTIC_CHANGED:
+                event.attribute = readSignedVarInt(input);
+                event.value = readValue(input);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_RSSI_READ:
+                event.arg1 = readSignedVarInt(input);
+                event.arg0 = (int) readVarLong(input);
+                stream = connections.get(id);
+                break;
+            case BLESessionRecorder.RECORD_MTU_CHANGED:
+                event.arg1 = (int) readVarLong(input);
+                event.arg0 = (int) readVarLong(input);
+                stream = connections.get(id);
+                break;
+            default:
+                throw new IOException("Unknown record type: "+type);
+        }
+        if (stream != null) {
+            stream.events.add(event);
+        }
+    }
+
+    private static long readVarLong(final DataInputStream input) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = input.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    private static int readSignedVarInt(final DataInputStream input) throws IOException {
+        final int value = (int) readVarLong(input);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static byte[] readValue(final DataInputStream input) throws IOException {
+        final long length = readVarLong(input);
+        if (length == 0) {
+            return null;
+        }
+        final byte[] value = new byte[(int) (length - 1)];
+        input.readFully(value);
+        return value;
+    }
+
+    private static String readString(final DataInputStream input) throws IOException {
+        final byte[] value = readValue(input);
+        return value != null ? new String(value, BLESessionRecorder.CHARSET_UTF8) : null;
+    }
+
+    private static UUID readUuid(final DataInputStream input) throws IOException {
+        if (input.readUnsignedByte() == 0) {
+            return BLEUuid.fromShortUuid((int) readVarLong(input));
+        }
+        return new UUID(input.readLong(), input.readLong());
+    }
+
+    private static List<BLEAttribute> readServices(final DataInputStream input, final ReplayedAttribute parent) throws IOException {
+        final int count = (int) readVarLong(input);
+        final List<BLEAttribute> attributes = new ArrayList<BLEAttribute>(count);
+        for (int i = 0; i < count; i++) {
+            final int type = input.readUnsignedByte();
+            final UUID uuid = readUuid(input);
+            final int instanceId = (int) readVarLong(input);
+            final int properties = (int) readVarLong(input);
+            final ReplayedAttribute attribute = new ReplayedAttribute(parent, type, uuid, instanceId, properties);
+            attributes.add(attribute);
+            attribute.mChildren.addAll(readServices(input, attribute));
+        }
+        return attributes;
+    }
+
+    // Indexed in the depth first order used by the recorder
+    private static void indexServices(final List<BLEAttribute> attributes, final List<BLEAttribute> index) {
+        for (final BLEAttribute attribute : attributes) {
+            index.add(attribute);
+            indexServices(attribute.getChildren(), index);
+        }
+    }
+
+    private static final class ReplayedAttribute implements BLEAttribute {
+        private final ReplayedAttribute mParent;
+        private final int mType;
+        private final UUID mUuid;
+        private final int mInstanceId;
+        private final int mProperties;
+        private final List<BLEAttribute> mChildren = new ArrayList<BLEAttribute>();
+        private volatile byte[] mValue = null;
+
+        ReplayedAttribute(final ReplayedAttribute parent, final int type, final UUID uuid,
+                          final int instanceId, final int properties) {
+            mParent = parent;
+            mType = type;
+            mUuid = uuid;
+            mInstanceId = instanceId;
+            mProperties = properties;
+        }
+
+        @Override
+        public int getType() {
+            return mType;
+        }
+
+        @Override
+        public UUID getUuid() {
+            return mUuid;
+        }
+
+        @Override
+        public int getInstanceId() {
+            return mInstanceId;
+        }
+
+        @Override
+        public int getProperties() {
+            return mProperties;
+        }
+
+        @Override
+        public byte[] getValue() {
+            return mValue;
+        }
+
+        @Override
+        public boolean setValue(final byte[] value) {
+            if (mType == TYPE_SERVICE) {
+                return false;
+            }
+            mValue = value;
+            return true;
+        }
+
+        @Override
+        public BLEAttribute getParent() {
+            return mParent;
+        }
+
+        @Override
+        public List<BLEAttribute> getChildren() {
+            return Collections.unmodifiableList(mChildren);
+        }
+
+        @Override
+        public List<BLEAttribute> getIncludedServices() {
+            return Collections.<BLEAttribute>emptyList();
+        }
+
+        @Override
+        public Object getNativeObject() {
+            return this;
+        }
+    }
+
+    // Replay methods
+    // Delivers the events of a stream on the replay thread, keeping the recorded time between them
+    private abstract class Cursor implements Runnable {
+        private final List<Event> mEvents;
+        private int mNext = 0;
+        private long mLastTime;
+        private boolean mStopped = false;
+        private boolean mWaiting = false;
+        private ScheduledFuture<?> mFuture = null;
+
+        Cursor(final Stream stream) {
+            mEvents = stream.events;
+            mLastTime = stream.startTime;
+        }
+
+        /**
+         * <p>Method to check whether the event can be delivered now, called with the lock of this cursor
+         * @return false to wait for {@link #resume()}
+         */
+        abstract boolean isReady(final Event event);
+
+        abstract void deliver(final Event event);
+
+        synchronized void schedule() {
+            if (mStopped || mNext >= mEvents.size()) {
+                return;
+            }
+            final double delay = (mEvents.get(mNext).time - mLastTime) / mSpeed;
+            try {
+                mFuture = mExecutor.schedule(this, (long) delay, TimeUnit.MICROSECONDS);
+            } catch (RuntimeException e) { // Shut down
+                mStopped = true;
+            }
+        }
+
+        synchronized void resume() {
+            if (mWaiting) {
+                mWaiting = false;
+                schedule();
+            }
+        }
+
+        synchronized void stop() {
+            mStopped = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            final Event event;
+            synchronized (this) {
+                if (mStopped) {
+                    return;
+                }
+                event = mEvents.get(mNext);
+                if (!isReady(event)) {
+                    mWaiting = true;
+                    return;
+                }
+                mNext++;
+                // Time the next event from here, so waiting for a request doesn't shorten it
+                mLastTime = event.time;
+            }
+            deliver(event);
+            schedule();
+        }
+    }
+
+    // Scan methods
+    @Override
+    public BLEScanTransport getScanTransport() {
+        return mScanner;
+    }
+
+    private final class Scanner implements BLEScanTransport {
+        private final Map<Callback, Cursor> mCursors = new IdentityHashMap<Callback, Cursor>();
+
+        // The recorded results are replayed whatever the options are
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final BLEScanOptions options, final Callback callback) {
+            return startScan(serviceUuids, callback);
+        }
+
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final Callback callback) {
+            final Stream scan;
+            synchronized (mScans) {
+                scan = mScans.poll();
+            }
+            if (scan == null) {
+                return false;
+            }
+            final Cursor cursor = new Cursor(scan) {
+                @Override
+                boolean isReady(final Event event) {
+                    return true;
+                }
+
+                @Override
+                void deliver(final Event event) {
+                    if (event.type == BLESessionRecorder.RECORD_SCAN_RESULT) {
+                        callback.onScanResult(new BLEScanResult(event.address, event.name, event.arg0, event.value,
+                                null, System.nanoTime()));
+                    } else {
+                        callback.onScanFailed(event.arg0);
+                    }
+                }
+            };
+            synchronized (mCursors) {
+                mCursors.put(callback, cursor);
+            }
+            cursor.schedule();
+            return true;
+        }
+
+        @Override
+        public void stopScan(final Callback callback) {
+            final Cursor cursor;
+            synchronized (mCursors) {
+                cursor = mCursors.remove(callback);
+            }
+            if (cursor != null) {
+                cursor.stop();
+            }
+        }
+    }
+
+    // GATT methods
+    @Override
+    public BLEGattTransport connectGatt(final String address, final boolean autoConnect, final BLEGattTransport.Callback callback) {
+        final Stream connection;
+        synchronized (mConnections) {
+            final LinkedList<Stream> connections = mConnections.get(address);
+            connection = connections != null ? connections.poll() : null;
+        }
+        if (connection == null) {
+            return null;
+        }
+        final ReplayedGatt gatt = new ReplayedGatt(connection, callback);
+        gatt.mCursor.schedule();
+        return gatt;
+    }
+
+    private final class ReplayedGatt implements BLEGattTransport {
+        private final Stream mConnection;
+        private final Callback mCallback;
+        private final Cursor mCursor;
+        private volatile List<BLEAttribute> mServices = Collections.emptyList();
+        private volatile List<BLEAttribute> mAttributes = Collections.emptyList();
+        // Requests made by the user, and the recorded requests replayed so far
+        private int mRequestCount = 0;
+        private int mReplayedRequestCount = 0;
+
+        ReplayedGatt(final Stream connection, final Callback callback) {
+            mConnection = connection;
+            mCallback = callback;
+            mCursor = new Cursor(connection) {
+                @Override
+                boolean isReady(final Event event) {
+                    if (event.type != BLESessionRecorder.RECORD_REQUEST) {
+                        return true;
+                    }
+                    synchronized (ReplayedGatt.this) {
+                        if (mReplayedRequestCount < mRequestCount) {
+                            mReplayedRequestCount++;
+                            return true;
+                        }
+                        return false;
+                    }
+                }
+
+                @Override
+                void deliver(final Event event) {
+                    replay(event);
+                }
+            };
+        }
+
+        private BLEAttribute attributeOf(final Event event) {
+            final List<BLEAttribute> attributes = mAttributes;
+            return event.attribute >= 0 && event.attribute < attributes.size() ? attributes.get(event.attribute) : null;
+        }
+
+        private void replay(final Event event) {
+            final BLEAttribute attribute = attributeOf(event);
+            switch (event.type) {
+                case BLESessionRecorder.RECORD_CONNECTION_STATE:
+                    mCallback.onConnectionStateChange(this, event.arg0, event.arg1);
+                    break;
+                case BLESessionRecorder.RECORD_SERVICES_DISCOVERED:
+                    final List<BLEAttribute> attributes = new ArrayList<BLEAttribute>();
+                    indexServices(event.services, attributes);
+                    mAttributes = attributes;
+                    mServices = Collections.unmodifiableList(event.services);
+                    mCallback.onServicesDiscovered(this, event.arg0);
+                    break;
+                case BLESessionRecorder.RECORD_ATTRIBUTE_READ:
+                    if (attribute != null) {
+                        if (event.arg0 == STATUS_SUCCESS) {
+                            attribute.setValue(event.value);
+                        }
+                        mCallback.onAttributeRead(this, attribute, event.value, event.arg0);
+                    }
+                    break;
+                case BLESessionRecorder.RECORD_ATTRIBUTE_WRITE:
+                    if (attribute != null) {
+                        mCallback.onAttributeWrite(this, attribute, event.arg0);
+                    }
+                    break;
+                case BLESessionRecorder.RECORD_CHARACTERISTIC_CHANGED:
+                    if (attribute != null) {
+                        attribute.setValue(event.value);
+                        mCallback.onCharacteristicChanged(this, attribute, event.value);
+                    }
+                    break;
+                case BLESessionRecorder.RECORD_RSSI_READ:
+                    mCallback.onRemoteRssiRead(this, event.arg1, event.arg0);
+                    break;
+                case BLESessionRecorder.RECORD_MTU_CHANGED:
+                    mCallback.onMtuChanged(this, event.arg1, event.arg0);
+                    break;
+                default: // Requests
+                    break;
+            }
+        }
+
+        // Returns what the same request returned in the recording
+        private boolean request() {
+            final boolean started;
+            synchronized (this) {
+                final List<Event> requests = mConnection.requests;
+                started = mRequestCount < requests.size() && requests.get(mRequestCount).arg0 != 0;
+                mRequestCount++;
+            }
+            mCursor.resume();
+            return started;
+        }
+
+        @Override
+        public String getAddress() {
+            return mConnection.address;
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return request();
+        }
+
+        @Override
+        public List<BLEAttribute> getServices() {
+            return mServices;
+        }
+
+        @Override
+        public boolean readAttribute(final BLEAttribute attribute) {
+            return request();
+        }
+
+        @Override
+        public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+            attribute.setValue(value);
+            return request();
+        }
+
+        @Override
+        public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return request();
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            return request();
+        }
+
+        @Override
+        public void disconnect() {
+            mCursor.stop();
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mCallback.onConnectionStateChange(ReplayedGatt.this, STATUS_SUCCESS, STATE_DISCONNECTED);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // Shut down
+            }
+        }
+
+        @Override
+        public void close() {
+            mCursor.stop();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>GATT Service, Characteristic or Descriptor of a {@link BLESimulatedPeripheral}.
+ * <p>The attributes created by {@link BLESimulatedPeripheral#addService(UUID)} form the database on the
+ * peripheral side. Each connection gets its own copy of the database when the services are discovered,
+ * so the cached values of one client never leak to another one.
+ */
+public final class BLESimulatedAttribute implements BLEAttribute {
+    /** UUID of the Client Characteristic Configuration descriptor */
+    public static final UUID CLIENT_CONFIG_UUID = BLEUuid.fromShortUuid(0x2902);
+
+    private final BLESimulatedPeripheral mPeripheral;
+    private final BLESimulatedAttribute mParent;
+    private final BLESimulatedAttribute mServerAttribute;
+    private final int mType;
+    private final UUID mUuid;
+    private final int mInstanceId;
+    private final int mProperties;
+    private final List<BLEAttribute> mChildren = new ArrayList<BLEAttribute>();
+    private final List<BLEAttribute> mIncludedServices = new ArrayList<BLEAttribute>();
+    private volatile byte[] mValue = null;
+
+    BLESimulatedAttribute(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute parent, final int type,
+                          final UUID uuid, final int instanceId, final int properties) {
+        mPeripheral = peripheral;
+        mParent = parent;
+        mServerAttribute = null;
+        mType = type;
+        mUuid = uuid;
+        mInstanceId = instanceId;
+        mProperties = properties;
+    }
+
+    // Client side copy of the server attribute
+    private BLESimulatedAttribute(final BLESimulatedAttribute serverAttribute, final BLESimulatedAttribute parent) {
+        mPeripheral = serverAttribute.mPeripheral;
+        mParent = parent;
+        mServerAttribute = serverAttribute;
+        mType = serverAttribute.mType;
+        mUuid = serverAttribute.mUuid;
+        mInstanceId = serverAttribute.mInstanceId;
+        mProperties = serverAttribute.mProperties;
+    }
+
+    /**
+     * <p>Method to add a characteristic to this service. A Client Characteristic Configuration descriptor is added
+     * automatically if the characteristic supports notifications or indications.
+     * @param uuid UUID of the characteristic
+     * @param properties Properties of the characteristic, see PROPERTY_* constants of {@link BLEAttribute}
+     * @return The added characteristic
+     */
+    public BLESimulatedAttribute addCharacteristic(final UUID uuid, final int properties) {
+        checkServerAttribute(TYPE_SERVICE);
+        final BLESimulatedAttribute characteristic = new BLESimulatedAttribute(mPeripheral, this, TYPE_CHARACTERISTIC,
+                uuid, mPeripheral.nextHandle(), properties);
+        synchronized (mChildren) {
+            mChildren.add(characteristic);
+        }
+        if ((properties & (PROPERTY_NOTIFY | PROPERTY_INDICATE)) != 0) {
+            characteristic.addDescriptor(CLIENT_CONFIG_UUID).setValue(new byte[] {0, 0});
+        }
+        return characteristic;
+    }
+
+    /**
+     * <p>Method to add a descriptor to this characteristic
+     * @param uuid UUID of the descriptor
+     * @return The added descriptor
+     */
+    public BLESimulatedAttribute addDescriptor(final UUID uuid) {
+        checkServerAttribute(TYPE_CHARACTERISTIC);
+        final BLESimulatedAttribute descriptor = new BLESimulatedAttribute(mPeripheral, this, TYPE_DESCRIPTOR,
+                uuid, mPeripheral.nextHandle(), 0);
+        synchronized (mChildren) {
+            mChildren.add(descriptor);
+        }
+        return descriptor;
+    }
+
+    /**
+     * <p>Method to include another service of the same peripheral in this service
+     * @param service The included service
+     */
+    public void addIncludedService(final BLESimulatedAttribute service) {
+        checkServerAttribute(TYPE_SERVICE);
+        if (service.mType != TYPE_SERVICE || service.mPeripheral != mPeripheral) {
+            throw new IllegalArgumentException("Only services of the same peripheral can be included");
+        }
+        synchronized (mChildren) {
+            mIncludedServices.add(service);
+        }
+    }
+
+    private void checkServerAttribute(final int type) {
+        if (mType != type || mServerAttribute != null) {
+            throw new IllegalStateException("Can't add child to this attribute");
+        }
+    }
+
+    /**
+     * @return The peripheral this attribute belongs to
+     */
+    public BLESimulatedPeripheral getPeripheral() {
+        return mPeripheral;
+    }
+
+    BLESimulatedAttribute getServerAttribute() {
+        return mServerAttribute;
+    }
+
+    /**
+     * <p>Method to copy this service and all its children for a client connection
+     * @param copies Receives the copy of every server attribute
+     * @return The copy of this service
+     */
+    BLESimulatedAttribute copyForClient(final Map<BLESimulatedAttribute, BLESimulatedAttribute> copies) {
+        return copyForClient(null, copies);
+    }
+
+    private BLESimulatedAttribute copyForClient(final BLESimulatedAttribute parent,
+                                                final Map<BLESimulatedAttribute, BLESimulatedAttribute> copies) {
+        final BLESimulatedAttribute copy = new BLESimulatedAttribute(this, parent);
+        copies.put(this, copy);
+        final List<BLEAttribute> children;
+        synchronized (mChildren) {
+            children = new ArrayList<BLEAttribute>(mChildren);
+        }
+        for (final BLEAttribute child : children) {
+            copy.mChildren.add(((BLESimulatedAttribute) child).copyForClient(copy, copies));
+        }
+        return copy;
+    }
+
+    void resolveIncludedServices(final Map<BLESimulatedAttribute, BLESimulatedAttribute> copies) {
+        synchronized (mServerAttribute.mChildren) {
+            for (final BLEAttribute service : mServerAttribute.mIncludedServices) {
+                mIncludedServices.add(copies.get(service));
+            }
+        }
+    }
+
+    int countAttributes() {
+        int count = 1;
+        synchronized (mChildren) {
+            for (final BLEAttribute child : mChildren) {
+                count += ((BLESimulatedAttribute) child).countAttributes();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public int getType() {
+        return mType;
+    }
+
+    @Override
+    public UUID getUuid() {
+        return mUuid;
+    }
+
+    @Override
+    public int getInstanceId() {
+        return mType == TYPE_DESCRIPTOR ? 0 : mInstanceId;
+    }
+
+    /**
+     * @return The attribute handle, unique in the database of the peripheral
+     */
+    public int getHandle() {
+        return mInstanceId;
+    }
+
+    @Override
+    public int getProperties() {
+        return mProperties;
+    }
+
+    @Override
+    public byte[] getValue() {
+        return mValue;
+    }
+
+    /**
+     * <p>Method to set the value. On the peripheral side it's the value clients read, use
+     * {@link BLESimulatedPeripheral#notifyValueChanged} to also notify the subscribed clients.
+     * On the client side it's the locally cached value.
+     * @param value The new value
+     * @return Whether the value is set, services have no value
+     */
+    @Override
+    public boolean setValue(final byte[] value) {
+        if (mType == TYPE_SERVICE) {
+            return false;
+        }
+        mValue = value;
+        return true;
+    }
+
+    @Override
+    public BLEAttribute getParent() {
+        return mParent;
+    }
+
+    @Override
+    public List<BLEAttribute> getChildren() {
+        synchronized (mChildren) {
+            return Collections.unmodifiableList(new ArrayList<BLEAttribute>(mChildren));
+        }
+    }
+
+    @Override
+    public List<BLEAttribute> getIncludedServices() {
+        synchronized (mChildren) {
+            return Collections.unmodifiableList(new ArrayList<BLEAttribute>(mIncludedServices));
+        }
+    }
+
+    @Override
+    public Object getNativeObject() {
+        return this;
+    }
+}
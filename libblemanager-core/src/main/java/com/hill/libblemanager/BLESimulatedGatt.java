@@ -0,0 +1,522 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>{@link BLEGattTransport} of a {@link BLESimulator}, the GATT client connection to a {@link BLESimulatedPeripheral}.
+ * <p>Every exchange is delivered after the latency of the simulator plus the connection events needed to carry
+ * it, lost packets are retransmitted on the next events and the link is lost when nothing gets through for the
+ * supervision timeout. Results are queued per connection, so they are delivered in the order of the requests.
+ */
+final class BLESimulatedGatt implements BLEGattTransport {
+    private static final int LL_PAYLOAD_SIZE = 27; // Link layer payload size without data length extension
+    private static final int L2CAP_HEADER_SIZE = 4;
+    private static final int PACKETS_PER_EVENT = 4;
+    private static final int MAX_ATTRIBUTE_SIZE = 512;
+    private static final int ATTRIBUTE_INFO_SIZE = 20; // Approximate discovery response size per attribute
+    private static final long CONNECT_RETRY_DELAY = 100;
+
+    private final BLESimulator mSimulator;
+    private final String mAddress;
+    private final boolean mAutoConnect;
+    private final Callback mCallback;
+
+    // Guarded by this
+    private int mState = STATE_DISCONNECTED;
+    private int mLinkGeneration = 0;
+    private boolean mClosed = false;
+    private boolean mBusy = false;
+    private long mConnectStartTime = 0;
+    private long mLastDeliveryTime = 0;
+    private int mMtu = DEFAULT_MTU;
+    private BLESimulatedPeripheral mPeripheral = null;
+    private List<BLEAttribute> mServices = Collections.emptyList();
+    private Map<BLESimulatedAttribute, BLESimulatedAttribute> mCopies = new HashMap<BLESimulatedAttribute, BLESimulatedAttribute>();
+    // Server characteristics whose Client Characteristic Configuration is written by this client
+    private final Set<BLESimulatedAttribute> mSubscriptions = new HashSet<BLESimulatedAttribute>();
+    // Client characteristics set by setNotification
+    private final Set<BLEAttribute> mNotificationsEnabled = new HashSet<BLEAttribute>();
+
+    private final ConcurrentLinkedQueue<Runnable> mDeliveries = new ConcurrentLinkedQueue<Runnable>();
+    private final Object mDeliveryLock = new Object();
+
+    BLESimulatedGatt(final BLESimulator simulator, final String address, final boolean autoConnect, final Callback callback) {
+        mSimulator = simulator;
+        mAddress = address;
+        mAutoConnect = autoConnect;
+        mCallback = callback;
+    }
+
+    // Connection methods
+    synchronized void connect() {
+        mState = STATE_CONNECTING;
+        mConnectStartTime = System.currentTimeMillis();
+        scheduleConnectAttempt(mSimulator.nextLatency(), mLinkGeneration);
+    }
+
+    private void scheduleConnectAttempt(final long delay, final int generation) {
+        mSimulator.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attemptConnect(generation);
+            }
+        }, delay);
+    }
+
+    private void attemptConnect(final int generation) {
+        final BLESimulatedPeripheral peripheral = mSimulator.getPeripheral(mAddress);
+        synchronized (this) {
+            if (mClosed || generation != mLinkGeneration || mState != STATE_CONNECTING) {
+                return;
+            }
+            if (peripheral != null && peripheral.isAdvertising() && mSimulator.acquireLink()) {
+                if (peripheral.acceptConnection(this)) {
+                    mPeripheral = peripheral;
+                    mState = STATE_CONNECTED;
+                    mMtu = DEFAULT_MTU;
+                    mLastDeliveryTime = 0;
+                    enqueue(0, generation, new Runnable() {
+                        @Override
+                        public void run() {
+                            mCallback.onConnectionStateChange(BLESimulatedGatt.this, STATUS_SUCCESS, STATE_CONNECTED);
+                        }
+                    });
+                    return;
+                }
+                mSimulator.releaseLink();
+            }
+            // Keep trying while the peripheral isn't there, a direct connection gives up after the timeout
+            final long retryDelay = peripheral != null ? peripheral.getAdvertisingInterval() : CONNECT_RETRY_DELAY;
+            if (mAutoConnect || System.currentTimeMillis() - mConnectStartTime + retryDelay < mSimulator.getConnectTimeout()) {
+                scheduleConnectAttempt(retryDelay, generation);
+                return;
+            }
+            mState = STATE_DISCONNECTED;
+            mLinkGeneration++;
+            enqueue(0, mLinkGeneration, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(BLESimulatedGatt.this, STATUS_FAILURE, STATE_DISCONNECTED);
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>Method called when the link is lost by the peripheral or the radio
+     * @param status The status of the disconnection
+     */
+    void onLinkLost(final int status) {
+        synchronized (this) {
+            if (mState != STATE_CONNECTED) {
+                return;
+            }
+            releaseLink();
+            mDeliveries.clear();
+            enqueue(0, mLinkGeneration, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(BLESimulatedGatt.this, status, STATE_DISCONNECTED);
+                }
+            });
+        }
+    }
+
+    // Must be called with the lock of this held
+    private void releaseLink() {
+        if (mState == STATE_CONNECTED) {
+            mPeripheral.releaseConnection(this);
+            mSimulator.releaseLink();
+        }
+        mState = STATE_DISCONNECTED;
+        mLinkGeneration++;
+        mBusy = false;
+        mLastDeliveryTime = 0;
+        mSubscriptions.clear();
+    }
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public void disconnect() {
+        synchronized (this) {
+            if (mClosed || mState == STATE_DISCONNECTED) {
+                return;
+            }
+            releaseLink();
+            mDeliveries.clear();
+            enqueue(0, mLinkGeneration, new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(BLESimulatedGatt.this, STATUS_SUCCESS, STATE_DISCONNECTED);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            releaseLink();
+            mClosed = true;
+            mDeliveries.clear();
+        }
+    }
+
+    // Delivery methods
+    /**
+     * <p>Method to deliver a result after it's carried over the link. The link carries one exchange at a time,
+     * so the result is delivered after the previous ones.
+     * @param size Size of the ATT PDUs of the exchange in bytes, 0 if no packet is exchanged
+     * @param generation The link generation of the exchange, the result is dropped if the link is lost before it
+     * @param task Task to deliver the result, it's dropped if the link is lost by the supervision timeout
+     */
+    // Must be called with the lock of this held
+    private void enqueue(final int size, final int generation, final Runnable task) {
+        long delay = mSimulator.nextLatency();
+        if (size > 0) {
+            final long connectionInterval = mSimulator.getConnectionInterval();
+            final int packets = (size + L2CAP_HEADER_SIZE + LL_PAYLOAD_SIZE - 1) / LL_PAYLOAD_SIZE;
+            delay += (packets - 1) * connectionInterval / PACKETS_PER_EVENT;
+            // Each lost packet waits for the next connection event
+            final long maxLostEvents = mSimulator.getSupervisionTimeout() / connectionInterval;
+            for (int i=0; i < packets; i++) {
+                int lostEvents = 0;
+                while (mSimulator.nextPacketLost()) {
+                    if (++lostEvents > maxLostEvents) {
+                        onSupervisionTimeout(generation, delay + lostEvents * connectionInterval);
+                        return;
+                    }
+                }
+                delay += lostEvents * connectionInterval;
+            }
+        }
+        final long now = System.currentTimeMillis();
+        final long deliveryTime = Math.max(now + delay, mLastDeliveryTime);
+        mLastDeliveryTime = deliveryTime;
+        mDeliveries.add(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BLESimulatedGatt.this) {
+                    if (mClosed || generation != mLinkGeneration) {
+                        return;
+                    }
+                }
+                task.run();
+            }
+        });
+        mSimulator.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDeliveryLock) {
+                    final Runnable delivery = mDeliveries.poll();
+                    if (delivery != null) {
+                        delivery.run();
+                    }
+                }
+            }
+        }, deliveryTime - now);
+    }
+
+    // Must be called with the lock of this held
+    private void onSupervisionTimeout(final int generation, final long delay) {
+        mSimulator.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BLESimulatedGatt.this) {
+                    if (generation == mLinkGeneration) {
+                        onLinkLost(STATUS_CONNECTION_TIMEOUT);
+                    }
+                }
+            }
+        }, delay);
+    }
+
+    // Must be called with the lock of this held
+    private boolean startRequest() {
+        if (mClosed || mState != STATE_CONNECTED || mBusy) {
+            return false;
+        }
+        mBusy = true;
+        return true;
+    }
+
+    private synchronized boolean finishRequest(final int generation) {
+        if (generation != mLinkGeneration) {
+            return false;
+        }
+        mBusy = false;
+        return true;
+    }
+
+    private BLESimulatedAttribute getServerAttribute(final BLEAttribute attribute) {
+        if (!(attribute instanceof BLESimulatedAttribute)) {
+            return null;
+        }
+        final BLESimulatedAttribute serverAttribute = ((BLESimulatedAttribute) attribute).getServerAttribute();
+        if (serverAttribute == null || mCopies.get(serverAttribute) != attribute) {
+            return null;
+        }
+        return serverAttribute;
+    }
+
+    // GATT methods
+    @Override
+    public boolean discoverServices() {
+        synchronized (this) {
+            if (!startRequest()) {
+                return false;
+            }
+            final int generation = mLinkGeneration;
+            final Map<BLESimulatedAttribute, BLESimulatedAttribute> copies = new HashMap<BLESimulatedAttribute, BLESimulatedAttribute>();
+            final List<BLEAttribute> services = new ArrayList<BLEAttribute>();
+            int attributeCount = 0;
+            for (final BLESimulatedAttribute service : mPeripheral.getServices()) {
+                services.add(service.copyForClient(copies));
+                attributeCount += service.countAttributes();
+            }
+            for (final BLEAttribute service : services) {
+                ((BLESimulatedAttribute) service).resolveIncludedServices(copies);
+            }
+            enqueue(attributeCount * ATTRIBUTE_INFO_SIZE, generation, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BLESimulatedGatt.this) {
+                        if (!finishRequest(generation)) {
+                            return;
+                        }
+                        mCopies = copies;
+                        mServices = Collections.unmodifiableList(services);
+                        mNotificationsEnabled.clear();
+                    }
+                    mCallback.onServicesDiscovered(BLESimulatedGatt.this, STATUS_SUCCESS);
+                }
+            });
+            return true;
+        }
+    }
+
+    @Override
+    public synchronized List<BLEAttribute> getServices() {
+        return mServices;
+    }
+
+    @Override
+    public boolean readAttribute(final BLEAttribute attribute) {
+        synchronized (this) {
+            final BLESimulatedAttribute serverAttribute = getServerAttribute(attribute);
+            if (serverAttribute == null || serverAttribute.getType() == BLEAttribute.TYPE_SERVICE || !startRequest()) {
+                return false;
+            }
+            final int generation = mLinkGeneration;
+            final BLESimulatedPeripheral peripheral = mPeripheral;
+            final byte[] currentValue = serverAttribute.getValue();
+            // The request is handled by the peripheral when it arrives, outside of the lock of the connection
+            enqueue(currentValue != null ? currentValue.length + 1 : 1, generation, new Runnable() {
+                @Override
+                public void run() {
+                    int status = STATUS_SUCCESS;
+                    byte[] value = null;
+                    if (serverAttribute.getType() == BLEAttribute.TYPE_CHARACTERISTIC
+                            && (serverAttribute.getProperties() & BLEAttribute.PROPERTY_READ) == 0) {
+                        status = STATUS_READ_NOT_PERMITTED;
+                    } else if (BLESimulatedAttribute.CLIENT_CONFIG_UUID.equals(serverAttribute.getUuid())) {
+                        // The configuration is kept per connection
+                        final boolean subscribed = isSubscribed((BLESimulatedAttribute) serverAttribute.getParent());
+                        value = new byte[] {(byte) (subscribed ? 0x01 : 0x00), 0};
+                    } else {
+                        final BLESimulatedPeripheral.RequestHandler handler = peripheral.getRequestHandler();
+                        if (handler != null) {
+                            status = handler.onRead(peripheral, serverAttribute);
+                        }
+                        value = serverAttribute.getValue();
+                        value = value != null ? value.clone() : new byte[0];
+                    }
+                    if (!finishRequest(generation)) {
+                        return;
+                    }
+                    if (status == STATUS_SUCCESS) {
+                        attribute.setValue(value);
+                    } else {
+                        value = null;
+                    }
+                    mCallback.onAttributeRead(BLESimulatedGatt.this, attribute, value, status);
+                }
+            });
+            return true;
+        }
+    }
+
+    @Override
+    public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+        synchronized (this) {
+            final BLESimulatedAttribute serverAttribute = getServerAttribute(attribute);
+            if (serverAttribute == null || serverAttribute.getType() == BLEAttribute.TYPE_SERVICE
+                    || value == null || !startRequest()) {
+                return false;
+            }
+            final int generation = mLinkGeneration;
+            final BLESimulatedPeripheral peripheral = mPeripheral;
+            final boolean isCharacteristic = serverAttribute.getType() == BLEAttribute.TYPE_CHARACTERISTIC;
+            final boolean withoutResponse = isCharacteristic && writeType == WRITE_TYPE_NO_RESPONSE;
+            // Commands aren't fragmented, the value is cut to fit in one PDU
+            final byte[] writtenValue = withoutResponse && value.length > mMtu - 3
+                    ? Arrays.copyOf(value, mMtu - 3) : value.clone();
+            enqueue(writtenValue.length + 3, generation, new Runnable() {
+                @Override
+                public void run() {
+                    final int status = handleWrite(peripheral, serverAttribute, writtenValue, withoutResponse);
+                    if (!finishRequest(generation)) {
+                        return;
+                    }
+                    // The peripheral doesn't respond to commands, so their errors are never known
+                    final int writeStatus = withoutResponse ? STATUS_SUCCESS : status;
+                    if (writeStatus == STATUS_SUCCESS) {
+                        attribute.setValue(writtenValue);
+                    }
+                    mCallback.onAttributeWrite(BLESimulatedGatt.this, attribute, writeStatus);
+                }
+            });
+            return true;
+        }
+    }
+
+    private int handleWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute serverAttribute,
+                            final byte[] value, final boolean withoutResponse) {
+        final int properties = serverAttribute.getProperties();
+        if (serverAttribute.getType() == BLEAttribute.TYPE_CHARACTERISTIC) {
+            if ((properties & (withoutResponse ? BLEAttribute.PROPERTY_WRITE_NO_RESPONSE : BLEAttribute.PROPERTY_WRITE)) == 0) {
+                return STATUS_WRITE_NOT_PERMITTED;
+            }
+        }
+        if (value.length > MAX_ATTRIBUTE_SIZE) {
+            return STATUS_INVALID_ATTRIBUTE_LENGTH;
+        }
+        if (BLESimulatedAttribute.CLIENT_CONFIG_UUID.equals(serverAttribute.getUuid())) {
+            if (value.length != 2) {
+                return STATUS_INVALID_ATTRIBUTE_LENGTH;
+            }
+            setSubscribed((BLESimulatedAttribute) serverAttribute.getParent(), (value[0] & 0x03) != 0);
+            return STATUS_SUCCESS;
+        }
+        final BLESimulatedPeripheral.RequestHandler handler = peripheral.getRequestHandler();
+        final int status = handler != null ? handler.onWrite(peripheral, serverAttribute, value) : STATUS_SUCCESS;
+        if (status == STATUS_SUCCESS) {
+            serverAttribute.setValue(value);
+        }
+        return status;
+    }
+
+    private synchronized boolean isSubscribed(final BLESimulatedAttribute serverAttribute) {
+        return mSubscriptions.contains(serverAttribute);
+    }
+
+    private synchronized void setSubscribed(final BLESimulatedAttribute serverAttribute, final boolean subscribed) {
+        if (mState != STATE_CONNECTED) {
+            return;
+        }
+        if (subscribed) {
+            mSubscriptions.add(serverAttribute);
+        } else {
+            mSubscriptions.remove(serverAttribute);
+        }
+    }
+
+    @Override
+    public synchronized boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+        final BLESimulatedAttribute serverAttribute = getServerAttribute(characteristic);
+        if (serverAttribute == null || serverAttribute.getType() != BLEAttribute.TYPE_CHARACTERISTIC) {
+            return false;
+        }
+        if (enable) {
+            mNotificationsEnabled.add(characteristic);
+        } else {
+            mNotificationsEnabled.remove(characteristic);
+        }
+        return true;
+    }
+
+    /**
+     * <p>Method called by the peripheral to send a notification of the characteristic
+     * @param serverAttribute The characteristic of the peripheral
+     * @param value The value of the notification
+     */
+    synchronized void deliverNotification(final BLESimulatedAttribute serverAttribute, final byte[] value) {
+        if (mClosed || mState != STATE_CONNECTED || !mSubscriptions.contains(serverAttribute)) {
+            return;
+        }
+        final int generation = mLinkGeneration;
+        final byte[] notifiedValue = value.length > mMtu - 3 ? Arrays.copyOf(value, mMtu - 3) : value.clone();
+        enqueue(notifiedValue.length + 3, generation, new Runnable() {
+            @Override
+            public void run() {
+                final BLEAttribute characteristic;
+                synchronized (BLESimulatedGatt.this) {
+                    characteristic = mCopies.get(serverAttribute);
+                    if (generation != mLinkGeneration || characteristic == null
+                            || !mNotificationsEnabled.contains(characteristic)) {
+                        return;
+                    }
+                }
+                characteristic.setValue(notifiedValue);
+                mCallback.onCharacteristicChanged(BLESimulatedGatt.this, characteristic, notifiedValue);
+            }
+        });
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        synchronized (this) {
+            if (!startRequest()) {
+                return false;
+            }
+            final int generation = mLinkGeneration;
+            final int rssi = mSimulator.nextRssi(mPeripheral);
+            // RSSI is measured by the local controller, nothing is exchanged over the air
+            enqueue(0, generation, new Runnable() {
+                @Override
+                public void run() {
+                    if (finishRequest(generation)) {
+                        mCallback.onRemoteRssiRead(BLESimulatedGatt.this, rssi, STATUS_SUCCESS);
+                    }
+                }
+            });
+            return true;
+        }
+    }
+
+    @Override
+    public boolean requestMtu(final int mtu) {
+        synchronized (this) {
+            if (mtu < DEFAULT_MTU || !startRequest()) {
+                return false;
+            }
+            final int generation = mLinkGeneration;
+            final int negotiatedMtu = Math.min(Math.min(mtu, mPeripheral.getMaxMtu()), BLESimulatedPeripheral.MAX_MTU);
+            enqueue(3, generation, new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BLESimulatedGatt.this) {
+                        if (!finishRequest(generation)) {
+                            return;
+                        }
+                        mMtu = negotiatedMtu;
+                    }
+                    mCallback.onMtuChanged(BLESimulatedGatt.this, negotiatedMtu, STATUS_SUCCESS);
+                }
+            });
+            return true;
+        }
+    }
+}
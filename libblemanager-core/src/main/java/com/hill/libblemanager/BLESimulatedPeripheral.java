@@ -0,0 +1,299 @@
+package com.hill.libblemanager;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Advertising peripheral of a {@link BLESimulator}, with its own GATT database.
+ * <p>Build the database by {@link #addService(UUID)} before adding the peripheral to the simulator.
+ * Values clients read are the values of the attributes, update them by {@link BLESimulatedAttribute#setValue}
+ * or by {@link #notifyValueChanged} to notify the subscribed clients as well.
+ */
+public final class BLESimulatedPeripheral {
+    public static final long DEFAULT_ADVERTISING_INTERVAL = 100;
+    public static final int DEFAULT_RSSI = -60;
+    public static final int MAX_MTU = 517;
+
+    /**
+     * <p>Handler of client requests, to simulate peripherals computing values or rejecting requests
+     */
+    public interface RequestHandler {
+        /**
+         * <p>Callback method when a client reads the attribute, called before the value is sent
+         * @param peripheral This peripheral
+         * @param attribute The attribute to read, update its value to change what the client gets
+         * @return The status sent to the client, {@link BLEGattTransport#STATUS_SUCCESS} to send the value
+         */
+        int onRead(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute);
+
+        /**
+         * <p>Callback method when a client writes the attribute, called before the value is stored
+         * @param peripheral This peripheral
+         * @param attribute The attribute to write
+         * @param value The written value
+         * @return The status sent to the client, {@link BLEGattTransport#STATUS_SUCCESS} to store the value
+         */
+        int onWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute, final byte[] value);
+    }
+
+    private final String mAddress;
+    private final String mName;
+    private final AtomicInteger mNextHandle = new AtomicInteger(1);
+    private final List<BLESimulatedAttribute> mServices = new CopyOnWriteArrayList<BLESimulatedAttribute>();
+    private final List<UUID> mAdvertisedUuids = new CopyOnWriteArrayList<UUID>();
+    private final List<BLESimulatedGatt> mConnections = new CopyOnWriteArrayList<BLESimulatedGatt>();
+
+    private volatile int mRssi = DEFAULT_RSSI;
+    private volatile long mAdvertisingInterval = DEFAULT_ADVERTISING_INTERVAL;
+    private volatile boolean mConnectable = true;
+    private volatile int mMaxConnections = 1;
+    private volatile int mMaxMtu = MAX_MTU;
+    private volatile int mManufacturerId = -1;
+    private volatile byte[] mManufacturerData = null;
+    private volatile byte[] mScanRecord = null;
+    private volatile RequestHandler mRequestHandler = null;
+
+    /**
+     * <p>Construction method of BLESimulatedPeripheral
+     * @param address Address of the peripheral, unique in the simulator
+     * @param name Name of the peripheral, it can be null
+     */
+    public BLESimulatedPeripheral(final String address, final String name) {
+        mAddress = address;
+        mName = name;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    int nextHandle() {
+        return mNextHandle.getAndIncrement();
+    }
+
+    // GATT database methods
+    /**
+     * <p>Method to add a primary service
+     * @param uuid UUID of the service
+     * @return The added service, add characteristics to it by {@link BLESimulatedAttribute#addCharacteristic}
+     */
+    public BLESimulatedAttribute addService(final UUID uuid) {
+        final BLESimulatedAttribute service = new BLESimulatedAttribute(this, null, BLEAttribute.TYPE_SERVICE,
+                uuid, nextHandle(), 0);
+        mServices.add(service);
+        return service;
+    }
+
+    public List<BLESimulatedAttribute> getServices() {
+        return Collections.unmodifiableList(mServices);
+    }
+
+    public void setRequestHandler(final RequestHandler handler) {
+        mRequestHandler = handler;
+    }
+
+    RequestHandler getRequestHandler() {
+        return mRequestHandler;
+    }
+
+    /**
+     * <p>Method to update the value of the characteristic and notify all clients subscribed to it
+     * @param characteristic The characteristic of this peripheral
+     * @param value The new value
+     */
+    public void notifyValueChanged(final BLESimulatedAttribute characteristic, final byte[] value) {
+        if (characteristic.getPeripheral() != this || characteristic.getType() != BLEAttribute.TYPE_CHARACTERISTIC) {
+            throw new IllegalArgumentException("Not a characteristic of this peripheral");
+        }
+        characteristic.setValue(value);
+        for (final BLESimulatedGatt connection : mConnections) {
+            connection.deliverNotification(characteristic, value);
+        }
+    }
+
+    // Advertising methods
+    public void setRssi(final int rssi) {
+        mRssi = rssi;
+    }
+
+    public int getRssi() {
+        return mRssi;
+    }
+
+    /**
+     * <p>Method to set the advertising interval, the simulator adds a random delay of 0 - 10 ms to each
+     * advertising event like the Bluetooth specification does
+     * @param interval The interval in milliseconds
+     */
+    public void setAdvertisingInterval(final long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Invalid advertising interval: "+interval);
+        }
+        mAdvertisingInterval = interval;
+    }
+
+    public long getAdvertisingInterval() {
+        return mAdvertisingInterval;
+    }
+
+    public void setConnectable(final boolean connectable) {
+        mConnectable = connectable;
+    }
+
+    public boolean isConnectable() {
+        return mConnectable;
+    }
+
+    /**
+     * <p>Method to set the max number of simultaneous connections, the peripheral stops advertising when it's reached
+     * @param maxConnections The max number of connections, 1 by default
+     */
+    public void setMaxConnections(final int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    /**
+     * <p>Method to set the max ATT MTU the peripheral accepts
+     * @param maxMtu The max MTU, from {@link BLEGattTransport#DEFAULT_MTU} to {@link #MAX_MTU}
+     */
+    public void setMaxMtu(final int maxMtu) {
+        mMaxMtu = Math.max(BLEGattTransport.DEFAULT_MTU, Math.min(maxMtu, MAX_MTU));
+    }
+
+    public int getMaxMtu() {
+        return mMaxMtu;
+    }
+
+    public void addAdvertisedServiceUuid(final UUID uuid) {
+        mAdvertisedUuids.add(uuid);
+        mScanRecord = null;
+    }
+
+    public List<UUID> getAdvertisedServiceUuids() {
+        return Collections.unmodifiableList(mAdvertisedUuids);
+    }
+
+    public void setManufacturerData(final int manufacturerId, final byte[] data) {
+        mManufacturerId = manufacturerId;
+        mManufacturerData = data;
+        mScanRecord = null;
+    }
+
+    /**
+     * @return Whether the peripheral is advertising, it stops when it can't accept more connections
+     */
+    public boolean isAdvertising() {
+        return !mConnectable || mConnections.size() < mMaxConnections;
+    }
+
+    boolean matches(final UUID[] serviceUuids) {
+        if (serviceUuids == null || serviceUuids.length == 0) {
+            return true;
+        }
+        for (final UUID uuid : serviceUuids) {
+            if (mAdvertisedUuids.contains(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * <p>Get the advertising data followed by the scan response, in the format of the Bluetooth specification
+     * @return The scan record bytes
+     */
+    public byte[] getScanRecord() {
+        byte[] scanRecord = mScanRecord;
+        if (scanRecord == null) {
+            scanRecord = buildScanRecord();
+            mScanRecord = scanRecord;
+        }
+        return scanRecord;
+    }
+
+    private byte[] buildScanRecord() {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writeStructure(stream, 0x01, new byte[] {0x06}); // LE General Discoverable, BR/EDR not supported
+
+        final List<byte[]> shortUuids = new ArrayList<byte[]>();
+        final List<byte[]> longUuids = new ArrayList<byte[]>();
+        for (final UUID uuid : mAdvertisedUuids) {
+            final int shortUuid = BLEUuid.toShortUuid(uuid);
+            if (shortUuid >= 0) {
+                shortUuids.add(new byte[] {(byte) shortUuid, (byte) (shortUuid >> 8)});
+            } else {
+                final byte[] bytes = new byte[16];
+                BLEValueCodec.putLong(bytes, BLEValueFormat.FORMAT_UINT64, 0, uuid.getLeastSignificantBits());
+                BLEValueCodec.putLong(bytes, BLEValueFormat.FORMAT_UINT64, 8, uuid.getMostSignificantBits());
+                longUuids.add(bytes);
+            }
+        }
+        writeStructure(stream, 0x03, concat(shortUuids));
+        writeStructure(stream, 0x07, concat(longUuids));
+
+        final byte[] manufacturerData = mManufacturerData;
+        if (mManufacturerId >= 0 && manufacturerData != null) {
+            final byte[] data = new byte[manufacturerData.length + 2];
+            BLEValueCodec.putLong(data, BLEValueFormat.FORMAT_UINT16, 0, mManufacturerId);
+            System.arraycopy(manufacturerData, 0, data, 2, manufacturerData.length);
+            writeStructure(stream, 0xFF, data);
+        }
+        if (mName != null) {
+            writeStructure(stream, 0x09, mName.getBytes(Charset.forName("UTF-8")));
+        }
+        return stream.toByteArray();
+    }
+
+    private static byte[] concat(final List<byte[]> parts) {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (final byte[] part : parts) {
+            stream.write(part, 0, part.length);
+        }
+        return stream.toByteArray();
+    }
+
+    private static void writeStructure(final ByteArrayOutputStream stream, final int type, final byte[] data) {
+        if (data.length == 0) {
+            return;
+        }
+        stream.write(data.length + 1);
+        stream.write(type);
+        stream.write(data, 0, data.length);
+    }
+
+    // Connection methods
+    public int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    /**
+     * <p>Method to terminate all connections from the peripheral side
+     */
+    public void disconnectAll() {
+        for (final BLESimulatedGatt connection : mConnections) {
+            connection.onLinkLost(BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+        }
+    }
+
+    synchronized boolean acceptConnection(final BLESimulatedGatt connection) {
+        if (!mConnectable || mConnections.size() >= mMaxConnections) {
+            return false;
+        }
+        mConnections.add(connection);
+        return true;
+    }
+
+    void releaseConnection(final BLESimulatedGatt connection) {
+        mConnections.remove(connection);
+    }
+}
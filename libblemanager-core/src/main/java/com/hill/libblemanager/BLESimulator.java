@@ -0,0 +1,314 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>In-memory Bluetooth LE stack with simulated peripherals, set it by {@code BLEManager.setTransport}
+ * to scan and connect {@link BLESimulatedPeripheral}s without hardware, e.g. in tests or on emulators.
+ * <p>The radio is simulated by a random latency for every exchange, packet loss with retransmissions
+ * on connection events and supervision timeouts, so the timing of the results looks like a real link.
+ * Callbacks are called on the threads of the simulator, in order for each connection.
+ */
+public final class BLESimulator implements BLETransport {
+    private static final String TAG = "BLESimulator";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 7;
+    private static final long ADVERTISING_JITTER = 10; // Bluetooth specification advDelay, 0 - 10 ms
+    private static final int RSSI_NOISE = 4;
+
+    private final ScheduledExecutorService mExecutor;
+    private final Random mRandom;
+    private final Map<String, BLESimulatedPeripheral> mPeripherals = new ConcurrentHashMap<String, BLESimulatedPeripheral>();
+    private final AtomicInteger mLinkCount = new AtomicInteger(0);
+    private final Scanner mScanner = new Scanner();
+
+    private volatile long mMinLatency = 5;
+    private volatile long mMaxLatency = 15;
+    private volatile double mPacketLoss = 0;
+    private volatile long mConnectionInterval = 30;
+    private volatile long mSupervisionTimeout = 5000;
+    private volatile long mConnectTimeout = 30000;
+    private volatile int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    /**
+     * <p>Construction method of BLESimulator with one thread and a random seed
+     */
+    public BLESimulator() {
+        this(1, System.nanoTime());
+    }
+
+    /**
+     * <p>Construction method of BLESimulator
+     * @param threads Number of threads running the simulation and calling the callbacks
+     * @param seed Seed of the random latency, packet loss and RSSI noise, to repeat a simulation
+     */
+    public BLESimulator(final int threads, final long seed) {
+        final AtomicInteger threadCount = new AtomicInteger(0);
+        mExecutor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, TAG+"-"+threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mRandom = new Random(seed);
+    }
+
+    // Radio settings
+    /**
+     * <p>Method to set the latency of every exchange with a peripheral, picked randomly in the range
+     * @param minLatency The min latency in milliseconds
+     * @param maxLatency The max latency in milliseconds
+     */
+    public void setLatency(final long minLatency, final long maxLatency) {
+        if (minLatency < 0 || maxLatency < minLatency) {
+            throw new IllegalArgumentException("Invalid latency: "+minLatency+" - "+maxLatency);
+        }
+        mMinLatency = minLatency;
+        mMaxLatency = maxLatency;
+    }
+
+    /**
+     * <p>Method to set the probability of losing a packet. Lost advertising packets are skipped, lost
+     * packets of a connection are retransmitted on the next connection event.
+     * @param packetLoss The probability, from 0 to 1
+     */
+    public void setPacketLoss(final double packetLoss) {
+        if (packetLoss < 0 || packetLoss > 1) {
+            throw new IllegalArgumentException("Invalid packet loss: "+packetLoss);
+        }
+        mPacketLoss = packetLoss;
+    }
+
+    /**
+     * @param connectionInterval The connection interval in milliseconds, 30 ms by default
+     */
+    public void setConnectionInterval(final long connectionInterval) {
+        if (connectionInterval <= 0) {
+            throw new IllegalArgumentException("Invalid connection interval: "+connectionInterval);
+        }
+        mConnectionInterval = connectionInterval;
+    }
+
+    /**
+     * @param supervisionTimeout Time without any packet received before the link is lost, in milliseconds
+     */
+    public void setSupervisionTimeout(final long supervisionTimeout) {
+        mSupervisionTimeout = supervisionTimeout;
+    }
+
+    /**
+     * @param connectTimeout Time to wait for an absent peripheral before a direct connection fails, in milliseconds
+     */
+    public void setConnectTimeout(final long connectTimeout) {
+        mConnectTimeout = connectTimeout;
+    }
+
+    /**
+     * @param maxConnections Max number of simultaneous connections of the simulated adapter
+     */
+    public void setMaxConnections(final int maxConnections) {
+        mMaxConnections = maxConnections;
+    }
+
+    long getConnectionInterval() {
+        return mConnectionInterval;
+    }
+
+    long getSupervisionTimeout() {
+        return mSupervisionTimeout;
+    }
+
+    long getConnectTimeout() {
+        return mConnectTimeout;
+    }
+
+    long nextLatency() {
+        final long minLatency = mMinLatency;
+        final long range = mMaxLatency - minLatency;
+        return range > 0 ? minLatency + (long) (mRandom.nextDouble() * (range + 1)) : minLatency;
+    }
+
+    boolean nextPacketLost() {
+        final double packetLoss = mPacketLoss;
+        return packetLoss > 0 && mRandom.nextDouble() < packetLoss;
+    }
+
+    int nextRssi(final BLESimulatedPeripheral peripheral) {
+        return peripheral.getRssi() + mRandom.nextInt(RSSI_NOISE * 2 + 1) - RSSI_NOISE;
+    }
+
+    void schedule(final Runnable task, final long delay) {
+        if (!mExecutor.isShutdown()) {
+            mExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    boolean acquireLink() {
+        while (true) {
+            final int count = mLinkCount.get();
+            if (count >= mMaxConnections) {
+                return false;
+            }
+            if (mLinkCount.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void releaseLink() {
+        mLinkCount.decrementAndGet();
+    }
+
+    /**
+     * @return The number of connected links of the simulated adapter
+     */
+    public int getConnectionCount() {
+        return mLinkCount.get();
+    }
+
+    // Peripheral methods
+    /**
+     * <p>Method to add a peripheral, it starts advertising immediately
+     * @param peripheral The peripheral, its address must be unique in the simulator
+     */
+    public void addPeripheral(final BLESimulatedPeripheral peripheral) {
+        if (mPeripherals.put(peripheral.getAddress(), peripheral) != null) {
+            throw new IllegalArgumentException("Duplicated peripheral address: "+peripheral.getAddress());
+        }
+        mScanner.onPeripheralAdded(peripheral);
+    }
+
+    /**
+     * <p>Method to remove a peripheral, it stops advertising and its connections are lost
+     * @param peripheral The peripheral to remove
+     */
+    public void removePeripheral(final BLESimulatedPeripheral peripheral) {
+        if (mPeripherals.remove(peripheral.getAddress()) != null) {
+            peripheral.disconnectAll();
+        }
+    }
+
+    public BLESimulatedPeripheral getPeripheral(final String address) {
+        return mPeripherals.get(address);
+    }
+
+    public List<BLESimulatedPeripheral> getPeripherals() {
+        return new ArrayList<BLESimulatedPeripheral>(mPeripherals.values());
+    }
+
+    /**
+     * <p>Method to stop the simulation, no callback is called after it
+     */
+    public void shutdown() {
+        mExecutor.shutdownNow();
+    }
+
+    // BLETransport methods
+    @Override
+    public BLEScanTransport getScanTransport() {
+        return mScanner;
+    }
+
+    @Override
+    public BLEGattTransport connectGatt(final String address, final boolean autoConnect, final BLEGattTransport.Callback callback) {
+        if (mExecutor.isShutdown()) {
+            return null;
+        }
+        final BLESimulatedGatt gatt = new BLESimulatedGatt(this, address, autoConnect, callback);
+        gatt.connect();
+        return gatt;
+    }
+
+    // Scanner
+    private final class Scanner implements BLEScanTransport {
+        private final Map<Callback, ScanSession> mSessions = new HashMap<Callback, ScanSession>();
+
+        // Simulated peripherals send legacy advertisements only, the options don't change what is found
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final BLEScanOptions options, final Callback callback) {
+            return startScan(serviceUuids, callback);
+        }
+
+        @Override
+        public boolean startScan(final UUID[] serviceUuids, final Callback callback) {
+            if (mExecutor.isShutdown()) {
+                return false;
+            }
+            final ScanSession session = new ScanSession(serviceUuids, callback);
+            synchronized (mSessions) {
+                if (mSessions.containsKey(callback)) {
+                    return false;
+                }
+                mSessions.put(callback, session);
+            }
+            for (final BLESimulatedPeripheral peripheral : mPeripherals.values()) {
+                session.startAdvertising(peripheral);
+            }
+            return true;
+        }
+
+        @Override
+        public void stopScan(final Callback callback) {
+            final ScanSession session;
+            synchronized (mSessions) {
+                session = mSessions.remove(callback);
+            }
+            if (session != null) {
+                session.active = false;
+            }
+        }
+
+        void onPeripheralAdded(final BLESimulatedPeripheral peripheral) {
+            final List<ScanSession> sessions;
+            synchronized (mSessions) {
+                sessions = new ArrayList<ScanSession>(mSessions.values());
+            }
+            for (final ScanSession session : sessions) {
+                session.startAdvertising(peripheral);
+            }
+        }
+    }
+
+    private final class ScanSession {
+        final UUID[] serviceUuids;
+        final BLEScanTransport.Callback callback;
+        volatile boolean active = true;
+
+        ScanSession(final UUID[] serviceUuids, final BLEScanTransport.Callback callback) {
+            this.serviceUuids = serviceUuids;
+            this.callback = callback;
+        }
+
+        void startAdvertising(final BLESimulatedPeripheral peripheral) {
+            // The first packet comes at a random time of the interval, like peripherals not in sync with the scan
+            final long delay = (long) (mRandom.nextDouble() * peripheral.getAdvertisingInterval());
+            schedule(new Runnable() {
+                @Override
+                public void run() {
+                    // Stop advertising to this session when it's stopped or the peripheral is removed
+                    if (!active || mPeripherals.get(peripheral.getAddress()) != peripheral) {
+                        return;
+                    }
+                    if (peripheral.isAdvertising() && peripheral.matches(serviceUuids) && !nextPacketLost()) {
+                        callback.onScanResult(new BLEScanResult(peripheral.getAddress(), peripheral.getName(),
+                                nextRssi(peripheral), peripheral.getScanRecord(), null, System.nanoTime()));
+                    }
+                    schedule(this, peripheral.getAdvertisingInterval() + mRandom.nextInt((int) ADVERTISING_JITTER + 1));
+                }
+            }, delay);
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Statistics of the notification stream of a characteristic: inter-arrival time, jitter, rate,
+ * and gaps of a sequence counter carried in the payload.
+ * <p>Arrivals are timestamped when the stack reports the notification and delivery is timed when the listeners
+ * receive it, so lost sequence numbers point to drops over the air or in the stack, while a growing delivery
+ * latency points to slow processing in the app.
+ */
+public final class BLEStreamStats {
+    /** Sequence format to not check sequence gaps */
+    public static final int SEQUENCE_NONE = 0;
+    private static final int JITTER_GAIN_SHIFT = 4;
+
+    private final int mSequenceFormat;
+    private final int mSequenceOffset;
+    private final long mSequenceMask;
+    private final BLEHistogram mInterArrival = new BLEHistogram();
+    private final BLEHistogram mDeliveryLatency = new BLEHistogram();
+
+    private long mCount = 0;
+    private long mFirstNanos = 0;
+    private long mLastNanos = 0;
+    private long mLastInterval = -1;
+    // Smoothed mean deviation of the intervals like RFC 3550, scaled by 2^JITTER_GAIN_SHIFT
+    private long mScaledJitter = 0;
+    private boolean mHasSequence = false;
+    private long mLastSequence = 0;
+    private long mLost = 0;
+    private long mOutOfOrder = 0;
+    private long mInvalid = 0;
+
+    /**
+     * <p>Construction method of BLEStreamStats without sequence checking
+     */
+    public BLEStreamStats() {
+        this(SEQUENCE_NONE, 0);
+    }
+
+    /**
+     * <p>Construction method of BLEStreamStats checking the sequence counter in the payload
+     * @param sequenceFormat Format of the counter, one of the unsigned integer formats of {@link BLEValueFormat},
+     *                       or {@link #SEQUENCE_NONE}. The counter is expected to increase by one per notification
+     *                       and wrap around at its size.
+     * @param sequenceOffset Offset of the counter in the payload
+     */
+    public BLEStreamStats(final int sequenceFormat, final int sequenceOffset) {
+        if (sequenceFormat != SEQUENCE_NONE && !BLEValueFormat.isUnsigned(sequenceFormat)) {
+            throw new IllegalArgumentException("Invalid sequence format: "+sequenceFormat);
+        }
+        if (sequenceOffset < 0) {
+            throw new IllegalArgumentException("Invalid sequence offset: "+sequenceOffset);
+        }
+        mSequenceFormat = sequenceFormat;
+        mSequenceOffset = sequenceOffset;
+        final int bits = sequenceFormat != SEQUENCE_NONE ? BLEValueFormat.getSize(sequenceFormat) * 8 : 0;
+        mSequenceMask = bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    // Recording methods
+    /**
+     * <p>Method to record a notification when the stack reports it
+     * @param value The payload of the notification
+     * @param receivedNanos Time of {@link System#nanoTime()} when it's received
+     */
+    public synchronized void onReceived(final byte[] value, final long receivedNanos) {
+        if (mCount == 0) {
+            mFirstNanos = receivedNanos;
+        } else {
+            final long interval = receivedNanos - mLastNanos;
+            mInterArrival.record(interval);
+            if (mLastInterval >= 0) {
+                final long deviation = Math.abs(interval - mLastInterval);
+                mScaledJitter += deviation - (mScaledJitter >> JITTER_GAIN_SHIFT);
+            }
+            mLastInterval = interval;
+        }
+        mLastNanos = receivedNanos;
+        mCount++;
+
+        if (mSequenceFormat == SEQUENCE_NONE) {
+            return;
+        }
+        if (!BLEValueCodec.hasValue(value, mSequenceFormat, mSequenceOffset)) {
+            mInvalid++;
+            return;
+        }
+        final long sequence = BLEValueCodec.getLong(value, mSequenceFormat, mSequenceOffset) & mSequenceMask;
+        if (mHasSequence) {
+            final long gap = (sequence - mLastSequence - 1) & mSequenceMask;
+            // Counters behind the expected one by less than half of the range came late or twice
+            if (gap > (mSequenceMask >>> 1)) {
+                mOutOfOrder++;
+                return;
+            }
+            mLost += gap;
+        }
+        mHasSequence = true;
+        mLastSequence = sequence;
+    }
+
+    /**
+     * <p>Method to record the delivery of a notification to the listeners
+     * @param receivedNanos Time when it's received, the same as the one passed to {@link #onReceived}
+     */
+    public void onDelivered(final long receivedNanos) {
+        mDeliveryLatency.record(System.nanoTime() - receivedNanos);
+    }
+
+    /**
+     * <p>Method to clear all statistics
+     */
+    public synchronized void reset() {
+        mInterArrival.reset();
+        mDeliveryLatency.reset();
+        mCount = 0;
+        mLastInterval = -1;
+        mScaledJitter = 0;
+        mHasSequence = false;
+        mLost = 0;
+        mOutOfOrder = 0;
+        mInvalid = 0;
+    }
+
+    // Report methods
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return Number of sequence numbers skipped by the stream
+     */
+    public synchronized long getLost() {
+        return mLost;
+    }
+
+    /**
+     * @return Number of notifications whose sequence number is behind the latest one, duplicated or reordered
+     */
+    public synchronized long getOutOfOrder() {
+        return mOutOfOrder;
+    }
+
+    /**
+     * @return Number of notifications too short to carry the sequence number
+     */
+    public synchronized long getInvalid() {
+        return mInvalid;
+    }
+
+    /**
+     * @return Ratio of lost sequence numbers to the expected ones, from 0 to 1
+     */
+    public synchronized double getLossRatio() {
+        final long expected = mLost + mCount - mOutOfOrder - mInvalid;
+        return expected > 0 ? (double) mLost / expected : 0;
+    }
+
+    /**
+     * @return Jitter of the inter-arrival time in nanoseconds, smoothed like RFC 3550
+     */
+    public synchronized long getJitterNanos() {
+        return mScaledJitter >> JITTER_GAIN_SHIFT;
+    }
+
+    /**
+     * @return Notifications per second from the first one to the latest one
+     */
+    public synchronized double getRate() {
+        final long duration = mLastNanos - mFirstNanos;
+        return mCount > 1 && duration > 0 ? (mCount - 1) * 1e9 / duration : 0;
+    }
+
+    /**
+     * @return Histogram of the time between notifications in nanoseconds
+     */
+    public BLEHistogram.Snapshot getInterArrival() {
+        return mInterArrival.snapshot();
+    }
+
+    /**
+     * @return Histogram of the time from receiving notifications to delivering them in nanoseconds
+     */
+    public BLEHistogram.Snapshot getDeliveryLatency() {
+        return mDeliveryLatency.snapshot();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "count="+mCount+" rate="+String.format("%.1f", getRate())+"/s jitter="+getJitterNanos()
+                +"ns lost="+mLost+" outOfOrder="+mOutOfOrder+" interArrival=["+mInterArrival.snapshot()
+                +"] delivery=["+mDeliveryLatency.snapshot()+"]";
+    }
+}
@@ -0,0 +1,292 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Time series of the values of a characteristic, kept in columnar ring buffers of primitives:
+ * a timestamp column, and a column per numeric field of a {@link BLEValueSchema}. Integer fields are kept
+ * in long columns and the others in double columns, string fields aren't kept.
+ * <p>Recording decodes the value straight into the columns and queries fill the caller's arrays, so neither
+ * allocates. Timestamps are expected to be monotonic like {@link System#nanoTime()}, so time ranges are found
+ * by binary search. All methods are thread safe.
+ */
+public final class BLETimeSeries {
+    private final BLEValueSchema mSchema;
+    private final long[] mTimestamps;
+    private final long[][] mLongColumns;
+    private final double[][] mDoubleColumns;
+    private int mNext = 0;
+    private int mSize = 0;
+
+    /**
+     * <p>Result of {@link #aggregate}, reusable for many queries
+     */
+    public static final class Aggregate {
+        public long count;
+        public double min;
+        public double max;
+        public double mean;
+        /** Timestamps of the first and the last sample in the window */
+        public long firstTimestamp;
+        public long lastTimestamp;
+    }
+
+    /**
+     * <p>Construction method of BLETimeSeries
+     * @param schema Schema to decode the values
+     * @param capacity Max number of samples kept, older ones are overwritten
+     */
+    public BLETimeSeries(final BLEValueSchema schema, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: "+capacity);
+        }
+        mSchema = schema;
+        mTimestamps = new long[capacity];
+        final int fieldCount = schema.getFieldCount();
+        mLongColumns = new long[fieldCount][];
+        mDoubleColumns = new double[fieldCount][];
+        for (int i = 0; i < fieldCount; i++) {
+            final int format = schema.getFieldFormat(i);
+            if (BLEValueFormat.isInteger(format)) {
+                mLongColumns[i] = new long[capacity];
+            } else if (!BLEValueFormat.isString(format)) {
+                mDoubleColumns[i] = new double[capacity];
+            }
+        }
+    }
+
+    public BLEValueSchema getSchema() {
+        return mSchema;
+    }
+
+    public int getCapacity() {
+        return mTimestamps.length;
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * <p>Method to check whether a column is kept in long values, see {@link #getLong}
+     * @param column Index of the field in the schema
+     * @return true for integer fields
+     */
+    public boolean isLongColumn(final int column) {
+        return mLongColumns[column] != null;
+    }
+
+    // Recording methods
+    /**
+     * <p>Method to record a value
+     * @param timestamp Time of the value, e.g. {@link System#nanoTime()} when it's received
+     * @param value The value bytes
+     * @return false if the value doesn't match the schema, it isn't recorded
+     */
+    public boolean append(final long timestamp, final byte[] value) {
+        if (!mSchema.matches(value)) {
+            return false;
+        }
+        synchronized (this) {
+            final int index = mNext;
+            mTimestamps[index] = timestamp;
+            for (int i = 0; i < mLongColumns.length; i++) {
+                if (mLongColumns[i] != null) {
+                    mLongColumns[i][index] = mSchema.getLong(value, i);
+                } else if (mDoubleColumns[i] != null) {
+                    mDoubleColumns[i][index] = mSchema.getDouble(value, i);
+                }
+            }
+            mNext = index + 1 == mTimestamps.length ? 0 : index + 1;
+            if (mSize < mTimestamps.length) {
+                mSize++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>Method to remove all samples
+     */
+    public synchronized void clear() {
+        mNext = 0;
+        mSize = 0;
+    }
+
+    // Sample methods, samples are indexed from the oldest one
+    private int physicalIndex(final int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Invalid index: "+index+", size: "+mSize);
+        }
+        final int start = mSize < mTimestamps.length ? 0 : mNext;
+        final int physical = start + index;
+        return physical < mTimestamps.length ? physical : physical - mTimestamps.length;
+    }
+
+    public synchronized long getTimestamp(final int index) {
+        return mTimestamps[physicalIndex(index)];
+    }
+
+    /**
+     * <p>Get a sample of a long column
+     * @param column Index of the field in the schema
+     * @param index Index of the sample, 0 is the oldest one
+     * @return The value
+     */
+    public synchronized long getLong(final int column, final int index) {
+        final long[] values = mLongColumns[column];
+        if (values == null) {
+            throw new IllegalArgumentException("Column "+column+" isn't a long column");
+        }
+        return values[physicalIndex(index)];
+    }
+
+    /**
+     * <p>Get a sample of a numeric column as double
+     * @param column Index of the field in the schema
+     * @param index Index of the sample, 0 is the oldest one
+     * @return The value
+     */
+    public synchronized double getDouble(final int column, final int index) {
+        return valueAt(checkColumn(column), physicalIndex(index));
+    }
+
+    private int checkColumn(final int column) {
+        if (mLongColumns[column] == null && mDoubleColumns[column] == null) {
+            throw new IllegalArgumentException("Column "+column+" isn't numeric");
+        }
+        return column;
+    }
+
+    private double valueAt(final int column, final int physical) {
+        final long[] longValues = mLongColumns[column];
+        return longValues != null ? longValues[physical] : mDoubleColumns[column][physical];
+    }
+
+    /**
+     * <p>Get the index of the first sample at or after the time
+     * @param timestamp The time
+     * @return The index, or {@link #size()} if all samples are older
+     */
+    public synchronized int indexOf(final long timestamp) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (mTimestamps[physicalIndex(middle)] < timestamp) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // Query methods
+    /**
+     * <p>Method to aggregate the samples of a column in a time window
+     * @param column Index of the field in the schema
+     * @param from Start of the window, inclusive
+     * @param to End of the window, exclusive
+     * @param out Where to put the result, its count is 0 and other fields are NaN or 0 if the window is empty
+     * @return The passed result object
+     */
+    public synchronized Aggregate aggregate(final int column, final long from, final long to, final Aggregate out) {
+        checkColumn(column);
+        final int end = indexOf(to);
+        long count = 0;
+        double min = Double.NaN;
+        double max = Double.NaN;
+        double sum = 0;
+        out.firstTimestamp = 0;
+        out.lastTimestamp = 0;
+        for (int i = indexOf(from); i < end; i++) {
+            final int physical = physicalIndex(i);
+            final double value = valueAt(column, physical);
+            if (count == 0) {
+                min = value;
+                max = value;
+                out.firstTimestamp = mTimestamps[physical];
+            } else {
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            sum += value;
+            count++;
+            out.lastTimestamp = mTimestamps[physical];
+        }
+        out.count = count;
+        out.min = min;
+        out.max = max;
+        out.mean = count > 0 ? sum / count : Double.NaN;
+        return out;
+    }
+
+    /**
+     * <p>Method to get the samples of a column in a time range reduced to a point budget, e.g. to draw a chart.
+     * If the range has more samples than the budget, it's split into buckets of the same duration and the
+     * min and max samples of every bucket are kept in time order, so spikes aren't lost.
+     * @param column Index of the field in the schema
+     * @param from Start of the range, inclusive
+     * @param to End of the range, exclusive
+     * @param maxPoints Max number of points, at least 2
+     * @param outTimestamps Array of at least maxPoints elements to receive the timestamps
+     * @param outValues Array of at least maxPoints elements to receive the values
+     * @return Number of points put into the arrays
+     */
+    public synchronized int decimate(final int column, final long from, final long to, final int maxPoints,
+                                     final long[] outTimestamps, final double[] outValues) {
+        checkColumn(column);
+        if (maxPoints < 2) {
+            throw new IllegalArgumentException("Invalid point budget: "+maxPoints);
+        }
+        final int start = indexOf(from);
+        final int end = indexOf(to);
+        if (end - start <= maxPoints) {
+            for (int i = start; i < end; i++) {
+                final int physical = physicalIndex(i);
+                outTimestamps[i - start] = mTimestamps[physical];
+                outValues[i - start] = valueAt(column, physical);
+            }
+            return end - start;
+        }
+
+        final int bucketCount = maxPoints / 2;
+        final long firstTime = mTimestamps[physicalIndex(start)];
+        final long span = mTimestamps[physicalIndex(end - 1)] - firstTime + 1;
+        int points = 0;
+        int i = start;
+        for (int bucket = 0; bucket < bucketCount && i < end; bucket++) {
+            final long bucketEnd = firstTime + (long) (span * ((double) (bucket + 1) / bucketCount));
+            int minIndex = -1;
+            int maxIndex = -1;
+            for (; i < end; i++) {
+                final int physical = physicalIndex(i);
+                if (mTimestamps[physical] >= bucketEnd && bucket < bucketCount - 1) {
+                    break;
+                }
+                final double value = valueAt(column, physical);
+                if (minIndex < 0 || value < valueAt(column, minIndex)) {
+                    minIndex = physical;
+                }
+                if (maxIndex < 0 || value > valueAt(column, maxIndex)) {
+                    maxIndex = physical;
+                }
+            }
+            if (minIndex < 0) { // Empty bucket
+                continue;
+            }
+            final boolean minFirst = mTimestamps[minIndex] <= mTimestamps[maxIndex];
+            points = putPoint(column, minFirst ? minIndex : maxIndex, points, outTimestamps, outValues);
+            if (minIndex != maxIndex) {
+                points = putPoint(column, minFirst ? maxIndex : minIndex, points, outTimestamps, outValues);
+            }
+        }
+        return points;
+    }
+
+    private int putPoint(final int column, final int physical, final int points,
+                         final long[] outTimestamps, final double[] outValues) {
+        outTimestamps[points] = mTimestamps[physical];
+        outValues[points] = valueAt(column, physical);
+        return points + 1;
+    }
+}
@@ -0,0 +1,73 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Store of the {@link BLETimeSeries} of the characteristics of a device, so all consumers of a notification
+ * stream read the same samples. Set it to a device by {@code BLEDevice.setTimeSeriesStore}, and the notified
+ * values of the registered characteristics are recorded with the time they are received.
+ */
+public final class BLETimeSeriesStore {
+    private final Map<UUID, BLETimeSeries> mSeries = new ConcurrentHashMap<UUID, BLETimeSeries>();
+
+    /**
+     * <p>Method to record the values of a characteristic
+     * @param characteristicUuid UUID of the characteristic
+     * @param schema Schema to decode its values
+     * @param capacity Max number of samples kept
+     * @return The time series, the existing one if the characteristic is registered already
+     */
+    public BLETimeSeries register(final UUID characteristicUuid, final BLEValueSchema schema, final int capacity) {
+        BLETimeSeries series = mSeries.get(characteristicUuid);
+        if (series == null) {
+            synchronized (mSeries) {
+                series = mSeries.get(characteristicUuid);
+                if (series == null) {
+                    series = new BLETimeSeries(schema, capacity);
+                    mSeries.put(characteristicUuid, series);
+                }
+            }
+        }
+        return series;
+    }
+
+    /**
+     * <p>Method to stop recording the values of a characteristic, its samples are dropped
+     * @param characteristicUuid UUID of the characteristic
+     */
+    public void unregister(final UUID characteristicUuid) {
+        mSeries.remove(characteristicUuid);
+    }
+
+    /**
+     * <p>Get the time series of a characteristic
+     * @param characteristicUuid UUID of the characteristic
+     * @return The time series, or null if it's not registered
+     */
+    public BLETimeSeries get(final UUID characteristicUuid) {
+        return mSeries.get(characteristicUuid);
+    }
+
+    public List<UUID> getCharacteristicUuids() {
+        return new ArrayList<UUID>(mSeries.keySet());
+    }
+
+    /**
+     * <p>Method to record a value if its characteristic is registered
+     * @param characteristicUuid UUID of the characteristic
+     * @param timestamp Time of the value
+     * @param value The value bytes
+     * @return Whether the value is recorded
+     */
+    public boolean record(final UUID characteristicUuid, final long timestamp, final byte[] value) {
+        if (mSeries.isEmpty()) {
+            return false;
+        }
+        final BLETimeSeries series = mSeries.get(characteristicUuid);
+        return series != null && series.append(timestamp, value);
+    }
+}
@@ -0,0 +1,291 @@
+package com.hill.libblemanager;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * <p>Timeline of the connection events of a device, kept in a fixed-size ring buffer so the latest events
+ * are always available. Recording doesn't allocate, events are formatted only when exported.
+ * <p>Export timelines by {@link #writeChromeTrace} and open them in chrome://tracing or ui.perfetto.dev,
+ * each device is shown as a track with its operations as slices. Operations which may overlap, like the GATT
+ * requests queued by the library, are recorded by {@link #complete} once they end.
+ */
+public final class BLETrace {
+    public static final int DEFAULT_CAPACITY = 512;
+
+    // Event names recorded by the library
+    public static final String EVENT_CONNECT = "connect";
+    public static final String EVENT_CONNECTED = "connected";
+    public static final String EVENT_DISCONNECT = "disconnect";
+    public static final String EVENT_DISCONNECTED = "disconnected";
+    public static final String EVENT_DISCOVERY = "discoverServices";
+    public static final String EVENT_READ = "read";
+    public static final String EVENT_WRITE = "write";
+    public static final String EVENT_NOTIFICATION = "notification";
+    public static final String EVENT_SET_NOTIFICATION = "setNotification";
+    public static final String EVENT_RSSI = "readRssi";
+    public static final String EVENT_MTU = "requestMtu";
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+    private static final byte PHASE_INSTANT = 'i';
+    private static final byte PHASE_COMPLETE = 'X';
+    private static final int NO_STATUS = Integer.MIN_VALUE;
+
+    private final String mName;
+    private final long[] mTimes;
+    private final long[] mDurations;
+    private final byte[] mPhases;
+    private final String[] mEvents;
+    private final UUID[] mUuids;
+    private final int[] mStatuses;
+    private int mNext = 0;
+    private long mRecorded = 0;
+    private volatile boolean mEnabled = true;
+
+    /**
+     * <p>Construction method of BLETrace
+     * @param name Name of the timeline, e.g. the device address
+     * @param capacity Max number of events kept, older ones are overwritten
+     */
+    public BLETrace(final String name, final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Invalid capacity: "+capacity);
+        }
+        mName = name;
+        mTimes = new long[capacity];
+        mDurations = new long[capacity];
+        mPhases = new byte[capacity];
+        mEvents = new String[capacity];
+        mUuids = new UUID[capacity];
+        mStatuses = new int[capacity];
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getCapacity() {
+        return mTimes.length;
+    }
+
+    /**
+     * <p>Method to enable or disable recording, disabled recording costs one volatile read
+     * @param enabled Whether to record
+     */
+    public void setEnabled(final boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    // Recording methods
+    /**
+     * <p>Method to record the start of an operation
+     * @param event Name of the operation, e.g. one of the EVENT_* constants
+     * @param uuid UUID of the attribute of the operation, it can be null
+     */
+    public void begin(final String event, final UUID uuid) {
+        record(PHASE_BEGIN, event, uuid, NO_STATUS);
+    }
+
+    /**
+     * <p>Method to record the end of an operation started by {@link #begin}
+     * @param event Name of the operation, the same as the one passed to {@link #begin}
+     * @param status The result status, see STATUS_* constants of {@link BLEGattTransport}
+     */
+    public void end(final String event, final int status) {
+        record(PHASE_END, event, null, status);
+    }
+
+    /**
+     * <p>Method to record an event without duration
+     * @param event Name of the event
+     * @param uuid UUID of the attribute of the event, it can be null
+     * @param status The status of the event, see STATUS_* constants of {@link BLEGattTransport}
+     */
+    public void instant(final String event, final UUID uuid, final int status) {
+        record(PHASE_INSTANT, event, uuid, status);
+    }
+
+    /**
+     * <p>Method to record an operation which has ended, operations recorded this way may overlap each other
+     * @param event Name of the operation
+     * @param uuid UUID of the attribute of the operation, it can be null
+     * @param startNanos Start time of the operation, in the time base of {@link System#nanoTime()}
+     * @param status The result status, see STATUS_* constants of {@link BLEGattTransport}
+     */
+    public void complete(final String event, final UUID uuid, final long startNanos, final int status) {
+        if (!mEnabled) {
+            return;
+        }
+        record(PHASE_COMPLETE, event, uuid, status, startNanos, System.nanoTime() - startNanos);
+    }
+
+    private void record(final byte phase, final String event, final UUID uuid, final int status) {
+        if (!mEnabled) {
+            return;
+        }
+        record(phase, event, uuid, status, System.nanoTime(), 0);
+    }
+
+    private void record(final byte phase, final String event, final UUID uuid, final int status,
+                        final long time, final long duration) {
+        synchronized (this) {
+            final int index = mNext;
+            mTimes[index] = time;
+            mDurations[index] = duration;
+            mPhases[index] = phase;
+            mEvents[index] = event;
+            mUuids[index] = uuid;
+            mStatuses[index] = status;
+            mNext = index + 1 == mTimes.length ? 0 : index + 1;
+            mRecorded++;
+        }
+    }
+
+    /**
+     * @return Number of events kept in the buffer
+     */
+    public synchronized int size() {
+        return (int) Math.min(mRecorded, mTimes.length);
+    }
+
+    /**
+     * <p>Method to remove all events
+     */
+    public synchronized void clear() {
+        Arrays.fill(mEvents, null);
+        Arrays.fill(mUuids, null);
+        mNext = 0;
+        mRecorded = 0;
+    }
+
+    // Export methods
+    /**
+     * <p>Get the timeline in Chrome trace JSON format
+     * @return The JSON text
+     */
+    public String toChromeTrace() {
+        final StringBuilder builder = new StringBuilder();
+        try {
+            writeChromeTrace(builder, this);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * <p>Method to write timelines in Chrome trace JSON format, which is also read by Perfetto.
+     * Each timeline is written as a thread named by {@link #getName()}, timestamps are in microseconds
+     * of {@link System#nanoTime()} so timelines of the same process line up.
+     * @param out Where to write the JSON text
+     * @param traces The timelines to write
+     * @throws IOException If writing fails
+     */
+    public static void writeChromeTrace(final Appendable out, final BLETrace... traces) throws IOException {
+        out.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for (int i = 0; i < traces.length; i++) {
+            traces[i].writeEvents(out, i + 1, i == 0);
+        }
+        out.append("]}\n");
+    }
+
+    private void writeEvents(final Appendable out, final int tid, final boolean first) throws IOException {
+        final int count;
+        final long[] times;
+        final long[] durations;
+        final byte[] phases;
+        final String[] events;
+        final UUID[] uuids;
+        final int[] statuses;
+        // Copy under the lock, format outside it so recording isn't blocked by the export
+        synchronized (this) {
+            count = size();
+            final int start = mRecorded > mTimes.length ? mNext : 0;
+            times = new long[count];
+            durations = new long[count];
+            phases = new byte[count];
+            events = new String[count];
+            uuids = new UUID[count];
+            statuses = new int[count];
+            for (int i = 0; i < count; i++) {
+                final int index = (start + i) % mTimes.length;
+                times[i] = mTimes[index];
+                durations[i] = mDurations[index];
+                phases[i] = mPhases[index];
+                events[i] = mEvents[index];
+                uuids[i] = mUuids[index];
+                statuses[i] = mStatuses[index];
+            }
+        }
+
+        if (!first) {
+            out.append(',');
+        }
+        out.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(String.valueOf(tid))
+                .append(",\"args\":{\"name\":");
+        appendString(out, mName);
+        out.append("}}");
+
+        int depth = 0;
+        for (int i = 0; i < count; i++) {
+            if (phases[i] == PHASE_BEGIN) {
+                depth++;
+            } else if (phases[i] == PHASE_END) {
+                if (depth == 0) { // Its begin is overwritten already
+                    continue;
+                }
+                depth--;
+            }
+            out.append(",\n{\"name\":");
+            appendString(out, events[i]);
+            out.append(",\"cat\":\"ble\",\"ph\":\"").append((char) phases[i])
+                    .append("\",\"ts\":").append(formatMicros(times[i]))
+                    .append(",\"pid\":1,\"tid\":").append(String.valueOf(tid));
+            if (phases[i] == PHASE_INSTANT) {
+                out.append(",\"s\":\"t\"");
+            } else if (phases[i] == PHASE_COMPLETE) {
+                out.append(",\"dur\":").append(formatMicros(durations[i]));
+            }
+            if (uuids[i] != null || statuses[i] != NO_STATUS) {
+                out.append(",\"args\":{");
+                if (uuids[i] != null) {
+                    final int shortUuid = BLEUuid.toShortUuid(uuids[i]);
+                    out.append("\"uuid\":");
+                    appendString(out, shortUuid >= 0 ? String.format("0x%04X", shortUuid) : uuids[i].toString());
+                }
+                if (statuses[i] != NO_STATUS) {
+                    out.append(uuids[i] != null ? ",\"status\":" : "\"status\":").append(String.valueOf(statuses[i]));
+                }
+                out.append('}');
+            }
+            out.append('}');
+        }
+    }
+
+    private static String formatMicros(final long nanos) {
+        final long micros = nanos / 1000;
+        final long fraction = Math.abs(nanos % 1000);
+        return micros+"."+(fraction < 10 ? "00" : fraction < 100 ? "0" : "")+fraction;
+    }
+
+    private static void appendString(final Appendable out, final String value) throws IOException {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,21 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Bluetooth LE stack used by {@code BLEManager} and {@code BLEDevice}. The Android Bluetooth stack is used
+ * when no transport is set, set {@link BLESimulator} by {@code BLEManager.setTransport} to run without hardware.
+ */
+public interface BLETransport {
+    /**
+     * @return The scanner, or null if scanning isn't supported
+     */
+    BLEScanTransport getScanTransport();
+
+    /**
+     * <p>Method to open a GATT connection to the device
+     * @param address Address of the device
+     * @param autoConnect Whether to connect as soon as the device becomes available
+     * @param callback Callback to receive the results of the connection
+     * @return The connection, or null if it can't be opened
+     */
+    BLEGattTransport connectGatt(final String address, final boolean autoConnect, final BLEGattTransport.Callback callback);
+}
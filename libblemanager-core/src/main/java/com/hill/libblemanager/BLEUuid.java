@@ -0,0 +1,54 @@
+package com.hill.libblemanager;
+
+import java.util.UUID;
+
+/**
+ * <p>Helpers of UUIDs based on the Bluetooth SIG base UUID 0000xxxx-0000-1000-8000-00805F9B34FB
+ */
+public final class BLEUuid {
+    private static final long SIG_BASE_MSB_MASK = 0xFFFF0000FFFFFFFFL;
+    private static final long SIG_BASE_MSB = 0x0000000000001000L;
+    private static final long SIG_BASE_LSB = 0x800000805F9B34FBL;
+
+    private BLEUuid() {
+    }
+
+    /**
+     * <p>Get the 16-bit value of the UUID based on the Bluetooth SIG base UUID
+     * @param uuid The UUID
+     * @return The 16-bit value, or -1 if the UUID isn't based on the SIG base UUID
+     */
+    public static int toShortUuid(final UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        if ((msb & SIG_BASE_MSB_MASK) != SIG_BASE_MSB || uuid.getLeastSignificantBits() != SIG_BASE_LSB) {
+            return -1;
+        }
+        return (int) ((msb >>> 32) & 0xFFFF);
+    }
+
+    /**
+     * <p>Get the full UUID of the 16-bit value assigned by the Bluetooth SIG
+     * @param shortUuid The 16-bit value
+     * @return The full UUID
+     */
+    public static UUID fromShortUuid(final int shortUuid) {
+        return fromSigUuid(shortUuid & 0xFFFF);
+    }
+
+    /**
+     * <p>Get the full UUID of the 32-bit value based on the Bluetooth SIG base UUID
+     * @param sigUuid The 32-bit value
+     * @return The full UUID
+     */
+    public static UUID fromSigUuid(final long sigUuid) {
+        return new UUID(SIG_BASE_MSB | (sigUuid & 0xFFFFFFFFL) << 32, SIG_BASE_LSB);
+    }
+
+    /**
+     * <p>Method to check whether the UUID is the one of the 32-bit value, without creating UUID objects
+     */
+    static boolean isSigUuid(final UUID uuid, final long sigUuid) {
+        return uuid.getLeastSignificantBits() == SIG_BASE_LSB
+                && uuid.getMostSignificantBits() == (SIG_BASE_MSB | (sigUuid & 0xFFFFFFFFL) << 32);
+    }
+}
@@ -0,0 +1,80 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>UUID index of an attribute array. Entries of the same UUID are chained in insertion order,
+ * 16-bit SIG UUIDs are kept in a primitive map and other UUIDs in a HashMap.
+ */
+final class BLEUuidIndex {
+    private final BLEIntIndexMap mShortUuids;
+    private final Map<UUID, Integer> mLongUuids = new HashMap<UUID, Integer>();
+    private final int[] mNext;
+    private final int[] mLast;
+
+    BLEUuidIndex(final int size) {
+        mShortUuids = new BLEIntIndexMap(size);
+        mNext = new int[size];
+        mLast = new int[size];
+        Arrays.fill(mNext, -1);
+    }
+
+    void add(final UUID uuid, final int index) {
+        final int shortUuid = BLEUuid.toShortUuid(uuid);
+        final int first;
+        if (shortUuid >= 0) {
+            first = mShortUuids.putIfAbsent(shortUuid, index);
+        } else {
+            final Integer existing = mLongUuids.get(uuid);
+            if (existing == null) {
+                mLongUuids.put(uuid, index);
+            }
+            first = existing == null ? -1 : existing;
+        }
+        if (first < 0) {
+            mLast[index] = index;
+        } else {
+            mNext[mLast[first]] = index;
+            mLast[first] = index;
+        }
+    }
+
+    /**
+     * @return Index of the first entry of the UUID, or -1 if it's not found
+     */
+    int first(final UUID uuid) {
+        if (uuid == null) {
+            return -1;
+        }
+        final int shortUuid = BLEUuid.toShortUuid(uuid);
+        if (shortUuid >= 0) {
+            return mShortUuids.get(shortUuid);
+        }
+        final Integer index = mLongUuids.get(uuid);
+        return index == null ? -1 : index;
+    }
+
+    int first(final int shortUuid) {
+        return mShortUuids.get(shortUuid & 0xFFFF);
+    }
+
+    /**
+     * @return Index of the next entry of the same UUID, or -1 if it's the last one
+     */
+    int next(final int index) {
+        return mNext[index];
+    }
+
+    <T> List<T> collect(final UUID uuid, final List<T> items) {
+        final List<T> results = new ArrayList<T>();
+        for (int index = first(uuid); index >= 0; index = mNext[index]) {
+            results.add(items.get(index));
+        }
+        return results;
+    }
+}
@@ -0,0 +1,346 @@
+package com.hill.libblemanager;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * <p>Decoder and encoder of GATT values in the formats of {@link BLEValueFormat}.
+ * <p>All numeric accessors work on the caller's byte array or {@link ByteBuffer} in place and return primitives,
+ * so decoding doesn't allocate any object. Values are little endian as defined by the Bluetooth SIG unless a
+ * {@link ByteOrder} is given, the order of a ByteBuffer is used for ByteBuffer accessors.
+ * <p>Accessors throw {@link IndexOutOfBoundsException} if the value is too short and {@link IllegalArgumentException}
+ * if the format doesn't fit the accessor, use {@link #hasValue} to check the value first.
+ */
+public final class BLEValueCodec {
+    private BLEValueCodec() {
+    }
+
+    private static final Charset CHARSET_UTF8 = Charset.forName("UTF-8");
+    private static final Charset CHARSET_UTF16LE = Charset.forName("UTF-16LE");
+    private static final Charset CHARSET_UTF16BE = Charset.forName("UTF-16BE");
+
+    // IEEE-11073 special values
+    private static final int SFLOAT_NAN = 0x07FF;
+    private static final int SFLOAT_NRES = 0x0800;
+    private static final int SFLOAT_POSITIVE_INFINITY = 0x07FE;
+    private static final int SFLOAT_NEGATIVE_INFINITY = 0x0802;
+    private static final int SFLOAT_RESERVED = 0x0801;
+
+    private static final int FLOAT_NAN = 0x007FFFFF;
+    private static final int FLOAT_NRES = 0x00800000;
+    private static final int FLOAT_POSITIVE_INFINITY = 0x007FFFFE;
+    private static final int FLOAT_NEGATIVE_INFINITY = 0x00800002;
+    private static final int FLOAT_RESERVED = 0x00800001;
+
+    private static final int POW10_OFFSET = 20;
+    private static final double[] POW10 = new double[POW10_OFFSET * 2 + 1];
+    static {
+        for (int i = 0; i < POW10.length; i++) {
+            POW10[i] = Math.pow(10, i - POW10_OFFSET);
+        }
+    }
+
+    private static double pow10(final int exponent) {
+        final int index = exponent + POW10_OFFSET;
+        if (index >= 0 && index < POW10.length) {
+            return POW10[index];
+        }
+        return Math.pow(10, exponent);
+    }
+
+    /**
+     * <p>Method to check whether the value contains a complete field of the format at the offset
+     * @param value The value bytes
+     * @param format The format of the field, see {@link BLEValueFormat}
+     * @param offset Offset of the field
+     * @return Whether the field can be decoded
+     */
+    public static boolean hasValue(final byte[] value, final int format, final int offset) {
+        if (value == null || offset < 0 || !BLEValueFormat.isValid(format)) {
+            return false;
+        }
+        return offset + BLEValueFormat.getSize(format) <= value.length;
+    }
+
+    // Raw integer methods
+    private static void checkBounds(final int length, final int offset, final int size) {
+        if (offset < 0 || offset + size > length) {
+            throw new IndexOutOfBoundsException("Need "+size+" bytes at offset "+offset+", value length: "+length);
+        }
+    }
+
+    private static long readUnsigned(final byte[] value, final int offset, final int size, final boolean bigEndian) {
+        checkBounds(value.length, offset, size);
+        long result = 0;
+        if (bigEndian) {
+            for (int i = 0; i < size; i++) {
+                result = (result << 8) | (value[offset + i] & 0xFF);
+            }
+        } else {
+            for (int i = size - 1; i >= 0; i--) {
+                result = (result << 8) | (value[offset + i] & 0xFF);
+            }
+        }
+        return result;
+    }
+
+    private static long readUnsigned(final ByteBuffer buffer, final int offset, final int size) {
+        final int index = buffer.position() + offset;
+        checkBounds(buffer.limit(), index, size);
+        long result = 0;
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            for (int i = 0; i < size; i++) {
+                result = (result << 8) | (buffer.get(index + i) & 0xFF);
+            }
+        } else {
+            for (int i = size - 1; i >= 0; i--) {
+                result = (result << 8) | (buffer.get(index + i) & 0xFF);
+            }
+        }
+        return result;
+    }
+
+    private static long signExtend(final long rawValue, final int size) {
+        final int shift = 64 - size * 8;
+        return (rawValue << shift) >> shift;
+    }
+
+    private static int checkIntegerFormat(final int format) {
+        if (!BLEValueFormat.isInteger(format) || !BLEValueFormat.isValid(format)) {
+            throw new IllegalArgumentException("Not an integer format: 0x"+Integer.toHexString(format));
+        }
+        return BLEValueFormat.getSize(format);
+    }
+
+    // Integer methods
+    /**
+     * <p>Decode integer field. Note values of {@link BLEValueFormat#FORMAT_UINT64} above {@link Long#MAX_VALUE}
+     * are returned as negative numbers, use {@link Long#toUnsignedString} style helpers to display them.
+     * @param value The value bytes
+     * @param format Integer format of the field
+     * @param offset Offset of the field
+     * @param order Byte order of the field
+     * @return The decoded integer
+     */
+    public static long getLong(final byte[] value, final int format, final int offset, final ByteOrder order) {
+        final int size = checkIntegerFormat(format);
+        final long rawValue = readUnsigned(value, offset, size, order == ByteOrder.BIG_ENDIAN);
+        return BLEValueFormat.isSigned(format) ? signExtend(rawValue, size) : rawValue;
+    }
+
+    public static long getLong(final byte[] value, final int format, final int offset) {
+        return getLong(value, format, offset, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * <p>Decode integer field at the offset from the position of the buffer, in the byte order of the buffer
+     * @param buffer The value buffer
+     * @param format Integer format of the field
+     * @param offset Offset of the field from the position of the buffer
+     * @return The decoded integer
+     */
+    public static long getLong(final ByteBuffer buffer, final int format, final int offset) {
+        final int size = checkIntegerFormat(format);
+        final long rawValue = readUnsigned(buffer, offset, size);
+        return BLEValueFormat.isSigned(format) ? signExtend(rawValue, size) : rawValue;
+    }
+
+    public static int getInt(final byte[] value, final int format, final int offset) {
+        return (int) getLong(value, format, offset, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Float methods
+    private static double decodeSFloat(final int rawValue) {
+        final int mantissa = rawValue & 0x0FFF;
+        switch (mantissa) {
+            case SFLOAT_NAN:
+            case SFLOAT_NRES:
+            case SFLOAT_RESERVED:
+                return Double.NaN;
+            case SFLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case SFLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                final int exponent = (rawValue << 16) >> 28;
+                return ((mantissa << 20) >> 20) * pow10(exponent);
+        }
+    }
+
+    private static double decodeFloat(final int rawValue) {
+        final int mantissa = rawValue & 0x00FFFFFF;
+        switch (mantissa) {
+            case FLOAT_NAN:
+            case FLOAT_NRES:
+            case FLOAT_RESERVED:
+                return Double.NaN;
+            case FLOAT_POSITIVE_INFINITY:
+                return Double.POSITIVE_INFINITY;
+            case FLOAT_NEGATIVE_INFINITY:
+                return Double.NEGATIVE_INFINITY;
+            default:
+                final int exponent = rawValue >> 24;
+                return ((mantissa << 8) >> 8) * pow10(exponent);
+        }
+    }
+
+    private static double decodeDouble(final long rawValue, final int format) {
+        switch (format) {
+            case BLEValueFormat.FORMAT_SFLOAT:
+                return decodeSFloat((int) rawValue);
+            case BLEValueFormat.FORMAT_FLOAT:
+                return decodeFloat((int) rawValue);
+            case BLEValueFormat.FORMAT_FLOAT32:
+                return Float.intBitsToFloat((int) rawValue);
+            case BLEValueFormat.FORMAT_FLOAT64:
+                return Double.longBitsToDouble(rawValue);
+            default:
+                final int size = BLEValueFormat.getSize(format);
+                return BLEValueFormat.isSigned(format) ? signExtend(rawValue, size) : rawValue;
+        }
+    }
+
+    private static int checkNumericFormat(final int format) {
+        if (BLEValueFormat.isString(format) || !BLEValueFormat.isValid(format)) {
+            throw new IllegalArgumentException("Not a numeric format: 0x"+Integer.toHexString(format));
+        }
+        return BLEValueFormat.getSize(format);
+    }
+
+    /**
+     * <p>Decode numeric field of any numeric format as double. IEEE-11073 NaN, NRes and reserved values
+     * are returned as {@link Double#NaN}, infinity values as {@link Double#POSITIVE_INFINITY} or
+     * {@link Double#NEGATIVE_INFINITY}.
+     * @param value The value bytes
+     * @param format Numeric format of the field
+     * @param offset Offset of the field
+     * @param order Byte order of the field
+     * @return The decoded number
+     */
+    public static double getDouble(final byte[] value, final int format, final int offset, final ByteOrder order) {
+        final int size = checkNumericFormat(format);
+        return decodeDouble(readUnsigned(value, offset, size, order == ByteOrder.BIG_ENDIAN), format);
+    }
+
+    public static double getDouble(final byte[] value, final int format, final int offset) {
+        return getDouble(value, format, offset, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * <p>Decode numeric field at the offset from the position of the buffer, in the byte order of the buffer.
+     * <p>See {@link #getDouble(byte[], int, int, ByteOrder)} for details.
+     * @param buffer The value buffer
+     * @param format Numeric format of the field
+     * @param offset Offset of the field from the position of the buffer
+     * @return The decoded number
+     */
+    public static double getDouble(final ByteBuffer buffer, final int format, final int offset) {
+        final int size = checkNumericFormat(format);
+        return decodeDouble(readUnsigned(buffer, offset, size), format);
+    }
+
+    // String methods
+    private static Charset charsetOf(final int format, final ByteOrder order) {
+        switch (format) {
+            case BLEValueFormat.FORMAT_UTF8:
+                return CHARSET_UTF8;
+            case BLEValueFormat.FORMAT_UTF16:
+                return order == ByteOrder.BIG_ENDIAN ? CHARSET_UTF16BE : CHARSET_UTF16LE;
+            default:
+                throw new IllegalArgumentException("Not a string format: 0x"+Integer.toHexString(format));
+        }
+    }
+
+    /**
+     * <p>Decode string field
+     * @param value The value bytes
+     * @param format {@link BLEValueFormat#FORMAT_UTF8} or {@link BLEValueFormat#FORMAT_UTF16}
+     * @param offset Offset of the field
+     * @param length Length of the field in bytes, or -1 for the rest of the value
+     * @param order Byte order of UTF-16 string
+     * @return The decoded string
+     */
+    public static String getString(final byte[] value, final int format, final int offset, final int length, final ByteOrder order) {
+        final Charset charset = charsetOf(format, order);
+        final int byteCount = length < 0 ? value.length - offset : length;
+        checkBounds(value.length, offset, byteCount);
+        return new String(value, offset, byteCount, charset);
+    }
+
+    public static String getString(final byte[] value, final int format, final int offset) {
+        return getString(value, format, offset, -1, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // Encode methods
+    private static void writeUnsigned(final byte[] dst, final int offset, final int size, final long rawValue, final boolean bigEndian) {
+        checkBounds(dst.length, offset, size);
+        for (int i = 0; i < size; i++) {
+            final byte b = (byte) (rawValue >>> (i * 8));
+            if (bigEndian) {
+                dst[offset + size - 1 - i] = b;
+            } else {
+                dst[offset + i] = b;
+            }
+        }
+    }
+
+    /**
+     * <p>Encode integer field into the destination bytes
+     * @param dst The destination bytes
+     * @param format Integer format of the field
+     * @param offset Offset of the field
+     * @param value The integer to encode, higher bits beyond the size of the format are dropped
+     * @param order Byte order of the field
+     */
+    public static void putLong(final byte[] dst, final int format, final int offset, final long value, final ByteOrder order) {
+        final int size = checkIntegerFormat(format);
+        writeUnsigned(dst, offset, size, value, order == ByteOrder.BIG_ENDIAN);
+    }
+
+    public static void putLong(final byte[] dst, final int format, final int offset, final long value) {
+        putLong(dst, format, offset, value, ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * <p>Encode IEEE-11073 SFLOAT or FLOAT field from mantissa and exponent
+     * @param dst The destination bytes
+     * @param format {@link BLEValueFormat#FORMAT_SFLOAT} or {@link BLEValueFormat#FORMAT_FLOAT}
+     * @param offset Offset of the field
+     * @param mantissa The mantissa, 12 bits for SFLOAT and 24 bits for FLOAT
+     * @param exponent The exponent, 4 bits for SFLOAT and 8 bits for FLOAT
+     */
+    public static void putIEEE11073(final byte[] dst, final int format, final int offset, final int mantissa, final int exponent) {
+        switch (format) {
+            case BLEValueFormat.FORMAT_SFLOAT:
+                writeUnsigned(dst, offset, 2, ((exponent & 0x0F) << 12) | (mantissa & 0x0FFF), false);
+                break;
+            case BLEValueFormat.FORMAT_FLOAT:
+                writeUnsigned(dst, offset, 4, ((exponent & 0xFF) << 24) | (mantissa & 0x00FFFFFF), false);
+                break;
+            default:
+                throw new IllegalArgumentException("Not an IEEE-11073 format: 0x"+Integer.toHexString(format));
+        }
+    }
+
+    /**
+     * <p>Encode IEEE-754 float field
+     * @param dst The destination bytes
+     * @param format {@link BLEValueFormat#FORMAT_FLOAT32} or {@link BLEValueFormat#FORMAT_FLOAT64}
+     * @param offset Offset of the field
+     * @param value The number to encode
+     * @param order Byte order of the field
+     */
+    public static void putDouble(final byte[] dst, final int format, final int offset, final double value, final ByteOrder order) {
+        switch (format) {
+            case BLEValueFormat.FORMAT_FLOAT32:
+                writeUnsigned(dst, offset, 4, Float.floatToRawIntBits((float) value), order == ByteOrder.BIG_ENDIAN);
+                break;
+            case BLEValueFormat.FORMAT_FLOAT64:
+                writeUnsigned(dst, offset, 8, Double.doubleToRawLongBits(value), order == ByteOrder.BIG_ENDIAN);
+                break;
+            default:
+                throw new IllegalArgumentException("Not an IEEE-754 format: 0x"+Integer.toHexString(format));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.hill.libblemanager;
+
+/**
+ * <p>Value formats understood by {@link BLEValueCodec}. The integer and IEEE-11073 float formats use the same
+ * values as the FORMAT_* constants of {@link android.bluetooth.BluetoothGattCharacteristic}, so they can be used
+ * interchangeably. The low 4 bits of a format are the size of the value in bytes, 0 means a variable size.
+ */
+public final class BLEValueFormat {
+    private BLEValueFormat() {
+    }
+
+    public static final int FORMAT_UINT8 = 0x11;
+    public static final int FORMAT_UINT16 = 0x12;
+    public static final int FORMAT_UINT24 = 0x13;
+    public static final int FORMAT_UINT32 = 0x14;
+    public static final int FORMAT_UINT48 = 0x16;
+    public static final int FORMAT_UINT64 = 0x18;
+
+    public static final int FORMAT_SINT8 = 0x21;
+    public static final int FORMAT_SINT16 = 0x22;
+    public static final int FORMAT_SINT24 = 0x23;
+    public static final int FORMAT_SINT32 = 0x24;
+    public static final int FORMAT_SINT48 = 0x26;
+    public static final int FORMAT_SINT64 = 0x28;
+
+    /** IEEE-11073 16-bit SFLOAT */
+    public static final int FORMAT_SFLOAT = 0x32;
+    /** IEEE-11073 32-bit FLOAT */
+    public static final int FORMAT_FLOAT = 0x34;
+
+    /** IEEE-754 32-bit float */
+    public static final int FORMAT_FLOAT32 = 0x44;
+    /** IEEE-754 64-bit float */
+    public static final int FORMAT_FLOAT64 = 0x48;
+
+    /** UTF-8 string, variable size */
+    public static final int FORMAT_UTF8 = 0x50;
+    /** UTF-16 string, variable size */
+    public static final int FORMAT_UTF16 = 0x60;
+
+    private static final int FORMAT_CLASS_UINT = 0x10;
+    private static final int FORMAT_CLASS_SINT = 0x20;
+    private static final int FORMAT_CLASS_IEEE11073 = 0x30;
+    private static final int FORMAT_CLASS_IEEE754 = 0x40;
+
+    /**
+     * <p>Get the size of the value in the format
+     * @param format The value format
+     * @return The size in bytes, 0 for variable size formats
+     */
+    public static int getSize(final int format) {
+        return format & 0x0F;
+    }
+
+    public static boolean isUnsigned(final int format) {
+        return (format & 0xF0) == FORMAT_CLASS_UINT;
+    }
+
+    public static boolean isSigned(final int format) {
+        return (format & 0xF0) == FORMAT_CLASS_SINT;
+    }
+
+    public static boolean isInteger(final int format) {
+        return isUnsigned(format) || isSigned(format);
+    }
+
+    public static boolean isIEEE11073(final int format) {
+        return format == FORMAT_SFLOAT || format == FORMAT_FLOAT;
+    }
+
+    public static boolean isIEEE754(final int format) {
+        return format == FORMAT_FLOAT32 || format == FORMAT_FLOAT64;
+    }
+
+    public static boolean isString(final int format) {
+        return format == FORMAT_UTF8 || format == FORMAT_UTF16;
+    }
+
+    /**
+     * <p>Method to check whether the format is one of the formats defined in this class
+     * @param format The value format
+     * @return Whether it's supported
+     */
+    public static boolean isValid(final int format) {
+        final int size = getSize(format);
+        switch (format & 0xF0) {
+            case FORMAT_CLASS_UINT:
+            case FORMAT_CLASS_SINT:
+                return size == 1 || size == 2 || size == 3 || size == 4 || size == 6 || size == 8;
+            case FORMAT_CLASS_IEEE11073:
+                return isIEEE11073(format);
+            case FORMAT_CLASS_IEEE754:
+                return isIEEE754(format);
+            default:
+                return isString(format);
+        }
+    }
+}
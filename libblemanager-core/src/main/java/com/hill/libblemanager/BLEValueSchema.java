@@ -0,0 +1,221 @@
+package com.hill.libblemanager;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Declarative layout of a custom characteristic value made of several fields, e.g. a telemetry packet.
+ * Field offsets are computed once when the schema is built, so decoding a field by its index is a bounds check
+ * and a few shifts on the value bytes, no object is created.
+ * <p>Build a schema once with {@link Builder} and look up field indexes by {@link #getFieldIndex(String)}
+ * before decoding the values.
+ */
+public final class BLEValueSchema {
+    /**
+     * <p>Builder of {@link BLEValueSchema}. Fields are laid out in the order they are added.
+     */
+    public static final class Builder {
+        private final List<String> mNames = new ArrayList<String>();
+        private final List<int[]> mFields = new ArrayList<int[]>(); // format, offset, length, bigEndian
+        private ByteOrder mOrder = ByteOrder.LITTLE_ENDIAN;
+        private int mOffset = 0;
+        private boolean mVariableTail = false;
+
+        /**
+         * <p>Method to set the byte order of the fields added after this call, little endian by default
+         * @param order The byte order
+         * @return This builder
+         */
+        public Builder setByteOrder(final ByteOrder order) {
+            mOrder = order;
+            return this;
+        }
+
+        /**
+         * <p>Method to add a numeric field
+         * @param name Name of the field
+         * @param format Numeric format of the field, see {@link BLEValueFormat}
+         * @return This builder
+         */
+        public Builder addField(final String name, final int format) {
+            if (BLEValueFormat.isString(format) || !BLEValueFormat.isValid(format)) {
+                throw new IllegalArgumentException("Not a numeric format: 0x"+Integer.toHexString(format));
+            }
+            return add(name, format, BLEValueFormat.getSize(format));
+        }
+
+        /**
+         * <p>Method to add a string field
+         * @param name Name of the field
+         * @param format {@link BLEValueFormat#FORMAT_UTF8} or {@link BLEValueFormat#FORMAT_UTF16}
+         * @param length Length of the field in bytes, or -1 if the string takes the rest of the value,
+         *               in which case it has to be the last field
+         * @return This builder
+         */
+        public Builder addString(final String name, final int format, final int length) {
+            if (!BLEValueFormat.isString(format)) {
+                throw new IllegalArgumentException("Not a string format: 0x"+Integer.toHexString(format));
+            }
+            return add(name, format, length);
+        }
+
+        /**
+         * <p>Method to skip reserved bytes
+         * @param count Number of bytes to skip
+         * @return This builder
+         */
+        public Builder skip(final int count) {
+            checkTail();
+            mOffset += count;
+            return this;
+        }
+
+        private Builder add(final String name, final int format, final int length) {
+            checkTail();
+            if (mNames.contains(name)) {
+                throw new IllegalArgumentException("Duplicated field: "+name);
+            }
+            mNames.add(name);
+            mFields.add(new int[] {format, mOffset, length, mOrder == ByteOrder.BIG_ENDIAN ? 1 : 0});
+            if (length < 0) {
+                mVariableTail = true;
+            } else {
+                mOffset += length;
+            }
+            return this;
+        }
+
+        private void checkTail() {
+            if (mVariableTail) {
+                throw new IllegalStateException("No field can follow the string taking the rest of the value");
+            }
+        }
+
+        public BLEValueSchema build() {
+            return new BLEValueSchema(this);
+        }
+    }
+
+    private final String[] mNames;
+    private final int[] mFormats;
+    private final int[] mOffsets;
+    private final int[] mLengths;
+    private final boolean[] mBigEndian;
+    private final int mMinSize;
+
+    private BLEValueSchema(final Builder builder) {
+        final int count = builder.mFields.size();
+        mNames = builder.mNames.toArray(new String[count]);
+        mFormats = new int[count];
+        mOffsets = new int[count];
+        mLengths = new int[count];
+        mBigEndian = new boolean[count];
+        for (int i = 0; i < count; i++) {
+            final int[] field = builder.mFields.get(i);
+            mFormats[i] = field[0];
+            mOffsets[i] = field[1];
+            mLengths[i] = field[2];
+            mBigEndian[i] = field[3] != 0;
+        }
+        mMinSize = builder.mOffset;
+    }
+
+    public int getFieldCount() {
+        return mNames.length;
+    }
+
+    /**
+     * <p>Get the min size of a value matching this schema
+     * @return The size in bytes
+     */
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    /**
+     * <p>Get the index of the field to pass to the decode methods
+     * @param name Name of the field
+     * @return The index of the field, or -1 if it's not found
+     */
+    public int getFieldIndex(final String name) {
+        for (int i = 0; i < mNames.length; i++) {
+            if (mNames[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public String getFieldName(final int field) {
+        return mNames[field];
+    }
+
+    public int getFieldFormat(final int field) {
+        return mFormats[field];
+    }
+
+    public int getFieldOffset(final int field) {
+        return mOffsets[field];
+    }
+
+    /**
+     * <p>Method to check whether the value is long enough for all fields of this schema
+     * @param value The value bytes
+     * @return Whether the value matches
+     */
+    public boolean matches(final byte[] value) {
+        return value != null && value.length >= mMinSize;
+    }
+
+    private ByteOrder orderOf(final int field) {
+        return mBigEndian[field] ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+    }
+
+    /**
+     * <p>Decode integer field of the value
+     * @param value The value bytes
+     * @param field Index of the field
+     * @return The decoded integer
+     */
+    public long getLong(final byte[] value, final int field) {
+        return BLEValueCodec.getLong(value, mFormats[field], mOffsets[field], orderOf(field));
+    }
+
+    /**
+     * <p>Decode numeric field of the value as double, see {@link BLEValueCodec#getDouble(byte[], int, int, ByteOrder)}
+     * @param value The value bytes
+     * @param field Index of the field
+     * @return The decoded number
+     */
+    public double getDouble(final byte[] value, final int field) {
+        return BLEValueCodec.getDouble(value, mFormats[field], mOffsets[field], orderOf(field));
+    }
+
+    /**
+     * <p>Decode string field of the value
+     * @param value The value bytes
+     * @param field Index of the field
+     * @return The decoded string
+     */
+    public String getString(final byte[] value, final int field) {
+        return BLEValueCodec.getString(value, mFormats[field], mOffsets[field], mLengths[field], orderOf(field));
+    }
+
+    /**
+     * <p>Decode all numeric fields of the value into the caller's array, string fields are left untouched.
+     * The array can be reused for every value, so decoding a stream of values doesn't allocate.
+     * @param value The value bytes
+     * @param out Array of at least {@link #getFieldCount()} elements to receive the fields
+     */
+    public void decode(final byte[] value, final double[] out) {
+        if (!matches(value)) {
+            throw new IndexOutOfBoundsException("Value is shorter than "+mMinSize+" bytes");
+        }
+        for (int i = 0; i < mFormats.length; i++) {
+            if (!BLEValueFormat.isString(mFormats[i])) {
+                out[i] = getDouble(value, i);
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEAdvertisingDataAssemblerTest {
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final long TIMEOUT = 1000;
+
+    @Test
+    public void complete_returnedAsIs() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        final byte[] data = new byte[] {1, 2, 3};
+        assertSame(data, assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_COMPLETE, data, 0));
+        assertEquals(0, assembler.getPendingCount());
+    }
+
+    @Test
+    public void chain_reassembled() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        assertNull(assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {1, 2}, 0));
+        assertNull(assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {3}, 10));
+        assertEquals(1, assembler.getPendingCount());
+        assertArrayEquals(new byte[] {1, 2, 3, 4},
+                assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_COMPLETE, new byte[] {4}, 20));
+        assertEquals(0, assembler.getPendingCount());
+    }
+
+    @Test
+    public void truncated_returnsReceivedPart() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        assertNull(assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {1, 2}, 0));
+        assertArrayEquals(new byte[] {1, 2},
+                assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_TRUNCATED, null, 10));
+    }
+
+    @Test
+    public void chains_keptPerAdvertisingSet() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {1}, 0);
+        assembler.add(ADDRESS, 2, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {2}, 0);
+        assembler.add("66:77:88:99:AA:BB", 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {3}, 0);
+        assertEquals(3, assembler.getPendingCount());
+        assertArrayEquals(new byte[] {2, 20},
+                assembler.add(ADDRESS, 2, BLEAdvertisingDataAssembler.DATA_COMPLETE, new byte[] {20}, 10));
+        assertArrayEquals(new byte[] {1, 10},
+                assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_COMPLETE, new byte[] {10}, 10));
+        assembler.clear();
+        assertEquals(0, assembler.getPendingCount());
+    }
+
+    @Test
+    public void staleParts_dropped() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {1}, 0);
+        // The end of a chain seen after the timeout isn't joined to the stale parts
+        assertArrayEquals(new byte[] {9},
+                assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_COMPLETE, new byte[] {9}, TIMEOUT + 1));
+
+        assembler.add("66:77:88:99:AA:BB", 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, new byte[] {1}, 0);
+        assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_COMPLETE, new byte[] {2}, TIMEOUT * 3);
+        assertEquals(0, assembler.getPendingCount());
+    }
+
+    @Test
+    public void oversizedChain_dropped() {
+        final BLEAdvertisingDataAssembler assembler = new BLEAdvertisingDataAssembler(TIMEOUT);
+        final byte[] part = new byte[BLEScanOptions.MAX_EXTENDED_DATA_LENGTH / 2 + 1];
+        assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, part, 0);
+        assembler.add(ADDRESS, 1, BLEAdvertisingDataAssembler.DATA_INCOMPLETE, part, 1);
+        assertEquals(0, assembler.getPendingCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidTimeout() {
+        new BLEAdvertisingDataAssembler(0);
+    }
+}
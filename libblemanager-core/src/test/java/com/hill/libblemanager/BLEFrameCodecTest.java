@@ -0,0 +1,183 @@
+package com.hill.libblemanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BLEFrameCodecTest {
+    private static final int FRAGMENT_SIZE = 20;
+
+    private final List<byte[]> mMessages = new ArrayList<byte[]>();
+    private final List<int[]> mDrops = new ArrayList<int[]>(); // reason, lostFragments
+    private BLEFrameCodec.Encoder mEncoder;
+    private BLEFrameCodec.Decoder mDecoder;
+
+    @Before
+    public void setUp() {
+        mEncoder = new BLEFrameCodec.Encoder();
+        mDecoder = new BLEFrameCodec.Decoder(new BLEBufferPool(), new BLEFrameCodec.Listener() {
+            @Override
+            public void onMessage(final ByteBuffer message) {
+                final byte[] copy = new byte[message.remaining()];
+                message.get(copy);
+                mMessages.add(copy);
+            }
+
+            @Override
+            public void onMessageDropped(final int reason, final int lostFragments) {
+                mDrops.add(new int[] {reason, lostFragments});
+            }
+        });
+    }
+
+    private static byte[] message(final int size, final int seed) {
+        final byte[] message = new byte[size];
+        for (int i = 0; i < size; i++) {
+            message[i] = (byte) (seed + i);
+        }
+        return message;
+    }
+
+    @Test
+    public void encode_fragmentHeaders() {
+        final List<byte[]> fragments = mEncoder.encode(message(50, 0), FRAGMENT_SIZE);
+        // 17 bytes in the first fragment after the length, 19 in the others
+        assertEquals(3, fragments.size());
+        assertEquals(3, BLEFrameCodec.Encoder.getFragmentCount(50, FRAGMENT_SIZE));
+        assertEquals(BLEFrameCodec.FLAG_FIRST, fragments.get(0)[0] & 0xFF);
+        assertEquals(50, fragments.get(0)[1] & 0xFF);
+        assertEquals(1, fragments.get(1)[0] & 0xFF);
+        assertEquals(BLEFrameCodec.FLAG_LAST | 2, fragments.get(2)[0] & 0xFF);
+        assertEquals(1 + 50 - 17 - 19, fragments.get(2).length);
+
+        final List<byte[]> single = mEncoder.encode(new byte[0], FRAGMENT_SIZE);
+        assertEquals(1, single.size());
+        assertEquals(BLEFrameCodec.FLAG_FIRST | BLEFrameCodec.FLAG_LAST | 3, single.get(0)[0] & 0xFF);
+    }
+
+    @Test
+    public void decode_roundTrip() {
+        final byte[] first = message(200, 1);
+        final byte[] second = message(5, 2);
+        final byte[] third = message(BLEBufferPool.MIN_BUFFER_SIZE * 3, 3);
+        for (final byte[] message : new byte[][] {first, second, third}) {
+            for (final byte[] fragment : mEncoder.encode(message, FRAGMENT_SIZE)) {
+                mDecoder.decode(fragment);
+            }
+        }
+        assertEquals(3, mMessages.size());
+        assertArrayEquals(first, mMessages.get(0));
+        assertArrayEquals(second, mMessages.get(1));
+        assertArrayEquals(third, mMessages.get(2));
+        assertEquals(3, mDecoder.getMessageCount());
+        assertEquals(0, mDecoder.getDroppedCount());
+    }
+
+    @Test
+    public void decode_sequenceWrapsAround() {
+        for (int i = 0; i < BLEFrameCodec.SEQUENCE_MASK * 2; i++) {
+            for (final byte[] fragment : mEncoder.encode(message(30, i), FRAGMENT_SIZE)) {
+                mDecoder.decode(fragment);
+            }
+        }
+        assertEquals(BLEFrameCodec.SEQUENCE_MASK * 2, mMessages.size());
+        assertTrue(mDrops.isEmpty());
+    }
+
+    @Test
+    public void decode_lostMiddleFragment() {
+        final List<byte[]> fragments = mEncoder.encode(message(100, 0), FRAGMENT_SIZE);
+        assertEquals(6, fragments.size());
+        fragments.remove(2);
+        fragments.remove(2);
+        for (final byte[] fragment : fragments) {
+            mDecoder.decode(fragment);
+        }
+        assertTrue(mMessages.isEmpty());
+        assertEquals(1, mDrops.size());
+        assertEquals(BLEFrameCodec.DROP_LOST_FRAGMENTS, mDrops.get(0)[0]);
+        assertEquals(2, mDrops.get(0)[1]);
+
+        // The next message is received again
+        final byte[] next = message(40, 9);
+        for (final byte[] fragment : mEncoder.encode(next, FRAGMENT_SIZE)) {
+            mDecoder.decode(fragment);
+        }
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(next, mMessages.get(0));
+        assertEquals(1, mDecoder.getDroppedCount());
+    }
+
+    @Test
+    public void decode_lostLastFragment() {
+        final List<byte[]> fragments = mEncoder.encode(message(40, 0), FRAGMENT_SIZE);
+        fragments.remove(fragments.size() - 1);
+        for (final byte[] fragment : fragments) {
+            mDecoder.decode(fragment);
+        }
+        final byte[] next = message(10, 5);
+        for (final byte[] fragment : mEncoder.encode(next, FRAGMENT_SIZE)) {
+            mDecoder.decode(fragment);
+        }
+        assertEquals(1, mMessages.size());
+        assertArrayEquals(next, mMessages.get(0));
+        // Found by the sequence gap of the first fragment of the next message
+        assertEquals(1, mDrops.size());
+        assertEquals(BLEFrameCodec.DROP_LOST_FRAGMENTS, mDrops.get(0)[0]);
+        assertEquals(1, mDrops.get(0)[1]);
+    }
+
+    @Test
+    public void decode_invalidFragments() {
+        mDecoder.decode(new byte[0]);
+        mDecoder.decode(new byte[] {(byte) BLEFrameCodec.FLAG_FIRST, 1});
+        // Longer than the length of the message
+        mDecoder.decode(new byte[] {(byte) (BLEFrameCodec.FLAG_FIRST | BLEFrameCodec.FLAG_LAST | 1), 1, 0, 1, 2});
+        assertTrue(mMessages.isEmpty());
+        assertEquals(3, mDrops.size());
+        for (final int[] drop : mDrops) {
+            assertEquals(BLEFrameCodec.DROP_INVALID_FRAGMENT, drop[0]);
+        }
+    }
+
+    @Test
+    public void reset_acceptsAnySequence() {
+        mEncoder.encode(message(10, 0), FRAGMENT_SIZE);
+        for (final byte[] fragment : mEncoder.encode(message(10, 0), FRAGMENT_SIZE)) {
+            mDecoder.decode(fragment);
+        }
+        mEncoder.reset();
+        mDecoder.reset();
+        for (final byte[] fragment : mEncoder.encode(message(10, 1), FRAGMENT_SIZE)) {
+            mDecoder.decode(fragment);
+        }
+        assertEquals(2, mMessages.size());
+        assertTrue(mDrops.isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_fragmentTooSmall() {
+        mEncoder.encode(new byte[10], BLEFrameCodec.HEADER_SIZE + BLEFrameCodec.LENGTH_SIZE);
+    }
+
+    @Test
+    public void bufferPool_reusesBuffers() {
+        final BLEBufferPool pool = new BLEBufferPool(1);
+        final byte[] buffer = pool.acquire(100);
+        assertEquals(128, buffer.length);
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(65));
+        assertNotSame(buffer, pool.acquire(128));
+        assertEquals(BLEBufferPool.MIN_BUFFER_SIZE, pool.acquire(1).length);
+        // Arrays not from the pool aren't kept
+        final byte[] odd = new byte[100];
+        pool.release(odd);
+        assertNotSame(odd, pool.acquire(100));
+        assertEquals(BLEBufferPool.MAX_BUFFER_SIZE + 1, pool.acquire(BLEBufferPool.MAX_BUFFER_SIZE + 1).length);
+    }
+}
@@ -0,0 +1,293 @@
+package com.hill.libblemanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BLEGattSchedulerTest {
+    private BLEGattScheduler mScheduler;
+    // Operations handed to the executors of the connections, in the order they are picked
+    private final BlockingQueue<Runnable> mDispatched = new LinkedBlockingQueue<Runnable>();
+    private final Executor mExecutor = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            mDispatched.add(command);
+        }
+    };
+
+    private static final class Operation extends BLEGattScheduler.Operation {
+        Operation(final int priority, final int cost) {
+            super(priority, cost);
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    /**
+     * Transport starting every request, its results are reported by the tests
+     */
+    private static final class StubTransport implements BLEGattTransport {
+        @Override
+        public String getAddress() {
+            return "00:11:22:33:44:55";
+        }
+
+        @Override
+        public boolean discoverServices() {
+            return true;
+        }
+
+        @Override
+        public List<BLEAttribute> getServices() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean readAttribute(final BLEAttribute attribute) {
+            return true;
+        }
+
+        @Override
+        public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+            return true;
+        }
+
+        @Override
+        public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+            return true;
+        }
+
+        @Override
+        public boolean readRemoteRssi() {
+            return true;
+        }
+
+        @Override
+        public boolean requestMtu(final int mtu) {
+            return true;
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Records the RSSI results passed to the user of the transport, e.g. "rssi 0 -60"
+     */
+    private static final class RssiResults implements BLEGattTransport.Callback {
+        private final BlockingQueue<String> mResults = new LinkedBlockingQueue<String>();
+
+        @Override
+        public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+        }
+
+        @Override
+        public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+        }
+
+        @Override
+        public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+        }
+
+        @Override
+        public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+        }
+
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+            mResults.add("rssi "+status+" "+rssi);
+        }
+
+        @Override
+        public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mScheduler = new BLEGattScheduler();
+    }
+
+    @Test
+    public void oneInFlight_runsInOrder() {
+        final BLEGattScheduler.Connection connection = mScheduler.register(mExecutor);
+        final Operation first = new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1);
+        final Operation second = new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1);
+        assertTrue(connection.submit(first));
+        assertTrue(connection.submit(second));
+        assertSame(first, mDispatched.poll());
+        assertNull(mDispatched.poll());
+        assertEquals(1, mScheduler.getInFlightCount());
+        assertEquals(1, mScheduler.getQueuedCount());
+
+        connection.complete(first);
+        // Completing it again doesn't release another slot
+        connection.complete(first);
+        assertSame(second, mDispatched.poll());
+        assertNull(mDispatched.poll());
+        connection.complete(second);
+        assertEquals(0, mScheduler.getInFlightCount());
+        assertEquals(0, mScheduler.getQueuedCount());
+    }
+
+    @Test
+    public void interactive_overtakesBulk() {
+        final BLEGattScheduler.Connection bulkConnection = mScheduler.register(mExecutor);
+        final BLEGattScheduler.Connection controlConnection = mScheduler.register(mExecutor);
+        final Operation[] bulk = new Operation[5];
+        for (int i = 0; i < bulk.length; i++) {
+            bulk[i] = new Operation(BLEGattScheduler.PRIORITY_BULK, 244);
+            bulkConnection.submit(bulk[i]);
+        }
+        assertSame(bulk[0], mDispatched.poll());
+        final Operation control = new Operation(BLEGattScheduler.PRIORITY_INTERACTIVE, 2);
+        controlConnection.submit(control);
+        assertNull(mDispatched.poll());
+
+        bulkConnection.complete(bulk[0]);
+        assertSame(control, mDispatched.poll());
+        controlConnection.complete(control);
+        for (int i = 1; i < bulk.length; i++) {
+            assertSame(bulk[i], mDispatched.poll());
+            bulkConnection.complete(bulk[i]);
+        }
+        assertNull(mDispatched.poll());
+    }
+
+    @Test
+    public void weights_shareAirTime() {
+        mScheduler.setMaxInFlight(1, 1);
+        final BLEGattScheduler.Connection connection = mScheduler.register(mExecutor);
+        for (int i = 0; i < 20; i++) {
+            connection.submit(new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1));
+            connection.submit(new Operation(BLEGattScheduler.PRIORITY_BULK, 1));
+        }
+        int background = 0;
+        for (int i = 0; i < 10; i++) {
+            final Operation operation = (Operation) mDispatched.poll();
+            if (operation.priority == BLEGattScheduler.PRIORITY_BACKGROUND) {
+                background++;
+            }
+            connection.complete(operation);
+        }
+        // Background weighs 4 times more than bulk by default, bulk still gets its share
+        assertTrue("Background operations: "+background, background >= 7 && background <= 9);
+    }
+
+    @Test
+    public void maxInFlight_perConnection() {
+        mScheduler.setMaxInFlight(2, 1);
+        final BLEGattScheduler.Connection first = mScheduler.register(mExecutor);
+        final BLEGattScheduler.Connection second = mScheduler.register(mExecutor);
+        first.submit(new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1));
+        first.submit(new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1));
+        second.submit(new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1));
+        assertEquals(2, mScheduler.getInFlightCount());
+        final Operation a = (Operation) mDispatched.poll();
+        final Operation b = (Operation) mDispatched.poll();
+        assertNotSame(a.connection, b.connection);
+        assertNull(mDispatched.poll());
+    }
+
+    @Test
+    public void timeout_releasesLostOperation() throws InterruptedException {
+        mScheduler.setOperationTimeout(50);
+        final BLEGattScheduler.Connection connection = mScheduler.register(mExecutor);
+        final Operation lost = new Operation(BLEGattScheduler.PRIORITY_INTERACTIVE, 1);
+        final Operation next = new Operation(BLEGattScheduler.PRIORITY_INTERACTIVE, 1);
+        connection.submit(lost);
+        connection.submit(next);
+        assertSame(lost, mDispatched.poll());
+        assertSame(next, mDispatched.poll(5, TimeUnit.SECONDS));
+        assertTrue(lost.done);
+        connection.complete(next);
+        assertEquals(0, mScheduler.getInFlightCount());
+    }
+
+    @Test
+    public void scheduledGatt_dropsLateResultOfTimedOutRequest() throws InterruptedException {
+        // Long enough for the second read not to time out too before its result
+        mScheduler.setOperationTimeout(500);
+        final StubTransport transport = new StubTransport();
+        final RssiResults results = new RssiResults();
+        final BLEScheduledGatt gatt = new BLEScheduledGatt(mScheduler, mExecutor, new BLEScheduledGatt.Priorities(), results);
+        gatt.attach(transport);
+        assertTrue(gatt.readRemoteRssi());
+        assertTrue(gatt.readRemoteRssi());
+        mDispatched.poll().run();
+
+        // The first read times out, it's reported as failed and the second one is started
+        final Runnable second = mDispatched.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertEquals("rssi "+BLEGattTransport.STATUS_FAILURE+" 0", results.mResults.poll(5, TimeUnit.SECONDS));
+        second.run();
+        assertTrue(gatt.readRemoteRssi());
+
+        // The late result of the first read neither reaches the user nor releases the slot of the second one
+        gatt.getTransportCallback().onRemoteRssiRead(transport, -50, BLEGattTransport.STATUS_SUCCESS);
+        assertNull(results.mResults.poll());
+        assertEquals(1, mScheduler.getInFlightCount());
+        assertNull(mDispatched.poll());
+
+        gatt.getTransportCallback().onRemoteRssiRead(transport, -60, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals("rssi 0 -60", results.mResults.poll());
+        assertNotNull(mDispatched.poll());
+    }
+
+    @Test
+    public void clear_dropsQueuedAndIgnoresLateCompletion() {
+        final BLEGattScheduler.Connection connection = mScheduler.register(mExecutor);
+        final Operation inFlight = new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1);
+        final Operation queued = new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1);
+        connection.submit(inFlight);
+        connection.submit(queued);
+        mDispatched.clear();
+
+        final List<BLEGattScheduler.Operation> dropped = connection.clear();
+        assertEquals(1, dropped.size());
+        assertSame(queued, dropped.get(0));
+        assertEquals(0, mScheduler.getInFlightCount());
+        assertEquals(0, mScheduler.getQueuedCount());
+
+        final Operation after = new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1);
+        connection.submit(after);
+        assertSame(after, mDispatched.poll());
+        // The result of the operation released by clear doesn't free the slot of the new one
+        connection.complete(inFlight);
+        assertEquals(1, mScheduler.getInFlightCount());
+        connection.complete(after);
+        assertEquals(0, mScheduler.getInFlightCount());
+    }
+
+    @Test
+    public void close_rejectsOperations() {
+        final BLEGattScheduler.Connection connection = mScheduler.register(mExecutor);
+        connection.close();
+        assertFalse(connection.submit(new Operation(BLEGattScheduler.PRIORITY_BACKGROUND, 1)));
+        assertNull(mDispatched.poll());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidWeight() {
+        mScheduler.setWeight(BLEGattScheduler.PRIORITY_BULK, 0);
+    }
+}
@@ -0,0 +1,88 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLEHistogramTest {
+    @Test
+    public void empty_percentilesAreZero() {
+        final BLEHistogram.Snapshot snapshot = new BLEHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(50));
+    }
+
+    @Test
+    public void smallValues_exact() {
+        final BLEHistogram histogram = new BLEHistogram();
+        for (int i = 1; i <= 10; i++) {
+            histogram.record(i);
+        }
+        final BLEHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.getCount());
+        assertEquals(1, snapshot.getMin());
+        assertEquals(10, snapshot.getMax());
+        assertEquals(5.5, snapshot.getMean(), 0);
+        assertEquals(5, snapshot.getPercentile(50));
+        assertEquals(9, snapshot.getPercentile(90));
+        assertEquals(10, snapshot.getPercentile(100));
+        assertEquals(1, snapshot.getPercentile(0));
+    }
+
+    @Test
+    public void largeValues_withinBucketError() {
+        final BLEHistogram histogram = new BLEHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        final BLEHistogram.Snapshot snapshot = histogram.snapshot();
+        assertWithin(5000000, snapshot.getPercentile(50));
+        assertWithin(9000000, snapshot.getPercentile(90));
+        assertWithin(9900000, snapshot.getPercentile(99));
+        assertEquals(10000000, snapshot.getPercentile(100));
+        // Percentiles never go beyond the recorded range
+        assertTrue(snapshot.getPercentile(99.99) <= snapshot.getMax());
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        final double error = Math.abs(actual - expected) / (double) expected;
+        assertTrue("Expected about "+expected+" but was "+actual, error <= 1.0 / BLEHistogram.SUB_BUCKET_COUNT);
+    }
+
+    @Test
+    public void buckets_coverValues() {
+        for (long value = 0; value < 1L << 20; value = value * 3 / 2 + 1) {
+            final int bucket = BLEHistogram.bucketOf(value);
+            assertTrue(BLEHistogram.lowestValueOf(bucket) <= value);
+            assertTrue(BLEHistogram.highestValueOf(bucket) >= value);
+        }
+    }
+
+    @Test
+    public void negativeValues_ignored() {
+        final BLEHistogram histogram = new BLEHistogram();
+        histogram.record(-1);
+        assertEquals(0, histogram.getCount());
+    }
+
+    @Test
+    public void since_keepsLaterValues() {
+        final BLEHistogram histogram = new BLEHistogram();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1);
+        }
+        final BLEHistogram.Snapshot earlier = histogram.snapshot();
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000);
+        }
+        final BLEHistogram.Snapshot period = histogram.snapshot().since(earlier);
+        assertEquals(100, period.getCount());
+        assertWithin(1000, period.getPercentile(50));
+        assertEquals(1000, period.getMean(), 0);
+
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().getCount());
+    }
+}
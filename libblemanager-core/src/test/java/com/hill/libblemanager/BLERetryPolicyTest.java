@@ -0,0 +1,67 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BLERetryPolicyTest {
+    @Test
+    public void backoff_growsUpToTheMax() {
+        final BLERetryPolicy policy = new BLERetryPolicy.Builder().setBackoff(100, 3, 1000).build();
+        assertEquals(100, policy.getBackoff(1));
+        assertEquals(300, policy.getBackoff(2));
+        assertEquals(900, policy.getBackoff(3));
+        assertEquals(1000, policy.getBackoff(4));
+        assertEquals(1000, policy.getBackoff(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void defaultPolicy_retriesTransientStatuses() {
+        final BLERetryPolicy policy = new BLERetryPolicy.Builder().build();
+        assertEquals(BLERetryPolicy.DEFAULT_INITIAL_BACKOFF, policy.getBackoff(1));
+        assertTrue(policy.shouldRetry(BLEGattTransport.STATUS_GATT_ERROR, 1));
+        assertTrue(policy.shouldRetry(BLEGattTransport.STATUS_INSUFFICIENT_ENCRYPTION, 2));
+        assertFalse(policy.shouldRetry(BLEGattTransport.STATUS_GATT_ERROR, BLERetryPolicy.DEFAULT_MAX_ATTEMPTS));
+        assertFalse(policy.shouldRetry(BLEGattTransport.STATUS_READ_NOT_PERMITTED, 1));
+        assertFalse(BLERetryPolicy.NONE.shouldRetry(BLEGattTransport.STATUS_GATT_ERROR, 1));
+    }
+
+    @Test
+    public void retryableStatuses_replaceTheDefaults() {
+        final BLERetryPolicy policy = new BLERetryPolicy.Builder()
+                .setRetryableStatuses(BLEGattTransport.STATUS_FAILURE).build();
+        assertTrue(policy.isRetryable(BLEGattTransport.STATUS_FAILURE));
+        assertFalse(policy.isRetryable(BLEGattTransport.STATUS_GATT_ERROR));
+    }
+
+    @Test
+    public void budget_limitsRetriesInTheWindow() {
+        final BLERetryPolicy.Budget budget = new BLERetryPolicy.Budget(
+                new BLERetryPolicy.Builder().setBudget(2, 1000).build());
+        assertTrue(budget.tryAcquire(10000));
+        assertTrue(budget.tryAcquire(10500));
+        assertFalse(budget.tryAcquire(10999));
+        // The window starts with the first retry, not with the last one
+        assertTrue(budget.tryAcquire(11000));
+        assertTrue(budget.tryAcquire(11100));
+        assertFalse(budget.tryAcquire(11200));
+    }
+
+    @Test
+    public void emptyBudget_neverRetries() {
+        final BLERetryPolicy.Budget budget = new BLERetryPolicy.Budget(
+                new BLERetryPolicy.Builder().setBudget(0, 1000).build());
+        assertFalse(budget.tryAcquire(0));
+        assertFalse(budget.tryAcquire(5000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void backoff_maxBelowInitialRejected() {
+        new BLERetryPolicy.Builder().setBackoff(100, 2, 50);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void maxAttempts_zeroRejected() {
+        new BLERetryPolicy.Builder().setMaxAttempts(0);
+    }
+}
@@ -0,0 +1,256 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sessions recorded from {@link BLESimulator} and replayed by {@link BLESessionReplayer}.
+ */
+public class BLESessionRecorderTest {
+    private static final long CALLBACK_TIMEOUT = 5000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE_UUID = BLEUuid.fromShortUuid(0x180D);
+    private static final UUID CHARACTERISTIC_UUID = BLEUuid.fromShortUuid(0x2A37);
+
+    private BLESimulator mSimulator;
+    private BLESimulatedPeripheral mPeripheral;
+    private BLESimulatedAttribute mCharacteristic;
+    private BLESessionReplayer mReplayer;
+    private List<String> mRecordedSession;
+
+    /**
+     * Records the callbacks of a connection as text, e.g. "read 0 010203", in the order they are called
+     */
+    private static final class Events implements BLEGattTransport.Callback {
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        private final List<String> mHistory = new ArrayList<String>();
+
+        String next() throws InterruptedException {
+            final String event = mEvents.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No callback in "+CALLBACK_TIMEOUT+" ms", event);
+            mHistory.add(event);
+            return event;
+        }
+
+        List<String> getHistory() {
+            return mHistory;
+        }
+
+        private static String hex(final byte[] value) {
+            if (value == null) {
+                return "null";
+            }
+            final StringBuilder builder = new StringBuilder();
+            for (final byte b : value) {
+                builder.append(String.format("%02X", b));
+            }
+            return builder.toString();
+        }
+
+        @Override
+        public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+            mEvents.add("connection "+status+" "+newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+            mEvents.add("discovered "+status);
+        }
+
+        @Override
+        public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+            mEvents.add("read "+status+" "+attribute.getUuid()+" "+hex(value));
+        }
+
+        @Override
+        public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+            mEvents.add("write "+status+" "+attribute.getUuid());
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+            mEvents.add("changed "+characteristic.getUuid()+" "+hex(value));
+        }
+
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+            mEvents.add("rssi "+status+" "+rssi);
+        }
+
+        @Override
+        public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+            mEvents.add("mtu "+mtu+" "+status);
+        }
+    }
+
+    /**
+     * Collects scan results
+     */
+    private static final class ScanResults implements BLEScanTransport.Callback {
+        private final BlockingQueue<BLEScanResult> mResults = new LinkedBlockingQueue<BLEScanResult>();
+
+        BLEScanResult next() throws InterruptedException {
+            final BLEScanResult result = mResults.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No scan result in "+CALLBACK_TIMEOUT+" ms", result);
+            return result;
+        }
+
+        @Override
+        public void onScanResult(final BLEScanResult result) {
+            mResults.add(result);
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            fail("Scan failed: "+errorCode);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSimulator = new BLESimulator(1, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        mPeripheral = new BLESimulatedPeripheral(ADDRESS, "Simulated");
+        mPeripheral.setAdvertisingInterval(20);
+        mCharacteristic = mPeripheral.addService(SERVICE_UUID).addCharacteristic(CHARACTERISTIC_UUID,
+                BLEAttribute.PROPERTY_READ | BLEAttribute.PROPERTY_WRITE | BLEAttribute.PROPERTY_NOTIFY);
+        mCharacteristic.setValue(new byte[] {1, 2, 3});
+        mSimulator.addPeripheral(mPeripheral);
+    }
+
+    @After
+    public void tearDown() {
+        mSimulator.shutdown();
+        if (mReplayer != null) {
+            mReplayer.shutdown();
+        }
+    }
+
+    /**
+     * Runs the same session against the transport, notifications are sent by the peripheral when recording
+     * @return The scan result and the callbacks of the connection
+     */
+    private List<String> runSession(final BLETransport transport, final boolean recording) throws InterruptedException {
+        final List<String> session = new ArrayList<String>();
+        final ScanResults results = new ScanResults();
+        assertTrue(transport.getScanTransport().startScan(null, results));
+        final BLEScanResult result = results.next();
+        transport.getScanTransport().stopScan(results);
+        session.add("scan "+result.address+" "+result.name+" "+result.rssi+" "+Events.hex(result.scanRecord));
+
+        final Events events = new Events();
+        final BLEGattTransport gatt = transport.connectGatt(ADDRESS, false, events);
+        assertNotNull(gatt);
+        assertEquals("connection 0 2", events.next());
+        assertTrue(gatt.discoverServices());
+        assertEquals("discovered 0", events.next());
+        final BLEAttribute service = gatt.getServices().get(0);
+        assertEquals(SERVICE_UUID, service.getUuid());
+        final BLEAttribute characteristic = service.getChildren().get(0);
+        assertEquals(CHARACTERISTIC_UUID, characteristic.getUuid());
+        final BLEAttribute clientConfig = characteristic.getChildren().get(0);
+
+        assertTrue(gatt.readAttribute(characteristic));
+        events.next();
+        assertArrayEquals(new byte[] {1, 2, 3}, characteristic.getValue());
+        assertTrue(gatt.writeAttribute(characteristic, new byte[] {4, 5}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        events.next();
+        assertTrue(gatt.setNotification(characteristic, true));
+        assertTrue(gatt.writeAttribute(clientConfig, new byte[] {1, 0}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        events.next();
+        if (recording) {
+            mPeripheral.notifyValueChanged(mCharacteristic, new byte[] {7, 8});
+        }
+        events.next();
+        assertArrayEquals(new byte[] {7, 8}, characteristic.getValue());
+        assertTrue(gatt.readRemoteRssi());
+        events.next();
+        gatt.disconnect();
+        assertEquals("connection 0 0", events.next());
+        gatt.close();
+
+        session.addAll(events.getHistory());
+        return session;
+    }
+
+    /**
+     * Records the session, its callbacks are kept in mRecordedSession
+     * @return The recording
+     */
+    private byte[] record() throws InterruptedException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final BLESessionRecorder recorder = new BLESessionRecorder(mSimulator, output);
+        mRecordedSession = runSession(recorder, true);
+        assertNull(recorder.stop());
+        assertEquals(0, recorder.getDroppedCount());
+        return output.toByteArray();
+    }
+
+    @Test
+    public void replay_sameCallbacksAsRecorded() throws IOException, InterruptedException {
+        final byte[] recording = record();
+
+        mReplayer = new BLESessionReplayer(new ByteArrayInputStream(recording));
+        mReplayer.setSpeed(BLESessionReplayer.SPEED_UNLIMITED);
+        assertEquals(1, mReplayer.getScanCount());
+        assertEquals(1, mReplayer.getConnectionCount(ADDRESS));
+        assertEquals(mRecordedSession, runSession(mReplayer, false));
+        assertEquals(0, mReplayer.getScanCount());
+        assertEquals(0, mReplayer.getConnectionCount(ADDRESS));
+        // Every recorded connection is replayed once
+        assertNull(mReplayer.connectGatt(ADDRESS, false, new Events()));
+    }
+
+    @Test
+    public void replay_waitsForTheRequest() throws IOException, InterruptedException {
+        final byte[] recording = record();
+
+        mReplayer = new BLESessionReplayer(new ByteArrayInputStream(recording));
+        mReplayer.setSpeed(BLESessionReplayer.SPEED_UNLIMITED);
+        final Events events = new Events();
+        final BLEGattTransport gatt = mReplayer.connectGatt(ADDRESS, false, events);
+        assertEquals("connection 0 2", events.next());
+        // Service discovery isn't replayed before it's requested
+        Thread.sleep(100);
+        assertTrue(gatt.getServices().isEmpty());
+        assertTrue(gatt.discoverServices());
+        assertEquals("discovered 0", events.next());
+        assertEquals(1, gatt.getServices().size());
+        gatt.close();
+    }
+
+    @Test
+    public void replay_truncatedRecording() throws IOException, InterruptedException {
+        final byte[] recording = record();
+
+        // Cut in the last record, like a recording app killed while writing
+        mReplayer = new BLESessionReplayer(new ByteArrayInputStream(Arrays.copyOf(recording, recording.length - 1)));
+        mReplayer.setSpeed(BLESessionReplayer.SPEED_UNLIMITED);
+        assertEquals(1, mReplayer.getScanCount());
+        assertEquals(1, mReplayer.getConnectionCount(ADDRESS));
+        final Events events = new Events();
+        final BLEGattTransport gatt = mReplayer.connectGatt(ADDRESS, false, events);
+        assertEquals("connection 0 2", events.next());
+        gatt.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void replay_notARecording() throws IOException {
+        new BLESessionReplayer(new ByteArrayInputStream(new byte[16]));
+    }
+}
@@ -0,0 +1,309 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connections to simulated peripherals, driven through {@link BLEGattTransport} like BLEDevice does.
+ */
+public class BLESimulatorTest {
+    private static final long CALLBACK_TIMEOUT = 5000;
+    private static final UUID SERVICE_UUID = BLEUuid.fromShortUuid(0x180D);
+    private static final UUID CHARACTERISTIC_UUID = BLEUuid.fromShortUuid(0x2A37);
+
+    private BLESimulator mSimulator;
+    private BLESimulatedPeripheral mPeripheral;
+    private BLESimulatedAttribute mCharacteristic;
+
+    /**
+     * Records the callbacks of a connection as text, e.g. "connection 0 2", in the order they are called
+     */
+    private static final class Events implements BLEGattTransport.Callback {
+        private final BlockingQueue<String> mEvents = new LinkedBlockingQueue<String>();
+        private volatile byte[] mLastValue = null;
+
+        String next() throws InterruptedException {
+            final String event = mEvents.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No callback in "+CALLBACK_TIMEOUT+" ms", event);
+            return event;
+        }
+
+        byte[] getLastValue() {
+            return mLastValue;
+        }
+
+        @Override
+        public void onConnectionStateChange(final BLEGattTransport transport, final int status, final int newState) {
+            mEvents.add("connection "+status+" "+newState);
+        }
+
+        @Override
+        public void onServicesDiscovered(final BLEGattTransport transport, final int status) {
+            mEvents.add("discovered "+status);
+        }
+
+        @Override
+        public void onAttributeRead(final BLEGattTransport transport, final BLEAttribute attribute, final byte[] value, final int status) {
+            mLastValue = value;
+            mEvents.add("read "+status);
+        }
+
+        @Override
+        public void onAttributeWrite(final BLEGattTransport transport, final BLEAttribute attribute, final int status) {
+            mEvents.add("write "+status);
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BLEGattTransport transport, final BLEAttribute characteristic, final byte[] value) {
+            mLastValue = value;
+            mEvents.add("changed");
+        }
+
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport transport, final int rssi, final int status) {
+            mEvents.add("rssi "+status);
+        }
+
+        @Override
+        public void onMtuChanged(final BLEGattTransport transport, final int mtu, final int status) {
+            mEvents.add("mtu "+mtu+" "+status);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mSimulator = new BLESimulator(1, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        mPeripheral = newPeripheral("00:11:22:33:44:55");
+        mCharacteristic = (BLESimulatedAttribute) mPeripheral.getServices().get(0).getChildren().get(0);
+        mSimulator.addPeripheral(mPeripheral);
+    }
+
+    @After
+    public void tearDown() {
+        mSimulator.shutdown();
+    }
+
+    private static BLESimulatedPeripheral newPeripheral(final String address) {
+        final BLESimulatedPeripheral peripheral = new BLESimulatedPeripheral(address, "Simulated");
+        peripheral.setAdvertisingInterval(20);
+        final BLESimulatedAttribute service = peripheral.addService(SERVICE_UUID);
+        service.addCharacteristic(CHARACTERISTIC_UUID, BLEAttribute.PROPERTY_READ | BLEAttribute.PROPERTY_WRITE
+                | BLEAttribute.PROPERTY_NOTIFY).setValue(new byte[] {1, 2, 3});
+        return peripheral;
+    }
+
+    private BLEGattTransport connect(final String address, final Events events) throws InterruptedException {
+        final BLEGattTransport transport = mSimulator.connectGatt(address, false, events);
+        assertNotNull(transport);
+        assertEquals("connection 0 2", events.next());
+        return transport;
+    }
+
+    private static BLEAttribute discoverCharacteristic(final BLEGattTransport transport, final Events events)
+            throws InterruptedException {
+        assertTrue(transport.discoverServices());
+        assertEquals("discovered 0", events.next());
+        assertEquals(1, transport.getServices().size());
+        final BLEAttribute service = transport.getServices().get(0);
+        assertEquals(SERVICE_UUID, service.getUuid());
+        final BLEAttribute characteristic = service.getChildren().get(0);
+        assertEquals(CHARACTERISTIC_UUID, characteristic.getUuid());
+        return characteristic;
+    }
+
+    @Test
+    public void connect_discover_readWrite() throws InterruptedException {
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        assertEquals(1, mSimulator.getConnectionCount());
+        assertEquals(1, mPeripheral.getConnectionCount());
+        final BLEAttribute characteristic = discoverCharacteristic(transport, events);
+
+        // One request at a time, like BluetoothGatt
+        mSimulator.setLatency(100, 100);
+        assertTrue(transport.readAttribute(characteristic));
+        assertFalse(transport.readAttribute(characteristic));
+        mSimulator.setLatency(0, 2);
+        assertEquals("read 0", events.next());
+        assertArrayEquals(new byte[] {1, 2, 3}, events.getLastValue());
+        assertArrayEquals(new byte[] {1, 2, 3}, characteristic.getValue());
+
+        assertTrue(transport.writeAttribute(characteristic, new byte[] {4, 5}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        assertEquals("write 0", events.next());
+        assertArrayEquals(new byte[] {4, 5}, mCharacteristic.getValue());
+
+        assertTrue(transport.requestMtu(247));
+        assertEquals("mtu 247 0", events.next());
+        assertTrue(transport.readRemoteRssi());
+        assertEquals("rssi 0", events.next());
+
+        transport.disconnect();
+        assertEquals("connection 0 0", events.next());
+        assertEquals(0, mSimulator.getConnectionCount());
+        assertEquals(0, mPeripheral.getConnectionCount());
+        transport.close();
+    }
+
+    @Test
+    public void write_rejectedByPeripheral() throws InterruptedException {
+        mPeripheral.setRequestHandler(new BLESimulatedPeripheral.RequestHandler() {
+            @Override
+            public int onRead(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute) {
+                return BLEGattTransport.STATUS_READ_NOT_PERMITTED;
+            }
+
+            @Override
+            public int onWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute, final byte[] value) {
+                return BLEGattTransport.STATUS_WRITE_NOT_PERMITTED;
+            }
+        });
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        final BLEAttribute characteristic = discoverCharacteristic(transport, events);
+
+        assertTrue(transport.readAttribute(characteristic));
+        assertEquals("read "+BLEGattTransport.STATUS_READ_NOT_PERMITTED, events.next());
+        assertNull(events.getLastValue());
+        assertTrue(transport.writeAttribute(characteristic, new byte[] {4}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        assertEquals("write "+BLEGattTransport.STATUS_WRITE_NOT_PERMITTED, events.next());
+        assertArrayEquals(new byte[] {1, 2, 3}, mCharacteristic.getValue());
+        transport.close();
+    }
+
+    @Test
+    public void notification_deliveredWhenSubscribed() throws InterruptedException {
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        final BLEAttribute characteristic = discoverCharacteristic(transport, events);
+        final BLEAttribute clientConfig = characteristic.getChildren().get(0);
+        assertEquals(BLESimulatedAttribute.CLIENT_CONFIG_UUID, clientConfig.getUuid());
+
+        assertTrue(transport.setNotification(characteristic, true));
+        assertTrue(transport.writeAttribute(clientConfig, new byte[] {1, 0}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        assertEquals("write 0", events.next());
+        mPeripheral.notifyValueChanged(mCharacteristic, new byte[] {7, 8});
+        assertEquals("changed", events.next());
+        assertArrayEquals(new byte[] {7, 8}, events.getLastValue());
+        assertArrayEquals(new byte[] {7, 8}, characteristic.getValue());
+
+        // Unsubscribed on the peripheral, nothing is sent
+        assertTrue(transport.writeAttribute(clientConfig, new byte[] {0, 0}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        assertEquals("write 0", events.next());
+        mPeripheral.notifyValueChanged(mCharacteristic, new byte[] {9});
+        assertTrue(transport.readRemoteRssi());
+        assertEquals("rssi 0", events.next());
+        transport.close();
+    }
+
+    @Test
+    public void packetLoss_retransmitted() throws InterruptedException {
+        mSimulator.setPacketLoss(0.3);
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        final BLEAttribute characteristic = discoverCharacteristic(transport, events);
+        for (int i = 0; i < 10; i++) {
+            final byte[] value = new byte[100];
+            Arrays.fill(value, (byte) i);
+            assertTrue(transport.writeAttribute(characteristic, value, BLEGattTransport.WRITE_TYPE_DEFAULT));
+            assertEquals("write 0", events.next());
+            assertArrayEquals(value, mCharacteristic.getValue());
+        }
+        transport.close();
+    }
+
+    @Test
+    public void packetLoss_supervisionTimeout() throws InterruptedException {
+        mSimulator.setSupervisionTimeout(50);
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        final BLEAttribute characteristic = discoverCharacteristic(transport, events);
+
+        mSimulator.setPacketLoss(1);
+        assertTrue(transport.writeAttribute(characteristic, new byte[] {4}, BLEGattTransport.WRITE_TYPE_DEFAULT));
+        assertEquals("connection "+BLEGattTransport.STATUS_CONNECTION_TIMEOUT+" 0", events.next());
+        assertEquals(0, mSimulator.getConnectionCount());
+        assertEquals(0, mPeripheral.getConnectionCount());
+        transport.close();
+    }
+
+    @Test
+    public void connect_absentPeripheralTimesOut() throws InterruptedException {
+        mSimulator.setConnectTimeout(200);
+        final Events events = new Events();
+        final BLEGattTransport transport = mSimulator.connectGatt("66:77:88:99:AA:BB", false, events);
+        assertEquals("connection "+BLEGattTransport.STATUS_FAILURE+" 0", events.next());
+        assertEquals(0, mSimulator.getConnectionCount());
+        transport.close();
+    }
+
+    @Test
+    public void connect_removedPeripheralLosesLink() throws InterruptedException {
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        mSimulator.removePeripheral(mPeripheral);
+        assertEquals("connection "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" 0", events.next());
+        assertEquals(0, mSimulator.getConnectionCount());
+        transport.close();
+    }
+
+    @Test
+    public void connect_maxConnections() throws InterruptedException {
+        mSimulator.setMaxConnections(1);
+        mSimulator.setConnectTimeout(200);
+        final BLESimulatedPeripheral other = newPeripheral("66:77:88:99:AA:BB");
+        mSimulator.addPeripheral(other);
+
+        final Events events = new Events();
+        final BLEGattTransport transport = connect(mPeripheral.getAddress(), events);
+        final Events otherEvents = new Events();
+        final BLEGattTransport otherTransport = mSimulator.connectGatt(other.getAddress(), false, otherEvents);
+        assertEquals("connection "+BLEGattTransport.STATUS_FAILURE+" 0", otherEvents.next());
+        assertEquals(1, mSimulator.getConnectionCount());
+        assertEquals(0, other.getConnectionCount());
+        otherTransport.close();
+
+        // The link is free again once the first one is disconnected
+        transport.disconnect();
+        assertEquals("connection 0 0", events.next());
+        final Events retryEvents = new Events();
+        final BLEGattTransport retryTransport = connect(other.getAddress(), retryEvents);
+        assertEquals(1, mSimulator.getConnectionCount());
+        retryTransport.close();
+        transport.close();
+        assertEquals(0, mSimulator.getConnectionCount());
+    }
+
+    @Test
+    public void scan_findsAdvertisingPeripheral() throws InterruptedException {
+        final BlockingQueue<BLEScanResult> results = new LinkedBlockingQueue<BLEScanResult>();
+        final BLEScanTransport.Callback callback = new BLEScanTransport.Callback() {
+            @Override
+            public void onScanResult(final BLEScanResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void onScanFailed(final int errorCode) {
+                fail("Scan failed: "+errorCode);
+            }
+        };
+        assertTrue(mSimulator.getScanTransport().startScan(null, callback));
+        final BLEScanResult result = results.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(result);
+        assertEquals(mPeripheral.getAddress(), result.address);
+        assertEquals("Simulated", result.name);
+        assertTrue(result.legacy);
+        mSimulator.getScanTransport().stopScan(callback);
+    }
+}
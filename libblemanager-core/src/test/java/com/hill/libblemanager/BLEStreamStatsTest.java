@@ -0,0 +1,98 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BLEStreamStatsTest {
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+
+    @Test
+    public void regularStream_rateWithoutJitter() {
+        final BLEStreamStats stats = new BLEStreamStats();
+        for (int i = 0; i <= 100; i++) {
+            stats.onReceived(new byte[] {1}, 1000 + i * INTERVAL);
+        }
+        assertEquals(101, stats.getCount());
+        assertEquals(100, stats.getRate(), 1e-9);
+        assertEquals(0, stats.getJitterNanos());
+        final BLEHistogram.Snapshot interArrival = stats.getInterArrival();
+        assertEquals(100, interArrival.getCount());
+        assertEquals(INTERVAL, interArrival.getPercentile(50), INTERVAL / 50);
+        assertEquals(0, stats.getLost());
+        assertEquals(0, stats.getLossRatio(), 0);
+    }
+
+    @Test
+    public void alternatingIntervals_jitterConvergesToDeviation() {
+        final BLEStreamStats stats = new BLEStreamStats();
+        long time = 0;
+        for (int i = 0; i < 200; i++) {
+            time += i % 2 == 0 ? INTERVAL : 2 * INTERVAL;
+            stats.onReceived(null, time);
+        }
+        assertEquals(INTERVAL, stats.getJitterNanos(), INTERVAL / 100);
+    }
+
+    @Test
+    public void sequence_lostAndOutOfOrder() {
+        final BLEStreamStats stats = new BLEStreamStats(BLEValueFormat.FORMAT_UINT8, 1);
+        final int[] sequences = {0, 1, 3, 2, 4, 4, 7};
+        for (int i = 0; i < sequences.length; i++) {
+            stats.onReceived(new byte[] {0x55, (byte) sequences[i]}, i * INTERVAL);
+        }
+        assertEquals(7, stats.getCount());
+        // 2, 5 and 6 are skipped; the late 2 and the repeated 4 are behind the latest counter
+        assertEquals(3, stats.getLost());
+        assertEquals(2, stats.getOutOfOrder());
+        assertEquals(0, stats.getInvalid());
+        assertEquals(3.0 / 8, stats.getLossRatio(), 1e-9);
+    }
+
+    @Test
+    public void sequence_wrapsAround() {
+        final BLEStreamStats stats = new BLEStreamStats(BLEValueFormat.FORMAT_UINT16, 0);
+        final int[] sequences = {0xFFFE, 0xFFFF, 0, 2};
+        for (int i = 0; i < sequences.length; i++) {
+            stats.onReceived(new byte[] {(byte) sequences[i], (byte) (sequences[i] >> 8)}, i * INTERVAL);
+        }
+        assertEquals(1, stats.getLost());
+        assertEquals(0, stats.getOutOfOrder());
+    }
+
+    @Test
+    public void sequence_shortPayloadInvalid() {
+        final BLEStreamStats stats = new BLEStreamStats(BLEValueFormat.FORMAT_UINT16, 0);
+        stats.onReceived(new byte[] {0, 0}, 0);
+        stats.onReceived(new byte[] {1}, INTERVAL);
+        stats.onReceived(null, 2 * INTERVAL);
+        stats.onReceived(new byte[] {1, 0}, 3 * INTERVAL);
+        assertEquals(4, stats.getCount());
+        assertEquals(2, stats.getInvalid());
+        assertEquals(0, stats.getLost());
+        assertEquals(0, stats.getLossRatio(), 0);
+    }
+
+    @Test
+    public void reset_clearsStatistics() {
+        final BLEStreamStats stats = new BLEStreamStats(BLEValueFormat.FORMAT_UINT8, 0);
+        stats.onReceived(new byte[] {0}, 0);
+        stats.onReceived(new byte[] {5}, INTERVAL);
+        stats.onDelivered(System.nanoTime());
+        stats.reset();
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getLost());
+        assertEquals(0, stats.getInterArrival().getCount());
+        assertEquals(0, stats.getDeliveryLatency().getCount());
+        // The counter restarts from the next notification
+        stats.onReceived(new byte[] {9}, 2 * INTERVAL);
+        assertEquals(0, stats.getLost());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void signedSequenceFormat_rejected() {
+        new BLEStreamStats(BLEValueFormat.FORMAT_SINT16, 0);
+    }
+}
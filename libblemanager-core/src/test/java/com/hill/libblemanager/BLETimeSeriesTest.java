@@ -0,0 +1,144 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BLETimeSeriesTest {
+    private static final BLEValueSchema SCHEMA = new BLEValueSchema.Builder()
+            .addField("counter", BLEValueFormat.FORMAT_UINT16)
+            .addField("level", BLEValueFormat.FORMAT_FLOAT32)
+            .build();
+
+    private static byte[] value(final int counter, final float level) {
+        return ByteBuffer.allocate(6).order(ByteOrder.LITTLE_ENDIAN)
+                .putShort((short) counter).putFloat(level).array();
+    }
+
+    private static BLETimeSeries seriesOf(final float... levels) {
+        final BLETimeSeries series = new BLETimeSeries(SCHEMA, levels.length);
+        for (int i = 0; i < levels.length; i++) {
+            assertTrue(series.append(i * 10, value(i, levels[i])));
+        }
+        return series;
+    }
+
+    @Test
+    public void append_columnsByFieldType() {
+        final BLETimeSeries series = new BLETimeSeries(SCHEMA, 8);
+        assertTrue(series.isLongColumn(0));
+        assertFalse(series.isLongColumn(1));
+        assertTrue(series.append(100, value(0xFFFE, 1.5f)));
+        assertFalse(series.append(110, new byte[5]));
+        assertEquals(1, series.size());
+        assertEquals(100, series.getTimestamp(0));
+        assertEquals(0xFFFE, series.getLong(0, 0));
+        assertEquals(1.5, series.getDouble(1, 0), 0);
+        assertEquals(0xFFFE, series.getDouble(0, 0), 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getLong_doubleColumn() {
+        seriesOf(1).getLong(1, 0);
+    }
+
+    @Test
+    public void ringBuffer_overwritesOldest() {
+        final BLETimeSeries series = new BLETimeSeries(SCHEMA, 4);
+        for (int i = 0; i < 6; i++) {
+            series.append(i * 10, value(i, i));
+        }
+        assertEquals(4, series.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 2) * 10, series.getTimestamp(i));
+            assertEquals(i + 2, series.getLong(0, i));
+        }
+        assertEquals(0, series.indexOf(0));
+        assertEquals(1, series.indexOf(25));
+        assertEquals(4, series.indexOf(60));
+
+        series.clear();
+        assertEquals(0, series.size());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getTimestamp_outOfRange() {
+        seriesOf(1, 2).getTimestamp(2);
+    }
+
+    @Test
+    public void aggregate_window() {
+        final BLETimeSeries series = seriesOf(0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+        final BLETimeSeries.Aggregate aggregate = series.aggregate(1, 20, 50, new BLETimeSeries.Aggregate());
+        assertEquals(3, aggregate.count);
+        assertEquals(2, aggregate.min, 0);
+        assertEquals(4, aggregate.max, 0);
+        assertEquals(3, aggregate.mean, 0);
+        assertEquals(20, aggregate.firstTimestamp);
+        assertEquals(40, aggregate.lastTimestamp);
+
+        // The result object is reused
+        assertSame(aggregate, series.aggregate(1, 200, 300, aggregate));
+        assertEquals(0, aggregate.count);
+        assertTrue(Double.isNaN(aggregate.min));
+        assertTrue(Double.isNaN(aggregate.mean));
+    }
+
+    @Test
+    public void decimate_belowBudgetKeepsAll() {
+        final BLETimeSeries series = seriesOf(3, 1, 4, 1, 5);
+        final long[] timestamps = new long[8];
+        final double[] values = new double[8];
+        assertEquals(3, series.decimate(1, 10, 40, 8, timestamps, values));
+        assertArrayEquals(new long[] {10, 20, 30}, Arrays.copyOf(timestamps, 3));
+        assertArrayEquals(new double[] {1, 4, 1}, Arrays.copyOf(values, 3), 0);
+    }
+
+    @Test
+    public void decimate_keepsSpikesInTimeOrder() {
+        final float[] levels = new float[1000];
+        levels[500] = 100;
+        levels[700] = -50;
+        final BLETimeSeries series = seriesOf(levels);
+        final long[] timestamps = new long[20];
+        final double[] values = new double[20];
+        final int points = series.decimate(1, 0, Long.MAX_VALUE, 20, timestamps, values);
+        assertTrue(points <= 20);
+        boolean spike = false;
+        boolean dip = false;
+        for (int i = 0; i < points; i++) {
+            if (i > 0) {
+                assertTrue(timestamps[i] > timestamps[i - 1]);
+            }
+            spike |= values[i] == 100 && timestamps[i] == 5000;
+            dip |= values[i] == -50 && timestamps[i] == 7000;
+        }
+        assertTrue(spike);
+        assertTrue(dip);
+    }
+
+    @Test
+    public void store_recordsRegisteredCharacteristics() {
+        final UUID registered = BLEUuid.fromShortUuid(0x2A37);
+        final UUID other = BLEUuid.fromShortUuid(0x2A38);
+        final BLETimeSeriesStore store = new BLETimeSeriesStore();
+        assertFalse(store.record(registered, 0, value(1, 1)));
+
+        final BLETimeSeries series = store.register(registered, SCHEMA, 16);
+        assertSame(series, store.register(registered, SCHEMA, 32));
+        assertTrue(store.record(registered, 10, value(2, 2)));
+        assertFalse(store.record(other, 10, value(2, 2)));
+        assertFalse(store.record(registered, 20, new byte[1]));
+        assertEquals(1, series.size());
+        assertEquals(10, series.getTimestamp(0));
+
+        store.unregister(registered);
+        assertNull(store.get(registered));
+        assertTrue(store.getCharacteristicUuids().isEmpty());
+    }
+}
@@ -0,0 +1,103 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class BLETraceTest {
+    private static final Pattern PHASE = Pattern.compile("\"ph\":\"(.)\"");
+    private static final UUID UUID_BATTERY_LEVEL = BLEUuid.fromShortUuid(0x2A19);
+
+    private static List<Character> phasesOf(final String json) {
+        final List<Character> phases = new ArrayList<Character>();
+        final Matcher matcher = PHASE.matcher(json);
+        while (matcher.find()) {
+            phases.add(matcher.group(1).charAt(0));
+        }
+        return phases;
+    }
+
+    // Every end has its begin before it on the same track
+    private static void assertBalanced(final List<Character> phases) {
+        int depth = 0;
+        for (final char phase : phases) {
+            if (phase == 'B') {
+                depth++;
+            } else if (phase == 'E') {
+                assertTrue("End without begin in "+phases, --depth >= 0);
+            }
+        }
+    }
+
+    @Test
+    public void export_beginEndAndInstant() {
+        final BLETrace trace = new BLETrace("00:11:22:33:44:55", 16);
+        trace.begin(BLETrace.EVENT_READ, UUID_BATTERY_LEVEL);
+        trace.end(BLETrace.EVENT_READ, BLEGattTransport.STATUS_SUCCESS);
+        trace.instant(BLETrace.EVENT_NOTIFICATION, UUID_BATTERY_LEVEL, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(3, trace.size());
+
+        final String json = trace.toChromeTrace();
+        assertTrue(json.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(json.contains("\"name\":\"00:11:22:33:44:55\""));
+        assertTrue(json.contains("\"uuid\":\"0x2A19\""));
+        assertEquals("[M, B, E, i]", phasesOf(json).toString());
+    }
+
+    @Test
+    public void export_dropsEndsOfOverwrittenBegins() {
+        final BLETrace trace = new BLETrace("device", 4);
+        trace.begin(BLETrace.EVENT_CONNECT, null);
+        trace.begin(BLETrace.EVENT_DISCOVERY, null);
+        trace.end(BLETrace.EVENT_DISCOVERY, BLEGattTransport.STATUS_SUCCESS);
+        trace.end(BLETrace.EVENT_CONNECT, BLEGattTransport.STATUS_SUCCESS);
+        trace.begin(BLETrace.EVENT_WRITE, null);
+        trace.end(BLETrace.EVENT_WRITE, BLEGattTransport.STATUS_SUCCESS);
+        // The two begins are overwritten, so are the ends left without them
+        assertEquals(4, trace.size());
+        final List<Character> phases = phasesOf(trace.toChromeTrace());
+        assertEquals("[M, B, E]", phases.toString());
+        assertBalanced(phases);
+    }
+
+    @Test
+    public void export_overlappingOperationsAsComplete() throws IOException {
+        final BLETrace trace = new BLETrace("device", BLETrace.DEFAULT_CAPACITY);
+        final long start = System.nanoTime();
+        trace.complete(BLETrace.EVENT_WRITE, null, start, BLEGattTransport.STATUS_SUCCESS);
+        trace.complete(BLETrace.EVENT_READ, null, start, BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+        final StringBuilder builder = new StringBuilder();
+        BLETrace.writeChromeTrace(builder, trace, new BLETrace("other", 1));
+        final String json = builder.toString();
+        assertEquals("[M, X, X, M]", phasesOf(json).toString());
+        assertTrue(json.contains("\"dur\":"));
+        assertTrue(json.contains("\"status\":19"));
+        assertTrue(json.trim().endsWith("]}"));
+    }
+
+    @Test
+    public void disabled_recordsNothing() {
+        final BLETrace trace = new BLETrace("device", 8);
+        trace.setEnabled(false);
+        trace.begin(BLETrace.EVENT_READ, null);
+        trace.complete(BLETrace.EVENT_WRITE, null, System.nanoTime(), BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(0, trace.size());
+        trace.setEnabled(true);
+        trace.instant(BLETrace.EVENT_RSSI, null, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(1, trace.size());
+        trace.clear();
+        assertEquals(0, trace.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidCapacity() {
+        new BLETrace("device", 0);
+    }
+}
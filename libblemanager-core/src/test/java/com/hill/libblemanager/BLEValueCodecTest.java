@@ -0,0 +1,127 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.*;
+
+public class BLEValueCodecTest {
+    private static final double DELTA = 1e-9;
+
+    private static byte[] sfloat(final int rawValue) {
+        return new byte[] {(byte) rawValue, (byte) (rawValue >> 8)};
+    }
+
+    private static byte[] float11073(final int rawValue) {
+        return new byte[] {(byte) rawValue, (byte) (rawValue >> 8), (byte) (rawValue >> 16), (byte) (rawValue >> 24)};
+    }
+
+    @Test
+    public void sfloat_specialValues() {
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(sfloat(0x07FF), BLEValueFormat.FORMAT_SFLOAT, 0)));
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(sfloat(0x0800), BLEValueFormat.FORMAT_SFLOAT, 0)));
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(sfloat(0x0801), BLEValueFormat.FORMAT_SFLOAT, 0)));
+        assertEquals(Double.POSITIVE_INFINITY, BLEValueCodec.getDouble(sfloat(0x07FE), BLEValueFormat.FORMAT_SFLOAT, 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, BLEValueCodec.getDouble(sfloat(0x0802), BLEValueFormat.FORMAT_SFLOAT, 0), 0);
+    }
+
+    @Test
+    public void sfloat_mantissaAndExponent() {
+        final byte[] value = new byte[2];
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_SFLOAT, 0, 365, -1);
+        assertEquals(36.5, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_SFLOAT, 0), DELTA);
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_SFLOAT, 0, -5, 2);
+        assertEquals(-500, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_SFLOAT, 0), DELTA);
+        // Largest finite mantissa, just below the special values
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_SFLOAT, 0, 0x07FD, 0);
+        assertEquals(2045, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_SFLOAT, 0), DELTA);
+    }
+
+    @Test
+    public void float_specialValues() {
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(float11073(0x007FFFFF), BLEValueFormat.FORMAT_FLOAT, 0)));
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(float11073(0x00800000), BLEValueFormat.FORMAT_FLOAT, 0)));
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(float11073(0x00800001), BLEValueFormat.FORMAT_FLOAT, 0)));
+        assertEquals(Double.POSITIVE_INFINITY, BLEValueCodec.getDouble(float11073(0x007FFFFE), BLEValueFormat.FORMAT_FLOAT, 0), 0);
+        assertEquals(Double.NEGATIVE_INFINITY, BLEValueCodec.getDouble(float11073(0x00800002), BLEValueFormat.FORMAT_FLOAT, 0), 0);
+    }
+
+    @Test
+    public void float_mantissaAndExponent() {
+        final byte[] value = new byte[5];
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_FLOAT, 1, -1234, -2);
+        assertEquals(-12.34, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_FLOAT, 1), DELTA);
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_FLOAT, 1, 7, 3);
+        assertEquals(7000, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_FLOAT, 1), DELTA);
+    }
+
+    @Test
+    public void ieee754_roundTrip() {
+        final byte[] value = new byte[8];
+        BLEValueCodec.putDouble(value, BLEValueFormat.FORMAT_FLOAT32, 0, Float.NaN, ByteOrder.LITTLE_ENDIAN);
+        assertTrue(Double.isNaN(BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_FLOAT32, 0)));
+        BLEValueCodec.putDouble(value, BLEValueFormat.FORMAT_FLOAT64, 0, Double.NEGATIVE_INFINITY, ByteOrder.BIG_ENDIAN);
+        assertEquals(Double.NEGATIVE_INFINITY,
+                BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_FLOAT64, 0, ByteOrder.BIG_ENDIAN), 0);
+        BLEValueCodec.putDouble(value, BLEValueFormat.FORMAT_FLOAT32, 0, 1.5, ByteOrder.LITTLE_ENDIAN);
+        assertEquals(1.5, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_FLOAT32, 0), 0);
+    }
+
+    @Test
+    public void integer_signExtension() {
+        final byte[] value = new byte[3];
+        BLEValueCodec.putLong(value, BLEValueFormat.FORMAT_SINT24, 0, -2);
+        assertEquals(-2, BLEValueCodec.getLong(value, BLEValueFormat.FORMAT_SINT24, 0));
+        assertEquals(0xFFFFFE, BLEValueCodec.getLong(value, BLEValueFormat.FORMAT_UINT24, 0));
+        assertEquals(-2, BLEValueCodec.getDouble(value, BLEValueFormat.FORMAT_SINT24, 0), 0);
+    }
+
+    @Test
+    public void hasValue_checksLength() {
+        final byte[] value = new byte[3];
+        assertTrue(BLEValueCodec.hasValue(value, BLEValueFormat.FORMAT_SFLOAT, 1));
+        assertFalse(BLEValueCodec.hasValue(value, BLEValueFormat.FORMAT_FLOAT, 0));
+        assertFalse(BLEValueCodec.hasValue(null, BLEValueFormat.FORMAT_UINT8, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void getDouble_stringFormat() {
+        BLEValueCodec.getDouble(new byte[4], BLEValueFormat.FORMAT_UTF8, 0);
+    }
+
+    @Test
+    public void schema_decodesSpecialValues() {
+        // Health Thermometer measurement: flags, FLOAT temperature, then a SFLOAT field
+        final BLEValueSchema schema = new BLEValueSchema.Builder()
+                .addField("flags", BLEValueFormat.FORMAT_UINT8)
+                .addField("temperature", BLEValueFormat.FORMAT_FLOAT)
+                .addField("extra", BLEValueFormat.FORMAT_SFLOAT)
+                .build();
+        assertEquals(3, schema.getFieldCount());
+        assertEquals(7, schema.getMinSize());
+        assertEquals(1, schema.getFieldIndex("temperature"));
+        assertEquals(5, schema.getFieldOffset(2));
+
+        final byte[] value = new byte[7];
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_FLOAT, 1, 0x007FFFFE, 0);
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_SFLOAT, 5, 0x0800, 0);
+        final double[] out = new double[3];
+        schema.decode(value, out);
+        assertEquals(0, out[0], 0);
+        assertEquals(Double.POSITIVE_INFINITY, out[1], 0);
+        assertTrue(Double.isNaN(out[2]));
+
+        BLEValueCodec.putIEEE11073(value, BLEValueFormat.FORMAT_FLOAT, 1, 3712, -2);
+        assertEquals(37.12, schema.getDouble(value, 1), DELTA);
+        assertFalse(schema.matches(new byte[6]));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void schema_shortValue() {
+        final BLEValueSchema schema = new BLEValueSchema.Builder()
+                .addField("value", BLEValueFormat.FORMAT_SFLOAT)
+                .build();
+        schema.decode(new byte[1], new double[1]);
+    }
+}
@@ -0,0 +1,652 @@
+package com.hill.libblemanager;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.AdvertiseCallback;
+import android.bluetooth.le.AdvertiseData;
+import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
+import android.bluetooth.le.BluetoothLeAdvertiser;
+import android.content.Context;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>Advertiser broadcasting several advertisements in turn, built on BluetoothLeAdvertiser. Advertisements are
+ * registered by {@link #put} under an id and rotated in the order they're put, each one stays on air for its
+ * duration. With one advertisement there is no rotation, and putting a new one under the same id updates it.
+ * <p>From Android 8 one advertising set stays on air, and its data is replaced in place when the advertisement
+ * changes, so an update costs no stop/start cycle and no gap on air. The set is only restarted when the
+ * {@link Profile} or the connectability changes. Updates made while a data change is in progress are coalesced
+ * into the latest one. On older versions every change stops and starts the advertising. Advertising needs
+ * Android 5.0, see {@link #isSupported}.
+ */
+public final class BLEAdvertiser {
+    private static final String TAG = "BLEAdvertiser";
+
+    public static final int LEGACY_MAX_DATA_LENGTH = 31;
+    public static final long DEFAULT_DURATION = 1000;
+
+    /**
+     * <p>Interval and TX power of an advertisement, lower power and longer intervals use less radio time
+     * but are found later by the scanners
+     */
+    public static final class Profile {
+        public static final Profile LOW_POWER = new Profile(1000, AdvertisingSetParameters.TX_POWER_LOW);
+        public static final Profile BALANCED = new Profile(250, AdvertisingSetParameters.TX_POWER_MEDIUM);
+        public static final Profile LOW_LATENCY = new Profile(100, AdvertisingSetParameters.TX_POWER_HIGH);
+
+        /** Advertising interval in milliseconds */
+        public final int interval;
+        /** TX power in dBm */
+        public final int txPower;
+
+        /**
+         * <p>Construction method of Profile
+         * @param interval Advertising interval in milliseconds, from 100. Before Android 8 it's rounded to
+         *                 100, 250 or 1000 milliseconds.
+         * @param txPower TX power in dBm, from -127 to 1. Before Android 8 it's rounded to one of the 4 levels.
+         */
+        public Profile(final int interval, final int txPower) {
+            if (interval < 100) {
+                throw new IllegalArgumentException("Invalid interval: "+interval);
+            }
+            if (txPower < -127 || txPower > 1) {
+                throw new IllegalArgumentException("Invalid TX power: "+txPower);
+            }
+            this.interval = interval;
+            this.txPower = txPower;
+        }
+
+        // Interval in units of 0.625 milliseconds of AdvertisingSetParameters
+        int getIntervalUnits() {
+            return (int) Math.min((long) interval * 8 / 5, AdvertisingSetParameters.INTERVAL_MAX);
+        }
+
+        int getAdvertiseMode() {
+            if (interval <= 100) {
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+            }
+            return interval <= 250 ? AdvertiseSettings.ADVERTISE_MODE_BALANCED : AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+        }
+
+        int getAdvertiseTxPowerLevel() {
+            if (txPower >= AdvertisingSetParameters.TX_POWER_HIGH) {
+                return AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+            } else if (txPower >= AdvertisingSetParameters.TX_POWER_MEDIUM) {
+                return AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
+            } else if (txPower >= AdvertisingSetParameters.TX_POWER_LOW) {
+                return AdvertiseSettings.ADVERTISE_TX_POWER_LOW;
+            }
+            return AdvertiseSettings.ADVERTISE_TX_POWER_ULTRA_LOW;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof Profile)) {
+                return false;
+            }
+            final Profile other = (Profile) o;
+            return interval == other.interval && txPower == other.txPower;
+        }
+
+        @Override
+        public int hashCode() {
+            return interval * 31 + txPower;
+        }
+    }
+
+    /**
+     * <p>Payload and settings of an advertisement, build it by {@link Builder}
+     */
+    public static final class Advertisement {
+        final List<UUID> serviceUuids;
+        final Map<UUID, byte[]> serviceData;
+        final Map<Integer, byte[]> manufacturerData;
+        final boolean includeTxPower;
+        final boolean includeDeviceName;
+        final boolean connectable;
+        final Profile profile;
+        final long duration;
+
+        private Advertisement(final Builder builder) {
+            serviceUuids = Collections.unmodifiableList(new ArrayList<UUID>(builder.mServiceUuids));
+            serviceData = Collections.unmodifiableMap(new LinkedHashMap<UUID, byte[]>(builder.mServiceData));
+            manufacturerData = Collections.unmodifiableMap(new LinkedHashMap<Integer, byte[]>(builder.mManufacturerData));
+            includeTxPower = builder.mIncludeTxPower;
+            includeDeviceName = builder.mIncludeDeviceName;
+            connectable = builder.mConnectable;
+            profile = builder.mProfile;
+            duration = builder.mDuration;
+        }
+
+        /**
+         * <p>Get the length of the advertising data, without the device name
+         * @return The length in bytes, including the flags
+         */
+        public int getDataLength() {
+            int length = 3; // Flags
+            for (final UUID uuid : serviceUuids) {
+                length += 2 + uuidLength(uuid);
+            }
+            for (final Map.Entry<UUID, byte[]> entry : serviceData.entrySet()) {
+                length += 2 + uuidLength(entry.getKey()) + entry.getValue().length;
+            }
+            for (final byte[] data : manufacturerData.values()) {
+                length += 2 + 2 + data.length;
+            }
+            if (includeTxPower) {
+                length += 3;
+            }
+            return length;
+        }
+
+        private static int uuidLength(final UUID uuid) {
+            return BLEUuid.toShortUuid(uuid) >= 0 ? 2 : 16;
+        }
+
+        @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+        AdvertiseData toAdvertiseData() {
+            final AdvertiseData.Builder builder = new AdvertiseData.Builder()
+                    .setIncludeTxPowerLevel(includeTxPower)
+                    .setIncludeDeviceName(includeDeviceName);
+            for (final UUID uuid : serviceUuids) {
+                builder.addServiceUuid(new ParcelUuid(uuid));
+            }
+            for (final Map.Entry<UUID, byte[]> entry : serviceData.entrySet()) {
+                builder.addServiceData(new ParcelUuid(entry.getKey()), entry.getValue());
+            }
+            for (final Map.Entry<Integer, byte[]> entry : manufacturerData.entrySet()) {
+                builder.addManufacturerData(entry.getKey(), entry.getValue());
+            }
+            return builder.build();
+        }
+
+        // Whether the set must be restarted to change from this advertisement to the other
+        boolean hasSameParameters(final Advertisement other) {
+            return connectable == other.connectable && profile.equals(other.profile)
+                    && isLegacy() == other.isLegacy();
+        }
+
+        boolean isLegacy() {
+            return getDataLength() <= LEGACY_MAX_DATA_LENGTH;
+        }
+
+        public static final class Builder {
+            private final List<UUID> mServiceUuids = new ArrayList<UUID>();
+            private final Map<UUID, byte[]> mServiceData = new LinkedHashMap<UUID, byte[]>();
+            private final Map<Integer, byte[]> mManufacturerData = new LinkedHashMap<Integer, byte[]>();
+            private boolean mIncludeTxPower = false;
+            private boolean mIncludeDeviceName = false;
+            private boolean mConnectable = false;
+            private Profile mProfile = Profile.BALANCED;
+            private long mDuration = DEFAULT_DURATION;
+
+            public Builder addServiceUuid(final UUID uuid) {
+                mServiceUuids.add(uuid);
+                return this;
+            }
+
+            public Builder addServiceData(final UUID uuid, final byte[] data) {
+                mServiceData.put(uuid, data.clone());
+                return this;
+            }
+
+            /**
+             * <p>Method to add manufacturer specific data
+             * @param manufacturerId Company identifier assigned by the Bluetooth SIG
+             * @param data The data after the identifier
+             */
+            public Builder addManufacturerData(final int manufacturerId, final byte[] data) {
+                if (manufacturerId < 0 || manufacturerId > 0xFFFF) {
+                    throw new IllegalArgumentException("Invalid manufacturer id: "+manufacturerId);
+                }
+                mManufacturerData.put(manufacturerId, data.clone());
+                return this;
+            }
+
+            public Builder setIncludeTxPower(final boolean includeTxPower) {
+                mIncludeTxPower = includeTxPower;
+                return this;
+            }
+
+            public Builder setIncludeDeviceName(final boolean includeDeviceName) {
+                mIncludeDeviceName = includeDeviceName;
+                return this;
+            }
+
+            public Builder setConnectable(final boolean connectable) {
+                mConnectable = connectable;
+                return this;
+            }
+
+            /**
+             * <p>Method to set the interval and TX power, {@link Profile#BALANCED} by default
+             */
+            public Builder setProfile(final Profile profile) {
+                if (profile == null) {
+                    throw new IllegalArgumentException("Profile can't be null");
+                }
+                mProfile = profile;
+                return this;
+            }
+
+            /**
+             * <p>Method to set how long the advertisement stays on air before the next one, {@link #DEFAULT_DURATION} by default
+             * @param duration The duration in milliseconds
+             */
+            public Builder setDuration(final long duration) {
+                if (duration <= 0) {
+                    throw new IllegalArgumentException("Invalid duration: "+duration);
+                }
+                mDuration = duration;
+                return this;
+            }
+
+            public Advertisement build() {
+                return new Advertisement(this);
+            }
+        }
+    }
+
+    public interface Listener {
+        void onAdvertisingStarted();
+
+        /**
+         * <p>Callback method when the advertising fails, it's stopped
+         * @param errorCode One of ADVERTISE_FAILED_* constants of AdvertiseCallback
+         */
+        void onAdvertisingFailed(final int errorCode);
+    }
+
+    private final BluetoothAdapter mAdapter;
+    private final BLEGattThread mThread;
+
+    // Only accessed on the thread
+    private final Map<String, Advertisement> mAdvertisements = new LinkedHashMap<String, Advertisement>();
+    private Listener mListener = null;
+    private BluetoothLeAdvertiser mAdvertiser = null;
+    private String mCurrentId = null;
+    private boolean mRotationPending = false;
+    // Advertisement on air or being applied, null when nothing is advertised
+    private Advertisement mApplied = null;
+    private SetCallback mSetCallback = null;
+    private AdvertisingSet mSet = null;
+    private boolean mBusy = false;
+    private boolean mDirty = false;
+    private AdvertiseCallback mLegacyCallback = null;
+    // Whether onAdvertisingStarted has been called since start()
+    private boolean mStartReported = false;
+
+    /**
+     * <p>Construction method of BLEAdvertiser
+     * @param context Application context
+     */
+    public BLEAdvertiser(final Context context) {
+        this(context, BLEGattThread.getShared());
+    }
+
+    /**
+     * <p>Construction method of BLEAdvertiser
+     * @param context Application context
+     * @param thread The thread to run the advertiser and to call the listener
+     */
+    public BLEAdvertiser(final Context context, final BLEGattThread thread) {
+        mAdapter = BLEAndroidTransport.getAdapter(context);
+        mThread = thread;
+    }
+
+    /**
+     * <p>Method to check whether the device can advertise
+     * @return true if advertising is supported and Bluetooth is on, false before Android 5.0
+     */
+    public boolean isSupported() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return mAdapter != null && mAdapter.isEnabled() && mAdapter.isMultipleAdvertisementSupported();
+    }
+
+    /**
+     * <p>Get the max length of the advertising data, larger advertisements use extended advertising
+     * @return The length in bytes
+     */
+    public int getMaxDataLength() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mAdapter != null && mAdapter.isLeExtendedAdvertisingSupported()) {
+            return mAdapter.getLeMaximumAdvertisingDataLength();
+        }
+        return LEGACY_MAX_DATA_LENGTH;
+    }
+
+    /**
+     * <p>Method to add an advertisement, or update the one of the id. An update of the advertisement on air
+     * is applied at once.
+     * @param id Id of the advertisement
+     * @param advertisement The advertisement
+     */
+    public void put(final String id, final Advertisement advertisement) {
+        if (advertisement.getDataLength() > getMaxDataLength()) {
+            throw new IllegalArgumentException("Advertisement too large: "+advertisement.getDataLength());
+        }
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean added = mAdvertisements.put(id, advertisement) == null;
+                if (mListener == null) {
+                    return;
+                }
+                if (mCurrentId == null) {
+                    rotate();
+                } else if (id.equals(mCurrentId)) {
+                    apply();
+                } else if (added) { // The rotation starts with the second advertisement
+                    scheduleRotation();
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Method to remove an advertisement, the next one is advertised if it's on air
+     * @param id Id of the advertisement
+     */
+    public void remove(final String id) {
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!mAdvertisements.containsKey(id)) {
+                    return;
+                }
+                // The one after the removed advertisement is next, taken before it's gone
+                final String nextId = getNextId(mAdvertisements.keySet(), id);
+                mAdvertisements.remove(id);
+                if (id.equals(mCurrentId) && mListener != null) {
+                    show(id.equals(nextId) ? null : nextId);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Method to start advertising the advertisements put. Before Android 5.0 the listener gets
+     * {@link AdvertiseCallback#ADVERTISE_FAILED_FEATURE_UNSUPPORTED}.
+     * @param listener Listener to receive the result, called on the thread of the advertiser
+     */
+    public void start(final Listener listener) {
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    listener.onAdvertisingFailed(AdvertiseCallback.ADVERTISE_FAILED_ALREADY_STARTED);
+                    return;
+                }
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+                    Log.e(TAG, "Advertising needs Android 5.0");
+                    listener.onAdvertisingFailed(AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+                    return;
+                }
+                mAdvertiser = mAdapter != null ? mAdapter.getBluetoothLeAdvertiser() : null;
+                if (mAdvertiser == null) {
+                    Log.e(TAG, "Advertising isn't supported or Bluetooth is off");
+                    listener.onAdvertisingFailed(AdvertiseCallback.ADVERTISE_FAILED_FEATURE_UNSUPPORTED);
+                    return;
+                }
+                mListener = listener;
+                mStartReported = false;
+                rotate();
+            }
+        });
+    }
+
+    /**
+     * <p>Method to stop advertising, the advertisements are kept for the next {@link #start}
+     */
+    public void stop() {
+        mThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mListener == null) {
+                    return;
+                }
+                mListener = null;
+                cancelRotation();
+                mCurrentId = null;
+                stopAdvertising();
+            }
+        });
+    }
+
+    private final Runnable mRotateTask = new Runnable() {
+        @Override
+        public void run() {
+            mRotationPending = false;
+            rotate();
+        }
+    };
+
+    /**
+     * <p>Get the id advertised after an id, in the order the ids are put
+     * @param ids The ids in order
+     * @param currentId The id on air, or null to get the first one
+     * @return The id after it, wrapping around to the first one, or null if there are no ids
+     */
+    static String getNextId(final Collection<String> ids, final String currentId) {
+        String nextId = null;
+        boolean afterCurrent = currentId == null;
+        for (final String id : ids) {
+            if (afterCurrent) {
+                return id;
+            }
+            if (nextId == null) {
+                nextId = id; // Wraps around to the first one
+            }
+            afterCurrent = id.equals(currentId);
+        }
+        return nextId;
+    }
+
+    // Method to advertise the advertisement after the current one
+    private void rotate() {
+        show(getNextId(mAdvertisements.keySet(), mCurrentId));
+    }
+
+    // Method to put the advertisement of the id on air and to schedule the next one, null to stop advertising
+    private void show(final String id) {
+        cancelRotation();
+        final boolean changed = id == null || !id.equals(mCurrentId);
+        mCurrentId = id;
+        if (id == null) {
+            stopAdvertising();
+            return;
+        }
+        if (changed) { // The only advertisement left stays on air as it is
+            apply();
+        }
+        scheduleRotation();
+    }
+
+    private void scheduleRotation() {
+        if (!mRotationPending && mAdvertisements.size() > 1) {
+            mRotationPending = true;
+            mThread.postDelayed(mRotateTask, mAdvertisements.get(mCurrentId).duration);
+        }
+    }
+
+    private void cancelRotation() {
+        mRotationPending = false;
+        mThread.removeCallbacks(mRotateTask);
+    }
+
+    // Method to put the current advertisement on air, the way the platform allows
+    private void apply() {
+        if (mBusy) {
+            mDirty = true;
+            return;
+        }
+        final Advertisement advertisement = mAdvertisements.get(mCurrentId);
+        if (advertisement == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            applySet(advertisement);
+        } else {
+            applyLegacy(advertisement);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private void applySet(final Advertisement advertisement) {
+        final AdvertiseData data = advertisement.toAdvertiseData();
+        mBusy = true;
+        if (mSet != null && mApplied != null && mApplied.hasSameParameters(advertisement)) {
+            mApplied = advertisement;
+            mSet.setAdvertisingData(data);
+            return;
+        }
+        if (mSetCallback != null) {
+            mAdvertiser.stopAdvertisingSet(mSetCallback);
+            mSet = null;
+        }
+        final AdvertisingSetParameters parameters = new AdvertisingSetParameters.Builder()
+                .setLegacyMode(advertisement.isLegacy())
+                .setConnectable(advertisement.connectable)
+                .setScannable(advertisement.isLegacy() && advertisement.connectable)
+                .setInterval(advertisement.profile.getIntervalUnits())
+                .setTxPowerLevel(advertisement.profile.txPower)
+                .build();
+        mApplied = advertisement;
+        mSetCallback = new SetCallback();
+        mAdvertiser.startAdvertisingSet(parameters, data, null, null, null, mSetCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void applyLegacy(final Advertisement advertisement) {
+        if (mLegacyCallback != null) {
+            mAdvertiser.stopAdvertising(mLegacyCallback);
+        }
+        final AdvertiseSettings settings = new AdvertiseSettings.Builder()
+                .setAdvertiseMode(advertisement.profile.getAdvertiseMode())
+                .setTxPowerLevel(advertisement.profile.getAdvertiseTxPowerLevel())
+                .setConnectable(advertisement.connectable)
+                .build();
+        mBusy = true;
+        mApplied = advertisement;
+        mLegacyCallback = new LegacyCallback();
+        mAdvertiser.startAdvertising(settings, advertisement.toAdvertiseData(), mLegacyCallback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopAdvertising() {
+        if (mAdvertiser != null) {
+            if (mSetCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                mAdvertiser.stopAdvertisingSet(mSetCallback);
+            }
+            if (mLegacyCallback != null) {
+                mAdvertiser.stopAdvertising(mLegacyCallback);
+            }
+        }
+        mSetCallback = null;
+        mSet = null;
+        mLegacyCallback = null;
+        mApplied = null;
+        mBusy = false;
+        mDirty = false;
+    }
+
+    // Method to process the end of a start or data change, applying the updates made meanwhile
+    private void processApplied(final boolean started, final int status) {
+        mBusy = false;
+        final Listener listener = mListener;
+        if (status != AdvertisingSetCallback.ADVERTISE_SUCCESS) {
+            Log.e(TAG, "Failed to advertise "+mCurrentId+", status: "+status);
+            mListener = null;
+            cancelRotation();
+            mCurrentId = null;
+            stopAdvertising();
+            if (listener != null) {
+                listener.onAdvertisingFailed(status);
+            }
+            return;
+        }
+        // Restarts for another profile aren't reported
+        if (started && !mStartReported && listener != null) {
+            mStartReported = true;
+            listener.onAdvertisingStarted();
+        }
+        if (mDirty) {
+            mDirty = false;
+            apply();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private final class SetCallback extends AdvertisingSetCallback {
+        @Override
+        public void onAdvertisingSetStarted(final AdvertisingSet advertisingSet, final int txPower, final int status) {
+            mThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSetCallback != SetCallback.this) { // Stopped meanwhile
+                        return;
+                    }
+                    mSet = advertisingSet;
+                    Log.d(TAG, "Advertising set started, TX power: "+txPower+", status: "+status);
+                    processApplied(true, status);
+                }
+            });
+        }
+
+        @Override
+        public void onAdvertisingDataSet(final AdvertisingSet advertisingSet, final int status) {
+            mThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mSetCallback != SetCallback.this) {
+                        return;
+                    }
+                    processApplied(false, status);
+                }
+            });
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private final class LegacyCallback extends AdvertiseCallback {
+        @Override
+        public void onStartSuccess(final AdvertiseSettings settingsInEffect) {
+            mThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLegacyCallback != LegacyCallback.this) {
+                        return;
+                    }
+                    processApplied(true, AdvertisingSetCallback.ADVERTISE_SUCCESS);
+                }
+            });
+        }
+
+        @Override
+        public void onStartFailure(final int errorCode) {
+            mThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (mLegacyCallback != LegacyCallback.this) {
+                        return;
+                    }
+                    processApplied(false, errorCode);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.hill.libblemanager;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>{@link BLEAttribute} of a GATT object of the Android Bluetooth stack. Wrappers of the same
+ * GATT object are equal.
+ */
+final class BLEAndroidAttribute implements BLEAttribute {
+    private final Object mObject;
+    private final int mType;
+
+    private BLEAndroidAttribute(final Object object, final int type) {
+        mObject = object;
+        mType = type;
+    }
+
+    /**
+     * <p>Wrap the GATT object of the Android Bluetooth stack
+     * @param object BluetoothGattService, BluetoothGattCharacteristic or BluetoothGattDescriptor object
+     * @return The wrapper, or null if it isn't a GATT object
+     */
+    static BLEAndroidAttribute wrap(final Object object) {
+        if (object instanceof BluetoothGattService) {
+            return new BLEAndroidAttribute(object, TYPE_SERVICE);
+        } else if (object instanceof BluetoothGattCharacteristic) {
+            return new BLEAndroidAttribute(object, TYPE_CHARACTERISTIC);
+        } else if (object instanceof BluetoothGattDescriptor) {
+            return new BLEAndroidAttribute(object, TYPE_DESCRIPTOR);
+        } else {
+            return null;
+        }
+    }
+
+    private static List<BLEAttribute> wrapAll(final List<?> objects) {
+        if (objects == null || objects.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<BLEAttribute> attributes = new ArrayList<BLEAttribute>(objects.size());
+        for (final Object object : objects) {
+            attributes.add(wrap(object));
+        }
+        return attributes;
+    }
+
+    @Override
+    public int getType() {
+        return mType;
+    }
+
+    @Override
+    public UUID getUuid() {
+        switch (mType) {
+            case TYPE_SERVICE:
+                return ((BluetoothGattService) mObject).getUuid();
+            case TYPE_CHARACTERISTIC:
+                return ((BluetoothGattCharacteristic) mObject).getUuid();
+            default:
+                return ((BluetoothGattDescriptor) mObject).getUuid();
+        }
+    }
+
+    @Override
+    public int getInstanceId() {
+        switch (mType) {
+            case TYPE_SERVICE:
+                return ((BluetoothGattService) mObject).getInstanceId();
+            case TYPE_CHARACTERISTIC:
+                return ((BluetoothGattCharacteristic) mObject).getInstanceId();
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int getProperties() {
+        if (mType == TYPE_CHARACTERISTIC) {
+            return ((BluetoothGattCharacteristic) mObject).getProperties();
+        }
+        return 0;
+    }
+
+    @Override
+    public byte[] getValue() {
+        switch (mType) {
+            case TYPE_CHARACTERISTIC:
+                return ((BluetoothGattCharacteristic) mObject).getValue();
+            case TYPE_DESCRIPTOR:
+                return ((BluetoothGattDescriptor) mObject).getValue();
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public boolean setValue(final byte[] value) {
+        switch (mType) {
+            case TYPE_CHARACTERISTIC:
+                return ((BluetoothGattCharacteristic) mObject).setValue(value);
+            case TYPE_DESCRIPTOR:
+                return ((BluetoothGattDescriptor) mObject).setValue(value);
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public BLEAttribute getParent() {
+        switch (mType) {
+            case TYPE_CHARACTERISTIC:
+                return wrap(((BluetoothGattCharacteristic) mObject).getService());
+            case TYPE_DESCRIPTOR:
+                return wrap(((BluetoothGattDescriptor) mObject).getCharacteristic());
+            default:
+                return null;
+        }
+    }
+
+    @Override
+    public List<BLEAttribute> getChildren() {
+        switch (mType) {
+            case TYPE_SERVICE:
+                return wrapAll(((BluetoothGattService) mObject).getCharacteristics());
+            case TYPE_CHARACTERISTIC:
+                return wrapAll(((BluetoothGattCharacteristic) mObject).getDescriptors());
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    @Override
+    public List<BLEAttribute> getIncludedServices() {
+        if (mType == TYPE_SERVICE) {
+            return wrapAll(((BluetoothGattService) mObject).getIncludedServices());
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Object getNativeObject() {
+        return mObject;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj instanceof BLEAndroidAttribute && ((BLEAndroidAttribute) obj).mObject == mObject;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(mObject);
+    }
+}
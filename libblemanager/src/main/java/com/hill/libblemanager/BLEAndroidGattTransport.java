@@ -0,0 +1,204 @@
+package com.hill.libblemanager;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>{@link BLEGattTransport} of the Android Bluetooth stack, on top of BluetoothGatt
+ */
+final class BLEAndroidGattTransport implements BLEGattTransport {
+    private final String mAddress;
+    private final Callback mCallback;
+    private volatile BluetoothGatt mGatt = null;
+
+    private BLEAndroidGattTransport(final BluetoothDevice device, final Callback callback) {
+        mAddress = device.getAddress();
+        mCallback = callback;
+    }
+
+    /**
+     * <p>Method to open GATT connection to the device
+     * @param context Application context
+     * @param device The device to connect
+     * @param autoConnect See {@link BluetoothDevice#connectGatt}
+     * @param callback Callback to receive the results
+     * @return The connection, or null if it can't be opened
+     */
+    static BLEAndroidGattTransport connect(final Context context, final BluetoothDevice device,
+                                           final boolean autoConnect, final Callback callback) {
+        final BLEAndroidGattTransport transport = new BLEAndroidGattTransport(device, callback);
+        final BluetoothGatt gatt = device.connectGatt(context, autoConnect, transport.mGattCallback);
+        if (gatt == null) {
+            return null;
+        }
+        transport.mGatt = gatt;
+        return transport;
+    }
+
+    // Callbacks may come before connectGatt returns, so check the BluetoothGatt object got by them
+    private boolean isOwnGatt(final BluetoothGatt gatt) {
+        if (mGatt == null) {
+            mGatt = gatt;
+        }
+        return mGatt == gatt;
+    }
+
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            if (isOwnGatt(gatt)) {
+                mCallback.onConnectionStateChange(BLEAndroidGattTransport.this, status, newState);
+            }
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            if (isOwnGatt(gatt)) {
+                mCallback.onServicesDiscovered(BLEAndroidGattTransport.this, status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            if (isOwnGatt(gatt) && characteristic != null) {
+                mCallback.onAttributeRead(BLEAndroidGattTransport.this, BLEAndroidAttribute.wrap(characteristic),
+                        characteristic.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            if (isOwnGatt(gatt) && characteristic != null) {
+                mCallback.onAttributeWrite(BLEAndroidGattTransport.this, BLEAndroidAttribute.wrap(characteristic), status);
+            }
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            if (isOwnGatt(gatt) && characteristic != null) {
+                // The characteristic object is reused by the stack for following notifications, pass the value now
+                mCallback.onCharacteristicChanged(BLEAndroidGattTransport.this, BLEAndroidAttribute.wrap(characteristic),
+                        characteristic.getValue());
+            }
+        }
+
+        @Override
+        public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            if (isOwnGatt(gatt) && descriptor != null) {
+                mCallback.onAttributeRead(BLEAndroidGattTransport.this, BLEAndroidAttribute.wrap(descriptor),
+                        descriptor.getValue(), status);
+            }
+        }
+
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            if (isOwnGatt(gatt) && descriptor != null) {
+                mCallback.onAttributeWrite(BLEAndroidGattTransport.this, BLEAndroidAttribute.wrap(descriptor), status);
+            }
+        }
+
+        @Override
+        public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+            if (isOwnGatt(gatt)) {
+                mCallback.onRemoteRssiRead(BLEAndroidGattTransport.this, rssi, status);
+            }
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            if (isOwnGatt(gatt)) {
+                mCallback.onMtuChanged(BLEAndroidGattTransport.this, mtu, status);
+            }
+        }
+    };
+
+    @Override
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public boolean discoverServices() {
+        return mGatt.discoverServices();
+    }
+
+    @Override
+    public List<BLEAttribute> getServices() {
+        final List<BluetoothGattService> services = mGatt.getServices();
+        final List<BLEAttribute> attributes = new ArrayList<BLEAttribute>();
+        if (services != null) {
+            for (final BluetoothGattService service : services) {
+                attributes.add(BLEAndroidAttribute.wrap(service));
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public boolean readAttribute(final BLEAttribute attribute) {
+        final Object object = attribute.getNativeObject();
+        if (object instanceof BluetoothGattCharacteristic) {
+            return mGatt.readCharacteristic((BluetoothGattCharacteristic) object);
+        } else if (object instanceof BluetoothGattDescriptor) {
+            return mGatt.readDescriptor((BluetoothGattDescriptor) object);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean writeAttribute(final BLEAttribute attribute, final byte[] value, final int writeType) {
+        final Object object = attribute.getNativeObject();
+        if (object instanceof BluetoothGattCharacteristic) {
+            final BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) object;
+            characteristic.setValue(value);
+            characteristic.setWriteType(writeType);
+            return mGatt.writeCharacteristic(characteristic);
+        } else if (object instanceof BluetoothGattDescriptor) {
+            final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) object;
+            descriptor.setValue(value);
+            return mGatt.writeDescriptor(descriptor);
+        }
+        return false;
+    }
+
+    @Override
+    public boolean setNotification(final BLEAttribute characteristic, final boolean enable) {
+        final Object object = characteristic.getNativeObject();
+        return object instanceof BluetoothGattCharacteristic
+                && mGatt.setCharacteristicNotification((BluetoothGattCharacteristic) object, enable);
+    }
+
+    @Override
+    public boolean readRemoteRssi() {
+        return mGatt.readRemoteRssi();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public boolean requestMtu(final int mtu) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+        return mGatt.requestMtu(mtu);
+    }
+
+    @Override
+    public void disconnect() {
+        mGatt.disconnect();
+    }
+
+    @Override
+    public void close() {
+        mGatt.close();
+    }
+}
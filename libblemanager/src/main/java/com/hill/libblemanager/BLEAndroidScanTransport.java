@@ -0,0 +1,229 @@
+package com.hill.libblemanager;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * <p>{@link BLEScanTransport} of the Android Bluetooth stack. It uses BluetoothLeScanner since Lollipop
+ * and BluetoothAdapter LE scan before it. Extended advertisements and the LE Coded PHY are scanned from Oreo
+ * when {@link BLEScanOptions} ask for them, their chained data is reassembled before it's reported.
+ */
+final class BLEAndroidScanTransport implements BLEScanTransport {
+    private static final String TAG = "BLEAndroidScanTransport";
+
+    private final BluetoothAdapter mAdapter;
+    // Native callbacks of the running scans
+    private final Map<Callback, Object> mNativeCallbacks = new HashMap<Callback, Object>();
+    private final BLEAdvertisingDataAssembler mAssembler = new BLEAdvertisingDataAssembler();
+
+    BLEAndroidScanTransport(final BluetoothAdapter adapter) {
+        mAdapter = adapter;
+    }
+
+    @Override
+    public boolean startScan(final UUID[] serviceUuids, final Callback callback) {
+        return startScan(serviceUuids, BLEScanOptions.DEFAULT, callback);
+    }
+
+    @Override
+    public boolean startScan(final UUID[] serviceUuids, final BLEScanOptions options, final Callback callback) {
+        final Object nativeCallback;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            nativeCallback = startScanOldVersion(serviceUuids, callback);
+        } else {
+            nativeCallback = startScanNewVersion(serviceUuids, options, callback);
+        }
+        if (nativeCallback == null) {
+            return false;
+        }
+        synchronized (mNativeCallbacks) {
+            mNativeCallbacks.put(callback, nativeCallback);
+        }
+        return true;
+    }
+
+    @Override
+    public void stopScan(final Callback callback) {
+        final Object nativeCallback;
+        synchronized (mNativeCallbacks) {
+            nativeCallback = mNativeCallbacks.remove(callback);
+        }
+        if (nativeCallback == null) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            mAdapter.stopLeScan((BluetoothAdapter.LeScanCallback) nativeCallback);
+        } else {
+            stopScanNewVersion((ScanCallback) nativeCallback);
+        }
+    }
+
+    private BluetoothAdapter.LeScanCallback startScanOldVersion(final UUID[] uuids, final Callback callback) {
+        final BluetoothAdapter.LeScanCallback leScanCallback = new BluetoothAdapter.LeScanCallback() {
+            @Override
+            public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+                callback.onScanResult(new BLEScanResult(device.getAddress(), device.getName(), rssi, scanRecord,
+                        device, System.nanoTime()));
+            }
+        };
+        final boolean started;
+        if (uuids != null) {
+            started = mAdapter.startLeScan(uuids, leScanCallback);
+        } else {
+            started = mAdapter.startLeScan(leScanCallback);
+        }
+        if (!started) {
+            Log.e(TAG, "startScanOldVersion, failed to start scan");
+            return null;
+        }
+        return leScanCallback;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private List<ScanFilter> buildScanFilters(final UUID[] uuids) {
+        final BLEScanFilter scanFilter = BLEScanFilter.fromServiceUuids(uuids);
+        if (scanFilter == null) {
+            return null;
+        }
+        final List<ScanFilter> filters = new ArrayList<ScanFilter>();
+        final ScanFilter filter = new ScanFilter.Builder()
+                .setServiceUuid(new ParcelUuid(scanFilter.serviceUuid), new ParcelUuid(scanFilter.serviceUuidMask))
+                .build();
+        filters.add(filter);
+        return filters;
+    }
+
+    /**
+     * <p>Method to build the result of a report
+     * @return The result, or null if the report is a part of chained data which isn't complete yet
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private BLEScanResult buildScanResult(final ScanResult result) {
+        final BluetoothDevice device = result.getDevice();
+        final byte[] scanRecord = result.getScanRecord() != null ? result.getScanRecord().getBytes() : null;
+        final long ageNanos = SystemClock.elapsedRealtimeNanos() - result.getTimestampNanos();
+        final long timestampNanos = System.nanoTime() - ageNanos;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && !result.isLegacy()) {
+            return buildExtendedScanResult(result, scanRecord, timestampNanos);
+        }
+        return new BLEScanResult(device.getAddress(), device.getName(), result.getRssi(), scanRecord, device,
+                timestampNanos);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private BLEScanResult buildExtendedScanResult(final ScanResult result, final byte[] scanRecord,
+                                                  final long timestampNanos) {
+        final BluetoothDevice device = result.getDevice();
+        final int dataStatus = result.getDataStatus();
+        final byte[] data = mAssembler.add(device.getAddress(), result.getAdvertisingSid(), dataStatus, scanRecord,
+                timestampNanos);
+        if (data == null) {
+            return null;
+        }
+        return new BLEScanResult(device.getAddress(), device.getName(), result.getRssi(), data, device,
+                timestampNanos, false, result.getPrimaryPhy(), result.getSecondaryPhy(), result.getAdvertisingSid(),
+                dataStatus == BLEAdvertisingDataAssembler.DATA_TRUNCATED);
+    }
+
+    private static void deliverScanResult(final Callback callback, final BLEScanResult result) {
+        if (result != null) {
+            callback.onScanResult(result);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.O)
+    private ScanSettings buildScanSettings(final BLEScanOptions options) {
+        final ScanSettings.Builder builder = new ScanSettings.Builder().setScanMode(options.scanMode);
+        if (!options.legacyOnly) {
+            if (isExtendedScanSupported()) {
+                builder.setLegacy(false).setPhy(options.phy);
+            } else {
+                Log.w(TAG, "Extended advertising isn't supported, only legacy advertisements are scanned");
+            }
+        }
+        return builder.build();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private ScanCallback startScanNewVersion(final UUID[] uuids, final BLEScanOptions options, final Callback callback) {
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            Log.e(TAG, "startScanNewVersion, Bluetooth is turned off");
+            return null;
+        }
+        if (options.phy == BLEScanOptions.PHY_LE_CODED && !isCodedPhySupported()) {
+            Log.e(TAG, "startScanNewVersion, LE Coded PHY isn't supported");
+            return null;
+        }
+        final ScanCallback scanCallback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                Log.d(TAG, "onScanResult, device: "+result.getDevice().getAddress()+" rssi: "+result.getRssi());
+                deliverScanResult(callback, buildScanResult(result));
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                Log.d(TAG, "onBatchScanResults");
+                for (final ScanResult result : results) {
+                    deliverScanResult(callback, buildScanResult(result));
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.d(TAG, "onScanFailed: "+errorCode);
+                synchronized (mNativeCallbacks) {
+                    mNativeCallbacks.remove(callback);
+                }
+                callback.onScanFailed(errorCode);
+            }
+        };
+        final List<ScanFilter> filters = buildScanFilters(uuids);
+        final ScanSettings settings = buildScanSettings(options);
+        scanner.startScan(filters, settings, scanCallback);
+        return scanCallback;
+    }
+
+    /**
+     * <p>Method to check whether extended advertisements can be scanned
+     * @return true from Oreo if the controller supports them
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    boolean isExtendedScanSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && mAdapter.isLeExtendedAdvertisingSupported();
+    }
+
+    /**
+     * <p>Method to check whether the LE Coded PHY can be scanned for long range advertisers
+     * @return true from Oreo if the controller supports it
+     */
+    @TargetApi(Build.VERSION_CODES.O)
+    boolean isCodedPhySupported() {
+        return isExtendedScanSupported() && mAdapter.isLeCodedPhySupported();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void stopScanNewVersion(final ScanCallback scanCallback) {
+        final BluetoothLeScanner scanner = mAdapter.getBluetoothLeScanner();
+        if (scanner != null) {
+            scanner.stopScan(scanCallback);
+        }
+    }
+}
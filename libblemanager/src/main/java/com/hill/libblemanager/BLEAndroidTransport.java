@@ -0,0 +1,54 @@
+package com.hill.libblemanager;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothManager;
+import android.content.Context;
+
+/**
+ * <p>{@link BLETransport} of the Android Bluetooth stack, used when no transport is set to {@link BLEManager}
+ */
+final class BLEAndroidTransport implements BLETransport {
+    private final Context mContext;
+    private final BluetoothAdapter mAdapter;
+
+    private BLEAndroidTransport(final Context context, final BluetoothAdapter adapter) {
+        mContext = context;
+        mAdapter = adapter;
+    }
+
+    /**
+     * <p>Method to create the transport of the Bluetooth adapter of the Android device
+     * @param context Application context
+     * @return The transport, or null if Bluetooth isn't supported
+     */
+    static BLEAndroidTransport create(final Context context) {
+        final BluetoothAdapter adapter = getAdapter(context);
+        if (adapter == null) {
+            return null;
+        }
+        return new BLEAndroidTransport(context.getApplicationContext(), adapter);
+    }
+
+    static BluetoothAdapter getAdapter(final Context context) {
+        final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager == null) {
+            return null;
+        }
+        return bluetoothManager.getAdapter();
+    }
+
+    @Override
+    public BLEScanTransport getScanTransport() {
+        return new BLEAndroidScanTransport(mAdapter);
+    }
+
+    @Override
+    public BLEGattTransport connectGatt(final String address, final boolean autoConnect, final BLEGattTransport.Callback callback) {
+        if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+            return null;
+        }
+        final BluetoothDevice device = mAdapter.getRemoteDevice(address);
+        return BLEAndroidGattTransport.connect(mContext, device, autoConnect, callback);
+    }
+}
@@ -0,0 +1,852 @@
+package com.hill.libblemanager;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Transfer of a large binary image, e.g. a firmware update, to a device over a data characteristic and a
+ * control characteristic. Packets are written without response to the data characteristic, and the device
+ * acknowledges every few packets with a receipt carrying the received size and its CRC32, so the transfer runs
+ * a window ahead of the acknowledgements and corrupted data is detected early. After a disconnection the
+ * device is connected again and the transfer resumes from the last acknowledged offset.
+ * <p>The control characteristic is written with response and notifies the responses and receipts. All integers
+ * are little endian, CRCs are the CRC32 of ZIP:
+ * <ul>
+ * <li>{@link #OP_START} [op, size u32, crc u32]: starts or resumes the image of this size and CRC, the response
+ * carries the offset and CRC of the data the device already has of it, 0 for a new image</li>
+ * <li>{@link #OP_SET_RECEIPT_INTERVAL} [op, packets u16]: a receipt is notified every that many packets</li>
+ * <li>{@link #OP_GET_OFFSET} [op]: the response carries the current offset and CRC</li>
+ * <li>{@link #OP_SET_OFFSET} [op, offset u32]: the device drops the data after the offset</li>
+ * <li>{@link #OP_FINISH} [op]: the device verifies and applies the whole image</li>
+ * <li>Response [{@link #OP_RESPONSE}, request op, result u8, (offset u32, crc u32 for START and GET_OFFSET)]</li>
+ * <li>Receipt [{@link #OP_RECEIPT}, offset u32, crc u32]</li>
+ * </ul>
+ * <p>Build it with {@link Builder} and {@link #start} it on a connected device.
+ */
+public final class BLEBulkTransfer {
+    private static final String TAG = "BLEBulkTransfer";
+
+    // Control operations
+    public static final int OP_START = 0x01;
+    public static final int OP_SET_RECEIPT_INTERVAL = 0x02;
+    public static final int OP_GET_OFFSET = 0x03;
+    public static final int OP_SET_OFFSET = 0x04;
+    public static final int OP_FINISH = 0x05;
+    public static final int OP_RESPONSE = 0x10;
+    public static final int OP_RECEIPT = 0x11;
+
+    // Results of the responses
+    public static final int RESULT_SUCCESS = 0x01;
+    public static final int RESULT_INVALID_OPERATION = 0x02;
+    public static final int RESULT_INVALID_PARAMETER = 0x03;
+    public static final int RESULT_NO_SPACE = 0x04;
+    public static final int RESULT_CRC_MISMATCH = 0x05;
+    public static final int RESULT_REJECTED = 0x06;
+
+    public static final int DEFAULT_PACKET_SIZE = BLEGattTransport.DEFAULT_MTU - 3;
+    public static final int DEFAULT_RECEIPT_INTERVAL = 10;
+    public static final int DEFAULT_MAX_RESUMES = 5;
+    public static final long DEFAULT_RESUME_DELAY = 2000;
+    public static final long DEFAULT_ACK_TIMEOUT = 5000;
+
+    // Time before writing a packet again when the stack is busy
+    private static final long BUSY_RETRY_DELAY = 10;
+    private static final int MAX_BUSY_RETRIES = 100;
+    private static final float RATE_SMOOTHING_FACTOR = 0.3f;
+
+    public interface Listener {
+        /**
+         * <p>Callback method when more data is acknowledged
+         * @param progress The progress
+         */
+        void onProgress(final Progress progress);
+
+        void onCompleted(final Progress progress);
+
+        /**
+         * <p>Callback method when the transfer fails, after the resumes are used up or for an error resuming
+         * can't fix
+         * @param error Reason of the failure
+         * @param progress The progress when it fails
+         */
+        void onFailed(final String error, final Progress progress);
+    }
+
+    /**
+     * <p>Progress of a transfer
+     */
+    public static final class Progress {
+        /** Bytes acknowledged by the device */
+        public final int offset;
+        public final int size;
+        /** Smoothed rate of the acknowledged bytes */
+        public final float bytesPerSecond;
+        /** Estimated time to the end in milliseconds, or -1 if it's unknown */
+        public final long eta;
+        public final long elapsed;
+        public final int resumes;
+
+        Progress(final int offset, final int size, final float bytesPerSecond, final long elapsed, final int resumes) {
+            this.offset = offset;
+            this.size = size;
+            this.bytesPerSecond = bytesPerSecond;
+            this.eta = bytesPerSecond > 0 ? (long) ((size - offset) * 1000L / bytesPerSecond) : -1;
+            this.elapsed = elapsed;
+            this.resumes = resumes;
+        }
+
+        @Override
+        public String toString() {
+            return offset+"/"+size+" bytes, "+(int) bytesPerSecond+" B/s, ETA "+eta+" ms, "+resumes+" resumes";
+        }
+    }
+
+    /**
+     * <p>Builder of {@link BLEBulkTransfer}
+     */
+    public static final class Builder {
+        private final UUID mDataUuid;
+        private final UUID mControlUuid;
+        private UUID mServiceUuid = null;
+        private int mPacketSize = DEFAULT_PACKET_SIZE;
+        private int mReceiptInterval = DEFAULT_RECEIPT_INTERVAL;
+        private int mWindow = DEFAULT_RECEIPT_INTERVAL * 2;
+        private int mMaxResumes = DEFAULT_MAX_RESUMES;
+        private long mResumeDelay = DEFAULT_RESUME_DELAY;
+        private long mAckTimeout = DEFAULT_ACK_TIMEOUT;
+
+        /**
+         * <p>Construction method of Builder
+         * @param dataUuid UUID of the data characteristic
+         * @param controlUuid UUID of the control characteristic
+         */
+        public Builder(final UUID dataUuid, final UUID controlUuid) {
+            mDataUuid = dataUuid;
+            mControlUuid = controlUuid;
+        }
+
+        /**
+         * <p>Method to set the service of the characteristics, by default the first characteristics of the UUIDs
+         * are used
+         * @param serviceUuid The UUID of the service
+         * @return This builder
+         */
+        public Builder setServiceUuid(final UUID serviceUuid) {
+            mServiceUuid = serviceUuid;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the size of the packets, at most the MTU minus 3, {@link #DEFAULT_PACKET_SIZE} by default
+         * @param packetSize The size in bytes
+         * @return This builder
+         */
+        public Builder setPacketSize(final int packetSize) {
+            if (packetSize < 1) {
+                throw new IllegalArgumentException("Invalid packet size: "+packetSize);
+            }
+            mPacketSize = packetSize;
+            return this;
+        }
+
+        /**
+         * <p>Method to set how often the device acknowledges and how far the transfer runs ahead of it,
+         * {@link #DEFAULT_RECEIPT_INTERVAL} and twice that by default
+         * @param receiptInterval Number of packets between two receipts
+         * @param window Max number of packets not acknowledged, at least the receipt interval
+         * @return This builder
+         */
+        public Builder setWindow(final int receiptInterval, final int window) {
+            if (receiptInterval < 1 || receiptInterval > 0xFFFF || window < receiptInterval) {
+                throw new IllegalArgumentException("Invalid window: "+receiptInterval+", "+window);
+            }
+            mReceiptInterval = receiptInterval;
+            mWindow = window;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the resumes after a disconnection or a timeout, {@link #DEFAULT_MAX_RESUMES} after
+         * {@link #DEFAULT_RESUME_DELAY} by default
+         * @param maxResumes Max number of resumes, 0 to fail at once
+         * @param resumeDelay Time before resuming in milliseconds
+         * @return This builder
+         */
+        public Builder setResumes(final int maxResumes, final long resumeDelay) {
+            if (maxResumes < 0 || resumeDelay < 0) {
+                throw new IllegalArgumentException("Invalid resumes: "+maxResumes+", "+resumeDelay);
+            }
+            mMaxResumes = maxResumes;
+            mResumeDelay = resumeDelay;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the time to wait for a response or receipt, {@link #DEFAULT_ACK_TIMEOUT} by default
+         * @param timeout The timeout in milliseconds
+         * @return This builder
+         */
+        public Builder setAckTimeout(final long timeout) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("Invalid ack timeout: "+timeout);
+            }
+            mAckTimeout = timeout;
+            return this;
+        }
+
+        public BLEBulkTransfer build() {
+            return new BLEBulkTransfer(this);
+        }
+    }
+
+    // States
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_PREPARING = 1;
+    private static final int STATE_SENDING = 2;
+    private static final int STATE_FINISHING = 3;
+    private static final int STATE_WAITING_RESUME = 4;
+    private static final int STATE_DONE = 5;
+
+    private final UUID mDataUuid;
+    private final UUID mControlUuid;
+    private final UUID mServiceUuid;
+    private final int mPacketSize;
+    private final int mReceiptInterval;
+    private final int mWindow;
+    private final int mMaxResumes;
+    private final long mResumeDelay;
+    private final long mAckTimeout;
+
+    private boolean mStarted = false;
+    private volatile BLEDevice mDevice = null;
+    private Context mContext = null;
+    private byte[] mImage = null;
+    private Listener mListener = null;
+
+    // Only accessed on the GATT thread of the device
+    private int mImageCrc = 0;
+    private int mState = STATE_IDLE;
+    // Incremented when an attempt ends, to ignore the late callbacks of its requests
+    private int mAttempt = 0;
+    private BLEData mData = null;
+    private BLEData mControl = null;
+    private int mPendingOp = -1;
+    private byte[] mQueuedControl = null;
+    private boolean mPacketInFlight = false;
+    // Value of the full packets, reused since a packet is sent before the next one is filled
+    private final byte[] mPacketBuffer;
+    // Packets sent since the device counts them for receipts
+    private int mPacketCount = 0;
+    private int mBusyRetries = 0;
+    private int mSentOffset = 0;
+    private int mSentCrc = 0;
+    private int mAckedOffset = 0;
+    private int mAckedCrc = 0;
+    // {end offset, CRC up to it} of the packets sent and not acknowledged
+    private final ArrayDeque<long[]> mSentPackets = new ArrayDeque<long[]>();
+    private int mResumes = 0;
+    private long mStartTime = 0;
+    private long mRateTime = 0;
+    private int mRateOffset = 0;
+    private float mBytesPerSecond = 0;
+
+    private BLEBulkTransfer(final Builder builder) {
+        mDataUuid = builder.mDataUuid;
+        mControlUuid = builder.mControlUuid;
+        mServiceUuid = builder.mServiceUuid;
+        mPacketSize = builder.mPacketSize;
+        mReceiptInterval = builder.mReceiptInterval;
+        mWindow = builder.mWindow;
+        mMaxResumes = builder.mMaxResumes;
+        mResumeDelay = builder.mResumeDelay;
+        mAckTimeout = builder.mAckTimeout;
+        mPacketBuffer = new byte[mPacketSize];
+    }
+
+    /**
+     * <p>Method to start the transfer, it can only be started once
+     * @param context Application context to connect the device again, it can be null if the device is found by
+     *                a {@link BLETransport}
+     * @param device The connected device
+     * @param image The image to transfer
+     * @param listener Listener to receive the progress and the result, called on the callback thread of the device
+     */
+    public void start(final Context context, final BLEDevice device, final byte[] image, final Listener listener) {
+        if (device == null || image == null || listener == null) {
+            throw new IllegalArgumentException("Device, image and listener can't be null");
+        }
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Bulk transfer is already started");
+            }
+            mStarted = true;
+        }
+        mContext = context;
+        mImage = image;
+        mListener = listener;
+        mDevice = device;
+        device.getGattThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                mImageCrc = crc32(0, image, 0, image.length);
+                mStartTime = SystemClock.elapsedRealtime();
+                device.addConnectionWatcher(mConnectionWatcher);
+                device.addCharacterChangedListener(mControlListener);
+                // RSSI reads would take connection events from the packets
+                device.getRssiMonitor().suspend();
+                Log.d(TAG, "Start transfer of "+image.length+" bytes to "+device.getDisplayName());
+                prepare();
+            }
+        });
+    }
+
+    /**
+     * <p>Method to stop the transfer, the listener gets {@link Listener#onFailed}. The device keeps the data
+     * acknowledged so far, so a later transfer of the same image resumes from it.
+     */
+    public void cancel() {
+        final BLEDevice device = mDevice;
+        if (device == null) {
+            return;
+        }
+        device.getGattThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mState != STATE_DONE) {
+                    finish("Cancelled");
+                }
+            }
+        });
+    }
+
+    // Connection methods
+    private final BLEDevice.ConnectionListener mConnectionWatcher = new BLEDevice.ConnectionListener() {
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState == STATE_DONE) {
+                        return;
+                    }
+                    if (!connected) {
+                        failAttempt("Disconnected");
+                    } else if (mState == STATE_WAITING_RESUME) {
+                        prepare();
+                    }
+                }
+            });
+        }
+    };
+
+    private void runOnGattThread(final Runnable task) {
+        mDevice.getGattThread().execute(task);
+    }
+
+    private void prepare() {
+        mState = STATE_PREPARING;
+        final int attempt = mAttempt;
+        mDevice.queryServices(new BLEDevice.QueryResultsListener() {
+            @Override
+            public void onGotResults(final List<BLEData> dataList) {
+                runOnGattThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt != mAttempt) {
+                            return;
+                        }
+                        if (dataList == null) {
+                            failAttempt("Failed to discover services");
+                            return;
+                        }
+                        final BLEGattTree gattTree = mDevice.getGattTree();
+                        mData = findCharacteristic(gattTree, mDataUuid);
+                        mControl = findCharacteristic(gattTree, mControlUuid);
+                        if (mData == null || mControl == null) {
+                            finish("Transfer characteristics aren't found");
+                            return;
+                        }
+                        enableControlNotification(attempt);
+                    }
+                });
+            }
+        });
+    }
+
+    private BLEData findCharacteristic(final BLEGattTree gattTree, final UUID uuid) {
+        if (gattTree == null) {
+            return null;
+        }
+        return mServiceUuid != null ? gattTree.getCharacteristic(mServiceUuid, uuid) : gattTree.getCharacteristic(uuid);
+    }
+
+    private void enableControlNotification(final int attempt) {
+        mDevice.setCharacterNotification(mControl, true, new BLEDevice.WriteValueStatusListener() {
+            @Override
+            public void onSetValue(final BLEData data, final int status) {
+                runOnGattThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt != mAttempt) {
+                            return;
+                        }
+                        if (status != BLEGattTransport.STATUS_SUCCESS) {
+                            failAttempt("Failed to enable control notification, status: "+status);
+                            return;
+                        }
+                        final byte[] command = new byte[3];
+                        command[0] = OP_SET_RECEIPT_INTERVAL;
+                        putUint16(command, 1, mReceiptInterval);
+                        writeControl(command);
+                    }
+                });
+            }
+
+            @Override
+            public void onSetValue(final BLEData data) {
+            }
+        });
+    }
+
+    // Control methods
+    private void writeControl(final byte[] command) {
+        writeControl(command, 0);
+    }
+
+    private void writeControl(final byte[] command, final int busyRetries) {
+        if (mPacketInFlight) { // Written once the packet is done, the device serves one write at a time
+            mQueuedControl = command;
+            return;
+        }
+        final int attempt = mAttempt;
+        mPendingOp = command[0];
+        mControl.setValue(command);
+        mDevice.writeCharacterData(mControl, BLEGattTransport.WRITE_TYPE_DEFAULT, new BLEDevice.WriteValueStatusListener() {
+            @Override
+            public void onSetValue(final BLEData data, final int status) {
+                if (status == BLEGattTransport.STATUS_SUCCESS) {
+                    return;
+                }
+                runOnGattThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt != mAttempt) {
+                            return;
+                        }
+                        // The stack is busy until the last packet is out, try again later
+                        if (status == BLEGattTransport.STATUS_FAILURE && mDevice.isConnected()
+                                && busyRetries < MAX_BUSY_RETRIES) {
+                            mDevice.getGattThread().postDelayed(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (attempt == mAttempt) {
+                                        writeControl(command, busyRetries + 1);
+                                    }
+                                }
+                            }, BUSY_RETRY_DELAY);
+                            return;
+                        }
+                        failAttempt("Failed to write control operation, status: "+status);
+                    }
+                });
+            }
+
+            @Override
+            public void onSetValue(final BLEData data) {
+            }
+        });
+        restartAckTimeout();
+    }
+
+    private final BLEDevice.ValueChangedListener mControlListener = new BLEDevice.ValueChangedListener() {
+        @Override
+        public void onValueChanged(final BLEData data) {
+            if (!mControlUuid.equals(data.uuid)) {
+                return;
+            }
+            final byte[] value = data.getValue();
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mState == STATE_PREPARING || mState == STATE_SENDING || mState == STATE_FINISHING) {
+                        processControlValue(value);
+                    }
+                }
+            });
+        }
+    };
+
+    private void processControlValue(final byte[] value) {
+        if (value == null || value.length == 0) {
+            return;
+        }
+        if ((value[0] & 0xFF) == OP_RECEIPT && value.length >= 9) {
+            final int offset = getUint32(value, 1);
+            // A repeated or late receipt of data acknowledged already, the window after it is still valid
+            if (offset > mAckedOffset) {
+                processReceipt(offset, getUint32(value, 5));
+            }
+            return;
+        }
+        if ((value[0] & 0xFF) != OP_RESPONSE || value.length < 3 || (value[1] & 0xFF) != mPendingOp) {
+            Log.w(TAG, "Ignore unexpected control value: "+Arrays.toString(value));
+            return;
+        }
+        final int op = mPendingOp;
+        final int result = value[2] & 0xFF;
+        mPendingOp = -1;
+        cancelAckTimeout();
+        if (result != RESULT_SUCCESS) {
+            // The device can't take the image, resuming doesn't help
+            finish("Operation "+op+" failed with result "+result);
+            return;
+        }
+        switch (op) {
+            case OP_SET_RECEIPT_INTERVAL: {
+                final byte[] command = new byte[9];
+                command[0] = OP_START;
+                putUint32(command, 1, mImage.length);
+                putUint32(command, 5, mImageCrc);
+                writeControl(command);
+                break;
+            }
+            case OP_START:
+                if (value.length < 11) {
+                    finish("Invalid START response");
+                    return;
+                }
+                processStarted(getUint32(value, 3), getUint32(value, 7));
+                break;
+            case OP_GET_OFFSET:
+                if (value.length < 11) {
+                    finish("Invalid GET_OFFSET response");
+                    return;
+                }
+                processReceipt(getUint32(value, 3), getUint32(value, 7));
+                break;
+            case OP_SET_OFFSET:
+                startSending();
+                break;
+            case OP_FINISH:
+                cancelAckTimeout();
+                finish(null);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void processStarted(final int offset, final int crc) {
+        mState = STATE_SENDING;
+        if (offset >= 0 && offset <= mImage.length && crc == crc32(0, mImage, 0, offset)) {
+            Log.d(TAG, "Resume transfer from offset "+offset);
+            mAckedOffset = offset;
+            mAckedCrc = crc;
+            startSending();
+        } else { // Data of another image, start it over
+            Log.w(TAG, "Device has invalid data up to "+offset+", start over");
+            mAckedOffset = 0;
+            mAckedCrc = 0;
+            rewind();
+        }
+    }
+
+    // Method to drop the data after the acknowledged offset on the device and send it again
+    private void rewind() {
+        final byte[] command = new byte[5];
+        command[0] = OP_SET_OFFSET;
+        putUint32(command, 1, mAckedOffset);
+        writeControl(command);
+    }
+
+    private void processReceipt(final int offset, final int crc) {
+        if (offset == mAckedOffset && offset == mSentOffset) { // Receipt of GET_OFFSET after the last one
+            sendPackets();
+            return;
+        }
+        long[] packet;
+        while ((packet = mSentPackets.peek()) != null && packet[0] < offset) {
+            mSentPackets.poll();
+        }
+        if (packet == null || packet[0] != offset || (int) packet[1] != crc) {
+            Log.w(TAG, "Invalid receipt at offset "+offset+", send again from "+mAckedOffset);
+            mSentPackets.clear();
+            rewind();
+            return;
+        }
+        mSentPackets.poll();
+        mAckedOffset = offset;
+        mAckedCrc = crc;
+        updateRate();
+        if (mSentOffset > mAckedOffset) {
+            restartAckTimeout();
+        } else {
+            cancelAckTimeout();
+        }
+        final Progress progress = getProgress();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                mListener.onProgress(progress);
+            }
+        });
+        if (mAckedOffset == mImage.length) {
+            mState = STATE_FINISHING;
+            writeControl(new byte[] {OP_FINISH});
+            return;
+        }
+        sendPackets();
+    }
+
+    // Data methods
+    private void startSending() {
+        mState = STATE_SENDING;
+        mSentOffset = mAckedOffset;
+        mSentCrc = mAckedCrc;
+        mSentPackets.clear();
+        mPacketCount = 0;
+        mRateTime = SystemClock.elapsedRealtime();
+        mRateOffset = mAckedOffset;
+        if (mAckedOffset == mImage.length) {
+            mState = STATE_FINISHING;
+            writeControl(new byte[] {OP_FINISH});
+            return;
+        }
+        sendPackets();
+    }
+
+    private void sendPackets() {
+        if (mState != STATE_SENDING || mPacketInFlight || mPendingOp != -1) {
+            return;
+        }
+        if (mSentOffset >= mImage.length) {
+            // The last packets don't fill a receipt interval, ask for the offset instead of waiting for a receipt
+            if (mSentOffset > mAckedOffset && mPacketCount % mReceiptInterval != 0) {
+                writeControl(new byte[] {OP_GET_OFFSET});
+            }
+            return;
+        }
+        if (mSentOffset - mAckedOffset >= mWindow * mPacketSize) {
+            return; // Wait for a receipt
+        }
+        final int end = Math.min(mImage.length, mSentOffset + mPacketSize);
+        final int attempt = mAttempt;
+        mPacketInFlight = true;
+        if (end - mSentOffset == mPacketSize) {
+            System.arraycopy(mImage, mSentOffset, mPacketBuffer, 0, mPacketSize);
+            mData.setValue(mPacketBuffer);
+        } else {
+            mData.setValue(Arrays.copyOfRange(mImage, mSentOffset, end));
+        }
+        mDevice.writeCharacterData(mData, BLEGattTransport.WRITE_TYPE_NO_RESPONSE, new BLEDevice.WriteValueStatusListener() {
+            @Override
+            public void onSetValue(final BLEData data, final int status) {
+                runOnGattThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (attempt != mAttempt) {
+                            return;
+                        }
+                        mPacketInFlight = false;
+                        processPacketSent(end, status);
+                    }
+                });
+            }
+
+            @Override
+            public void onSetValue(final BLEData data) {
+            }
+        });
+        if (mSentOffset == mAckedOffset) {
+            restartAckTimeout();
+        }
+    }
+
+    private void processPacketSent(final int end, final int status) {
+        if (status == BLEGattTransport.STATUS_SUCCESS) {
+            mSentCrc = crc32(mSentCrc, mImage, mSentOffset, end - mSentOffset);
+            mSentOffset = end;
+            mSentPackets.add(new long[] {end, mSentCrc});
+            mPacketCount++;
+            mBusyRetries = 0;
+        } else if (!mDevice.isConnected() || ++mBusyRetries > MAX_BUSY_RETRIES) {
+            failAttempt("Failed to write packet, status: "+status);
+            return;
+        }
+        final byte[] queuedControl = mQueuedControl;
+        if (queuedControl != null) {
+            mQueuedControl = null;
+            writeControl(queuedControl);
+            return;
+        }
+        if (status != BLEGattTransport.STATUS_SUCCESS) { // The stack is busy, try again later
+            final int attempt = mAttempt;
+            mDevice.getGattThread().postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (attempt == mAttempt) {
+                        sendPackets();
+                    }
+                }
+            }, BUSY_RETRY_DELAY);
+            return;
+        }
+        sendPackets();
+    }
+
+    // Timeout and resume methods
+    private final Runnable mAckTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_PREPARING || mState == STATE_SENDING || mState == STATE_FINISHING) {
+                failAttempt("Timed out waiting for the device");
+            }
+        }
+    };
+
+    private void restartAckTimeout() {
+        mDevice.getGattThread().removeCallbacks(mAckTimeoutTask);
+        mDevice.getGattThread().postDelayed(mAckTimeoutTask, mAckTimeout);
+    }
+
+    private void cancelAckTimeout() {
+        mDevice.getGattThread().removeCallbacks(mAckTimeoutTask);
+    }
+
+    private void resetAttempt() {
+        mAttempt++;
+        cancelAckTimeout();
+        mPendingOp = -1;
+        mQueuedControl = null;
+        mPacketInFlight = false;
+        mSentPackets.clear();
+    }
+
+    private void failAttempt(final String error) {
+        if (mState == STATE_WAITING_RESUME || mState == STATE_DONE) {
+            return;
+        }
+        if (mResumes >= mMaxResumes) {
+            finish(error);
+            return;
+        }
+        Log.w(TAG, "Transfer interrupted at offset "+mAckedOffset+": "+error);
+        resetAttempt();
+        mState = STATE_WAITING_RESUME;
+        mResumes++;
+        mDevice.getGattThread().postDelayed(mResumeTask, mResumeDelay);
+    }
+
+    private final Runnable mResumeTask = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_WAITING_RESUME) {
+                return;
+            }
+            if (mDevice.isConnected()) {
+                prepare();
+            } else if (mDevice.getConnectionState() == BLEDevice.STATE_DISCONNECTED) {
+                // Prepared by mConnectionWatcher once connected, the app keeps its listener
+                mDevice.connect(mContext, false, mDevice.getConnectionListener());
+            }
+        }
+    };
+
+    private void finish(final String error) {
+        resetAttempt();
+        mState = STATE_DONE;
+        mDevice.getGattThread().removeCallbacks(mResumeTask);
+        mDevice.removeCharacterChangedListener(mControlListener);
+        mDevice.getRssiMonitor().resume();
+        mDevice.removeConnectionWatcher(mConnectionWatcher);
+        final Progress progress = getProgress();
+        if (error == null) {
+            Log.d(TAG, "Transfer completed: "+progress);
+        } else {
+            Log.e(TAG, "Transfer failed: "+error+", "+progress);
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    mListener.onCompleted(progress);
+                } else {
+                    mListener.onFailed(error, progress);
+                }
+            }
+        });
+    }
+
+    // Progress methods
+    private void updateRate() {
+        final long now = SystemClock.elapsedRealtime();
+        final long interval = now - mRateTime;
+        if (interval <= 0) {
+            return;
+        }
+        final float rate = (mAckedOffset - mRateOffset) * 1000f / interval;
+        mBytesPerSecond = mBytesPerSecond == 0 ? rate
+                : mBytesPerSecond + RATE_SMOOTHING_FACTOR * (rate - mBytesPerSecond);
+        mRateTime = now;
+        mRateOffset = mAckedOffset;
+    }
+
+    private Progress getProgress() {
+        return new Progress(mAckedOffset, mImage.length, mBytesPerSecond,
+                SystemClock.elapsedRealtime() - mStartTime, mResumes);
+    }
+
+    private void deliver(final Runnable callback) {
+        mDevice.deliverCallback(callback);
+    }
+
+    // Encoding methods
+    private static void putUint16(final byte[] buffer, final int offset, final int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >>> 8);
+    }
+
+    private static void putUint32(final byte[] buffer, final int offset, final int value) {
+        for (int i = 0; i < 4; i++) {
+            buffer[offset + i] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private static int getUint32(final byte[] buffer, final int offset) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value |= (buffer[offset + i] & 0xFF) << (i * 8);
+        }
+        return value;
+    }
+
+    private static final int[] CRC32_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0xEDB88320 : crc >>> 1;
+            }
+            CRC32_TABLE[i] = crc;
+        }
+    }
+
+    /**
+     * <p>Method to continue a CRC32, unlike {@link java.util.zip.CRC32} it can continue from any value
+     * @param crc The CRC of the preceding data, 0 to start
+     * @return The CRC including the data
+     */
+    static int crc32(final int crc, final byte[] data, final int offset, final int length) {
+        int value = ~crc;
+        for (int i = offset; i < offset + length; i++) {
+            value = CRC32_TABLE[(value ^ data[i]) & 0xFF] ^ (value >>> 8);
+        }
+        return ~value;
+    }
+}
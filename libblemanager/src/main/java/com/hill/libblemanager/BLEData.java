@@ -1,14 +1,13 @@
 package com.hill.libblemanager;
 
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
 import java.util.UUID;
 
 public final class BLEData {
@@ -21,30 +20,59 @@ public final class BLEData {
     public static final int DATATYPE_DESCRIPTOR = 3;
 
     public final UUID uuid;
+    /** Platform object of the GATT Service/Characteristic/Descriptor, see {@link BLEAttribute#getNativeObject()} */
     public final Object data;
     public final @DataType int dataType;
+    /** The attribute of the GATT Service/Characteristic/Descriptor, or null for unknown data */
+    public final BLEAttribute attribute;
 
     /**
      * Construction method of BLEData
      * @param uuid UUID value of GATT Service/Characteristic/Descriptor
-     * @param data object of GATT Service/Characteristic/Descriptor
+     * @param data object of GATT Service/Characteristic/Descriptor, a {@link BLEAttribute}
+     *             or a GATT object of Android SDK
      */
     public BLEData(final UUID uuid, final Object data) {
+        this(uuid, data instanceof BLEAttribute ? (BLEAttribute) data : BLEAndroidAttribute.wrap(data), data, null);
+    }
+
+    /**
+     * Construction method of BLEData
+     * @param attribute The attribute of GATT Service/Characteristic/Descriptor
+     */
+    public BLEData(final BLEAttribute attribute) {
+        this(attribute.getUuid(), attribute, attribute, null);
+    }
+
+    // Value got with an event, the attribute may have been updated by the following events already
+    private volatile byte[] mValueSnapshot;
+
+    BLEData(final BLEAttribute attribute, final byte[] valueSnapshot) {
+        this(attribute.getUuid(), attribute, attribute, valueSnapshot);
+    }
+
+    private BLEData(final UUID uuid, final BLEAttribute attribute, final Object data, final byte[] valueSnapshot) {
         this.uuid = uuid;
-        this.data = data;
+        this.attribute = attribute;
+        this.data = attribute != null ? attribute.getNativeObject() : data;
         this.dataType = checkDataType();
+        mValueSnapshot = valueSnapshot;
     }
 
     private @DataType int checkDataType() {
-        if (data instanceof BluetoothGattService) {
-            return DATATYPE_SERVICE;
-        } else if (data instanceof BluetoothGattCharacteristic) {
-            return DATATYPE_CHARACTER;
-        } else if (data instanceof BluetoothGattDescriptor) {
-            return DATATYPE_DESCRIPTOR;
-        } else {
+        if (attribute == null) {
             return DATATYPE_UNKNOWN;
         }
+        switch (attribute.getType()) {
+            case BLEAttribute.TYPE_SERVICE:
+                return DATATYPE_SERVICE;
+            case BLEAttribute.TYPE_CHARACTERISTIC:
+                return DATATYPE_CHARACTER;
+            case BLEAttribute.TYPE_DESCRIPTOR:
+                return DATATYPE_DESCRIPTOR;
+            default:
+                return DATATYPE_UNKNOWN;
+        }
     }
 
     /**
@@ -60,17 +88,37 @@ public final class BLEData {
      * @return Cached value of the BLEData
      */
     public byte[] getValue() {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.getValue();
-            case DATATYPE_DESCRIPTOR:
-                final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) data;
-                descriptor.getValue();
-            case DATATYPE_SERVICE:
-            default:
-                return null;
+        final byte[] valueSnapshot = mValueSnapshot;
+        if (valueSnapshot != null) {
+            return valueSnapshot;
         }
+        return attribute != null ? attribute.getValue() : null;
+    }
+
+    /**
+     * Get a read-only little endian view of the stored value, the bytes are not copied.
+     * <p>See {@link #getValue} for details.
+     *
+     * @return View of the cached value of the BLEData, or null if there is no value
+     */
+    public ByteBuffer getValueBuffer() {
+        final byte[] value = getValue();
+        if (value == null) {
+            return null;
+        }
+        return ByteBuffer.wrap(value).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Check whether the stored value contains a complete field of the format at the offset.
+     * <p>Use it before {@link #getLongValue} or {@link #getDoubleValue}, which throw on a short value.
+     *
+     * @param formatType The format type of the field, see {@link BLEValueFormat}
+     * @param offset Offset at which the field can be found.
+     * @return Whether the field can be decoded
+     */
+    public boolean hasValue(final int formatType, final int offset) {
+        return BLEValueCodec.hasValue(getValue(), formatType, offset);
     }
 
     /**
@@ -81,15 +129,11 @@ public final class BLEData {
      * @return Cached value of the BLEData
      */
     public String getStringValue(final int offset) {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.getStringValue(offset);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return null;
+        final byte[] value = getValue();
+        if (value == null || offset < 0 || offset > value.length) {
+            return null;
         }
+        return BLEValueCodec.getString(value, BLEValueFormat.FORMAT_UTF8, offset);
     }
 
     /**
@@ -97,7 +141,7 @@ public final class BLEData {
      *
      * <p>The formatType parameter determines how the characteristic value
      * is to be interpreted. For example, setting formatType to
-     * {@link BluetoothGattCharacteristic#FORMAT_UINT16} specifies that the first two bytes of the
+     * {@link BLEValueFormat#FORMAT_UINT16} specifies that the first two bytes of the
      * characteristic value at the given offset are interpreted to generate the
      * return value.
      *
@@ -106,15 +150,10 @@ public final class BLEData {
      * @return Cached value of the BLEData or {@link Integer#MAX_VALUE} as invalid value.
      */
     public int getIntValue(final int formatType, final int offset) {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.getIntValue(formatType, offset);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return Integer.MAX_VALUE;
+        if (!BLEValueFormat.isInteger(formatType) || !hasValue(formatType, offset)) {
+            return Integer.MAX_VALUE;
         }
+        return (int) BLEValueCodec.getLong(getValue(), formatType, offset);
     }
     /**
      * Return the stored value of this BLEData.
@@ -126,15 +165,43 @@ public final class BLEData {
      * or {@link Float#MAX_VALUE} as invalid value
      */
     public float getFloatValue(final int formatType, final int offset) {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.getFloatValue(formatType, offset);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return Float.MAX_VALUE;
+        if (!BLEValueFormat.isIEEE11073(formatType) && !BLEValueFormat.isIEEE754(formatType)
+                || !hasValue(formatType, offset)) {
+            return Float.MAX_VALUE;
         }
+        return (float) BLEValueCodec.getDouble(getValue(), formatType, offset);
+    }
+    /**
+     * Return the stored value of this BLEData without sentinel values.
+     * <p>See {@link BLEValueCodec#getLong(byte[], int, int)} for details.
+     *
+     * @param formatType Integer format type, see {@link BLEValueFormat}
+     * @param offset Offset at which the integer value can be found.
+     * @return Cached value of the BLEData
+     * @throws IndexOutOfBoundsException if there is no complete value at the offset
+     */
+    public long getLongValue(final int formatType, final int offset) {
+        final byte[] value = getValue();
+        if (value == null) {
+            throw new IndexOutOfBoundsException("No value of "+uuid);
+        }
+        return BLEValueCodec.getLong(value, formatType, offset);
+    }
+    /**
+     * Return the stored value of this BLEData without sentinel values.
+     * <p>See {@link BLEValueCodec#getDouble(byte[], int, int)} for details.
+     *
+     * @param formatType Numeric format type, see {@link BLEValueFormat}
+     * @param offset Offset at which the number can be found.
+     * @return Cached value of the BLEData
+     * @throws IndexOutOfBoundsException if there is no complete value at the offset
+     */
+    public double getDoubleValue(final int formatType, final int offset) {
+        final byte[] value = getValue();
+        if (value == null) {
+            throw new IndexOutOfBoundsException("No value of "+uuid);
+        }
+        return BLEValueCodec.getDouble(value, formatType, offset);
     }
     /**
      * Updates the locally stored value of this BLEData.
@@ -149,20 +216,11 @@ public final class BLEData {
      * be stored locally.
      */
     public boolean setValue(final byte[] value) {
-        if (value == null) {
+        if (value == null || attribute == null) {
             return false;
         }
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.setValue(value);
-            case DATATYPE_DESCRIPTOR:
-                final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) data;
-                return descriptor.setValue(value);
-            case DATATYPE_SERVICE:
-            default:
-                return false;
-        }
+        mValueSnapshot = null;
+        return attribute.setValue(value);
     }
     /**
      * Set the locally stored value of this BLEData.
@@ -175,15 +233,7 @@ public final class BLEData {
         if (value == null) {
             return false;
         }
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.setValue(value);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return false;
-        }
+        return setValue(value.getBytes(Charset.forName("UTF-8")));
     }
     /**
      * Set the locally stored value of this BLEData.
@@ -195,15 +245,12 @@ public final class BLEData {
      * @return true if the locally stored value has been set
      */
     public boolean setValue(final int value, final int formatType, final int offset) {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.setValue(value, formatType, offset);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return false;
+        if (!BLEValueFormat.isInteger(formatType) || !BLEValueFormat.isValid(formatType) || offset < 0) {
+            return false;
         }
+        final byte[] intBytes = valueOf(BLEValueFormat.getSize(formatType) + offset);
+        BLEValueCodec.putLong(intBytes, formatType, offset, value);
+        return setValue(intBytes);
     }
     /**
      * Set the locally stored value of this BLEData.
@@ -216,15 +263,23 @@ public final class BLEData {
      * @return true if the locally stored value has been set
      */
     public boolean setValue(final int mantissa, final int exponent, final int formatType, final int offset) {
-        switch (dataType) {
-            case DATATYPE_CHARACTER:
-                final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) data;
-                return character.setValue(mantissa, exponent, formatType, offset);
-            case DATATYPE_DESCRIPTOR:
-            case DATATYPE_SERVICE:
-            default:
-                return false;
+        if (!BLEValueFormat.isIEEE11073(formatType) || offset < 0) {
+            return false;
         }
+        final byte[] floatBytes = valueOf(BLEValueFormat.getSize(formatType) + offset);
+        BLEValueCodec.putIEEE11073(floatBytes, formatType, offset, mantissa, exponent);
+        return setValue(floatBytes);
+    }
+
+    // Get a copy of the stored value which is at least the given size
+    private byte[] valueOf(final int minSize) {
+        final byte[] value = getValue();
+        if (value == null) {
+            return new byte[minSize];
+        }
+        final byte[] copy = new byte[Math.max(value.length, minSize)];
+        System.arraycopy(value, 0, copy, 0, value.length);
+        return copy;
     }
 
     @Override
@@ -241,6 +296,11 @@ public final class BLEData {
         }
     }
 
+    @Override
+    public int hashCode() {
+        return uuid.hashCode();
+    }
+
     private boolean equalsToUUID(final UUID uuid) {
         return this.uuid.equals(uuid);
     }
@@ -1,23 +1,34 @@
 package com.hill.libblemanager;
 
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattDescriptor;
-import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public final class BLEDevice {
     private static final String TAG = "BLEDevice";
 
+    /** {@link BluetoothDevice} object of Android SDK, or null if the device is found by another {@link BLETransport} */
     public final BluetoothDevice btDevice;
-    public int deviceRssi;
+    public volatile int deviceRssi;
+
+    private final BLETransport mTransport;
+    private final String mAddress;
+    private final String mName;
+    private final BLETrace mTrace;
 
     /**
      * <p>Construction method of BLEDevice
@@ -27,6 +38,57 @@ public final class BLEDevice {
     public BLEDevice(final BluetoothDevice device, final int rssi) {
         btDevice = device;
         deviceRssi = rssi;
+        mTransport = null;
+        mAddress = device.getAddress();
+        mName = device.getName();
+        mTrace = new BLETrace(mAddress, BLETrace.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * <p>Construction method of BLEDevice found by the transport
+     * @param transport The transport to connect this device, see {@link BLEManager#setTransport}
+     * @param address Address of this device
+     * @param name Name of this device, it can be null
+     * @param rssi RSSI value of this device
+     */
+    public BLEDevice(final BLETransport transport, final String address, final String name, final int rssi) {
+        btDevice = null;
+        deviceRssi = rssi;
+        mTransport = transport;
+        mAddress = address;
+        mName = name;
+        mTrace = new BLETrace(mAddress, BLETrace.DEFAULT_CAPACITY);
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    private volatile BLEScanResult mScanResult = null;
+
+    void setScanResult(final BLEScanResult scanResult) {
+        mScanResult = scanResult;
+    }
+
+    /**
+     * <p>Get the advertisement this device is found by, parse its data by {@link BLEAdvertisement#parse}
+     * @return The scan result, or null if the device isn't found by {@link BLEManager#startScan}
+     */
+    public BLEScanResult getScanResult() {
+        return mScanResult;
+    }
+
+    /**
+     * <p>Get the timeline of the connection events of this device, e.g. to export it by
+     * {@link BLETrace#writeChromeTrace} and find which phase of a slow connection takes the time
+     * @return The timeline, it keeps the latest {@link BLETrace#DEFAULT_CAPACITY} events
+     */
+    public BLETrace getTrace() {
+        return mTrace;
     }
 
     /**
@@ -34,163 +96,428 @@ public final class BLEDevice {
      * @return the name to identify this device
      */
     public String getDisplayName() {
-        final String deviceName = btDevice.getName();
-        if (!TextUtils.isEmpty(deviceName)) {
-            return deviceName;
+        if (!TextUtils.isEmpty(mName)) {
+            return mName;
         }
-        return btDevice.getAddress();
+        return mAddress;
     }
 
     public boolean equals(final BLEDevice other) {
-        return btDevice.getAddress().equals(other.btDevice.getAddress());
+        return mAddress.equals(other.mAddress);
     }
 
     public boolean equals(final BluetoothDevice otherBTDevice) {
-        return btDevice.getAddress().equals(otherBTDevice.getAddress());
+        return mAddress.equals(otherBTDevice.getAddress());
     }
 
-    // GATT related methods
-    private BluetoothGatt mGatt = null;
-    private BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
-        @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onConnectionStateChange callback");
-                return;
-            }
-            notifyConnectionStateChanged(newState == BluetoothGatt.STATE_CONNECTED);
-            if (status == BluetoothGatt.GATT_SUCCESS && newState == BluetoothGatt.STATE_DISCONNECTED) {
-                mGatt = null;
-            }
-        }
+    // Threading methods
+    private volatile BLEGattThread mGattThread = BLEGattThread.getShared();
+    private volatile Executor mCallbackExecutor = null;
 
-        @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onServicesDiscovered callback");
-                return;
-            }
-            processOnServicesDiscovered(status);
+    /**
+     * <p>Method to set the thread to process GATT callbacks and API calls of this device,
+     * it's {@link BLEGattThread#getShared()} by default. It can only be changed when the device isn't connected.
+     * @param gattThread The GATT thread
+     */
+    public void setGattThread(final BLEGattThread gattThread) {
+        if (gattThread == null) {
+            throw new IllegalArgumentException("GATT thread can't be null");
+        }
+        if (mConnectionState.get() != STATE_DISCONNECTED) {
+            throw new IllegalStateException("Can't change GATT thread of a connected device");
         }
+        mGattThread = gattThread;
+    }
 
-        @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onCharacteristicRead callback");
-                return;
-            }
-            if (characteristic == null) {
-                Log.e(TAG, "Ignore onCharacteristicRead callback with invalid characteristic parameter");
-                return;
-            }
+    /**
+     * <p>Get the thread to process GATT callbacks and API calls of this device
+     * @return The GATT thread
+     */
+    public BLEGattThread getGattThread() {
+        return mGattThread;
+    }
 
-            processOnCharacterReadForReadingCharactersList(characteristic, status);
+    /**
+     * <p>Method to set the Executor to deliver all listener callbacks of this device.
+     * By default listeners are called on the GATT thread directly, see {@link #setGattThread}.
+     * @param executor The Executor to deliver callbacks, null to call listeners on the GATT thread
+     */
+    public void setCallbackExecutor(final Executor executor) {
+        mCallbackExecutor = executor;
+    }
 
-            processOnCharacterReadForReadingCharacterValue(characteristic, status);
-        }
+    /**
+     * <p>Method to deliver all listener callbacks of this device on the thread of the Looper,
+     * e.g. {@link Looper#getMainLooper()} to update UI in the callbacks directly.
+     * <p>See {@link #setCallbackExecutor} for details.
+     * @param looper The Looper of the thread to receive callbacks
+     */
+    public void setCallbackLooper(final Looper looper) {
+        setCallbackExecutor(looper != null ? BLEGattThread.executorOf(looper) : null);
+    }
 
-        @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onCharacteristicWrite callback");
-                return;
-            }
-            if (characteristic == null) {
-                Log.e(TAG, "Ignore onCharacteristicWrite callback with invalid characteristic parameter");
-                return;
-            }
+    private void runOnGattThread(final Runnable task) {
+        mGattThread.execute(task);
+    }
 
-            processOnCharacterWriteForWritingCharacterValue(characteristic, status);
+    void deliverCallback(final Runnable callback) {
+        final Executor executor = mCallbackExecutor;
+        if (executor != null) {
+            executor.execute(callback);
+        } else {
+            callback.run();
         }
+    }
 
+    // GATT related methods
+    // Only changed on the GATT thread, volatile to let other threads check it safely
+    private volatile BLEGattTransport mGatt = null;
+    private final BLEGattTransport.Callback mGattCallback = new BLEGattTransport.Callback() {
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onCharacteristicChanged callback");
-                return;
-            }
-            if (characteristic == null) {
-                Log.e(TAG, "Ignore onCharacteristicChanged callback with invalid characteristic parameter");
-                return;
-            }
-
-            notifyCharacterChanged(characteristic);
+        public void onConnectionStateChange(final BLEGattTransport gatt, final int status, final int newState) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onConnectionStateChange callback");
+                        return;
+                    }
+                    final boolean connected = newState == BLEGattTransport.STATE_CONNECTED;
+                    mConnectionState.set(connected ? STATE_CONNECTED : STATE_DISCONNECTED);
+                    if (!connected) {
+                        mGattTree = null;
+                        mMtu = BLEGattTransport.DEFAULT_MTU;
+                        processOnDisconnectedForRetriedRequests();
+                        processOnDisconnectedForCoalescedWrites();
+                        processOnDisconnectedForRssiQueries();
+                    }
+                    mRssiMonitor.onConnectionStateChanged(connected);
+                    notifyConnectionStateChanged(connected);
+                    if (status == BLEGattTransport.STATUS_SUCCESS && newState == BLEGattTransport.STATE_DISCONNECTED) {
+                        mGatt = null;
+                    }
+                }
+            });
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onDescriptorRead callback");
-                return;
-            }
-            if (descriptor == null) {
-                Log.e(TAG, "Ignore onDescriptorRead callback with invalid descriptor parameter");
-                return;
-            }
+        public void onServicesDiscovered(final BLEGattTransport gatt, final int status) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onServicesDiscovered callback");
+                        return;
+                    }
+                    processOnServicesDiscovered(status);
+                }
+            });
+        }
 
-            processOnDescriptorReadForReadingDescriptorsList(descriptor, status);
+        @Override
+        public void onAttributeRead(final BLEGattTransport gatt, final BLEAttribute attribute, final byte[] value, final int status) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onAttributeRead callback");
+                        return;
+                    }
+                    if (attribute == null) {
+                        Log.e(TAG, "Ignore onAttributeRead callback with invalid attribute parameter");
+                        return;
+                    }
+                    mRssiMonitor.onLinkActivity(value != null ? value.length : 0);
+
+                    if (attribute.getType() == BLEAttribute.TYPE_CHARACTERISTIC) {
+                        processOnCharacterReadForReadingCharactersList(attribute, status);
+
+                        processOnCharacterReadForReadingCharacterValue(attribute, status);
+                    } else {
+                        processOnDescriptorReadForReadingDescriptorsList(attribute, status);
+
+                        processOnDescriptorReadForReadingDescriptorValue(attribute, status);
+                    }
+                }
+            });
+        }
 
-            processOnDescriptorReadForReadingDescriptorValue(descriptor, status);
+        @Override
+        public void onAttributeWrite(final BLEGattTransport gatt, final BLEAttribute attribute, final int status) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onAttributeWrite callback");
+                        return;
+                    }
+                    if (attribute == null) {
+                        Log.e(TAG, "Ignore onAttributeWrite callback with invalid attribute parameter");
+                        return;
+                    }
+                    final byte[] writtenValue = attribute.getValue();
+                    mRssiMonitor.onLinkActivity(writtenValue != null ? writtenValue.length : 0);
+
+                    if (attribute.getType() == BLEAttribute.TYPE_CHARACTERISTIC) {
+                        processOnCharacterWriteForWritingCharacterValue(attribute, status);
+                    } else {
+                        processOnDescriptorWriteForWritingDescriptorValue(attribute, status);
+                    }
+                }
+            });
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onDescriptorWrite callback");
-                return;
-            }
-            if (descriptor == null) {
-                Log.e(TAG, "Ignore onDescriptorWrite callback with invalid descriptor parameter");
+        public void onCharacteristicChanged(final BLEGattTransport gatt, final BLEAttribute characteristic, final byte[] value) {
+            if (characteristic == null) {
+                Log.e(TAG, "Ignore onCharacteristicChanged callback with invalid characteristic parameter");
                 return;
             }
+            // Timestamp the arrival before the thread hop, so the recorded times don't include the queueing delay
+            final long receivedNanos = System.nanoTime();
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onCharacteristicChanged callback");
+                        return;
+                    }
+                    final BLEStreamStats stats = mStreamStats.isEmpty() ? null : mStreamStats.get(characteristic.getUuid());
+                    if (stats != null) {
+                        stats.onReceived(value, receivedNanos);
+                    }
+                    final BLETimeSeriesStore timeSeriesStore = mTimeSeriesStore;
+                    if (timeSeriesStore != null) {
+                        timeSeriesStore.record(characteristic.getUuid(), receivedNanos, value);
+                    }
+                    mRssiMonitor.onLinkActivity(value != null ? value.length : 0);
+
+                    notifyCharacterChanged(characteristic, value, receivedNanos, stats);
+                }
+            });
+        }
 
-            processOnDescriptorWriteForWritingDescriptorValue(descriptor, status);
+        @Override
+        public void onRemoteRssiRead(final BLEGattTransport gatt, final int rssi, final int status) {
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onReadRemoteRssi callback");
+                        return;
+                    }
+                    Log.d(TAG, "onReadRemoteRssi, rssi: "+rssi+" status: "+status);
+                    if (status == BLEGattTransport.STATUS_SUCCESS) {
+                        deviceRssi = rssi;
+                        mRssiMonitor.onRssiRead(rssi);
+                    }
+                    notifyGotRssiValue(status == BLEGattTransport.STATUS_SUCCESS, rssi);
+                }
+            });
         }
 
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            if (mGatt != gatt) {
-                Log.w(TAG, "Ignore unrelated Gatt onReadRemoteRssi callback");
-                return;
-            }
-            Log.d(TAG, "onReadRemoteRssi, rssi: "+rssi+" status: "+status);
-            notifyGotRssiValue(status == BluetoothGatt.GATT_SUCCESS, rssi);
+        public void onMtuChanged(final BLEGattTransport gatt, final int mtu, final int status) {
+            Log.d(TAG, "onMtuChanged, mtu: "+mtu+" status: "+status);
+            runOnGattThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (mGatt != gatt) {
+                        Log.w(TAG, "Ignore unrelated Gatt onMtuChanged callback");
+                        return;
+                    }
+                    if (status == BLEGattTransport.STATUS_SUCCESS) {
+                        mMtu = mtu;
+                    }
+                    notifyMtuChanged(status == BLEGattTransport.STATUS_SUCCESS, mMtu);
+                }
+            });
         }
     };
 
     // connection methods
+    public static final int STATE_DISCONNECTED = BLEGattTransport.STATE_DISCONNECTED;
+    public static final int STATE_CONNECTING = BLEGattTransport.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = BLEGattTransport.STATE_CONNECTED;
+    public static final int STATE_DISCONNECTING = BLEGattTransport.STATE_DISCONNECTING;
+
+    private final AtomicInteger mConnectionState = new AtomicInteger(STATE_DISCONNECTED);
+
+    /**
+     * <p>Get the connection state of this device, it can be called on any thread
+     * @return One of {@link #STATE_DISCONNECTED}, {@link #STATE_CONNECTING}, {@link #STATE_CONNECTED}
+     * or {@link #STATE_DISCONNECTING}
+     */
+    public int getConnectionState() {
+        return mConnectionState.get();
+    }
+
+    /**
+     * <p>Method to check whether this device is connected, it can be called on any thread
+     * @return Whether it's connected
+     */
+    public boolean isConnected() {
+        return mConnectionState.get() == STATE_CONNECTED;
+    }
+
     public interface ConnectionListener {
         void onConnectionStateChanged(final boolean connected);
     }
-    private ConnectionListener mConnectionListener = null;
+    private volatile ConnectionListener mConnectionListener = null;
+
+    // Listeners watching the connection besides the one given to connect, they're kept through later connects
+    private final List<ConnectionListener> mConnectionWatchers = new CopyOnWriteArrayList<ConnectionListener>();
+
+    ConnectionListener getConnectionListener() {
+        return mConnectionListener;
+    }
+
+    /**
+     * <p>Method to watch the connection along with the listener given to {@link #connect}, e.g. during a transfer
+     * @param watcher The listener to add
+     */
+    void addConnectionWatcher(final ConnectionListener watcher) {
+        mConnectionWatchers.add(watcher);
+    }
+
+    void removeConnectionWatcher(final ConnectionListener watcher) {
+        mConnectionWatchers.remove(watcher);
+    }
     private void notifyConnectionStateChanged(final boolean connected) {
-        if (mConnectionListener != null) {
-            mConnectionListener.onConnectionStateChanged(connected);
+        final ConnectionListener listener = mConnectionListener;
+        if (listener == null && mConnectionWatchers.isEmpty()) {
+            return;
         }
+        final List<ConnectionListener> watchers = mConnectionWatchers;
+        deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                if (listener != null) {
+                    listener.onConnectionStateChanged(connected);
+                }
+                for (final ConnectionListener watcher : watchers) {
+                    watcher.onConnectionStateChanged(connected);
+                }
+            }
+        });
     }
 
     /**
      * <p>Method to connect to this device
-     * @param context Application context
+     * @param context Application context, it can be null if this device is found by a {@link BLETransport}
      * @param autoConnect Whether to directly connect to the remote device (false) or to
      * automatically connect as soon as the remote device becomes available (true).
      * @param listener Listener to monitor the connection result/status
      */
     public void connect(final Context context, final boolean autoConnect, final ConnectionListener listener) {
-        if (mGatt != null) {
-            disconnect();
+        mConnectionState.set(STATE_CONNECTING);
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mGatt != null) {
+                    mGatt.disconnect();
+                }
+                mConnectionListener = listener;
+                mGatt = openGatt(context, autoConnect);
+                if (mGatt == null) {
+                    Log.e(TAG, "Failed to connect device: "+getDisplayName());
+                    mConnectionState.set(STATE_DISCONNECTED);
+                    notifyConnectionStateChanged(false);
+                }
+            }
+        });
+    }
+
+    private BLEGattTransport openGatt(final Context context, final boolean autoConnect) {
+        final BLEMetrics metrics = BLEMetrics.getInstance().isEnabled() ? BLEMetrics.getInstance() : null;
+        final BLETrace trace = mTrace.isEnabled() ? mTrace : null;
+        if (metrics == null && trace == null) {
+            return openScheduledGatt(context, autoConnect, mGattCallback);
         }
-        mConnectionListener = listener;
-        mGatt = btDevice.connectGatt(context, autoConnect, mGattCallback);
+        // Metered outside of the scheduler, so the latencies include the time queued
+        final BLEMeteredGatt meteredGatt = new BLEMeteredGatt(metrics, trace, mGattCallback);
+        return meteredGatt.attach(openScheduledGatt(context, autoConnect, meteredGatt.getTransportCallback()));
+    }
+
+    private BLEGattTransport openScheduledGatt(final Context context, final boolean autoConnect,
+                                               final BLEGattTransport.Callback callback) {
+        final BLEGattScheduler scheduler = BLEGattScheduler.getInstance();
+        if (!scheduler.isEnabled()) {
+            return connectTransport(context, autoConnect, callback);
+        }
+        final BLEScheduledGatt scheduledGatt = new BLEScheduledGatt(scheduler, mGattStarter, mGattPriorities, callback);
+        return scheduledGatt.attach(connectTransport(context, autoConnect, scheduledGatt.getTransportCallback()));
+    }
+
+    private BLEGattTransport connectTransport(final Context context, final boolean autoConnect,
+                                              final BLEGattTransport.Callback callback) {
+        if (mTransport != null) {
+            return mTransport.connectGatt(mAddress, autoConnect, callback);
+        }
+        return BLEAndroidGattTransport.connect(context, btDevice, autoConnect, callback);
+    }
+
+    /**
+     * <p>Method to give up a connection attempt without notifying the listener, the GATT client is closed
+     */
+    void abortConnect() {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mConnectionState.get() == STATE_CONNECTED) {
+                    return;
+                }
+                if (mGatt != null) {
+                    mGatt.disconnect();
+                    mGatt.close();
+                    mGatt = null;
+                }
+                mConnectionState.set(STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    /**
+     * <p>Method to disconnect and release the GATT client at once without notifying the listener, e.g. when
+     * many devices are connected one after another and the stack runs out of clients
+     */
+    void close() {
+        mConnectionState.set(STATE_DISCONNECTING);
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mGatt != null) {
+                    mGatt.disconnect();
+                    mGatt.close();
+                    mGatt = null;
+                }
+                mGattTree = null;
+                mMtu = BLEGattTransport.DEFAULT_MTU;
+                processOnDisconnectedForRetriedRequests();
+                processOnDisconnectedForCoalescedWrites();
+                processOnDisconnectedForRssiQueries();
+                mRssiMonitor.onConnectionStateChanged(false);
+                mConnectionState.set(STATE_DISCONNECTED);
+            }
+        });
     }
 
     /**
      * Method to disconnect from this device
      */
     public void disconnect() {
-        if (mGatt != null) {
-            mGatt.disconnect();
-        }
+        if (!mConnectionState.compareAndSet(STATE_CONNECTED, STATE_DISCONNECTING)) {
+            mConnectionState.compareAndSet(STATE_CONNECTING, STATE_DISCONNECTING);
+        }
+        // The GATT client is kept after a link loss, disconnect it anyway to cancel its pending auto connection
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                if (mGatt != null) {
+                    mGatt.disconnect();
+                }
+            }
+        });
     }
 
     // Query callback interfaces
@@ -202,44 +529,219 @@ public final class BLEDevice {
         void onGotValue(final BLEData data);
     }
 
+    /**
+     * <p>{@link QueryValueListener} which also receives the final status of the read
+     */
+    public interface QueryValueStatusListener extends QueryValueListener {
+        /**
+         * <p>Callback method called instead of {@link #onGotValue(BLEData)}
+         * @param data The BLEData with the value, or null if it's failed
+         * @param status The status of the last attempt, see STATUS_* constants of {@link BLEGattTransport}.
+         *               {@link BLEGattTransport#STATUS_FAILURE} if the read can't be made.
+         */
+        void onGotValue(final BLEData data, final int status);
+    }
+
     public interface QueryRssiValueListener {
         void onGotRssi(final boolean success, final int rssi);
     }
 
+    public interface MtuChangedListener {
+        /**
+         * @param success Whether the request succeeded
+         * @param mtu The MTU of the connection, the previous one if it failed
+         */
+        void onMtuChanged(final boolean success, final int mtu);
+    }
+
     public interface WriteValueListener {
         void onSetValue(final BLEData data);
     }
 
-    // Query RSSI
-    private QueryRssiValueListener mQueryRssiValueListener = null;
+    /**
+     * <p>{@link WriteValueListener} which also receives the final status of the write
+     */
+    public interface WriteValueStatusListener extends WriteValueListener {
+        /**
+         * <p>Callback method called instead of {@link #onSetValue(BLEData)}
+         * @param data The written BLEData, or null if it's failed
+         * @param status The status of the last attempt, see STATUS_* constants of {@link BLEGattTransport}.
+         *               {@link BLEGattTransport#STATUS_FAILURE} if the write can't be made.
+         */
+        void onSetValue(final BLEData data, final int status);
+    }
+
+    private void notifyGotValue(final QueryValueListener listener, final BLEData data, final int status) {
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    if (listener instanceof QueryValueStatusListener) {
+                        ((QueryValueStatusListener) listener).onGotValue(data, status);
+                    } else {
+                        listener.onGotValue(data);
+                    }
+                }
+            });
+        }
+    }
+
+    private void notifySetValue(final WriteValueListener listener, final BLEData data, final int status) {
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    if (listener instanceof WriteValueStatusListener) {
+                        ((WriteValueStatusListener) listener).onSetValue(data, status);
+                    } else {
+                        listener.onSetValue(data);
+                    }
+                }
+            });
+        }
+    }
+
+    // Query RSSI, the samples of the monitor and the queries share the one read the stack allows in flight
+    private final List<QueryRssiValueListener> mQueryRssiValueListeners = new ArrayList<QueryRssiValueListener>();
+    private boolean mRssiReadInFlight = false;
     private void notifyGotRssiValue(final boolean success, final int rssi) {
-        if (mQueryRssiValueListener != null) {
-            mQueryRssiValueListener.onGotRssi(success, rssi);
+        mRssiReadInFlight = false;
+        if (mQueryRssiValueListeners.isEmpty()) {
+            return;
         }
+        final List<QueryRssiValueListener> listeners = new ArrayList<QueryRssiValueListener>(mQueryRssiValueListeners);
+        mQueryRssiValueListeners.clear();
+        deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                for (final QueryRssiValueListener listener : listeners) {
+                    listener.onGotRssi(success, rssi);
+                }
+            }
+        });
     }
 
     /**
-     * <p>Method to query RSSI value of this device
+     * <p>Method to query RSSI value of this device once.
+     * Use {@link #getRssiMonitor()} to keep monitoring the RSSI value.
+     * A query made while a read is in flight, e.g. a sample of the monitor, gets the result of that read.
      * @param listener Listener to receive the RSSI value. Value 0 indicates invalid
      */
     public void queryRemoteRssi(final QueryRssiValueListener listener) {
-        mQueryRssiValueListener = listener;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryRemoteRssi(listener);
+            }
+        });
+    }
+
+    private void processQueryRemoteRssi(final QueryRssiValueListener listener) {
+        if (listener != null) {
+            mQueryRssiValueListeners.add(listener);
+        }
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
             notifyGotRssiValue(false, 0);
             return;
         }
-        if (!mGatt.readRemoteRssi()) {
+        if (!readRemoteRssi()) {
             Log.e(TAG, "Failed to readRemoteRssi");
             notifyGotRssiValue(false, 0);
         }
     }
 
+    // Called on the GATT thread, a read in flight already counts as requested
+    boolean readRemoteRssi() {
+        if (mRssiReadInFlight) {
+            return true;
+        }
+        final BLEGattTransport gatt = mGatt;
+        mRssiReadInFlight = gatt != null && gatt.readRemoteRssi();
+        return mRssiReadInFlight;
+    }
+
+    private void processOnDisconnectedForRssiQueries() {
+        if (mRssiReadInFlight || !mQueryRssiValueListeners.isEmpty()) {
+            notifyGotRssiValue(false, 0);
+        }
+    }
+
+    // MTU methods
+    private volatile int mMtu = BLEGattTransport.DEFAULT_MTU;
+    private MtuChangedListener mMtuChangedListener = null;
+    private void notifyMtuChanged(final boolean success, final int mtu) {
+        final MtuChangedListener listener = mMtuChangedListener;
+        mMtuChangedListener = null;
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onMtuChanged(success, mtu);
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>Get the ATT MTU of the connection, a characteristic value of up to the MTU minus 3 bytes fits in
+     * one packet
+     * @return The MTU, {@link BLEGattTransport#DEFAULT_MTU} until a larger one is negotiated by {@link #requestMtu}
+     */
+    public int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * <p>Method to ask the remote device for a larger MTU, the negotiated MTU may be smaller than requested
+     * @param mtu The requested MTU, up to 517
+     * @param listener Listener to receive the negotiated MTU
+     */
+    public void requestMtu(final int mtu, final MtuChangedListener listener) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processRequestMtu(mtu, listener);
+            }
+        });
+    }
+
+    private void processRequestMtu(final int mtu, final MtuChangedListener listener) {
+        mMtuChangedListener = listener;
+        if (mGatt == null) {
+            Log.e(TAG, "The deivce hasn't been connected");
+            notifyMtuChanged(false, mMtu);
+            return;
+        }
+        if (!mGatt.requestMtu(mtu)) {
+            Log.e(TAG, "Failed to requestMtu");
+            notifyMtuChanged(false, mMtu);
+        }
+    }
+
+    // RSSI monitor
+    private final BLERssiMonitor mRssiMonitor = new BLERssiMonitor(this);
+
+    /**
+     * <p>Get the RSSI monitor of this device, which keeps sampling the RSSI value for all its listeners
+     * while this device is connected. See {@link BLERssiMonitor} for details.
+     * @return The RSSI monitor of this device
+     */
+    public BLERssiMonitor getRssiMonitor() {
+        return mRssiMonitor;
+    }
+
     // Query services
     private QueryResultsListener mQueryServicesListener = null;
     private void notifyGotServices(final List<BLEData> dataList) {
-        if (mQueryServicesListener != null) {
-            mQueryServicesListener.onGotResults(dataList);
+        final QueryResultsListener listener = mQueryServicesListener;
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGotResults(dataList);
+                }
+            });
         }
     }
 
@@ -248,15 +750,30 @@ public final class BLEDevice {
      * @param listener Listener to receive the got services info
      */
     public void queryServices(final QueryResultsListener listener) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryServices(listener);
+            }
+        });
+    }
+
+    private void processQueryServices(final QueryResultsListener listener) {
         mQueryServicesListener = listener;
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
             notifyGotServices(null);
             return;
         }
-        final List<BluetoothGattService> servicesList = mGatt.getServices();
+        final BLEGattTree gattTree = mGattTree;
+        if (gattTree != null) {
+            notifyGotServices(gattTree.getServices());
+            return;
+        }
+        final List<BLEAttribute> servicesList = mGatt.getServices();
         if (!servicesList.isEmpty()) {
-            notifyGotServices(buildBLEDataListFromServicesList(servicesList));
+            buildGattTree(servicesList);
+            notifyGotServices(mGattTree.getServices());
             return;
         }
         if (!mGatt.discoverServices()) {
@@ -267,19 +784,63 @@ public final class BLEDevice {
     }
 
     private void processOnServicesDiscovered(final int status) {
-        if (status != BluetoothGatt.GATT_SUCCESS) {
+        if (status != BLEGattTransport.STATUS_SUCCESS) {
             Log.e(TAG, "processOnServicesDiscovered, failed to discover services");
             notifyGotServices(null);
             return;
         }
-        final List<BluetoothGattService> services = mGatt.getServices();
-        notifyGotServices(buildBLEDataListFromServicesList(services));
+        final BLEGattTransport gatt = mGatt;
+        if (gatt == null) {
+            notifyGotServices(null);
+            return;
+        }
+        buildGattTree(gatt.getServices());
+        notifyGotServices(mGattTree.getServices());
+    }
+
+    private void buildGattTree(final List<BLEAttribute> servicesList) {
+        mGattHash = BLEKnownDevice.gattHashOf(servicesList);
+        mGattTree = BLEGattTree.build(servicesList);
+        final BLEKnownDevices knownDevices = mKnownDevices;
+        if (knownDevices != null) {
+            knownDevices.updateGattHash(getAddress(), mGattHash);
+        }
     }
 
-    private List<BLEData> buildBLEDataListFromServicesList(final List<BluetoothGattService> services) {
+    // GATT tree
+    private volatile BLEGattTree mGattTree = null;
+    private volatile long mGattHash = BLEKnownDevice.GATT_HASH_UNKNOWN;
+    // Registry the device is remembered in, its record gets the hash of the services discovered later
+    private volatile BLEKnownDevices mKnownDevices = null;
+
+    void setKnownDevices(final BLEKnownDevices knownDevices) {
+        mKnownDevices = knownDevices;
+    }
+
+    /**
+     * <p>Get the hash of the services discovered by {@link #queryServices}, it's kept after disconnection,
+     * so it can be compared with the hash saved in {@link BLEKnownDevices} to find out whether the GATT database
+     * of the device changed
+     * @return The hash, or {@link BLEKnownDevice#GATT_HASH_UNKNOWN} if the services are never discovered
+     */
+    public long getGattHash() {
+        return mGattHash;
+    }
+
+    /**
+     * <p>Get the index of the GATT database of this device, it's built when the services are discovered
+     * by {@link #queryServices(QueryResultsListener)} and dropped when the device is disconnected.
+     * Resolve characteristics by it instead of iterating the query results.
+     * @return The GATT tree, or null if the services haven't been discovered
+     */
+    public BLEGattTree getGattTree() {
+        return mGattTree;
+    }
+
+    private List<BLEData> buildBLEDataListFromAttributesList(final List<BLEAttribute> attributes) {
         final ArrayList<BLEData> bleDataList = new ArrayList<BLEData>();
-        for (final BluetoothGattService service : services) {
-            final BLEData bleData = new BLEData(service.getUuid(), service);
+        for (final BLEAttribute attribute : attributes) {
+            final BLEData bleData = new BLEData(attribute);
             bleDataList.add(bleData);
         }
         return bleDataList;
@@ -291,17 +852,27 @@ public final class BLEDevice {
      * @param listener Listener to receive the included services info
      */
     public void queryIncludedServices(final BLEData serviceData, final QueryResultsListener listener) {
-        mQueryServicesListener = listener;
-        final BluetoothGattService service = (BluetoothGattService) serviceData.data;
-        final List<BluetoothGattService> includedServices = service.getIncludedServices();
-        notifyGotServices(buildBLEDataListFromServicesList(includedServices));
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                mQueryServicesListener = listener;
+                final List<BLEAttribute> includedServices = serviceData.attribute.getIncludedServices();
+                notifyGotServices(buildBLEDataListFromAttributesList(includedServices));
+            }
+        });
     }
 
     // Query characters
     private QueryResultsListener mQueryCharactersListener = null;
     private void notifyGotCharacters(final List<BLEData> dataList) {
-        if (mQueryCharactersListener != null) {
-            mQueryCharactersListener.onGotResults(dataList);
+        final QueryResultsListener listener = mQueryCharactersListener;
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGotResults(dataList);
+                }
+            });
         }
     }
 
@@ -312,15 +883,26 @@ public final class BLEDevice {
      * @param listener Listener to receive the got GATT Characteristics
      */
     public void queryCharacters(final BLEData serviceData, final boolean needValue, final QueryResultsListener listener) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryCharacters(serviceData, needValue, listener);
+            }
+        });
+    }
+
+    private void processQueryCharacters(final BLEData serviceData, final boolean needValue, final QueryResultsListener listener) {
         mQueryCharactersListener = listener;
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
             notifyGotCharacters(null);
             return;
         }
-        final BluetoothGattService service = (BluetoothGattService) serviceData.data;
-        final List<BluetoothGattCharacteristic> characters = service.getCharacteristics();
-        final List<BLEData> bleDataList = buildBLEDataListFromCharactersList(characters);
+        final BLEGattTree gattTree = mGattTree;
+        final List<BLEData> treeCharacters = gattTree != null ? gattTree.getCharacteristics(serviceData) : null;
+        final List<BLEData> bleDataList = treeCharacters != null && !treeCharacters.isEmpty()
+                ? new ArrayList<BLEData>(treeCharacters)
+                : buildBLEDataListFromAttributesList(serviceData.attribute.getChildren());
         if (!needValue) {
             notifyGotCharacters(bleDataList);
             return;
@@ -347,18 +929,17 @@ public final class BLEDevice {
         }
 
         final BLEData curCharacterData = mQueryCharactersData.get(mQueryCharacterIndex);
-        final BluetoothGattCharacteristic curCharacter = (BluetoothGattCharacteristic) curCharacterData.data;
         if (readCharacterValue(curCharacterData)) {
             queryNextCharacter();
             return;
         }
-        if (!mGatt.readCharacteristic(curCharacter)) {
-            Log.e(TAG, "queryNextCharacter, failed to readCharacteristic: "+curCharacter.getUuid());
+        if (mGatt == null || !mGatt.readAttribute(curCharacterData.attribute)) {
+            Log.e(TAG, "queryNextCharacter, failed to readCharacteristic: "+curCharacterData.uuid);
             queryNextCharacter();
         }
     }
 
-    private void processOnCharacterReadForReadingCharactersList(final BluetoothGattCharacteristic characteristic, final int status) {
+    private void processOnCharacterReadForReadingCharactersList(final BLEAttribute characteristic, final int status) {
         if (mQueryCharactersData == null
         || mQueryCharacterIndex < 0 || mQueryCharacterIndex > mQueryCharactersData.size()-1) { // We'are not process characters list reading, ignore it
             Log.d(TAG, "processOnCharacterReadForReadingCharactersList, not reading characters list, ignore it");
@@ -371,7 +952,7 @@ public final class BLEDevice {
             return;
         }
 
-        if (status != BluetoothGatt.GATT_SUCCESS) {
+        if (status != BLEGattTransport.STATUS_SUCCESS) {
             Log.e(TAG, "processOnCharacterReadForReadingCharactersList, failed to read character: "+characteristic.getUuid());
         } else {
             readCharacterValue(curCharacterData);
@@ -380,60 +961,86 @@ public final class BLEDevice {
     }
 
     private boolean readCharacterValue(final BLEData characterData) {
-        final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) characterData.data;
-        final byte[] characterValue = character.getValue();
+        final byte[] characterValue = characterData.getValue();
         if (characterValue != null && characterValue.length > 0) {
             return true;
         }
         return false;
     }
 
-    private List<BLEData> buildBLEDataListFromCharactersList(final List<BluetoothGattCharacteristic> characters) {
-        final ArrayList<BLEData> bleDataList = new ArrayList<BLEData>();
-        for (final BluetoothGattCharacteristic character : characters) {
-            final BLEData bleData = new BLEData(character.getUuid(), character);
-            bleDataList.add(bleData);
+    // Query character item method
+    // Callers waiting for the characteristic read in flight, they share its result
+    private static final class CharacterValueWaiter {
+        final BLEData data;
+        final QueryValueListener listener;
+
+        CharacterValueWaiter(final BLEData data, final QueryValueListener listener) {
+            this.data = data;
+            this.listener = listener;
         }
-        return bleDataList;
     }
 
-    // Query character item method
-    private QueryValueListener mQueryCharacterValueListener = null;
-    private void notifyGotCharacterValue(final BLEData data) {
-        if (mQueryCharacterValueListener != null) {
-            mQueryCharacterValueListener.onGotValue(data);
-        }
+    private void notifyGotCharacterValue(final QueryValueListener listener, final BLEData data, final int status) {
+        notifyGotValue(listener, data, status);
     }
 
     private BLEData mQueryCharacterData = null;
+    private RetriedRequest mQueryCharacterRequest = null;
+    private final List<CharacterValueWaiter> mQueryCharacterWaiters = new ArrayList<CharacterValueWaiter>();
 
     /**
-     * <p>Method to query the value of the GATT
+     * <p>Method to query the value of the GATT. Each query reads the value from the device, the last read value
+     * is kept in {@link BLEData#getValue()}. If the same characteristic is being read for another query,
+     * this query waits for that read instead of reading it again. Failed reads are retried by the policy set by
+     * {@link #setRetryPolicy}.
      * @param characterData The GATT Characteristic BLEData object to query
-     * @param listener Listener to receive the value of the BLEData
+     * @param listener Listener to receive the value of the BLEData, a {@link QueryValueStatusListener}
+     *                 also receives the final status
      */
     public void queryCharacterData(final BLEData characterData, final QueryValueListener listener) {
-        mQueryCharacterValueListener = listener;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryCharacterData(characterData, listener);
+            }
+        });
+    }
+
+    private void processQueryCharacterData(final BLEData characterData, final QueryValueListener listener) {
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
-            notifyGotCharacterValue(null);
+            notifyGotCharacterValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
 
-        final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) characterData.data;
-        if (readCharacterValue(characterData)) {
-            notifyGotCharacterValue(characterData);
+        if (mQueryCharacterData != null && mQueryCharacterData.data == characterData.data) {
+            Log.d(TAG, "queryCharacterData, wait for the read in flight: "+characterData.uuid);
+            mQueryCharacterWaiters.add(new CharacterValueWaiter(characterData, listener));
+            BLEMetrics.getInstance().increment(BLEMetrics.COUNTER_COALESCED_READS, 1);
             return;
         }
-        if (!mGatt.readCharacteristic(character)) {
-            Log.e(TAG, "queryCharacterData, failed to readCharacteristic: "+character.getUuid());
-            notifyGotCharacterValue(null);
+        if (mQueryCharacterData != null) { // Don't drop the callers of the read in flight
+            Log.e(TAG, "queryCharacterData, another character is being read: "+mQueryCharacterData.uuid);
+            notifyGotCharacterValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
         mQueryCharacterData = characterData;
+        mQueryCharacterWaiters.add(new CharacterValueWaiter(characterData, listener));
+        mQueryCharacterRequest = new RetriedRequest("readCharacteristic "+characterData.uuid, false) {
+            @Override
+            boolean start() {
+                return mGatt.readAttribute(characterData.attribute);
+            }
+
+            @Override
+            void finish(final int status) {
+                finishQueryCharacterData(status);
+            }
+        };
+        mQueryCharacterRequest.run();
     }
 
-    private void processOnCharacterReadForReadingCharacterValue(final BluetoothGattCharacteristic characteristic, final int status) {
+    private void processOnCharacterReadForReadingCharacterValue(final BLEAttribute characteristic, final int status) {
         if (mQueryCharacterData == null) { // Not reading value, ignore it
             Log.d(TAG, "processOnCharacterReadForReadingCharacterValue, not reading character value, ignore it");
             return;
@@ -442,67 +1049,117 @@ public final class BLEDevice {
             Log.d(TAG, "processOnCharacterReadForReadingCharacterValue, ignore unrelated character: "+characteristic.getUuid());
             return;
         }
+        mQueryCharacterRequest.onResponse(status);
+    }
 
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            Log.e(TAG, "processOnCharacterReadForReadingCharacterValue, failed to read character: "+characteristic.getUuid());
-            notifyGotCharacterValue(null);
-        } else {
-            readCharacterValue(mQueryCharacterData);
-            notifyGotCharacterValue(mQueryCharacterData);
+    private void finishQueryCharacterData(final int status) {
+        final boolean success = status == BLEGattTransport.STATUS_SUCCESS;
+        if (!success) {
+            Log.e(TAG, "queryCharacterData, failed to read character: "+mQueryCharacterData.uuid+", status: "+status);
+        }
+        // reset variable before the callbacks, they may query characteristics again
+        final List<CharacterValueWaiter> waiters = new ArrayList<CharacterValueWaiter>(mQueryCharacterWaiters);
+        mQueryCharacterData = null;
+        mQueryCharacterRequest = null;
+        mQueryCharacterWaiters.clear();
+        for (final CharacterValueWaiter waiter : waiters) {
+            notifyGotCharacterValue(waiter.listener, success ? waiter.data : null, status);
         }
-        // reset variable when got its related callback
-        mQueryCharactersData = null;
     }
 
-    // Write character item value
-    private WriteValueListener mWriteCharacterValueListener = null;
-    private void notifySetCharacterValue(final BLEData data) {
-        if (mWriteCharacterValueListener != null) {
-            mWriteCharacterValueListener.onSetValue(data);
+    // The read in flight never completes, so its callers would wait forever
+    private void processOnDisconnectedForReadingCharacterValue() {
+        if (mQueryCharacterRequest != null) {
+            mQueryCharacterRequest.cancel(BLEGattTransport.STATUS_CONNECTION_TERMINATED);
         }
     }
 
+    // Write character item value
+    private void notifySetCharacterValue(final WriteValueListener listener, final BLEData data, final int status) {
+        notifySetValue(listener, data, status);
+    }
+
     private BLEData mWriteCharacterData = null;
+    private RetriedRequest mWriteCharacterRequest = null;
     /**
-     * <p>Method to write value of the GATT Characteristic
+     * <p>Method to write value of the GATT Characteristic. Failed writes are retried by the policy set by
+     * {@link #setRetryPolicy}.
      * @param characterData The Characteristic BLEData object to be written,
-     * the written value is just the value returned by {@link BluetoothGattCharacteristic#getValue()}
-     * @param writeType The write type to for this characteristic. Can be one of: {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT},
-     * {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE} or {@link BluetoothGattCharacteristic#WRITE_TYPE_SIGNED}.
-     * @param listener The listener to get the result of this write action
+     * the written value is just the value returned by {@link BLEData#getValue()}
+     * @param writeType The write type to for this characteristic. Can be one of: {@link BLEGattTransport#WRITE_TYPE_DEFAULT},
+     * {@link BLEGattTransport#WRITE_TYPE_NO_RESPONSE} or {@link BLEGattTransport#WRITE_TYPE_SIGNED}.
+     * @param listener The listener to get the result of this write action, a {@link WriteValueStatusListener}
+     *                 also receives the final status
      */
     public void writeCharacterData(final BLEData characterData, final int writeType, final WriteValueListener listener) {
-        mWriteCharacterValueListener = listener;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processWriteCharacterData(characterData, writeType, listener);
+            }
+        });
+    }
+
+    private void processWriteCharacterData(final BLEData characterData, final int writeType, final WriteValueListener listener) {
+        final CoalescedWrite coalescedWrite = mCoalescedWrites.get(characterData.uuid);
+        if (coalescedWrite != null) {
+            processCoalescedWrite(coalescedWrite, characterData, writeType, listener);
+            return;
+        }
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
-            notifySetCharacterValue(null);
+            notifySetCharacterValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
-        final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) characterData.data;
-        character.setWriteType(writeType);
-        if (!mGatt.writeCharacteristic(character)) {
-            notifySetCharacterValue(null);
+        if (mWriteCharacterData != null || mPendingCharacterWrite != null) { // Don't drop the caller of the write in flight
+            Log.e(TAG, "writeCharacterData, another character is being written: "
+                    +(mWriteCharacterData != null ? mWriteCharacterData : mPendingCharacterWrite.data).uuid);
+            notifySetCharacterValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
-        if (writeType == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
-            notifySetCharacterValue(characterData);
+        if (mCoalescedWriteInFlight != null) { // Sent once the coalesced write in flight is done
+            mPendingCharacterWrite = new CharacterWriteWaiter(characterData, listener);
+            mPendingCharacterWriteType = writeType;
             return;
         }
         mWriteCharacterData = characterData;
+        // Commands are done once the stack takes them
+        mWriteCharacterRequest = new RetriedRequest("writeCharacteristic "+characterData.uuid,
+                writeType == BLEGattTransport.WRITE_TYPE_NO_RESPONSE) {
+            @Override
+            boolean start() {
+                return mGatt.writeAttribute(characterData.attribute, characterData.getValue(), writeType);
+            }
+
+            @Override
+            void finish(final int status) {
+                if (status != BLEGattTransport.STATUS_SUCCESS) {
+                    Log.e(TAG, "writeCharacterData, failed to write character: "+characterData.uuid+", status: "+status);
+                }
+                mWriteCharacterData = null;
+                mWriteCharacterRequest = null;
+                notifySetCharacterValue(listener, status == BLEGattTransport.STATUS_SUCCESS ? characterData : null, status);
+                sendQueuedCoalescedWrites();
+            }
+        };
+        mWriteCharacterRequest.run();
     }
 
     /**
      * <p>Method to write value of the GATT Characteristic with default write type
-     * {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT}.
+     * {@link BLEGattTransport#WRITE_TYPE_DEFAULT}.
      * <p>See {@link #writeCharacterData} for details.
      * @param characterData The Characteristic BLEData object to be written
      * @param listener The listener to get the result of this write action
      */
     public void writeCharacterData(final BLEData characterData, final WriteValueListener listener) {
-        writeCharacterData(characterData, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, listener);
+        writeCharacterData(characterData, BLEGattTransport.WRITE_TYPE_DEFAULT, listener);
     }
 
-    private void processOnCharacterWriteForWritingCharacterValue(final BluetoothGattCharacteristic characteristic, final int status) {
+    private void processOnCharacterWriteForWritingCharacterValue(final BLEAttribute characteristic, final int status) {
+        if (processOnCharacterWriteForCoalescedWrite(characteristic, status)) {
+            return;
+        }
         if (mWriteCharacterData == null) { // Not reading value, ignore it
             Log.d(TAG, "processOnCharacterWriteForWritingCharacterValue, not writing character value, ignore it");
             return;
@@ -511,20 +1168,218 @@ public final class BLEDevice {
             Log.d(TAG, "processOnCharacterWriteForWritingCharacterValue, ignore unrelated character: "+characteristic.getUuid());
             return;
         }
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            Log.e(TAG, "processOnCharacterWriteForWritingCharacterValue, failed to write character: "+characteristic.getUuid());
-            notifySetCharacterValue(null);
-        } else {
-            notifySetCharacterValue(mWriteCharacterData);
+        mWriteCharacterRequest.onResponse(status);
+    }
+
+    // Coalesced writes
+    private static final class CharacterWriteWaiter {
+        final BLEData data;
+        final WriteValueListener listener;
+
+        CharacterWriteWaiter(final BLEData data, final WriteValueListener listener) {
+            this.data = data;
+            this.listener = listener;
+        }
+    }
+
+    // Latest value to write to a characteristic, it's also the task sending it after the min interval
+    private final class CoalescedWrite implements Runnable {
+        final long minInterval;
+        BLEData data = null;
+        byte[] value = null;
+        int writeType = BLEGattTransport.WRITE_TYPE_DEFAULT;
+        final List<CharacterWriteWaiter> waiters = new ArrayList<CharacterWriteWaiter>();
+        // The write in flight and its callers
+        BLEData sentData = null;
+        final List<CharacterWriteWaiter> sentWaiters = new ArrayList<CharacterWriteWaiter>();
+        long lastSentTime = 0;
+        boolean queued = false;
+        boolean delayed = false;
+
+        CoalescedWrite(final long minInterval) {
+            this.minInterval = minInterval;
+        }
+
+        @Override
+        public void run() {
+            delayed = false;
+            sendCoalescedWrite(this);
+        }
+    }
+
+    // Accessed on the GATT thread
+    private final Map<UUID, CoalescedWrite> mCoalescedWrites = new HashMap<UUID, CoalescedWrite>();
+    private final ArrayDeque<CoalescedWrite> mCoalescedWriteQueue = new ArrayDeque<CoalescedWrite>();
+    private CoalescedWrite mCoalescedWriteInFlight = null;
+    // A write of another characteristic waiting for the coalesced write in flight
+    private CharacterWriteWaiter mPendingCharacterWrite = null;
+    private int mPendingCharacterWriteType = BLEGattTransport.WRITE_TYPE_DEFAULT;
+
+    /**
+     * <p>Method to coalesce the writes of a control characteristic, e.g. driven by a slider. A write of it by
+     * {@link #writeCharacterData} waits while the previous one is in flight, and a waiting write is replaced by
+     * a newer one, so only the latest value is sent and the device doesn't lag behind the control.
+     * <p>The listener of a replaced write gets the result of the write replacing it. Writes without response
+     * also wait for the stack to accept the previous one. The link carries one write at a time, so a write of
+     * another characteristic waits for the coalesced write in flight, and the other way round.
+     * @param characteristicUuid UUID of the characteristic
+     * @param minInterval Min time between two writes of it in milliseconds, 0 to write once the previous one is done
+     */
+    public void setWriteCoalescing(final UUID characteristicUuid, final long minInterval) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                failCoalescedWrite(mCoalescedWrites.remove(characteristicUuid), BLEGattTransport.STATUS_FAILURE);
+                mCoalescedWrites.put(characteristicUuid, new CoalescedWrite(Math.max(0, minInterval)));
+            }
+        });
+    }
+
+    /**
+     * <p>Method to write a characteristic without coalescing again, see {@link #setWriteCoalescing}.
+     * The listeners of the waiting writes get null.
+     * @param characteristicUuid UUID of the characteristic
+     */
+    public void clearWriteCoalescing(final UUID characteristicUuid) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                failCoalescedWrite(mCoalescedWrites.remove(characteristicUuid), BLEGattTransport.STATUS_FAILURE);
+            }
+        });
+    }
+
+    private void processCoalescedWrite(final CoalescedWrite coalescedWrite, final BLEData characterData,
+                                       final int writeType, final WriteValueListener listener) {
+        if (mGatt == null) {
+            Log.e(TAG, "The deivce hasn't been connected");
+            notifySetCharacterValue(listener, null, BLEGattTransport.STATUS_FAILURE);
+            return;
+        }
+        final byte[] value = characterData.getValue();
+        coalescedWrite.data = characterData;
+        coalescedWrite.value = value != null ? value.clone() : null;
+        coalescedWrite.writeType = writeType;
+        coalescedWrite.waiters.add(new CharacterWriteWaiter(characterData, listener));
+        sendCoalescedWrite(coalescedWrite);
+    }
+
+    private void sendCoalescedWrite(final CoalescedWrite coalescedWrite) {
+        if (coalescedWrite.waiters.isEmpty() || coalescedWrite.delayed) {
+            return;
+        }
+        if (mCoalescedWriteInFlight != null || mWriteCharacterData != null) { // Wait for the write in flight
+            if (!coalescedWrite.queued) {
+                coalescedWrite.queued = true;
+                mCoalescedWriteQueue.add(coalescedWrite);
+            }
+            return;
+        }
+        final long delay = coalescedWrite.lastSentTime + coalescedWrite.minInterval - SystemClock.uptimeMillis();
+        if (coalescedWrite.lastSentTime > 0 && delay > 0) {
+            coalescedWrite.delayed = true;
+            getGattThread().postDelayed(coalescedWrite, delay);
+            return;
+        }
+        final List<CharacterWriteWaiter> waiters = new ArrayList<CharacterWriteWaiter>(coalescedWrite.waiters);
+        coalescedWrite.waiters.clear();
+        if (mGatt == null || !mGatt.writeAttribute(coalescedWrite.data.attribute, coalescedWrite.value, coalescedWrite.writeType)) {
+            Log.e(TAG, "sendCoalescedWrite, failed to writeCharacteristic: "+coalescedWrite.data.uuid);
+            notifyCharacterWriteWaiters(waiters, BLEGattTransport.STATUS_FAILURE);
+            return;
+        }
+        coalescedWrite.lastSentTime = SystemClock.uptimeMillis();
+        coalescedWrite.sentData = coalescedWrite.data;
+        coalescedWrite.sentWaiters.addAll(waiters);
+        coalescedWrite.value = null;
+        mCoalescedWriteInFlight = coalescedWrite;
+    }
+
+    private void sendQueuedCoalescedWrites() {
+        while (mCoalescedWriteInFlight == null && mWriteCharacterData == null && !mCoalescedWriteQueue.isEmpty()) {
+            final CoalescedWrite coalescedWrite = mCoalescedWriteQueue.poll();
+            coalescedWrite.queued = false;
+            sendCoalescedWrite(coalescedWrite);
+        }
+    }
+
+    private boolean processOnCharacterWriteForCoalescedWrite(final BLEAttribute characteristic, final int status) {
+        final CoalescedWrite coalescedWrite = mCoalescedWriteInFlight;
+        if (coalescedWrite == null || coalescedWrite.sentData.data != characteristic.getNativeObject()) {
+            return false;
+        }
+        if (status != BLEGattTransport.STATUS_SUCCESS) {
+            Log.e(TAG, "processOnCharacterWriteForCoalescedWrite, failed to write character: "+characteristic.getUuid());
+        }
+        mCoalescedWriteInFlight = null;
+        coalescedWrite.sentData = null;
+        notifyCharacterWriteWaiters(coalescedWrite.sentWaiters, status);
+        coalescedWrite.sentWaiters.clear();
+        // Let the other waiting characteristics go first
+        sendPendingCharacterWrite();
+        sendQueuedCoalescedWrites();
+        sendCoalescedWrite(coalescedWrite);
+        return true;
+    }
+
+    private void sendPendingCharacterWrite() {
+        final CharacterWriteWaiter pending = mPendingCharacterWrite;
+        if (pending != null) {
+            mPendingCharacterWrite = null;
+            processWriteCharacterData(pending.data, mPendingCharacterWriteType, pending.listener);
+        }
+    }
+
+    private void notifyCharacterWriteWaiters(final List<CharacterWriteWaiter> waiters, final int status) {
+        for (final CharacterWriteWaiter waiter : waiters) {
+            notifySetCharacterValue(waiter.listener, status == BLEGattTransport.STATUS_SUCCESS ? waiter.data : null, status);
+        }
+    }
+
+    private void failCoalescedWrite(final CoalescedWrite coalescedWrite, final int status) {
+        if (coalescedWrite == null) {
+            return;
+        }
+        getGattThread().removeCallbacks(coalescedWrite);
+        mCoalescedWriteQueue.remove(coalescedWrite);
+        coalescedWrite.queued = false;
+        coalescedWrite.delayed = false;
+        notifyCharacterWriteWaiters(coalescedWrite.waiters, status);
+        coalescedWrite.waiters.clear();
+        coalescedWrite.value = null;
+    }
+
+    // The writes in flight never complete, and the waiting ones can't be sent
+    private void processOnDisconnectedForCoalescedWrites() {
+        final CoalescedWrite inFlight = mCoalescedWriteInFlight;
+        if (inFlight != null) {
+            mCoalescedWriteInFlight = null;
+            inFlight.sentData = null;
+            notifyCharacterWriteWaiters(inFlight.sentWaiters, BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+            inFlight.sentWaiters.clear();
+        }
+        final CharacterWriteWaiter pending = mPendingCharacterWrite;
+        if (pending != null) {
+            mPendingCharacterWrite = null;
+            notifySetCharacterValue(pending.listener, null, BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+        }
+        for (final CoalescedWrite coalescedWrite : mCoalescedWrites.values()) {
+            failCoalescedWrite(coalescedWrite, BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+            coalescedWrite.lastSentTime = 0;
         }
-        mWriteCharacterData = null;
     }
 
     // Query descriptors methods
     private QueryResultsListener mQueryDescriptorsListener = null;
     private void notifyGotDescriptors(final List<BLEData> dataList) {
-        if (mQueryDescriptorsListener != null) {
-            mQueryDescriptorsListener.onGotResults(dataList);
+        final QueryResultsListener listener = mQueryDescriptorsListener;
+        if (listener != null) {
+            deliverCallback(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onGotResults(dataList);
+                }
+            });
         }
     }
 
@@ -535,16 +1390,26 @@ public final class BLEDevice {
      * @param listener Listener to receive the got GATT Descriptors info
      */
     public void queryDescriptors(final BLEData characterData, final boolean needValue, final QueryResultsListener listener) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryDescriptors(characterData, needValue, listener);
+            }
+        });
+    }
+
+    private void processQueryDescriptors(final BLEData characterData, final boolean needValue, final QueryResultsListener listener) {
         mQueryDescriptorsListener = listener;
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
             notifyGotDescriptors(null);
             return;
         }
-        final BluetoothGattCharacteristic character = (BluetoothGattCharacteristic) characterData.data;
-        final List<BluetoothGattDescriptor> descriptors = character.getDescriptors();
-
-        final List<BLEData> bleDataList = buildBLEDataListFromDescriptorsList(descriptors);
+        final BLEGattTree gattTree = mGattTree;
+        final List<BLEData> treeDescriptors = gattTree != null ? gattTree.getDescriptors(characterData) : null;
+        final List<BLEData> bleDataList = treeDescriptors != null && !treeDescriptors.isEmpty()
+                ? new ArrayList<BLEData>(treeDescriptors)
+                : buildBLEDataListFromAttributesList(characterData.attribute.getChildren());
         if (!needValue) {
             notifyGotDescriptors(bleDataList);
             return;
@@ -552,15 +1417,6 @@ public final class BLEDevice {
         queryDescriptorsValues(bleDataList);
     }
 
-    private List<BLEData> buildBLEDataListFromDescriptorsList(final List<BluetoothGattDescriptor> characters) {
-        final ArrayList<BLEData> bleDataList = new ArrayList<BLEData>();
-        for (final BluetoothGattDescriptor descriptor : characters) {
-            final BLEData bleData = new BLEData(descriptor.getUuid(), descriptor);
-            bleDataList.add(bleData);
-        }
-        return bleDataList;
-    }
-
     private int mQueryDescriptorIndex = -1;
     private List<BLEData> mQueryDescriptorsData = null;
     private void queryDescriptorsValues(final List<BLEData> descriptors) {
@@ -572,34 +1428,32 @@ public final class BLEDevice {
     private void queryNextDescriptor() {
         mQueryDescriptorIndex++;
         if (mQueryDescriptorIndex > mQueryDescriptorsData.size()-1) {
-            notifyGotDescriptors(mQueryCharactersData);
+            notifyGotDescriptors(mQueryDescriptorsData);
             // reset query descriptors list variables
             mQueryDescriptorIndex = -1;
             mQueryDescriptorsData = null;
             return;
         }
         final BLEData curDescriptorData = mQueryDescriptorsData.get(mQueryDescriptorIndex);
-        final BluetoothGattDescriptor curDescriptor = (BluetoothGattDescriptor) curDescriptorData.data;
         if (readDescriptorValue(curDescriptorData)) {
             queryNextDescriptor();
             return;
         }
-        if (!mGatt.readDescriptor(curDescriptor)) {
-            Log.e(TAG, "queryNextDescriptor, failed to readDescriptor: "+curDescriptor.getUuid());
+        if (mGatt == null || !mGatt.readAttribute(curDescriptorData.attribute)) {
+            Log.e(TAG, "queryNextDescriptor, failed to readDescriptor: "+curDescriptorData.uuid);
             queryNextDescriptor();
         }
     }
 
     private boolean readDescriptorValue(final BLEData descriptorData) {
-        final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) descriptorData.data;
-        final byte[] descriptorValue = descriptor.getValue();
+        final byte[] descriptorValue = descriptorData.getValue();
         if (descriptorValue != null && descriptorValue.length > 0) {
             return true;
         }
         return false;
     }
 
-    private void processOnDescriptorReadForReadingDescriptorsList(final BluetoothGattDescriptor descriptor, final int status) {
+    private void processOnDescriptorReadForReadingDescriptorsList(final BLEAttribute descriptor, final int status) {
         if (mQueryDescriptorsData == null
         || mQueryDescriptorIndex < 0 || mQueryDescriptorIndex > mQueryDescriptorsData.size()-1) { // We'are not process descriptor list reading, ignore it
             Log.d(TAG, "processOnDescriptorForReadingDescriptorsList, not reading descriptors list, ignore it");
@@ -612,7 +1466,7 @@ public final class BLEDevice {
             return;
         }
 
-        if (status != BluetoothGatt.GATT_SUCCESS) {
+        if (status != BLEGattTransport.STATUS_SUCCESS) {
             Log.e(TAG, "processOnDescriptorForReadingDescriptorsList, failed to read character: "+descriptor.getUuid());
         } else {
             readDescriptorValue(curDescriptorData);
@@ -621,42 +1475,63 @@ public final class BLEDevice {
     }
 
     // Query descriptor item methods
-    private QueryValueListener mQueryDescriptorValueListener = null;
-    private void notifyGotDescriptorValue(final BLEData data) {
-        if (mQueryDescriptorValueListener != null) {
-            mQueryDescriptorValueListener.onGotValue(data);
-        }
-    }
-
     private BLEData mQueryDescriptorData = null;
+    private RetriedRequest mQueryDescriptorRequest = null;
 
     /**
-     * <p>Method to query value of the GATT Descriptor
+     * <p>Method to query value of the GATT Descriptor. Failed reads are retried by the policy set by
+     * {@link #setRetryPolicy}.
      * @param descriptorData The GATT Descriptor BLEData object
-     * @param listener Listener to receive the got value of the GATT Descriptor
+     * @param listener Listener to receive the got value of the GATT Descriptor, a {@link QueryValueStatusListener}
+     *                 also receives the final status
      */
     public void queryDescriptorData(final BLEData descriptorData, final QueryValueListener listener) {
-        mQueryDescriptorValueListener = listener;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processQueryDescriptorData(descriptorData, listener);
+            }
+        });
+    }
+
+    private void processQueryDescriptorData(final BLEData descriptorData, final QueryValueListener listener) {
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
-            notifyGotDescriptorValue(null);
+            notifyGotValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
 
-        final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) descriptorData.data;
         if (readDescriptorValue(descriptorData)) {
-            notifyGotDescriptorValue(descriptorData);
+            notifyGotValue(listener, descriptorData, BLEGattTransport.STATUS_SUCCESS);
             return;
         }
-        if (!mGatt.readDescriptor(descriptor)) {
-            Log.e(TAG, "queryDescriptorData, failed to readDescriptor: "+descriptor.getUuid());
-            notifyGotDescriptorValue(null);
+        if (mQueryDescriptorData != null) { // Don't drop the caller of the read in flight
+            Log.e(TAG, "queryDescriptorData, another descriptor is being read: "+mQueryDescriptorData.uuid);
+            notifyGotValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
         mQueryDescriptorData = descriptorData;
+        mQueryDescriptorRequest = new RetriedRequest("readDescriptor "+descriptorData.uuid, false) {
+            @Override
+            boolean start() {
+                return mGatt.readAttribute(descriptorData.attribute);
+            }
+
+            @Override
+            void finish(final int status) {
+                if (status != BLEGattTransport.STATUS_SUCCESS) {
+                    Log.e(TAG, "queryDescriptorData, failed to read descriptor: "+descriptorData.uuid+", status: "+status);
+                }
+                // reset variable when got its related callback
+                mQueryDescriptorData = null;
+                mQueryDescriptorRequest = null;
+                notifyGotValue(listener, status == BLEGattTransport.STATUS_SUCCESS ? descriptorData : null, status);
+            }
+        };
+        mQueryDescriptorRequest.run();
     }
 
-    private void processOnDescriptorReadForReadingDescriptorValue(final BluetoothGattDescriptor descriptor, final int status) {
+    private void processOnDescriptorReadForReadingDescriptorValue(final BLEAttribute descriptor, final int status) {
         if (mQueryDescriptorData == null) { // Not reading value, ignore it
             Log.d(TAG, "processOnDescriptorReadForReadingDescriptorValue, not reading descriptor value, ignore it");
             return;
@@ -665,50 +1540,62 @@ public final class BLEDevice {
             Log.d(TAG, "processOnDescriptorReadForReadingDescriptorValue, ignore unrelated descriptor: "+descriptor.getUuid());
             return;
         }
-
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            Log.e(TAG, "processOnDescriptorReadForReadingDescriptorValue, failed to read descriptor: "+descriptor.getUuid());
-            notifyGotDescriptorValue(null);
-        } else {
-            readDescriptorValue(mQueryDescriptorData);
-            notifyGotDescriptorValue(mQueryDescriptorData);
-        }
-        // reset variable when got its related callback
-        mQueryDescriptorData = null;
+        mQueryDescriptorRequest.onResponse(status);
     }
 
     // Write descriptor methods
-    private WriteValueListener mWriteDescriptorValueListener = null;
-    private void notifySetDescriptorValue(final BLEData data) {
-        if (mWriteDescriptorValueListener != null) {
-            mWriteDescriptorValueListener.onSetValue(data);
-        }
-    }
-
     private BLEData mWriteDescriptorData = null;
+    private RetriedRequest mWriteDescriptorRequest = null;
 
     /**
-     * <p>Method to write the value of GATT Descriptor
+     * <p>Method to write the value of GATT Descriptor. Failed writes are retried by the policy set by
+     * {@link #setRetryPolicy}.
      * @param descriptorData The GATT Descriptor BLEData object to write,
-     * the value is just the value returned by {@link BluetoothGattDescriptor#getValue()} in the object.
-     * @param listener Listener to receive the result of the write action
+     * the value is just the value returned by {@link BLEData#getValue()} in the object.
+     * @param listener Listener to receive the result of the write action, a {@link WriteValueStatusListener}
+     *                 also receives the final status
      */
     public void writeDescriptorData(final BLEData descriptorData, final WriteValueListener listener) {
-        mWriteDescriptorValueListener = listener;
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processWriteDescriptorData(descriptorData, listener);
+            }
+        });
+    }
+
+    private void processWriteDescriptorData(final BLEData descriptorData, final WriteValueListener listener) {
         if (mGatt == null) {
             Log.e(TAG, "The deivce hasn't been connected");
-            notifySetDescriptorValue(null);
+            notifySetValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
-        final BluetoothGattDescriptor descriptor = (BluetoothGattDescriptor) descriptorData.data;
-        if (!mGatt.writeDescriptor(descriptor)) {
-            notifySetDescriptorValue(null);
+        if (mWriteDescriptorData != null) { // Don't drop the caller of the write in flight
+            Log.e(TAG, "writeDescriptorData, another descriptor is being written: "+mWriteDescriptorData.uuid);
+            notifySetValue(listener, null, BLEGattTransport.STATUS_FAILURE);
             return;
         }
         mWriteDescriptorData = descriptorData;
+        mWriteDescriptorRequest = new RetriedRequest("writeDescriptor "+descriptorData.uuid, false) {
+            @Override
+            boolean start() {
+                return mGatt.writeAttribute(descriptorData.attribute, descriptorData.getValue(), BLEGattTransport.WRITE_TYPE_DEFAULT);
+            }
+
+            @Override
+            void finish(final int status) {
+                if (status != BLEGattTransport.STATUS_SUCCESS) {
+                    Log.e(TAG, "writeDescriptorData, failed to write descriptor: "+descriptorData.uuid+", status: "+status);
+                }
+                mWriteDescriptorData = null;
+                mWriteDescriptorRequest = null;
+                notifySetValue(listener, status == BLEGattTransport.STATUS_SUCCESS ? descriptorData : null, status);
+            }
+        };
+        mWriteDescriptorRequest.run();
     }
 
-    private void processOnDescriptorWriteForWritingDescriptorValue(final BluetoothGattDescriptor descriptor, final int status) {
+    private void processOnDescriptorWriteForWritingDescriptorValue(final BLEAttribute descriptor, final int status) {
         if (mWriteDescriptorData == null) { // Not reading value, ignore it
             Log.d(TAG, "processOnDescriptorWriteForWritingDescriptorValue, not writing descriptor value, ignore it");
             return;
@@ -717,31 +1604,236 @@ public final class BLEDevice {
             Log.d(TAG, "processOnDescriptorWriteForWritingDescriptorValue, ignore unrelated descriptor: "+descriptor.getUuid());
             return;
         }
-        if (status != BluetoothGatt.GATT_SUCCESS) {
-            Log.e(TAG, "processOnDescriptorWriteForWritingDescriptorValue, failed to write descriptor: "+descriptor.getUuid());
-            notifySetDescriptorValue(null);
+        mWriteDescriptorRequest.onResponse(status);
+    }
+
+    // Notification methods
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID = BLEUuid.fromShortUuid(0x2902);
+    private static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    private static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    private static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    /**
+     * <p>Method to enable or disable the notifications of the GATT Characteristic, or its indications if it
+     * doesn't support notifications. They are enabled locally and on the remote device by writing its
+     * Client Characteristic Configuration descriptor, then received by the {@link ValueChangedListener}s.
+     * @param characterData The Characteristic BLEData object
+     * @param enable Whether to enable
+     * @param listener Listener to receive the result of the descriptor write
+     */
+    public void setCharacterNotification(final BLEData characterData, final boolean enable, final WriteValueListener listener) {
+        runOnGattThread(new Runnable() {
+            @Override
+            public void run() {
+                processSetCharacterNotification(characterData, enable, listener);
+            }
+        });
+    }
+
+    private void processSetCharacterNotification(final BLEData characterData, final boolean enable,
+                                                 final WriteValueListener listener) {
+        if (mGatt == null) {
+            Log.e(TAG, "The deivce hasn't been connected");
+            notifySetValue(listener, null, BLEGattTransport.STATUS_FAILURE);
+            return;
+        }
+        BLEAttribute configDescriptor = null;
+        for (final BLEAttribute descriptor : characterData.attribute.getChildren()) {
+            if (CLIENT_CHARACTERISTIC_CONFIG_UUID.equals(descriptor.getUuid())) {
+                configDescriptor = descriptor;
+                break;
+            }
+        }
+        if (configDescriptor == null || !mGatt.setNotification(characterData.attribute, enable)) {
+            Log.e(TAG, "setCharacterNotification, failed to set notification of character: "+characterData.uuid);
+            notifySetValue(listener, null, BLEGattTransport.STATUS_FAILURE);
+            return;
+        }
+        final BLEData descriptorData = new BLEData(configDescriptor);
+        if (!enable) {
+            descriptorData.setValue(DISABLE_NOTIFICATION_VALUE);
+        } else if ((characterData.attribute.getProperties() & BLEAttribute.PROPERTY_NOTIFY) != 0) {
+            descriptorData.setValue(ENABLE_NOTIFICATION_VALUE);
         } else {
-            notifySetDescriptorValue(mWriteDescriptorData);
+            descriptorData.setValue(ENABLE_INDICATION_VALUE);
+        }
+        processWriteDescriptorData(descriptorData, listener);
+    }
+
+    // Scheduling methods
+    private final BLEScheduledGatt.Priorities mGattPriorities = new BLEScheduledGatt.Priorities();
+    // Starts the requests picked by the scheduler, posted since the scheduler picks them inside other calls
+    private final Executor mGattStarter = new Executor() {
+        @Override
+        public void execute(final Runnable command) {
+            getGattThread().post(command);
+        }
+    };
+
+    /**
+     * <p>Method to set the priority of the GATT requests of this device in {@link BLEGattScheduler}, it's
+     * {@link BLEGattScheduler#PRIORITY_INTERACTIVE} by default
+     * @param priority One of the PRIORITY_* constants of {@link BLEGattScheduler}
+     */
+    public void setGattPriority(final int priority) {
+        mGattPriorities.setDefault(checkGattPriority(priority));
+    }
+
+    /**
+     * <p>Method to set the priority of the reads and writes of a characteristic and its descriptors in
+     * {@link BLEGattScheduler}, e.g. {@link BLEGattScheduler#PRIORITY_BULK} for a firmware transfer
+     * @param characteristicUuid The UUID of the characteristic
+     * @param priority One of the PRIORITY_* constants of {@link BLEGattScheduler}, or -1 to use the priority
+     *                 of the device
+     */
+    public void setGattPriority(final UUID characteristicUuid, final int priority) {
+        if (priority < 0) {
+            mGattPriorities.remove(characteristicUuid);
+        } else {
+            mGattPriorities.set(characteristicUuid, checkGattPriority(priority));
+        }
+    }
+
+    private static int checkGattPriority(final int priority) {
+        if (priority < BLEGattScheduler.PRIORITY_INTERACTIVE || priority > BLEGattScheduler.PRIORITY_BULK) {
+            throw new IllegalArgumentException("Invalid GATT priority: "+priority);
+        }
+        return priority;
+    }
+
+    // Retry methods
+    private volatile BLERetryPolicy.Budget mRetryBudget = new BLERetryPolicy.Budget(BLERetryPolicy.NONE);
+
+    /**
+     * <p>Method to retry the reads and writes of characteristics and descriptors failing with a transient status.
+     * The listeners get the result of the last attempt.
+     * @param policy The policy, null or {@link BLERetryPolicy#NONE} not to retry
+     */
+    public void setRetryPolicy(final BLERetryPolicy policy) {
+        mRetryBudget = new BLERetryPolicy.Budget(policy != null ? policy : BLERetryPolicy.NONE);
+    }
+
+    public BLERetryPolicy getRetryPolicy() {
+        return mRetryBudget.getPolicy();
+    }
+
+    // Read or write of an attribute retried by the retry policy, only accessed on the GATT thread
+    private abstract class RetriedRequest implements Runnable {
+        private final String mName;
+        private final boolean mDoneOnStart;
+        private int mAttempts = 0;
+        private boolean mInFlight = false;
+
+        /**
+         * @param name Name of the request for logs
+         * @param doneOnStart Whether the request succeeds once it's started, without a callback
+         */
+        RetriedRequest(final String name, final boolean doneOnStart) {
+            mName = name;
+            mDoneOnStart = doneOnStart;
+        }
+
+        /**
+         * @return Whether the request is started
+         */
+        abstract boolean start();
+
+        /**
+         * <p>Callback method of the result of the last attempt
+         * @param status The status of the last attempt
+         */
+        abstract void finish(final int status);
+
+        // Method to make an attempt
+        @Override
+        public void run() {
+            mAttempts++;
+            mInFlight = mGatt != null && start();
+            if (!mInFlight) {
+                Log.e(TAG, mName+", failed to start the request");
+                onResult(BLEGattTransport.STATUS_FAILURE);
+            } else if (mDoneOnStart) {
+                onResponse(BLEGattTransport.STATUS_SUCCESS);
+            }
+        }
+
+        void onResponse(final int status) {
+            if (!mInFlight) { // Waiting to retry
+                return;
+            }
+            mInFlight = false;
+            onResult(status);
+        }
+
+        private void onResult(final int status) {
+            if (status != BLEGattTransport.STATUS_SUCCESS && mGatt != null) {
+                final BLERetryPolicy.Budget budget = mRetryBudget;
+                final BLERetryPolicy policy = budget.getPolicy();
+                if (policy.shouldRetry(status, mAttempts)) {
+                    if (budget.tryAcquire(SystemClock.uptimeMillis())) {
+                        final long backoff = policy.getBackoff(mAttempts);
+                        Log.w(TAG, mName+", retry in "+backoff+"ms after status "+status);
+                        BLEMetrics.getInstance().increment(BLEMetrics.COUNTER_RETRIES, 1);
+                        getGattThread().postDelayed(this, backoff);
+                        return;
+                    }
+                    Log.w(TAG, mName+", retry budget is used up");
+                }
+            }
+            finish(status);
+        }
+
+        void cancel(final int status) {
+            getGattThread().removeCallbacks(this);
+            mInFlight = false;
+            finish(status);
+        }
+    }
+
+    // The requests in flight never complete, so their callers would wait forever
+    private void processOnDisconnectedForRetriedRequests() {
+        processOnDisconnectedForReadingCharacterValue();
+        if (mWriteCharacterRequest != null) {
+            mWriteCharacterRequest.cancel(BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+        }
+        if (mQueryDescriptorRequest != null) {
+            mQueryDescriptorRequest.cancel(BLEGattTransport.STATUS_CONNECTION_TERMINATED);
+        }
+        if (mWriteDescriptorRequest != null) {
+            mWriteDescriptorRequest.cancel(BLEGattTransport.STATUS_CONNECTION_TERMINATED);
         }
-        mWriteDescriptorData = null;
     }
 
     // Event methods
     public interface ValueChangedListener {
         /**
          * <p>Callback function of value change events of GATT Characteristics
-         * @param data The changed GATT Characteristic BLEData object
+         * @param data The changed GATT Characteristic BLEData object,
+         * its {@link BLEData#getValue()} returns the value carried by this event
          */
         void onValueChanged(final BLEData data);
     }
     // Character changed method
-    private List<ValueChangedListener> mCharacterChangedListeners = new ArrayList<ValueChangedListener>();
-    private void notifyCharacterChanged(final BluetoothGattCharacteristic characteristic) {
-        final BLEData data = new BLEData(characteristic.getUuid(), characteristic);
-        final List<ValueChangedListener> listeners = new ArrayList<ValueChangedListener>(mCharacterChangedListeners);
-        for (final ValueChangedListener listener : listeners) {
-            listener.onValueChanged(data);
+    private final List<ValueChangedListener> mCharacterChangedListeners = new CopyOnWriteArrayList<ValueChangedListener>();
+    private void notifyCharacterChanged(final BLEAttribute characteristic, final byte[] value, final long receivedNanos,
+                                        final BLEStreamStats stats) {
+        if (mCharacterChangedListeners.isEmpty()) {
+            return;
         }
+        final List<ValueChangedListener> listeners = mCharacterChangedListeners;
+        final BLEData data = new BLEData(characteristic, value);
+        deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                BLEMetrics.getInstance().recordLatency(BLEMetrics.LATENCY_NOTIFICATION, System.nanoTime() - receivedNanos);
+                for (final ValueChangedListener listener : listeners) {
+                    listener.onValueChanged(data);
+                }
+                if (stats != null) {
+                    stats.onDelivered(receivedNanos);
+                }
+            }
+        });
     }
 
     /**
@@ -765,4 +1857,47 @@ public final class BLEDevice {
             mCharacterChangedListeners.remove(listener);
         }
     }
+
+    // Notification stream statistics
+    private final Map<UUID, BLEStreamStats> mStreamStats = new ConcurrentHashMap<UUID, BLEStreamStats>();
+
+    /**
+     * <p>Method to measure the notification stream of a characteristic. Notifications are timestamped when
+     * the stack reports them, and timed again after {@link ValueChangedListener#onValueChanged} returns.
+     * @param characteristicUuid UUID of the characteristic
+     * @param stats The statistics to record to, e.g. {@code new BLEStreamStats(BLEValueFormat.FORMAT_UINT16, 0)}
+     *              for a 16 bits counter at the start of the payload, null to stop measuring
+     */
+    public void setStreamStats(final UUID characteristicUuid, final BLEStreamStats stats) {
+        if (stats != null) {
+            mStreamStats.put(characteristicUuid, stats);
+        } else {
+            mStreamStats.remove(characteristicUuid);
+        }
+    }
+
+    /**
+     * <p>Get the statistics set by {@link #setStreamStats}
+     * @param characteristicUuid UUID of the characteristic
+     * @return The statistics, or null if the characteristic isn't measured
+     */
+    public BLEStreamStats getStreamStats(final UUID characteristicUuid) {
+        return mStreamStats.get(characteristicUuid);
+    }
+
+    // Time series
+    private volatile BLETimeSeriesStore mTimeSeriesStore = null;
+
+    /**
+     * <p>Method to record the notified values of the characteristics registered in the store, with the time
+     * of {@link System#nanoTime()} when they are received
+     * @param store The store, null to stop recording
+     */
+    public void setTimeSeriesStore(final BLETimeSeriesStore store) {
+        mTimeSeriesStore = store;
+    }
+
+    public BLETimeSeriesStore getTimeSeriesStore() {
+        return mTimeSeriesStore;
+    }
 }
@@ -0,0 +1,135 @@
+package com.hill.libblemanager;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * <p>Connection of a known device by its address without scanning first. If the direct connection
+ * doesn't succeed in time, a short scan looks for the device and it's connected again once it's found.
+ * See {@link BLEManager#connectKnownDevice} for details.
+ */
+final class BLEDirectConnector implements BLEDevice.ConnectionListener, BLEScanTransport.Callback {
+    private static final String TAG = "BLEDirectConnector";
+
+    private static final int STAGE_DIRECT = 0;
+    private static final int STAGE_SCAN = 1;
+    private static final int STAGE_FALLBACK = 2;
+    private static final int STAGE_DONE = 3;
+
+    private final Context mContext;
+    private final BLEDevice mDevice;
+    private final BLEScanTransport mScanner;
+    private final BLEKnownDevices mKnownDevices;
+    private final long mDirectTimeout;
+    private final long mScanTimeout;
+    private final BLEDevice.ConnectionListener mListener;
+    private int mStage = STAGE_DIRECT;
+
+    BLEDirectConnector(final Context context, final BLEDevice device, final BLEScanTransport scanner,
+                       final BLEKnownDevices knownDevices, final long directTimeout, final long scanTimeout,
+                       final BLEDevice.ConnectionListener listener) {
+        mContext = context;
+        mDevice = device;
+        mScanner = scanner;
+        mKnownDevices = knownDevices;
+        mDirectTimeout = directTimeout;
+        mScanTimeout = scanTimeout;
+        mListener = listener;
+    }
+
+    void start() {
+        mDevice.connect(mContext, false, this);
+        mDevice.getGattThread().postDelayed(mTimeoutTask, mDirectTimeout);
+    }
+
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (BLEDirectConnector.this) {
+                if (mStage == STAGE_DIRECT) {
+                    Log.w(TAG, "Direct connection timed out: "+mDevice.getAddress());
+                    mDevice.abortConnect();
+                    startScan();
+                } else if (mStage == STAGE_SCAN) {
+                    Log.w(TAG, "Device isn't found by the scan: "+mDevice.getAddress());
+                    mScanner.stopScan(BLEDirectConnector.this);
+                    finish(false);
+                }
+            }
+        }
+    };
+
+    // Called with the lock held
+    private void startScan() {
+        if (mScanner == null || !mScanner.startScan(null, this)) {
+            Log.e(TAG, "Failed to start the fallback scan");
+            finish(false);
+            return;
+        }
+        mStage = STAGE_SCAN;
+        mDevice.getGattThread().postDelayed(mTimeoutTask, mScanTimeout);
+    }
+
+    // Called with the lock held
+    private void finish(final boolean connected) {
+        mStage = STAGE_DONE;
+        mDevice.getGattThread().removeCallbacks(mTimeoutTask);
+        if (connected && mKnownDevices != null) {
+            mKnownDevices.remember(mDevice);
+        }
+        if (mListener != null) {
+            mListener.onConnectionStateChanged(connected);
+        }
+    }
+
+    @Override
+    public void onConnectionStateChanged(final boolean connected) {
+        synchronized (this) {
+            switch (mStage) {
+                case STAGE_DIRECT:
+                    mDevice.getGattThread().removeCallbacks(mTimeoutTask);
+                    if (connected) {
+                        finish(true);
+                    } else {
+                        startScan();
+                    }
+                    return;
+                case STAGE_FALLBACK:
+                    finish(connected);
+                    return;
+                case STAGE_SCAN: // Late result of the aborted direct connection
+                    return;
+                default:
+                    break;
+            }
+        }
+        // Later connection changes go to the listener like BLEDevice.connect
+        if (mListener != null) {
+            mListener.onConnectionStateChanged(connected);
+        }
+    }
+
+    @Override
+    public void onScanResult(final BLEScanResult result) {
+        synchronized (this) {
+            if (mStage != STAGE_SCAN || !mDevice.getAddress().equalsIgnoreCase(result.address)) {
+                return;
+            }
+            mStage = STAGE_FALLBACK;
+            mDevice.getGattThread().removeCallbacks(mTimeoutTask);
+            mScanner.stopScan(this);
+        }
+        mDevice.deviceRssi = result.rssi;
+        mDevice.connect(mContext, false, this);
+    }
+
+    @Override
+    public void onScanFailed(final int errorCode) {
+        synchronized (this) {
+            if (mStage == STAGE_SCAN) {
+                Log.e(TAG, "Fallback scan failed: "+errorCode);
+                finish(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,612 @@
+package com.hill.libblemanager;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Executor running the same GATT workflow on many devices, e.g. applying a configuration to or collecting
+ * a reading from a fleet of sensors. Every device is connected by its address like
+ * {@link BLEManager#connectKnownDevice}, its services are discovered, the {@link Workflow} runs on it and the
+ * device is disconnected again. At most {@link Builder#setMaxConcurrency} devices are worked on at a time,
+ * a failed device is retried later, and every result is reported to the {@link Listener} as soon as it's known.
+ * <p>Build it with {@link Builder} and {@link #start} it with the addresses of the devices.
+ */
+public final class BLEFleetExecutor {
+    private static final String TAG = "BLEFleetExecutor";
+
+    public static final int DEFAULT_MAX_CONCURRENCY = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 2;
+    public static final long DEFAULT_RETRY_DELAY = 5000;
+    public static final long DEFAULT_DEVICE_TIMEOUT = 60000;
+
+    /**
+     * <p>Work to do on a connected device whose services are discovered
+     */
+    public interface Workflow {
+        /**
+         * <p>Method to run the work, finish it by {@link Job#succeed} or {@link Job#fail}.
+         * It's called on the callback thread of the device, see {@link BLEDevice#setCallbackExecutor}.
+         * @param device The connected device, resolve its attributes by {@link BLEDevice#getGattTree()}
+         * @param job The job of this attempt
+         */
+        void run(final BLEDevice device, final Job job);
+    }
+
+    public interface Listener {
+        /**
+         * <p>Callback method when a device is done, successfully or after its last attempt
+         * @param result The result of the device
+         */
+        void onDeviceDone(final Result result);
+
+        /**
+         * <p>Callback method of the progress, called after every device is done
+         * @param done Number of devices done
+         * @param succeeded Number of devices succeeded
+         * @param total Number of devices
+         */
+        void onProgress(final int done, final int succeeded, final int total);
+
+        /**
+         * <p>Callback method when all devices are done or the execution is cancelled
+         * @param results The results of the devices done, in the order they are done
+         */
+        void onFinished(final List<Result> results);
+    }
+
+    /**
+     * <p>Result of a device
+     */
+    public static final class Result {
+        public final String address;
+        public final boolean success;
+        /** Value given to {@link Job#succeed}, or null */
+        public final Object value;
+        /** Reason of the last failure, or null if it succeeded */
+        public final String error;
+        public final int attempts;
+        /** Time from the first attempt to the end of the last one, in milliseconds */
+        public final long duration;
+
+        Result(final String address, final boolean success, final Object value, final String error,
+               final int attempts, final long duration) {
+            this.address = address;
+            this.success = success;
+            this.value = value;
+            this.error = error;
+            this.attempts = attempts;
+            this.duration = duration;
+        }
+
+        @Override
+        public String toString() {
+            return address+(success ? " succeeded: "+value : " failed: "+error)+" after "+attempts+" attempts";
+        }
+    }
+
+    /**
+     * <p>Builder of {@link BLEFleetExecutor}
+     */
+    public static final class Builder {
+        private int mMaxConcurrency = DEFAULT_MAX_CONCURRENCY;
+        private int mMaxAttempts = DEFAULT_MAX_ATTEMPTS;
+        private long mRetryDelay = DEFAULT_RETRY_DELAY;
+        private long mDeviceTimeout = DEFAULT_DEVICE_TIMEOUT;
+        private Executor mCallbackExecutor = null;
+        private BLEGattThread mGattThread = BLEGattThread.getShared();
+
+        /**
+         * <p>Method to set the max number of devices connected at a time, {@link #DEFAULT_MAX_CONCURRENCY} by
+         * default. Android supports a handful of connections, and other connections of the app count as well.
+         * @param maxConcurrency The number of devices
+         * @return This builder
+         */
+        public Builder setMaxConcurrency(final int maxConcurrency) {
+            if (maxConcurrency < 1) {
+                throw new IllegalArgumentException("Invalid max concurrency: "+maxConcurrency);
+            }
+            mMaxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the retries of a failed device, by default it's tried {@link #DEFAULT_MAX_ATTEMPTS}
+         * times at least {@link #DEFAULT_RETRY_DELAY} apart. Other devices are worked on while it waits.
+         * @param maxAttempts The number of attempts including the first one
+         * @param retryDelay Time before a device is tried again in milliseconds
+         * @return This builder
+         */
+        public Builder setRetries(final int maxAttempts, final long retryDelay) {
+            if (maxAttempts < 1 || retryDelay < 0) {
+                throw new IllegalArgumentException("Invalid retries: "+maxAttempts+", "+retryDelay);
+            }
+            mMaxAttempts = maxAttempts;
+            mRetryDelay = retryDelay;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the time an attempt may take from connecting to the end of the workflow,
+         * {@link #DEFAULT_DEVICE_TIMEOUT} by default
+         * @param timeout The timeout in milliseconds
+         * @return This builder
+         */
+        public Builder setDeviceTimeout(final long timeout) {
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("Invalid device timeout: "+timeout);
+            }
+            mDeviceTimeout = timeout;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the Executor to deliver the callbacks of the {@link Listener} and the callbacks of the
+         * devices, by default they're called on the GATT thread
+         * @param executor The Executor, null to call them on the GATT thread
+         * @return This builder
+         */
+        public Builder setCallbackExecutor(final Executor executor) {
+            mCallbackExecutor = executor;
+            return this;
+        }
+
+        /**
+         * <p>Method to set the thread of the devices and the timers, {@link BLEGattThread#getShared()} by default
+         * @param gattThread The GATT thread
+         * @return This builder
+         */
+        public Builder setGattThread(final BLEGattThread gattThread) {
+            if (gattThread == null) {
+                throw new IllegalArgumentException("GATT thread can't be null");
+            }
+            mGattThread = gattThread;
+            return this;
+        }
+
+        public BLEFleetExecutor build() {
+            return new BLEFleetExecutor(this);
+        }
+    }
+
+    /**
+     * <p>Attempt of the workflow on a device, finish it once by {@link #succeed} or {@link #fail}
+     */
+    public final class Job {
+        private final Task mTask;
+        private final BLEDevice mDevice;
+        private boolean mFinished = false;
+        private final Runnable mTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                finishJob(Job.this, false, null, "Timed out");
+            }
+        };
+
+        private Job(final Task task, final BLEDevice device) {
+            mTask = task;
+            mDevice = device;
+        }
+
+        public String getAddress() {
+            return mTask.address;
+        }
+
+        /**
+         * @return The number of this attempt, starting from 1
+         */
+        public int getAttempt() {
+            return mTask.attempts;
+        }
+
+        /**
+         * <p>Method to finish the attempt successfully
+         * @param value Value to report in the {@link Result}, e.g. the collected reading, it can be null
+         */
+        public void succeed(final Object value) {
+            finishJob(this, true, value, null);
+        }
+
+        /**
+         * <p>Method to finish the attempt with a failure, the device is retried if it has attempts left
+         * @param error Reason of the failure
+         */
+        public void fail(final String error) {
+            finishJob(this, false, null, error);
+        }
+
+        public boolean isFinished() {
+            synchronized (BLEFleetExecutor.this) {
+                return mFinished;
+            }
+        }
+    }
+
+    // State of a device through its attempts
+    private static final class Task {
+        final String address;
+        int attempts = 0;
+        long firstStartTime = 0;
+
+        Task(final String address) {
+            this.address = address;
+        }
+    }
+
+    private final int mMaxConcurrency;
+    private final int mMaxAttempts;
+    private final long mRetryDelay;
+    private final long mDeviceTimeout;
+    private final Executor mCallbackExecutor;
+    // Thread of the devices, and of the timers of the retries and timeouts
+    private final BLEGattThread mGattThread;
+
+    // Guarded by this
+    private final ArrayDeque<Task> mPending = new ArrayDeque<Task>();
+    private final List<Job> mRunning = new ArrayList<Job>();
+    private final List<Result> mResults = new ArrayList<Result>();
+    private Context mContext = null;
+    private Workflow mWorkflow = null;
+    private Listener mListener = null;
+    private int mTotal = 0;
+    private int mSucceeded = 0;
+    private int mWaitingRetries = 0;
+    private boolean mStarted = false;
+    private boolean mFinished = false;
+
+    private BLEFleetExecutor(final Builder builder) {
+        mMaxConcurrency = builder.mMaxConcurrency;
+        mMaxAttempts = builder.mMaxAttempts;
+        mRetryDelay = builder.mRetryDelay;
+        mDeviceTimeout = builder.mDeviceTimeout;
+        mCallbackExecutor = builder.mCallbackExecutor;
+        mGattThread = builder.mGattThread;
+    }
+
+    /**
+     * <p>Method to run the workflow on the devices, it can only be started once
+     * @param context Application context
+     * @param addresses Addresses of the devices, duplicates are run once
+     * @param workflow The work to do on every device
+     * @param listener Listener to receive the results and the progress
+     */
+    public void start(final Context context, final List<String> addresses, final Workflow workflow,
+                      final Listener listener) {
+        if (workflow == null || listener == null) {
+            throw new IllegalArgumentException("Workflow and listener can't be null");
+        }
+        synchronized (this) {
+            if (mStarted) {
+                throw new IllegalStateException("Fleet executor is already started");
+            }
+            mStarted = true;
+            mContext = context;
+            mWorkflow = workflow;
+            mListener = listener;
+            final List<String> added = new ArrayList<String>();
+            for (final String address : addresses) {
+                final String normalized = address.toUpperCase();
+                if (!added.contains(normalized)) {
+                    added.add(normalized);
+                    mPending.add(new Task(normalized));
+                }
+            }
+            mTotal = mPending.size();
+        }
+        Log.d(TAG, "Start workflow on "+mTotal+" devices");
+        schedule();
+    }
+
+    /**
+     * <p>Method to stop starting devices and disconnect the devices worked on, the devices not done yet get
+     * no result and {@link Listener#onFinished} is called with the results so far
+     */
+    public void cancel() {
+        final List<Job> cancelled;
+        synchronized (this) {
+            if (!mStarted || mFinished) {
+                return;
+            }
+            mPending.clear();
+            cancelled = new ArrayList<Job>(mRunning);
+            for (final Job job : cancelled) {
+                job.mFinished = true;
+                mGattThread.removeCallbacks(job.mTimeoutTask);
+            }
+            mRunning.clear();
+            mWaitingRetries = 0;
+        }
+        for (final Job job : cancelled) {
+            job.mDevice.close();
+        }
+        checkFinished();
+    }
+
+    /**
+     * <p>Get the progress
+     * @return Number of devices done
+     */
+    public synchronized int getDoneCount() {
+        return mResults.size();
+    }
+
+    public synchronized int getTotalCount() {
+        return mTotal;
+    }
+
+    // Execution methods
+    private void schedule() {
+        while (true) {
+            final Job job;
+            final Result failure;
+            final int doneCount;
+            final int succeeded;
+            synchronized (this) {
+                if (mFinished || mRunning.size() >= mMaxConcurrency || mPending.isEmpty()) {
+                    break;
+                }
+                // The slot is taken with the task, so concurrent calls can't exceed the max concurrency
+                // and checkFinished never sees the task neither pending nor running
+                final Task task = mPending.poll();
+                task.attempts++;
+                if (task.firstStartTime == 0) {
+                    task.firstStartTime = SystemClock.elapsedRealtime();
+                }
+                final BLEDevice device = BLEManager.getInstance().buildKnownDevice(mContext, task.address);
+                if (device == null) { // Retrying doesn't help
+                    job = null;
+                    failure = addResult(task, false, null, "Invalid address or Bluetooth isn't supported");
+                    doneCount = mResults.size();
+                    succeeded = mSucceeded;
+                } else {
+                    job = new Job(task, device);
+                    mRunning.add(job);
+                    failure = null;
+                    doneCount = 0;
+                    succeeded = 0;
+                }
+            }
+            if (job != null) {
+                startJob(job);
+            } else {
+                notifyDone(failure, doneCount, succeeded);
+            }
+        }
+        checkFinished();
+    }
+
+    private void startJob(final Job job) {
+        final Task task = job.mTask;
+        final BLEDevice device = job.mDevice;
+        device.setGattThread(mGattThread);
+        device.setCallbackExecutor(mCallbackExecutor);
+        synchronized (this) {
+            if (job.mFinished) { // Cancelled
+                return;
+            }
+            mGattThread.postDelayed(job.mTimeoutTask, mDeviceTimeout);
+        }
+        Log.d(TAG, "Start attempt "+task.attempts+" on "+task.address);
+        BLEManager.getInstance().connectKnownDevice(mContext, device, BLEManager.DEFAULT_DIRECT_CONNECT_TIMEOUT,
+                BLEManager.DEFAULT_FALLBACK_SCAN_TIMEOUT, new BLEDevice.ConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(final boolean connected) {
+                if (!connected) {
+                    finishJob(job, false, null, "Disconnected");
+                    return;
+                }
+                if (job.isFinished()) { // Found by the fallback scan after the attempt timed out
+                    device.close();
+                    return;
+                }
+                device.queryServices(new BLEDevice.QueryResultsListener() {
+                    @Override
+                    public void onGotResults(final List<BLEData> dataList) {
+                        if (dataList == null) {
+                            finishJob(job, false, null, "Failed to discover services");
+                            return;
+                        }
+                        if (!job.isFinished()) {
+                            runWorkflow(job);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void runWorkflow(final Job job) {
+        try {
+            mWorkflow.run(job.mDevice, job);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Workflow failed on "+job.getAddress(), e);
+            finishJob(job, false, null, e.toString());
+        }
+    }
+
+    private void finishJob(final Job job, final boolean success, final Object value, final String error) {
+        final Task task = job.mTask;
+        final boolean retry;
+        final Result result;
+        final int doneCount;
+        final int succeeded;
+        // The job leaves the running ones in the same lock as it's counted as waiting or done
+        synchronized (this) {
+            if (job.mFinished) {
+                return;
+            }
+            job.mFinished = true;
+            mRunning.remove(job);
+            retry = !success && task.attempts < mMaxAttempts;
+            if (retry) {
+                mWaitingRetries++;
+                result = null;
+                doneCount = 0;
+                succeeded = 0;
+            } else {
+                result = addResult(task, success, value, error);
+                doneCount = mResults.size();
+                succeeded = mSucceeded;
+            }
+        }
+        mGattThread.removeCallbacks(job.mTimeoutTask);
+        job.mDevice.close();
+        if (retry) {
+            Log.w(TAG, "Attempt "+task.attempts+" failed on "+task.address+": "+error);
+            mGattThread.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (BLEFleetExecutor.this) {
+                        if (mFinished) { // Cancelled
+                            return;
+                        }
+                        mWaitingRetries--;
+                        mPending.add(task);
+                    }
+                    schedule();
+                }
+            }, mRetryDelay);
+        } else {
+            notifyDone(result, doneCount, succeeded);
+        }
+        schedule();
+    }
+
+    // Must be called with the lock of this held, the result is delivered by notifyDone after releasing it
+    private Result addResult(final Task task, final boolean success, final Object value, final String error) {
+        final long duration = SystemClock.elapsedRealtime() - task.firstStartTime;
+        final Result result = new Result(task.address, success, value, error, task.attempts, duration);
+        mResults.add(result);
+        if (success) {
+            mSucceeded++;
+        }
+        return result;
+    }
+
+    private void notifyDone(final Result result, final int doneCount, final int succeeded) {
+        Log.d(TAG, result.toString());
+        final Listener listener = mListener;
+        final int total = mTotal;
+        deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                listener.onDeviceDone(result);
+                listener.onProgress(doneCount, succeeded, total);
+            }
+        });
+    }
+
+    private void checkFinished() {
+        final List<Result> results;
+        synchronized (this) {
+            if (mFinished || !mStarted || !mPending.isEmpty() || !mRunning.isEmpty() || mWaitingRetries > 0) {
+                return;
+            }
+            mFinished = true;
+            results = Collections.unmodifiableList(new ArrayList<Result>(mResults));
+        }
+        Log.d(TAG, "Finished, "+mSucceeded+" of "+mTotal+" devices succeeded");
+        final Listener listener = mListener;
+        deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinished(results);
+            }
+        });
+    }
+
+    private void deliverCallback(final Runnable callback) {
+        final Executor executor = mCallbackExecutor;
+        if (executor != null) {
+            executor.execute(callback);
+        } else {
+            mGattThread.execute(callback);
+        }
+    }
+
+    // Workflows
+    /**
+     * <p>Get a workflow writing a value to a characteristic of every device
+     * @param serviceUuid The UUID of the service, or null to take the first characteristic of the UUID
+     * @param characteristicUuid The UUID of the characteristic
+     * @param value The value to write
+     * @return The workflow, its results have no value
+     */
+    public static Workflow writeCharacteristic(final UUID serviceUuid, final UUID characteristicUuid, final byte[] value) {
+        return new Workflow() {
+            @Override
+            public void run(final BLEDevice device, final Job job) {
+                final BLEData characterData = findCharacteristic(device, serviceUuid, characteristicUuid, job);
+                if (characterData == null) {
+                    return;
+                }
+                characterData.setValue(value);
+                device.writeCharacterData(characterData, new BLEDevice.WriteValueStatusListener() {
+                    @Override
+                    public void onSetValue(final BLEData data, final int status) {
+                        if (status == BLEGattTransport.STATUS_SUCCESS) {
+                            job.succeed(null);
+                        } else {
+                            job.fail("Write failed with status "+status);
+                        }
+                    }
+
+                    @Override
+                    public void onSetValue(final BLEData data) {
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * <p>Get a workflow reading a characteristic of every device
+     * @param serviceUuid The UUID of the service, or null to take the first characteristic of the UUID
+     * @param characteristicUuid The UUID of the characteristic
+     * @return The workflow, the value of its results is the read byte[]
+     */
+    public static Workflow readCharacteristic(final UUID serviceUuid, final UUID characteristicUuid) {
+        return new Workflow() {
+            @Override
+            public void run(final BLEDevice device, final Job job) {
+                final BLEData characterData = findCharacteristic(device, serviceUuid, characteristicUuid, job);
+                if (characterData == null) {
+                    return;
+                }
+                device.queryCharacterData(characterData, new BLEDevice.QueryValueStatusListener() {
+                    @Override
+                    public void onGotValue(final BLEData data, final int status) {
+                        if (status == BLEGattTransport.STATUS_SUCCESS) {
+                            job.succeed(data.getValue());
+                        } else {
+                            job.fail("Read failed with status "+status);
+                        }
+                    }
+
+                    @Override
+                    public void onGotValue(final BLEData data) {
+                    }
+                });
+            }
+        };
+    }
+
+    private static BLEData findCharacteristic(final BLEDevice device, final UUID serviceUuid,
+                                              final UUID characteristicUuid, final Job job) {
+        final BLEGattTree gattTree = device.getGattTree();
+        final BLEData characterData = gattTree == null ? null : serviceUuid != null
+                ? gattTree.getCharacteristic(serviceUuid, characteristicUuid)
+                : gattTree.getCharacteristic(characteristicUuid);
+        if (characterData == null) {
+            job.fail("Characteristic isn't found: "+characteristicUuid);
+        }
+        return characterData;
+    }
+}
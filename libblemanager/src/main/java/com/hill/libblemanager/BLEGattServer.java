@@ -0,0 +1,746 @@
+package com.hill.libblemanager;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>GATT server of the peripheral role, built on BluetoothGattServer. Declare the services with the same
+ * {@link BLEData} types as {@code BLEDevice} by {@link #createService}, {@link #addCharacteristic} and
+ * {@link #addDescriptor}, then {@link #open} the server and {@link #addService} them.
+ * <p>Read and write requests of the centrals are answered by the {@link ReadHandler} and {@link WriteHandler}
+ * registered for the attribute UUID, or from the cached value of the attribute when there is no handler.
+ * Subscriptions are tracked per central from their Client Characteristic Configuration writes, and
+ * {@link #notifyCharacteristic} queues the value for every subscribed central. Each central has one
+ * notification in flight, the next one is sent when the stack reports the previous one sent, so the stack
+ * isn't overrun and a slow central doesn't hold back the others.
+ * <p>All handlers and listeners are called on the GATT thread of the server.
+ */
+public final class BLEGattServer {
+    private static final String TAG = "BLEGattServer";
+
+    // Permissions, the same values as BluetoothGattCharacteristic
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_READ_ENCRYPTED = 0x02;
+    public static final int PERMISSION_WRITE = 0x10;
+    public static final int PERMISSION_WRITE_ENCRYPTED = 0x20;
+
+    public static final int DEFAULT_MAX_QUEUED_NOTIFICATIONS = 64;
+
+    private static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID = BLEUuid.fromShortUuid(0x2902);
+
+    public interface ReadHandler {
+        /**
+         * <p>Callback method of a read request, long reads of the following offsets are answered from the
+         * value returned for offset 0
+         * @param address Address of the central
+         * @param data The read characteristic or descriptor
+         * @return The value, or null to reject the read with {@link BLEGattTransport#STATUS_READ_NOT_PERMITTED}
+         */
+        byte[] onReadRequest(final String address, final BLEData data);
+    }
+
+    public interface WriteHandler {
+        /**
+         * <p>Callback method of a write request, long writes are given once they're executed
+         * @param address Address of the central
+         * @param data The written characteristic or descriptor
+         * @param value The written value
+         * @return The status to respond, one of the STATUS_* constants of {@link BLEGattTransport}
+         */
+        int onWriteRequest(final String address, final BLEData data, final byte[] value);
+    }
+
+    public interface Listener {
+        void onCentralConnectionChanged(final String address, final boolean connected);
+
+        /**
+         * <p>Callback method when a central enables or disables the notifications or indications of a characteristic
+         * @param address Address of the central
+         * @param characterData The characteristic
+         * @param subscribed Whether it's subscribed
+         */
+        void onSubscriptionChanged(final String address, final BLEData characterData, final boolean subscribed);
+
+        /**
+         * <p>Callback method when all notifications queued for a central are sent, to queue more of them
+         * @param address Address of the central
+         */
+        void onNotificationQueueEmpty(final String address);
+    }
+
+    // Declaration methods
+    /**
+     * <p>Method to create a service to declare
+     * @param uuid UUID of the service
+     * @param primary Whether it's a primary service
+     * @return The service BLEData object
+     */
+    public static BLEData createService(final UUID uuid, final boolean primary) {
+        return new BLEData(uuid, new BluetoothGattService(uuid, primary
+                ? BluetoothGattService.SERVICE_TYPE_PRIMARY : BluetoothGattService.SERVICE_TYPE_SECONDARY));
+    }
+
+    /**
+     * <p>Method to add a characteristic to a service created by {@link #createService}. A Client Characteristic
+     * Configuration descriptor is added when it can notify or indicate.
+     * @param serviceData The service
+     * @param uuid UUID of the characteristic
+     * @param properties The PROPERTY_* constants of {@link BLEAttribute}
+     * @param permissions The PERMISSION_* constants
+     * @return The characteristic BLEData object
+     */
+    public static BLEData addCharacteristic(final BLEData serviceData, final UUID uuid, final int properties,
+                                            final int permissions) {
+        final BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid, properties, permissions);
+        if ((properties & (BLEAttribute.PROPERTY_NOTIFY | BLEAttribute.PROPERTY_INDICATE)) != 0) {
+            final BluetoothGattDescriptor configDescriptor = new BluetoothGattDescriptor(CLIENT_CHARACTERISTIC_CONFIG_UUID,
+                    PERMISSION_READ | PERMISSION_WRITE);
+            configDescriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            characteristic.addDescriptor(configDescriptor);
+        }
+        ((BluetoothGattService) serviceData.data).addCharacteristic(characteristic);
+        return new BLEData(uuid, characteristic);
+    }
+
+    /**
+     * <p>Method to add a descriptor to a characteristic created by {@link #addCharacteristic}
+     * @param characterData The characteristic
+     * @param uuid UUID of the descriptor
+     * @param permissions The PERMISSION_* constants
+     * @return The descriptor BLEData object
+     */
+    public static BLEData addDescriptor(final BLEData characterData, final UUID uuid, final int permissions) {
+        final BluetoothGattDescriptor descriptor = new BluetoothGattDescriptor(uuid, permissions);
+        ((BluetoothGattCharacteristic) characterData.data).addDescriptor(descriptor);
+        return new BLEData(uuid, descriptor);
+    }
+
+    // Value of a characteristic queued to be notified to a central
+    private static final class Notification {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] value;
+
+        Notification(final BluetoothGattCharacteristic characteristic, final byte[] value) {
+            this.characteristic = characteristic;
+            this.value = value;
+        }
+    }
+
+    // Central connected to the server, only accessed on the GATT thread
+    private static final class Central {
+        final BluetoothDevice device;
+        // Characteristic to its Client Characteristic Configuration value
+        final Map<BluetoothGattCharacteristic, byte[]> subscriptions = new IdentityHashMap<BluetoothGattCharacteristic, byte[]>();
+        final ArrayDeque<Notification> notifications = new ArrayDeque<Notification>();
+        boolean notificationInFlight = false;
+        // Values of the long reads in progress
+        final Map<Object, byte[]> readValues = new IdentityHashMap<Object, byte[]>();
+        // Values of the long writes prepared
+        final Map<Object, byte[]> preparedValues = new IdentityHashMap<Object, byte[]>();
+        long droppedNotifications = 0;
+
+        Central(final BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+
+    private final BLEGattThread mGattThread;
+    private final Map<UUID, ReadHandler> mReadHandlers = new ConcurrentHashMap<UUID, ReadHandler>();
+    private final Map<UUID, WriteHandler> mWriteHandlers = new ConcurrentHashMap<UUID, WriteHandler>();
+    private volatile Listener mListener = null;
+    private volatile int mMaxQueuedNotifications = DEFAULT_MAX_QUEUED_NOTIFICATIONS;
+
+    // Only accessed on the GATT thread
+    private BluetoothGattServer mServer = null;
+    private final Map<String, Central> mCentrals = new HashMap<String, Central>();
+    private final ArrayDeque<BLEData> mPendingServices = new ArrayDeque<BLEData>();
+    private boolean mAddingService = false;
+
+    public BLEGattServer() {
+        this(BLEGattThread.getShared());
+    }
+
+    /**
+     * <p>Construction method of BLEGattServer
+     * @param gattThread The thread to process the requests and to call the handlers and listeners
+     */
+    public BLEGattServer(final BLEGattThread gattThread) {
+        mGattThread = gattThread;
+    }
+
+    public void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * <p>Method to set the handler of the read requests of a characteristic or descriptor
+     * @param uuid UUID of the attribute
+     * @param handler The handler, null to answer from the cached value
+     */
+    public void setReadHandler(final UUID uuid, final ReadHandler handler) {
+        if (handler != null) {
+            mReadHandlers.put(uuid, handler);
+        } else {
+            mReadHandlers.remove(uuid);
+        }
+    }
+
+    /**
+     * <p>Method to set the handler of the write requests of a characteristic or descriptor
+     * @param uuid UUID of the attribute
+     * @param handler The handler, null to store the written value as the cached value
+     */
+    public void setWriteHandler(final UUID uuid, final WriteHandler handler) {
+        if (handler != null) {
+            mWriteHandlers.put(uuid, handler);
+        } else {
+            mWriteHandlers.remove(uuid);
+        }
+    }
+
+    /**
+     * <p>Method to set the max number of notifications queued for a central, {@link #DEFAULT_MAX_QUEUED_NOTIFICATIONS}
+     * by default. Notifications beyond it aren't queued, see {@link #notifyCharacteristic}.
+     * @param maxQueuedNotifications The max number
+     */
+    public void setMaxQueuedNotifications(final int maxQueuedNotifications) {
+        if (maxQueuedNotifications < 1) {
+            throw new IllegalArgumentException("Invalid max queued notifications: "+maxQueuedNotifications);
+        }
+        mMaxQueuedNotifications = maxQueuedNotifications;
+    }
+
+    // Server methods
+    /**
+     * <p>Method to open the server, it's done at once
+     * @param context Application context
+     * @return false if Bluetooth isn't supported or the server can't be opened
+     */
+    public boolean open(final Context context) {
+        final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
+        if (bluetoothManager == null) {
+            Log.e(TAG, "Bluetooth isn't supported");
+            return false;
+        }
+        final boolean[] opened = new boolean[1];
+        // Opened on the GATT thread, the callbacks posted to it run once the server is assigned
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGattServer server = bluetoothManager.openGattServer(context, mServerCallback);
+                if (server == null) {
+                    Log.e(TAG, "Failed to open GATT server");
+                    return;
+                }
+                if (mServer != null) {
+                    mServer.close();
+                }
+                mServer = server;
+                opened[0] = true;
+                addNextService();
+            }
+        });
+        return opened[0];
+    }
+
+    /**
+     * <p>Method to close the server, the centrals are disconnected
+     */
+    public void close() {
+        mGattThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (mServer == null) {
+                    return;
+                }
+                mServer.close();
+                mServer = null;
+                mCentrals.clear();
+                mPendingServices.clear();
+                mAddingService = false;
+            }
+        });
+    }
+
+    /**
+     * <p>Method to publish a service, services are added one after another
+     * @param serviceData The service created by {@link #createService}
+     */
+    public void addService(final BLEData serviceData) {
+        mGattThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPendingServices.add(serviceData);
+                addNextService();
+            }
+        });
+    }
+
+    private void addNextService() {
+        if (mServer == null || mAddingService || mPendingServices.isEmpty()) {
+            return;
+        }
+        final BLEData serviceData = mPendingServices.poll();
+        mAddingService = true;
+        if (!mServer.addService((BluetoothGattService) serviceData.data)) {
+            Log.e(TAG, "Failed to add service: "+serviceData.uuid);
+            mAddingService = false;
+            addNextService();
+        }
+    }
+
+    public void removeService(final BLEData serviceData) {
+        mGattThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                mPendingServices.remove(serviceData);
+                if (mServer != null) {
+                    mServer.removeService((BluetoothGattService) serviceData.data);
+                }
+            }
+        });
+    }
+
+    /**
+     * <p>Method to disconnect a central
+     * @param address Address of the central
+     */
+    public void disconnect(final String address) {
+        mGattThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Central central = mCentrals.get(address);
+                if (mServer != null && central != null) {
+                    mServer.cancelConnection(central.device);
+                }
+            }
+        });
+    }
+
+    // Notification methods
+    /**
+     * <p>Method to send a value of a characteristic to every central subscribed to it, as a notification or an
+     * indication as the central subscribed. The value should fit in the MTU of the centrals minus 3.
+     * @param characterData The characteristic
+     * @param value The value
+     */
+    public void notifyCharacteristic(final BLEData characterData, final byte[] value) {
+        notifyCharacteristic(null, characterData, value);
+    }
+
+    /**
+     * <p>Method to send a value of a characteristic to a central if it's subscribed to it. A central whose queue
+     * is full doesn't get the value, it's counted by {@link #getDroppedNotificationCount}; queue more values
+     * once {@link Listener#onNotificationQueueEmpty} is called.
+     * @param address Address of the central, null for every central
+     * @param characterData The characteristic
+     * @param value The value
+     */
+    public void notifyCharacteristic(final String address, final BLEData characterData, final byte[] value) {
+        final byte[] notifiedValue = value.clone();
+        mGattThread.execute(new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothGattCharacteristic characteristic = (BluetoothGattCharacteristic) characterData.data;
+                for (final Central central : mCentrals.values()) {
+                    if (address != null && !address.equals(central.device.getAddress())) {
+                        continue;
+                    }
+                    if (!central.subscriptions.containsKey(characteristic)) {
+                        continue;
+                    }
+                    if (central.notifications.size() >= mMaxQueuedNotifications) {
+                        central.droppedNotifications++;
+                        continue;
+                    }
+                    central.notifications.add(new Notification(characteristic, notifiedValue));
+                    sendNextNotification(central);
+                }
+            }
+        });
+    }
+
+    private void sendNextNotification(final Central central) {
+        if (mServer == null || central.notificationInFlight) {
+            return;
+        }
+        while (!central.notifications.isEmpty()) {
+            final Notification notification = central.notifications.poll();
+            final BluetoothGattCharacteristic characteristic = notification.characteristic;
+            final byte[] config = central.subscriptions.get(characteristic);
+            if (config == null) { // Unsubscribed meanwhile
+                continue;
+            }
+            final boolean confirm = Arrays.equals(config, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            // The characteristic is shared by the centrals, its value is taken by the call
+            characteristic.setValue(notification.value);
+            if (mServer.notifyCharacteristicChanged(central.device, characteristic, confirm)) {
+                central.notificationInFlight = true;
+                return;
+            }
+            Log.e(TAG, "Failed to notify "+characteristic.getUuid()+" to "+central.device.getAddress());
+            central.droppedNotifications++;
+        }
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onNotificationQueueEmpty(central.device.getAddress());
+        }
+    }
+
+    /**
+     * <p>Get the number of notifications queued for a central, including the one in flight
+     * @param address Address of the central
+     * @return The number, 0 if the central isn't connected
+     */
+    public int getQueuedNotificationCount(final String address) {
+        final int[] count = new int[1];
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                final Central central = mCentrals.get(address);
+                if (central != null) {
+                    count[0] = central.notifications.size() + (central.notificationInFlight ? 1 : 0);
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * <p>Get the number of notifications not sent to a central because its queue is full or the stack refused them
+     * @param address Address of the central
+     * @return The number, 0 if the central isn't connected
+     */
+    public long getDroppedNotificationCount(final String address) {
+        final long[] count = new long[1];
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                final Central central = mCentrals.get(address);
+                if (central != null) {
+                    count[0] = central.droppedNotifications;
+                }
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * <p>Get the addresses of the connected centrals
+     * @return The addresses
+     */
+    public List<String> getConnectedCentrals() {
+        final List<String> addresses = new ArrayList<String>();
+        runAndWait(new Runnable() {
+            @Override
+            public void run() {
+                addresses.addAll(mCentrals.keySet());
+            }
+        });
+        return Collections.unmodifiableList(addresses);
+    }
+
+    private void runAndWait(final Runnable task) {
+        if (mGattThread.isCurrentThread()) {
+            task.run();
+            return;
+        }
+        final Object lock = new Object();
+        final boolean[] done = new boolean[1];
+        mGattThread.post(new Runnable() {
+            @Override
+            public void run() {
+                task.run();
+                synchronized (lock) {
+                    done[0] = true;
+                    lock.notifyAll();
+                }
+            }
+        });
+        synchronized (lock) {
+            while (!done[0]) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    // Request methods, only called on the GATT thread
+    private void processConnectionStateChange(final BluetoothDevice device, final int newState) {
+        final String address = device.getAddress();
+        final boolean connected = newState == BluetoothProfile.STATE_CONNECTED;
+        if (connected == mCentrals.containsKey(address)) {
+            return;
+        }
+        if (connected) {
+            mCentrals.put(address, new Central(device));
+        } else {
+            mCentrals.remove(address);
+        }
+        Log.d(TAG, "Central "+address+(connected ? " connected" : " disconnected"));
+        final Listener listener = mListener;
+        if (listener != null) {
+            listener.onCentralConnectionChanged(address, connected);
+        }
+    }
+
+    private void processReadRequest(final BluetoothDevice device, final int requestId, final int offset,
+                                    final Object attribute, final UUID uuid) {
+        final Central central = mCentrals.get(device.getAddress());
+        byte[] value;
+        if (offset == 0 || central == null || (value = central.readValues.get(attribute)) == null) {
+            final ReadHandler handler = mReadHandlers.get(uuid);
+            final BLEData data = new BLEData(uuid, attribute);
+            value = handler != null ? handler.onReadRequest(device.getAddress(), data) : data.attribute.getValue();
+            if (central != null) {
+                if (value != null) {
+                    central.readValues.put(attribute, value);
+                } else {
+                    central.readValues.remove(attribute);
+                }
+            }
+        }
+        if (value == null) {
+            sendResponse(device, requestId, BLEGattTransport.STATUS_READ_NOT_PERMITTED, offset, null);
+        } else if (offset > value.length) {
+            sendResponse(device, requestId, BLEGattTransport.STATUS_INVALID_OFFSET, offset, null);
+        } else {
+            sendResponse(device, requestId, BLEGattTransport.STATUS_SUCCESS, offset,
+                    Arrays.copyOfRange(value, offset, value.length));
+        }
+    }
+
+    private void processWriteRequest(final BluetoothDevice device, final int requestId, final Object attribute,
+                                     final UUID uuid, final boolean preparedWrite, final boolean responseNeeded,
+                                     final int offset, final byte[] value) {
+        final Central central = mCentrals.get(device.getAddress());
+        if (preparedWrite) {
+            if (central == null) {
+                sendResponse(device, requestId, BLEGattTransport.STATUS_FAILURE, offset, null);
+                return;
+            }
+            final byte[] prepared = central.preparedValues.get(attribute);
+            final int preparedLength = prepared != null ? prepared.length : 0;
+            if (offset > preparedLength) {
+                sendResponse(device, requestId, BLEGattTransport.STATUS_INVALID_OFFSET, offset, null);
+                return;
+            }
+            final byte[] combined = new byte[offset + value.length];
+            if (prepared != null) {
+                System.arraycopy(prepared, 0, combined, 0, offset);
+            }
+            System.arraycopy(value, 0, combined, offset, value.length);
+            central.preparedValues.put(attribute, combined);
+            if (responseNeeded) {
+                sendResponse(device, requestId, BLEGattTransport.STATUS_SUCCESS, offset, value);
+            }
+            return;
+        }
+        final int status = offset != 0 ? BLEGattTransport.STATUS_INVALID_OFFSET
+                : handleWrite(device.getAddress(), attribute, uuid, value);
+        if (responseNeeded) {
+            sendResponse(device, requestId, status, offset, null);
+        }
+    }
+
+    private void processExecuteWrite(final BluetoothDevice device, final int requestId, final boolean execute) {
+        final Central central = mCentrals.get(device.getAddress());
+        int status = BLEGattTransport.STATUS_SUCCESS;
+        if (central != null) {
+            if (execute) {
+                for (final Map.Entry<Object, byte[]> entry : central.preparedValues.entrySet()) {
+                    final Object attribute = entry.getKey();
+                    final UUID uuid = attribute instanceof BluetoothGattCharacteristic
+                            ? ((BluetoothGattCharacteristic) attribute).getUuid()
+                            : ((BluetoothGattDescriptor) attribute).getUuid();
+                    final int result = handleWrite(device.getAddress(), attribute, uuid, entry.getValue());
+                    if (result != BLEGattTransport.STATUS_SUCCESS) {
+                        status = result;
+                    }
+                }
+            }
+            central.preparedValues.clear();
+        }
+        sendResponse(device, requestId, status, 0, null);
+    }
+
+    private int handleWrite(final String address, final Object attribute, final UUID uuid, final byte[] value) {
+        if (CLIENT_CHARACTERISTIC_CONFIG_UUID.equals(uuid) && attribute instanceof BluetoothGattDescriptor) {
+            return handleConfigWrite(address, (BluetoothGattDescriptor) attribute, value);
+        }
+        final BLEData data = new BLEData(uuid, attribute);
+        final WriteHandler handler = mWriteHandlers.get(uuid);
+        if (handler != null) {
+            return handler.onWriteRequest(address, data, value);
+        }
+        data.setValue(value);
+        return BLEGattTransport.STATUS_SUCCESS;
+    }
+
+    private int handleConfigWrite(final String address, final BluetoothGattDescriptor descriptor, final byte[] value) {
+        final Central central = mCentrals.get(address);
+        final BluetoothGattCharacteristic characteristic = descriptor.getCharacteristic();
+        if (central == null || characteristic == null) {
+            return BLEGattTransport.STATUS_FAILURE;
+        }
+        final boolean subscribed = Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)
+                || Arrays.equals(value, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        if (!subscribed && !Arrays.equals(value, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+            return BLEGattTransport.STATUS_INVALID_ATTRIBUTE_LENGTH;
+        }
+        final boolean wasSubscribed;
+        if (subscribed) {
+            wasSubscribed = central.subscriptions.put(characteristic, value.clone()) != null;
+        } else {
+            wasSubscribed = central.subscriptions.remove(characteristic) != null;
+        }
+        final Listener listener = mListener;
+        if (listener != null && subscribed != wasSubscribed) {
+            listener.onSubscriptionChanged(address, new BLEData(characteristic.getUuid(), characteristic), subscribed);
+        }
+        return BLEGattTransport.STATUS_SUCCESS;
+    }
+
+    private void sendResponse(final BluetoothDevice device, final int requestId, final int status, final int offset,
+                              final byte[] value) {
+        if (mServer != null && !mServer.sendResponse(device, requestId, status, offset, value)) {
+            Log.e(TAG, "Failed to send response to "+device.getAddress());
+        }
+    }
+
+    private final BluetoothGattServerCallback mServerCallback = new BluetoothGattServerCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothDevice device, final int status, final int newState) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processConnectionStateChange(device, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServiceAdded(final int status, final BluetoothGattService service) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (status != BLEGattTransport.STATUS_SUCCESS) {
+                        Log.e(TAG, "Failed to add service: "+service.getUuid()+", status: "+status);
+                    }
+                    mAddingService = false;
+                    addNextService();
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicReadRequest(final BluetoothDevice device, final int requestId, final int offset,
+                                                final BluetoothGattCharacteristic characteristic) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processReadRequest(device, requestId, offset, characteristic, characteristic.getUuid());
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorReadRequest(final BluetoothDevice device, final int requestId, final int offset,
+                                            final BluetoothGattDescriptor descriptor) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (CLIENT_CHARACTERISTIC_CONFIG_UUID.equals(descriptor.getUuid())) {
+                        // The configuration is per central
+                        final Central central = mCentrals.get(device.getAddress());
+                        final byte[] config = central != null ? central.subscriptions.get(descriptor.getCharacteristic()) : null;
+                        final byte[] value = config != null ? config : BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE;
+                        sendResponse(device, requestId, BLEGattTransport.STATUS_SUCCESS, offset,
+                                Arrays.copyOfRange(value, Math.min(offset, value.length), value.length));
+                        return;
+                    }
+                    processReadRequest(device, requestId, offset, descriptor, descriptor.getUuid());
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWriteRequest(final BluetoothDevice device, final int requestId,
+                                                 final BluetoothGattCharacteristic characteristic,
+                                                 final boolean preparedWrite, final boolean responseNeeded,
+                                                 final int offset, final byte[] value) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processWriteRequest(device, requestId, characteristic, characteristic.getUuid(),
+                            preparedWrite, responseNeeded, offset, value);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWriteRequest(final BluetoothDevice device, final int requestId,
+                                             final BluetoothGattDescriptor descriptor, final boolean preparedWrite,
+                                             final boolean responseNeeded, final int offset, final byte[] value) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processWriteRequest(device, requestId, descriptor, descriptor.getUuid(),
+                            preparedWrite, responseNeeded, offset, value);
+                }
+            });
+        }
+
+        @Override
+        public void onExecuteWrite(final BluetoothDevice device, final int requestId, final boolean execute) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    processExecuteWrite(device, requestId, execute);
+                }
+            });
+        }
+
+        @Override
+        public void onNotificationSent(final BluetoothDevice device, final int status) {
+            mGattThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Central central = mCentrals.get(device.getAddress());
+                    if (central == null) {
+                        return;
+                    }
+                    if (status != BLEGattTransport.STATUS_SUCCESS) {
+                        Log.w(TAG, "Notification to "+device.getAddress()+" failed, status: "+status);
+                        central.droppedNotifications++;
+                    }
+                    central.notificationInFlight = false;
+                    sendNextNotification(central);
+                }
+            });
+        }
+    };
+}
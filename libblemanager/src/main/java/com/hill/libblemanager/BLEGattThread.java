@@ -0,0 +1,141 @@
+package com.hill.libblemanager;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * <p>Thread to serialize GATT state handling of {@link BLEDevice}. All GATT callbacks and API calls of a
+ * device are processed one by one on its GATT thread, so no state is touched from two threads at the same time.
+ * <p>By default all devices share the thread returned by {@link #getShared()}, which matches how the Bluetooth
+ * stack serializes GATT operations anyway. Use {@link #create(String)} to give a device a dedicated thread.
+ */
+public final class BLEGattThread implements Executor {
+    private static final String SHARED_THREAD_NAME = "BLEGattThread";
+
+    private static final class SharedHolder {
+        private static final BLEGattThread INSTANCE = new BLEGattThread(SHARED_THREAD_NAME, true);
+    }
+
+    /**
+     * <p>Get the GATT thread shared by all devices by default
+     * @return The shared GATT thread
+     */
+    public static BLEGattThread getShared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    /**
+     * <p>Method to create a dedicated GATT thread. Call {@link #quit()} when it's not used any more.
+     * @param name Name of the thread
+     * @return The created GATT thread
+     */
+    public static BLEGattThread create(final String name) {
+        return new BLEGattThread(name, false);
+    }
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final boolean mShared;
+
+    private BLEGattThread(final String name, final boolean shared) {
+        mThread = new HandlerThread(name);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mShared = shared;
+    }
+
+    /**
+     * <p>Get the Looper of this thread
+     * @return The Looper
+     */
+    public Looper getLooper() {
+        return mThread.getLooper();
+    }
+
+    /**
+     * <p>Method to check whether the caller is running on this thread
+     * @return true if it's called on this thread
+     */
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * <p>Method to run the task on this thread, it runs directly if it's called on this thread already
+     * @param command The task to run
+     */
+    @Override
+    public void execute(final Runnable command) {
+        if (isCurrentThread()) {
+            command.run();
+        } else {
+            final BLEMetrics metrics = BLEMetrics.getInstance();
+            metrics.updateQueueDepth(1);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    metrics.updateQueueDepth(-1);
+                    command.run();
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>Method to run the task on this thread later, even if it's called on this thread
+     * @param task The task to run
+     */
+    public void post(final Runnable task) {
+        mHandler.post(task);
+    }
+
+    /**
+     * <p>Method to run the task on this thread after the delay
+     * @param task The task to run
+     * @param delay The delay in milliseconds
+     */
+    public void postDelayed(final Runnable task, final long delay) {
+        mHandler.postDelayed(task, delay);
+    }
+
+    /**
+     * <p>Method to remove the pending task posted by {@link #post} or {@link #postDelayed}
+     * @param task The task to remove
+     */
+    public void removeCallbacks(final Runnable task) {
+        mHandler.removeCallbacks(task);
+    }
+
+    /**
+     * <p>Method to stop this thread after all pending tasks are done. The shared thread can't be stopped.
+     */
+    public void quit() {
+        if (mShared) {
+            throw new IllegalStateException("The shared GATT thread can't be stopped");
+        }
+        mThread.quitSafely();
+    }
+
+    /**
+     * <p>Method to create an Executor delivering tasks to the thread of the Looper,
+     * e.g. {@link Looper#getMainLooper()} to receive {@link BLEDevice} callbacks on the UI thread.
+     * @param looper The Looper of the target thread
+     * @return The Executor
+     */
+    public static Executor executorOf(final Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                if (Looper.myLooper() == handler.getLooper()) {
+                    command.run();
+                } else {
+                    handler.post(command);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,275 @@
+package com.hill.libblemanager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Immutable index of the GATT database of a {@link BLEDevice}, built once after the services are discovered.
+ * Services and characteristics can be looked up by UUID or by instance id in constant time. UUIDs based on the
+ * Bluetooth SIG base UUID are indexed by their 16-bit value as primitive keys.
+ * <p>The same UUID may be used by several services, or by characteristics of different services. Lookups by UUID
+ * return the first one in discovery order, use {@link #getServices(UUID)}, {@link #getCharacteristics(UUID)}
+ * or {@link #getCharacteristic(UUID, UUID)} to tell them apart.
+ * <p>Get the tree of a connected device by {@link BLEDevice#getGattTree()}.
+ */
+public final class BLEGattTree {
+    /**
+     * <p>Get the 16-bit value of the UUID based on the Bluetooth SIG base UUID
+     * @param uuid The UUID
+     * @return The 16-bit value, or -1 if the UUID isn't based on the SIG base UUID
+     */
+    public static int toShortUuid(final UUID uuid) {
+        return BLEUuid.toShortUuid(uuid);
+    }
+
+    /**
+     * <p>Get the full UUID of the 16-bit value assigned by the Bluetooth SIG
+     * @param shortUuid The 16-bit value
+     * @return The full UUID
+     */
+    public static UUID fromShortUuid(final int shortUuid) {
+        return BLEUuid.fromShortUuid(shortUuid);
+    }
+
+    private final List<BLEData> mServices;
+    private final BLEData[] mCharacteristics;
+    private final int[] mCharacteristicServices; // Index of the service of each characteristic
+    private final List<List<BLEData>> mServiceCharacteristics;
+    private final List<List<BLEData>> mCharacteristicDescriptors;
+
+    private final BLEUuidIndex mServiceIndex;
+    private final BLEUuidIndex mCharacteristicIndex;
+    private final BLEIntIndexMap mServiceInstanceIds;
+    private final BLEIntIndexMap mCharacteristicInstanceIds;
+
+    private BLEGattTree(final List<BLEAttribute> services) {
+        final int serviceCount = services.size();
+        final List<List<BLEAttribute>> serviceCharacteristics = new ArrayList<List<BLEAttribute>>(serviceCount);
+        int characteristicCount = 0;
+        for (final BLEAttribute service : services) {
+            final List<BLEAttribute> characteristics = service.getChildren();
+            serviceCharacteristics.add(characteristics);
+            characteristicCount += characteristics.size();
+        }
+
+        final BLEData[] serviceArray = new BLEData[serviceCount];
+        mCharacteristics = new BLEData[characteristicCount];
+        mCharacteristicServices = new int[characteristicCount];
+        mServiceCharacteristics = new ArrayList<List<BLEData>>(serviceCount);
+        mCharacteristicDescriptors = new ArrayList<List<BLEData>>(characteristicCount);
+        mServiceIndex = new BLEUuidIndex(serviceCount);
+        mCharacteristicIndex = new BLEUuidIndex(characteristicCount);
+        mServiceInstanceIds = new BLEIntIndexMap(serviceCount);
+        mCharacteristicInstanceIds = new BLEIntIndexMap(characteristicCount);
+
+        int charIndex = 0;
+        for (int serviceIndex = 0; serviceIndex < serviceCount; serviceIndex++) {
+            final BLEAttribute service = services.get(serviceIndex);
+            serviceArray[serviceIndex] = new BLEData(service);
+            mServiceIndex.add(service.getUuid(), serviceIndex);
+            mServiceInstanceIds.putIfAbsent(service.getInstanceId(), serviceIndex);
+
+            final int firstCharIndex = charIndex;
+            for (final BLEAttribute characteristic : serviceCharacteristics.get(serviceIndex)) {
+                mCharacteristics[charIndex] = new BLEData(characteristic);
+                mCharacteristicServices[charIndex] = serviceIndex;
+                mCharacteristicIndex.add(characteristic.getUuid(), charIndex);
+                mCharacteristicInstanceIds.putIfAbsent(characteristic.getInstanceId(), charIndex);
+
+                final List<BLEAttribute> descriptors = characteristic.getChildren();
+                final BLEData[] descriptorArray = new BLEData[descriptors.size()];
+                for (int i = 0; i < descriptorArray.length; i++) {
+                    descriptorArray[i] = new BLEData(descriptors.get(i));
+                }
+                mCharacteristicDescriptors.add(Collections.unmodifiableList(Arrays.asList(descriptorArray)));
+                charIndex++;
+            }
+            mServiceCharacteristics.add(Collections.unmodifiableList(
+                    Arrays.asList(mCharacteristics).subList(firstCharIndex, charIndex)));
+        }
+        mServices = Collections.unmodifiableList(Arrays.asList(serviceArray));
+    }
+
+    /**
+     * <p>Method to build the tree of the discovered services
+     * @param services The services got from {@link BLEGattTransport#getServices()}
+     * @return The tree
+     */
+    public static BLEGattTree build(final List<BLEAttribute> services) {
+        return new BLEGattTree(services);
+    }
+
+    // Service methods
+    /**
+     * <p>Get all services in discovery order
+     * @return Unmodifiable list of the service BLEData objects
+     */
+    public List<BLEData> getServices() {
+        return mServices;
+    }
+
+    /**
+     * <p>Get the first service of the UUID
+     * @param uuid UUID of the service
+     * @return The service BLEData object, or null if it's not found
+     */
+    public BLEData getService(final UUID uuid) {
+        final int index = mServiceIndex.first(uuid);
+        return index < 0 ? null : mServices.get(index);
+    }
+
+    /**
+     * <p>Get the first service of the 16-bit UUID assigned by the Bluetooth SIG
+     * @param shortUuid 16-bit UUID of the service
+     * @return The service BLEData object, or null if it's not found
+     */
+    public BLEData getService(final int shortUuid) {
+        final int index = mServiceIndex.first(shortUuid);
+        return index < 0 ? null : mServices.get(index);
+    }
+
+    /**
+     * <p>Get all services of the UUID
+     * @param uuid UUID of the services
+     * @return List of the service BLEData objects, empty if none is found
+     */
+    public List<BLEData> getServices(final UUID uuid) {
+        return mServiceIndex.collect(uuid, mServices);
+    }
+
+    /**
+     * <p>Get the service by its instance id
+     * @param instanceId Instance id of the service
+     * @return The service BLEData object, or null if it's not found
+     */
+    public BLEData getServiceByInstanceId(final int instanceId) {
+        final int index = mServiceInstanceIds.get(instanceId);
+        return index < 0 ? null : mServices.get(index);
+    }
+
+    // Characteristic methods
+    /**
+     * <p>Get the characteristics of the service
+     * @param serviceData The service BLEData object got from this tree
+     * @return Unmodifiable list of the characteristic BLEData objects, empty if the service isn't in this tree
+     */
+    public List<BLEData> getCharacteristics(final BLEData serviceData) {
+        final int index = indexOfService(serviceData);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        return mServiceCharacteristics.get(index);
+    }
+
+    /**
+     * <p>Get the first characteristic of the UUID in any service
+     * @param uuid UUID of the characteristic
+     * @return The characteristic BLEData object, or null if it's not found
+     */
+    public BLEData getCharacteristic(final UUID uuid) {
+        final int index = mCharacteristicIndex.first(uuid);
+        return index < 0 ? null : mCharacteristics[index];
+    }
+
+    /**
+     * <p>Get the first characteristic of the 16-bit UUID assigned by the Bluetooth SIG in any service
+     * @param shortUuid 16-bit UUID of the characteristic
+     * @return The characteristic BLEData object, or null if it's not found
+     */
+    public BLEData getCharacteristic(final int shortUuid) {
+        final int index = mCharacteristicIndex.first(shortUuid);
+        return index < 0 ? null : mCharacteristics[index];
+    }
+
+    /**
+     * <p>Get the characteristic of the UUID in the first service of the service UUID containing it
+     * @param serviceUuid UUID of the service
+     * @param uuid UUID of the characteristic
+     * @return The characteristic BLEData object, or null if it's not found
+     */
+    public BLEData getCharacteristic(final UUID serviceUuid, final UUID uuid) {
+        for (int index = mCharacteristicIndex.first(uuid); index >= 0; index = mCharacteristicIndex.next(index)) {
+            if (mServices.get(mCharacteristicServices[index]).uuid.equals(serviceUuid)) {
+                return mCharacteristics[index];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * <p>Get all characteristics of the UUID in all services
+     * @param uuid UUID of the characteristics
+     * @return List of the characteristic BLEData objects, empty if none is found
+     */
+    public List<BLEData> getCharacteristics(final UUID uuid) {
+        return mCharacteristicIndex.collect(uuid, Arrays.asList(mCharacteristics));
+    }
+
+    /**
+     * <p>Get the characteristic by its instance id
+     * @param instanceId Instance id of the characteristic
+     * @return The characteristic BLEData object, or null if it's not found
+     */
+    public BLEData getCharacteristicByInstanceId(final int instanceId) {
+        final int index = mCharacteristicInstanceIds.get(instanceId);
+        return index < 0 ? null : mCharacteristics[index];
+    }
+
+    /**
+     * <p>Get the service containing the characteristic
+     * @param characterData The characteristic BLEData object got from this tree
+     * @return The service BLEData object, or null if the characteristic isn't in this tree
+     */
+    public BLEData getServiceOf(final BLEData characterData) {
+        final int index = indexOfCharacteristic(characterData);
+        return index < 0 ? null : mServices.get(mCharacteristicServices[index]);
+    }
+
+    // Descriptor methods
+    /**
+     * <p>Get the descriptors of the characteristic
+     * @param characterData The characteristic BLEData object got from this tree
+     * @return Unmodifiable list of the descriptor BLEData objects, empty if the characteristic isn't in this tree
+     */
+    public List<BLEData> getDescriptors(final BLEData characterData) {
+        final int index = indexOfCharacteristic(characterData);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        return mCharacteristicDescriptors.get(index);
+    }
+
+    /**
+     * <p>Get the descriptor of the UUID of the characteristic
+     * @param characterData The characteristic BLEData object got from this tree
+     * @param uuid UUID of the descriptor
+     * @return The descriptor BLEData object, or null if it's not found
+     */
+    public BLEData getDescriptor(final BLEData characterData, final UUID uuid) {
+        for (final BLEData descriptor : getDescriptors(characterData)) {
+            if (descriptor.uuid.equals(uuid)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    private int indexOfService(final BLEData serviceData) {
+        if (serviceData == null || serviceData.dataType != BLEData.DATATYPE_SERVICE) {
+            return -1;
+        }
+        final int index = mServiceInstanceIds.get(serviceData.attribute.getInstanceId());
+        return index >= 0 && mServices.get(index).data == serviceData.data ? index : -1;
+    }
+
+    private int indexOfCharacteristic(final BLEData characterData) {
+        if (characterData == null || characterData.dataType != BLEData.DATATYPE_CHARACTER) {
+            return -1;
+        }
+        final int index = mCharacteristicInstanceIds.get(characterData.attribute.getInstanceId());
+        return index >= 0 && mCharacteristics[index].data == characterData.data ? index : -1;
+    }
+}
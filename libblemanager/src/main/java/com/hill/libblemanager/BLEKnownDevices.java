@@ -0,0 +1,151 @@
+package com.hill.libblemanager;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Registry of the devices connected before, persisted in the SharedPreferences of the app.
+ * Devices connected by {@link BLEManager#connectKnownDevice} are remembered automatically,
+ * call {@link #remember} to add devices connected in other ways.
+ */
+public final class BLEKnownDevices {
+    private static final String TAG = "BLEKnownDevices";
+    private static final String PREFERENCES_NAME = "com.hill.libblemanager.known_devices";
+    private static final String FIELD_SEPARATOR = "|";
+    private static final int FIELD_COUNT = 5;
+
+    private final SharedPreferences mPreferences;
+    private final Map<String, BLEKnownDevice> mDevices = new ConcurrentHashMap<String, BLEKnownDevice>();
+
+    BLEKnownDevices(final Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        for (final Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            final BLEKnownDevice device = decode(entry.getKey(), String.valueOf(entry.getValue()));
+            if (device != null) {
+                mDevices.put(device.address, device);
+            }
+        }
+    }
+
+    // Encoding methods
+    // Fields are gattHash|bondState|lastRssi|lastConnectedTime|name, the name is the last one so it can contain '|'
+    private static String encode(final BLEKnownDevice device) {
+        return Long.toHexString(device.gattHash)+FIELD_SEPARATOR+device.bondState+FIELD_SEPARATOR+device.lastRssi
+                +FIELD_SEPARATOR+device.lastConnectedTime+FIELD_SEPARATOR+(device.name != null ? device.name : "");
+    }
+
+    private static BLEKnownDevice decode(final String address, final String value) {
+        final String[] fields = value.split("\\"+FIELD_SEPARATOR, FIELD_COUNT);
+        if (fields.length != FIELD_COUNT) {
+            Log.w(TAG, "Ignore invalid known device: "+address);
+            return null;
+        }
+        try {
+            return new BLEKnownDevice(address, fields[4].isEmpty() ? null : fields[4], Long.parseLong(fields[0], 16),
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Long.parseLong(fields[3]));
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Ignore invalid known device: "+address);
+            return null;
+        }
+    }
+
+    // Registry methods
+    /**
+     * <p>Get the record of a device
+     * @param address Address of the device
+     * @return The record, or null if the device isn't known
+     */
+    public BLEKnownDevice get(final String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * <p>Get all known devices
+     * @return The records, the most recently connected first
+     */
+    public List<BLEKnownDevice> getAll() {
+        final List<BLEKnownDevice> devices = new ArrayList<BLEKnownDevice>(mDevices.values());
+        Collections.sort(devices, new Comparator<BLEKnownDevice>() {
+            @Override
+            public int compare(final BLEKnownDevice device1, final BLEKnownDevice device2) {
+                return device1.lastConnectedTime < device2.lastConnectedTime ? 1
+                        : device1.lastConnectedTime > device2.lastConnectedTime ? -1 : 0;
+            }
+        });
+        return devices;
+    }
+
+    /**
+     * <p>Method to add or replace the record of a device
+     * @param device The record
+     */
+    public void put(final BLEKnownDevice device) {
+        mDevices.put(device.address, device);
+        mPreferences.edit().putString(device.address, encode(device)).apply();
+    }
+
+    /**
+     * <p>Method to remember a device, its name, bond state, RSSI and the hash of its discovered services are
+     * updated, and the current time is set as the last connected time. The hash is updated again whenever
+     * the services of the device are discovered later.
+     * @param device The connected device
+     * @return The updated record
+     */
+    public BLEKnownDevice remember(final BLEDevice device) {
+        BLEKnownDevice knownDevice = mDevices.get(device.getAddress());
+        if (knownDevice == null) {
+            knownDevice = new BLEKnownDevice(device.getAddress(), null, BLEKnownDevice.GATT_HASH_UNKNOWN,
+                    BLEKnownDevice.BOND_NONE, BLEKnownDevice.RSSI_UNKNOWN, 0);
+        }
+        knownDevice = knownDevice.withName(device.getName()).withLastConnectedTime(System.currentTimeMillis());
+        if (device.deviceRssi != 0) {
+            knownDevice = knownDevice.withLastRssi(device.deviceRssi);
+        }
+        final BluetoothDevice btDevice = device.btDevice;
+        if (btDevice != null) {
+            knownDevice = knownDevice.withBondState(btDevice.getBondState());
+        }
+        final long gattHash = device.getGattHash();
+        if (gattHash != BLEKnownDevice.GATT_HASH_UNKNOWN) {
+            knownDevice = knownDevice.withGattHash(gattHash);
+        }
+        put(knownDevice);
+        device.setKnownDevices(this);
+        return knownDevice;
+    }
+
+    // Called by a remembered device when its services are discovered
+    void updateGattHash(final String address, final long gattHash) {
+        final BLEKnownDevice knownDevice = mDevices.get(address);
+        if (knownDevice != null && knownDevice.gattHash != gattHash) {
+            put(knownDevice.withGattHash(gattHash));
+        }
+    }
+
+    /**
+     * <p>Method to forget a device
+     * @param address Address of the device
+     */
+    public void remove(final String address) {
+        if (mDevices.remove(address) != null) {
+            mPreferences.edit().remove(address).apply();
+        }
+    }
+
+    /**
+     * <p>Method to forget all devices
+     */
+    public void clear() {
+        mDevices.clear();
+        mPreferences.edit().clear().apply();
+    }
+}
@@ -0,0 +1,329 @@
+package com.hill.libblemanager;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>L2CAP connection-oriented channel to a device, a stream beside its GATT connection for bulk data.
+ * It carries data in SDUs of up to {@link #getMaxTransmitPacketSize()} bytes with credit based flow control,
+ * without the ATT header and the request/response round trips of GATT writes and notifications.
+ * <p>L2CAP channels need Android 10, check {@link #isSupported()}; on older versions opening fails and the
+ * GATT path should be used. The device must accept the channel on a PSM it publishes, e.g. in a characteristic.
+ * <p>Reads and writes block, call them on a worker thread. {@link #read(ByteBuffer)} and
+ * {@link #write(ByteBuffer)} reuse one buffer of the channel per direction, so a read and a write can run at
+ * the same time but not two reads or two writes.
+ */
+public final class BLEL2capChannel {
+    private static final String TAG = "BLEL2capChannel";
+
+    // Buffer size when the stack doesn't report the packet size
+    private static final int DEFAULT_BUFFER_SIZE = 4096;
+
+    public interface OpenListener {
+        void onOpened(final BLEL2capChannel channel);
+
+        /**
+         * <p>Callback method when the channel can't be opened
+         * @param e Reason of the failure, {@link UnsupportedOperationException} when L2CAP channels aren't supported
+         */
+        void onOpenFailed(final Exception e);
+    }
+
+    /**
+     * <p>Get whether L2CAP channels are supported by the Android version
+     * @return true from Android 10
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q;
+    }
+
+    /**
+     * <p>Method to open a channel to a device, the connection is made on a new thread
+     * @param device The device, found by the Android transport
+     * @param psm PSM of the channel on the device
+     * @param secure Whether the channel needs an encrypted and authenticated link, which may start a pairing
+     * @param listener Listener to receive the result, called on the callback executor of the device
+     */
+    public static void open(final BLEDevice device, final int psm, final boolean secure, final OpenListener listener) {
+        if (psm <= 0) {
+            throw new IllegalArgumentException("Invalid PSM: "+psm);
+        }
+        if (!isSupported()) {
+            deliverOpenFailed(device, listener, new UnsupportedOperationException("L2CAP channels need Android 10"));
+            return;
+        }
+        if (device.btDevice == null) {
+            deliverOpenFailed(device, listener, new UnsupportedOperationException("Not a device of the Android transport"));
+            return;
+        }
+        final Thread connectThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final BluetoothSocket socket;
+                try {
+                    socket = createSocket(device, psm, secure);
+                    socket.connect();
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to open channel of PSM "+psm+" to "+device.getAddress(), e);
+                    deliverOpenFailed(device, listener, e);
+                    return;
+                }
+                final BLEL2capChannel channel;
+                try {
+                    channel = new BLEL2capChannel(device.getAddress(), socket);
+                } catch (IOException e) {
+                    closeQuietly(socket);
+                    deliverOpenFailed(device, listener, e);
+                    return;
+                }
+                Log.d(TAG, "Opened channel of PSM "+psm+" to "+device.getAddress()+", max packet size: "
+                        +channel.getMaxTransmitPacketSize()+"/"+channel.getMaxReceivePacketSize());
+                device.deliverCallback(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onOpened(channel);
+                    }
+                });
+            }
+        }, TAG+"-"+device.getAddress());
+        connectThread.start();
+    }
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private static BluetoothSocket createSocket(final BLEDevice device, final int psm, final boolean secure)
+            throws IOException {
+        return secure ? device.btDevice.createL2capChannel(psm) : device.btDevice.createInsecureL2capChannel(psm);
+    }
+
+    private static void deliverOpenFailed(final BLEDevice device, final OpenListener listener, final Exception e) {
+        device.deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                listener.onOpenFailed(e);
+            }
+        });
+    }
+
+    private static void closeQuietly(final BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close socket", e);
+        }
+    }
+
+    /**
+     * <p>Server side of L2CAP channels, listening on a PSM assigned by the stack
+     */
+    public static final class Server {
+        private final BluetoothServerSocket mServerSocket;
+
+        private Server(final BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        /**
+         * <p>Get the PSM to publish to the centrals, e.g. in a characteristic of {@link BLEGattServer}
+         * @return The PSM
+         */
+        @TargetApi(Build.VERSION_CODES.Q)
+        public int getPsm() {
+            return mServerSocket.getPsm();
+        }
+
+        /**
+         * <p>Method to wait for a channel opened by a remote device, it blocks
+         * @param timeout Timeout in milliseconds, -1 to wait until {@link #close()}
+         * @return The channel
+         * @throws IOException on timeout or when the server is closed
+         */
+        public BLEL2capChannel accept(final int timeout) throws IOException {
+            final BluetoothSocket socket = mServerSocket.accept(timeout);
+            try {
+                return new BLEL2capChannel(socket.getRemoteDevice().getAddress(), socket);
+            } catch (IOException e) {
+                closeQuietly(socket);
+                throw e;
+            }
+        }
+
+        /**
+         * <p>Method to stop listening, channels accepted already stay open
+         */
+        public void close() {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close server socket", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Method to listen to L2CAP channels opened by remote devices
+     * @param context Application context
+     * @param secure Whether the channels need an encrypted and authenticated link
+     * @return The server
+     * @throws IOException if the server can't be created
+     * @throws UnsupportedOperationException if L2CAP channels aren't supported
+     */
+    @TargetApi(Build.VERSION_CODES.Q)
+    public static Server listen(final Context context, final boolean secure) throws IOException {
+        if (!isSupported()) {
+            throw new UnsupportedOperationException("L2CAP channels need Android 10");
+        }
+        final BluetoothAdapter adapter = BLEAndroidTransport.getAdapter(context);
+        if (adapter == null) {
+            throw new IOException("Bluetooth isn't supported");
+        }
+        return new Server(secure ? adapter.listenUsingL2capChannel() : adapter.listenUsingInsecureL2capChannel());
+    }
+
+    private final String mAddress;
+    private final BluetoothSocket mSocket;
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final int mMaxTransmitPacketSize;
+    private final int mMaxReceivePacketSize;
+    private final byte[] mReadBuffer;
+    private final byte[] mWriteBuffer;
+    private final AtomicLong mBytesRead = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    @TargetApi(Build.VERSION_CODES.Q)
+    private BLEL2capChannel(final String address, final BluetoothSocket socket) throws IOException {
+        mAddress = address;
+        mSocket = socket;
+        mInputStream = socket.getInputStream();
+        mOutputStream = socket.getOutputStream();
+        final int maxTransmitPacketSize = socket.getMaxTransmitPacketSize();
+        final int maxReceivePacketSize = socket.getMaxReceivePacketSize();
+        mMaxTransmitPacketSize = maxTransmitPacketSize > 0 ? maxTransmitPacketSize : DEFAULT_BUFFER_SIZE;
+        mMaxReceivePacketSize = maxReceivePacketSize > 0 ? maxReceivePacketSize : DEFAULT_BUFFER_SIZE;
+        mReadBuffer = new byte[mMaxReceivePacketSize];
+        mWriteBuffer = new byte[mMaxTransmitPacketSize];
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public boolean isConnected() {
+        return mSocket.isConnected();
+    }
+
+    /**
+     * <p>Get the max size of an SDU sent by the channel, writes are split into SDUs of this size
+     * @return The size in bytes
+     */
+    public int getMaxTransmitPacketSize() {
+        return mMaxTransmitPacketSize;
+    }
+
+    /**
+     * <p>Get the max size of an SDU received by the channel, a read returns at most one SDU
+     * @return The size in bytes
+     */
+    public int getMaxReceivePacketSize() {
+        return mMaxReceivePacketSize;
+    }
+
+    /**
+     * <p>Get the input stream of the channel, for code working on streams
+     * @return The input stream
+     */
+    public InputStream getInputStream() {
+        return mInputStream;
+    }
+
+    /**
+     * <p>Get the output stream of the channel, write in chunks of {@link #getMaxTransmitPacketSize()} for throughput
+     * @return The output stream
+     */
+    public OutputStream getOutputStream() {
+        return mOutputStream;
+    }
+
+    /**
+     * <p>Method to read the received data into a buffer, it blocks until some data is received
+     * @param buffer The buffer, filled from its position up to its limit
+     * @return The number of bytes read, -1 when the channel is closed
+     * @throws IOException if the channel is broken
+     */
+    public int read(final ByteBuffer buffer) throws IOException {
+        final int length = Math.min(buffer.remaining(), mMaxReceivePacketSize);
+        if (length == 0) {
+            return 0;
+        }
+        final int count;
+        if (buffer.hasArray()) {
+            count = mInputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            if (count > 0) {
+                buffer.position(buffer.position() + count);
+            }
+        } else {
+            count = mInputStream.read(mReadBuffer, 0, length);
+            if (count > 0) {
+                buffer.put(mReadBuffer, 0, count);
+            }
+        }
+        if (count > 0) {
+            mBytesRead.addAndGet(count);
+        }
+        return count;
+    }
+
+    /**
+     * <p>Method to write all the data of a buffer, it blocks while the device has no credits to receive more
+     * @param buffer The buffer, written from its position up to its limit
+     * @throws IOException if the channel is broken
+     */
+    public void write(final ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int length = Math.min(buffer.remaining(), mMaxTransmitPacketSize);
+            if (buffer.hasArray()) {
+                mOutputStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+                buffer.position(buffer.position() + length);
+            } else {
+                buffer.get(mWriteBuffer, 0, length);
+                mOutputStream.write(mWriteBuffer, 0, length);
+            }
+            mBytesWritten.addAndGet(length);
+        }
+    }
+
+    /**
+     * <p>Method to write all the data of an array
+     * @param data The data
+     * @throws IOException if the channel is broken
+     */
+    public void write(final byte[] data) throws IOException {
+        write(ByteBuffer.wrap(data));
+    }
+
+    public long getBytesRead() {
+        return mBytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * <p>Method to close the channel, blocked reads and writes fail with {@link IOException}
+     */
+    public void close() {
+        closeQuietly(mSocket);
+    }
+}
@@ -5,41 +5,33 @@ import android.annotation.TargetApi;
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothManager;
-import android.bluetooth.le.BluetoothLeScanner;
-import android.bluetooth.le.ScanCallback;
-import android.bluetooth.le.ScanFilter;
-import android.bluetooth.le.ScanResult;
-import android.bluetooth.le.ScanSettings;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.os.Build;
-import android.os.ParcelUuid;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class BLEManager {
     private static final String TAG = "BLEManager";
 
-    private static BLEManager sInstance = null;
+    private static final class InstanceHolder {
+        private static final BLEManager INSTANCE = new BLEManager();
+    }
 
     public static BLEManager getInstance() {
-        if (sInstance == null) {
-            sInstance = new BLEManager();
-        }
-        return sInstance;
+        return InstanceHolder.INSTANCE;
+    }
+
+    private BLEManager() {
     }
 
     private BluetoothAdapter getAdapter(final Context context) {
-        final BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-        if (bluetoothManager == null) {
-            return null;
-        }
-        return bluetoothManager.getAdapter();
+        return BLEAndroidTransport.getAdapter(context);
     }
     // BLE enable methods
 
@@ -135,16 +127,15 @@ public final class BLEManager {
          */
         void onScanResult(final int errorCode, final BLEDevice device);
     }
-    private ScanResultListener mScanResultListener = null;
-    private void notifyGotScanResult(final BLEDevice device) {
-        if (mScanResultListener != null) {
-            mScanResultListener.onScanResult(SCAN_ERROR_CODE_SUCCESS, device);
+    private void notifyGotScanResult(final ScanResultListener listener, final BLEDevice device) {
+        if (listener != null) {
+            listener.onScanResult(SCAN_ERROR_CODE_SUCCESS, device);
         }
     }
 
-    private void notifyScanResultFailure(final int errorCode) {
-        if (mScanResultListener != null) {
-            mScanResultListener.onScanResult(errorCode, null);
+    private void notifyScanResultFailure(final ScanResultListener listener, final int errorCode) {
+        if (listener != null) {
+            listener.onScanResult(errorCode, null);
         }
     }
 
@@ -158,143 +149,312 @@ public final class BLEManager {
     }
 
     /**
-     * <p>Method to scan BLE devices with GATT Services UUIDs filter
-     * @param context Application context
+     * <p>Method to scan BLE devices with GATT Services UUIDs filter.
+     * Only one scan can run at the same time, the listener gets {@link #SCAN_ERROR_CODE_ALREADY_START}
+     * if there is a running scan already.
+     * @param context Application context, it can be null if a transport is set by {@link #setTransport}
      * @param uuids UUID List to filter out the Bluetooth LE devices with these UUIDs
      * @param listener Listener to receive the scan result. See {@link ScanResultListener} for details
      */
     public void startScan(final Context context, final UUID[] uuids, final ScanResultListener listener) {
-        mScanResultListener = listener;
-        final BluetoothAdapter adapter = getAdapter(context);
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            startScanOldVersion(adapter, uuids);
-        } else {
-            startScanNewVersion(adapter, uuids);
+        startScan(context, uuids, BLEScanOptions.DEFAULT, listener);
+    }
+
+    /**
+     * <p>Method to scan BLE devices with settings, e.g. to find devices sending extended advertisements or
+     * advertising on the LE Coded PHY. The advertisement a device is found by is kept in
+     * {@link BLEDevice#getScanResult()}, with the whole chained data of an extended advertisement.
+     * @param context Application context, it can be null if a transport is set by {@link #setTransport}
+     * @param uuids UUID List to filter out the Bluetooth LE devices with these UUIDs, it can be null
+     * @param options The settings of the scan
+     * @param listener Listener to receive the scan result. See {@link ScanResultListener} for details
+     */
+    public void startScan(final Context context, final UUID[] uuids, final BLEScanOptions options,
+                          final ScanResultListener listener) {
+        final BLETransport transport = getTransport(context);
+        final BLEScanTransport scanner = transport != null ? transport.getScanTransport() : null;
+        if (scanner == null) {
+            Log.e(TAG, "startScan, Bluetooth isn't supported");
+            notifyScanResultFailure(listener, SCAN_ERROR_CODE_UNSUPPORTED);
+            return;
+        }
+        final ScanSession session = new ScanSession(transport, scanner, listener);
+        if (!mScanSession.compareAndSet(null, session)) {
+            Log.w(TAG, "startScan, scan is running already");
+            notifyScanResultFailure(listener, SCAN_ERROR_CODE_ALREADY_START);
+            return;
+        }
+        if (!scanner.startScan(uuids, options, session)) {
+            Log.e(TAG, "startScan, failed to start scan");
+            mScanSession.compareAndSet(session, null);
+            notifyScanResultFailure(listener, SCAN_ERROR_CODE_GENERAL_FAILURE);
         }
     }
 
+    /**
+     * <p>Method to check whether the device can receive extended advertisements, see {@link BLEScanOptions}
+     * @param context Application context
+     * @return true from Android 8 if the Bluetooth controller supports it
+     */
+    public boolean isExtendedScanSupported(final Context context) {
+        final BluetoothAdapter adapter = getAdapter(context);
+        return adapter != null && new BLEAndroidScanTransport(adapter).isExtendedScanSupported();
+    }
+
+    /**
+     * <p>Method to check whether the device can scan the LE Coded PHY to find long range advertisers
+     * @param context Application context
+     * @return true from Android 8 if the Bluetooth controller supports it
+     */
+    public boolean isCodedPhySupported(final Context context) {
+        final BluetoothAdapter adapter = getAdapter(context);
+        return adapter != null && new BLEAndroidScanTransport(adapter).isCodedPhySupported();
+    }
+
+    /**
+     * <p>Method to check whether there is a running scan started by {@link #startScan}
+     * @return Whether it's scanning
+     */
+    public boolean isScanning() {
+        return mScanSession.get() != null;
+    }
+
     /**
      * <p>Method to stop scanning BLE devices, the scan will start forever until you call this method.
      * Please note it will consume a lot of device power if you keep doing the scan.
      * @param context Application context
      */
     public void stopScan(final Context context) {
-        final BluetoothAdapter adapter = getAdapter(context);
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
-            stopScanOldVersion(adapter);
-        } else {
-            stopScanNewVersion(adapter);
+        final ScanSession session = mScanSession.getAndSet(null);
+        if (session != null) {
+            session.scanner.stopScan(session);
         }
     }
 
-    private BluetoothAdapter.LeScanCallback mLeScanCallback = null;
-    private void startScanOldVersion(final BluetoothAdapter adapter, final UUID[] uuids) {
-        if (mLeScanCallback == null) {
-            mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-                @Override
-                public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-                    final BLEDevice bleDevice = new BLEDevice(device, rssi);
-                    notifyGotScanResult(bleDevice);
-                }
-            };
-        }
-        if (uuids != null) {
-            adapter.startLeScan(uuids, mLeScanCallback);
-        } else {
-            adapter.startLeScan(mLeScanCallback);
+    // Transport methods
+    private volatile BLETransport mTransport = null;
+
+    /**
+     * <p>Method to set the Bluetooth LE stack to scan and connect devices, e.g. {@link BLESimulator} to run
+     * without Bluetooth hardware. Devices found by {@link #startScan} are connected by the same transport.
+     * @param transport The transport, null to use the Android Bluetooth stack
+     */
+    public void setTransport(final BLETransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * <p>Get the transport set by {@link #setTransport}
+     * @return The transport, or null if the Android Bluetooth stack is used
+     */
+    public BLETransport getTransport() {
+        return mTransport;
+    }
+
+    private BLETransport getTransport(final Context context) {
+        final BLETransport transport = mTransport;
+        if (transport != null) {
+            return transport;
         }
+        return context != null ? BLEAndroidTransport.create(context) : null;
     }
-    private void stopScanOldVersion(final BluetoothAdapter adapter) {
-        if (mLeScanCallback != null) {
-            adapter.stopLeScan(mLeScanCallback);
-            mLeScanCallback = null;
+
+    // Recording methods
+    private BLESessionRecorder mRecorder = null;
+    private BLETransport mRecordedTransport = null;
+
+    /**
+     * <p>Method to record the scans and connections started from now into a stream, to replay them later
+     * by setting a {@link BLESessionReplayer} to {@link #setTransport}. The current transport, or the Android
+     * Bluetooth stack if none is set, is recorded until {@link #stopRecording()}.
+     * @param context Application context, it can be null if a transport is set by {@link #setTransport}
+     * @param output Where to write the recording
+     * @return The recorder, or null if Bluetooth isn't supported or a recording is running
+     */
+    public synchronized BLESessionRecorder startRecording(final Context context, final OutputStream output) {
+        if (mRecorder != null) {
+            Log.e(TAG, "startRecording, a recording is running already");
+            return null;
+        }
+        final BLETransport transport = getTransport(context);
+        if (transport == null) {
+            Log.e(TAG, "startRecording, Bluetooth isn't supported");
+            return null;
         }
+        mRecordedTransport = mTransport;
+        mRecorder = new BLESessionRecorder(transport, output);
+        mTransport = mRecorder;
+        return mRecorder;
     }
 
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private List<ScanFilter> buildScanFilters(final UUID[] uuids) {
-        if (uuids == null || uuids.length == 0) {
+    /**
+     * <p>Method to stop the recording started by {@link #startRecording}, the transport set before it is restored
+     * @return The error writing the recording, or null if it's written
+     */
+    public synchronized IOException stopRecording() {
+        if (mRecorder == null) {
             return null;
         }
-        UUID serviceUUID = uuids[0];
-        UUID maskUUID = new UUID(0xFFFFFFFFFFFFFFFFL, 0xFFFFFFFFFFFFFFFFL);
-        for (int i=1; i < uuids.length; i++) {
-            final UUID uuid = uuids[i];
-            final UUID diffUUID = new UUID(~(serviceUUID.getMostSignificantBits() ^ uuid.getMostSignificantBits()),
-                    ~(serviceUUID.getLeastSignificantBits() ^ uuid.getLeastSignificantBits()));
-            serviceUUID = new UUID(serviceUUID.getMostSignificantBits() | uuid.getMostSignificantBits(),
-                    serviceUUID.getLeastSignificantBits() | uuid.getLeastSignificantBits());
-            maskUUID = new UUID(maskUUID.getMostSignificantBits() & diffUUID.getMostSignificantBits(),
-                    maskUUID.getLeastSignificantBits() & diffUUID.getLeastSignificantBits());
+        final IOException error = mRecorder.stop();
+        if (error != null) {
+            Log.e(TAG, "Failed to write the recording", error);
         }
-        final List<ScanFilter> filters = new ArrayList<ScanFilter>();
-        final ScanFilter filter = new ScanFilter.Builder()
-                .setServiceUuid(new ParcelUuid(serviceUUID), new ParcelUuid(maskUUID))
-                .build();
-        filters.add(filter);
-        return filters;
-    }
-
-    private ScanCallback mScanCallback = null;
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void startScanNewVersion(final BluetoothAdapter adapter, final UUID[] uuids) {
-        if (mScanCallback == null) {
-            mScanCallback = new ScanCallback() {
-                @Override
-                public void onScanResult(int callbackType, ScanResult result) {
-                    Log.d(TAG, "onScanResult, device: "+result.getDevice().getAddress()+" rssi: "+result.getRssi()+" name: "+result.getScanRecord().getDeviceName());
-                    final BLEDevice bleDevice = new BLEDevice(result.getDevice(), result.getRssi());
-                    notifyGotScanResult(bleDevice);
-                }
+        if (mTransport == mRecorder) {
+            mTransport = mRecordedTransport;
+        }
+        mRecorder = null;
+        mRecordedTransport = null;
+        return error;
+    }
 
-                @Override
-                public void onBatchScanResults(List<ScanResult> results) {
-                    Log.d(TAG, "onBatchScanResults");
-                    for (final ScanResult result : results) {
-                        final BLEDevice bleDevice = new BLEDevice(result.getDevice(), result.getRssi());
-                        notifyGotScanResult(bleDevice);
-                    }
-                }
+    // Known devices methods
+    /** Default time to wait for the direct connection before scanning, in milliseconds */
+    public static final long DEFAULT_DIRECT_CONNECT_TIMEOUT = 5000;
+    /** Default time to scan for the device when the direct connection fails, in milliseconds */
+    public static final long DEFAULT_FALLBACK_SCAN_TIMEOUT = 5000;
+
+    private volatile BLEKnownDevices mKnownDevices = null;
 
-                @Override
-                public void onScanFailed(int errorCode) {
-                    Log.d(TAG, "onScanFailed: "+errorCode);
-                    int bleErrorCode = SCAN_ERROR_CODE_GENERAL_FAILURE;
-                    switch(errorCode) {
-                        case SCAN_FAILED_ALREADY_STARTED:
-                            bleErrorCode = SCAN_ERROR_CODE_ALREADY_START;
-                            break;
-                        case SCAN_FAILED_APPLICATION_REGISTRATION_FAILED:
-                            bleErrorCode = SCAN_ERROR_CODE_REGISTRATION_FAILURE;
-                            break;
-                        case SCAN_FAILED_FEATURE_UNSUPPORTED:
-                            bleErrorCode = SCAN_ERROR_CODE_UNSUPPORTED;
-                            break;
-                        case SCAN_FAILED_INTERNAL_ERROR:
-                            bleErrorCode = SCAN_ERROR_CODE_GENERAL_FAILURE;
-                            break;
-                        default:
-                            Log.e(TAG, "Unknow ScanFailed error code: "+errorCode);
-                            break;
-                    }
-                    notifyScanResultFailure(bleErrorCode);
+    /**
+     * <p>Get the registry of the devices connected before, it's persisted in the app's SharedPreferences
+     * @param context Application context
+     * @return The registry
+     */
+    public BLEKnownDevices getKnownDevices(final Context context) {
+        BLEKnownDevices knownDevices = mKnownDevices;
+        if (knownDevices == null) {
+            synchronized (this) {
+                knownDevices = mKnownDevices;
+                if (knownDevices == null) {
+                    knownDevices = new BLEKnownDevices(context.getApplicationContext());
+                    mKnownDevices = knownDevices;
                 }
-            };
+            }
         }
+        return knownDevices;
+    }
 
-        final BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+    /**
+     * <p>Method to connect a device by its address without scanning, see
+     * {@link #connectKnownDevice(Context, String, long, long, BLEDevice.ConnectionListener)} for details
+     */
+    public BLEDevice connectKnownDevice(final Context context, final String address, final BLEDevice.ConnectionListener listener) {
+        return connectKnownDevice(context, address, DEFAULT_DIRECT_CONNECT_TIMEOUT, DEFAULT_FALLBACK_SCAN_TIMEOUT, listener);
+    }
 
-        final List<ScanFilter> filters = buildScanFilters(uuids);
-        final ScanSettings settings = new ScanSettings.Builder().build();
-        scanner.startScan(filters, settings, mScanCallback);
+    /**
+     * <p>Method to connect a device by its address without scanning, e.g. a device of {@link #getKnownDevices}.
+     * The device is connected directly first; if it isn't connected in time, a scan looks for it and it's
+     * connected again once found. The device is remembered in {@link #getKnownDevices} when it's connected.
+     * @param context Application context
+     * @param address Address of the device
+     * @param directTimeout Time to wait for the direct connection in milliseconds
+     * @param scanTimeout Time to scan for the device when the direct connection fails in milliseconds
+     * @param listener Listener to receive the connection result and later connection changes,
+     *                 it gets false if the device can't be connected in both ways
+     * @return The device, or null if the address is invalid or Bluetooth isn't supported
+     */
+    public BLEDevice connectKnownDevice(final Context context, final String address, final long directTimeout,
+                                        final long scanTimeout, final BLEDevice.ConnectionListener listener) {
+        final BLEDevice device = buildKnownDevice(context, address);
+        if (device != null) {
+            connectKnownDevice(context, device, directTimeout, scanTimeout, listener);
+        }
+        return device;
+    }
+
+    /**
+     * <p>Method to build a device by its address, see {@link #connectKnownDevice(Context, BLEDevice, long, long,
+     * BLEDevice.ConnectionListener)} to connect it
+     * @return The device, or null if the address is invalid or Bluetooth isn't supported
+     */
+    BLEDevice buildKnownDevice(final Context context, final String address) {
+        final BLETransport transport = getTransport(context);
+        if (transport == null) {
+            Log.e(TAG, "connectKnownDevice, Bluetooth isn't supported");
+            return null;
+        }
+        final BLEKnownDevices knownDevices = context != null ? getKnownDevices(context) : null;
+        final BLEKnownDevice knownDevice = knownDevices != null ? knownDevices.get(address) : null;
+        final int rssi = knownDevice != null && knownDevice.lastRssi != BLEKnownDevice.RSSI_UNKNOWN ? knownDevice.lastRssi : 0;
+        if (transport instanceof BLEAndroidTransport) {
+            if (!BluetoothAdapter.checkBluetoothAddress(address)) {
+                Log.e(TAG, "connectKnownDevice, invalid address: "+address);
+                return null;
+            }
+            return new BLEDevice(getAdapter(context).getRemoteDevice(address), rssi);
+        }
+        return new BLEDevice(transport, address, knownDevice != null ? knownDevice.name : null, rssi);
+    }
+
+    /**
+     * <p>Method to connect a device built by {@link #buildKnownDevice}, see
+     * {@link #connectKnownDevice(Context, String, long, long, BLEDevice.ConnectionListener)} for details
+     */
+    void connectKnownDevice(final Context context, final BLEDevice device, final long directTimeout,
+                            final long scanTimeout, final BLEDevice.ConnectionListener listener) {
+        final BLETransport transport = getTransport(context);
+        final BLEKnownDevices knownDevices = context != null ? getKnownDevices(context) : null;
+        new BLEDirectConnector(context, device, transport != null ? transport.getScanTransport() : null,
+                knownDevices, directTimeout, scanTimeout, listener).start();
+    }
+
+    private BLEDevice buildDevice(final BLETransport transport, final BLEScanResult result) {
+        // Devices of a wrapping transport like BLESessionRecorder are connected by it
+        if (transport instanceof BLEAndroidTransport && result.nativeDevice instanceof BluetoothDevice) {
+            return new BLEDevice((BluetoothDevice) result.nativeDevice, result.rssi);
+        }
+        return new BLEDevice(transport, result.address, result.name, result.rssi);
     }
 
-    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-    private void stopScanNewVersion(final BluetoothAdapter adapter) {
-        final BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
-        if (mScanCallback != null) {
-            scanner.stopScan(mScanCallback);
-            mScanCallback = null;
+    private final AtomicReference<ScanSession> mScanSession = new AtomicReference<ScanSession>();
+
+    // Each scan keeps its own listener, so a late callback of a stopped scan never reaches the next one
+    private final class ScanSession implements BLEScanTransport.Callback {
+        final BLETransport transport;
+        final BLEScanTransport scanner;
+        final ScanResultListener listener;
+
+        ScanSession(final BLETransport transport, final BLEScanTransport scanner, final ScanResultListener listener) {
+            this.transport = transport;
+            this.scanner = scanner;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onScanResult(final BLEScanResult result) {
+            if (mScanSession.get() != this) { // Result of a stopped scan
+                return;
+            }
+            BLEMetrics.getInstance().increment(BLEMetrics.COUNTER_SCAN_RESULTS, 1);
+            final BLEDevice device = buildDevice(transport, result);
+            device.setScanResult(result);
+            notifyGotScanResult(listener, device);
+        }
+
+        @Override
+        public void onScanFailed(final int errorCode) {
+            int bleErrorCode = SCAN_ERROR_CODE_GENERAL_FAILURE;
+            switch(errorCode) {
+                case BLEScanTransport.ERROR_ALREADY_STARTED:
+                    bleErrorCode = SCAN_ERROR_CODE_ALREADY_START;
+                    break;
+                case BLEScanTransport.ERROR_REGISTRATION_FAILED:
+                    bleErrorCode = SCAN_ERROR_CODE_REGISTRATION_FAILURE;
+                    break;
+                case BLEScanTransport.ERROR_UNSUPPORTED:
+                    bleErrorCode = SCAN_ERROR_CODE_UNSUPPORTED;
+                    break;
+                case BLEScanTransport.ERROR_INTERNAL:
+                    bleErrorCode = SCAN_ERROR_CODE_GENERAL_FAILURE;
+                    break;
+                default:
+                    Log.e(TAG, "Unknow ScanFailed error code: "+errorCode);
+                    break;
+            }
+            if (mScanSession.compareAndSet(this, null)) {
+                notifyScanResultFailure(listener, bleErrorCode);
+            }
         }
     }
 }
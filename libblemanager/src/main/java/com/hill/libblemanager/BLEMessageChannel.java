@@ -0,0 +1,196 @@
+package com.hill.libblemanager;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * <p>Channel of whole messages over a pair of characteristics of a {@link BLEDevice}: messages are fragmented to
+ * the MTU of the connection by {@link BLEFrameCodec} and written to the TX characteristic one fragment after
+ * another, and the notified fragments of the RX characteristic are reassembled into pooled buffers.
+ * <p>Enable the notifications of the RX characteristic by {@link BLEDevice#setCharacterNotification} and
+ * negotiate a larger MTU by {@link BLEDevice#requestMtu} before sending, then {@link #open()} the channel.
+ */
+public final class BLEMessageChannel {
+    private static final String TAG = "BLEMessageChannel";
+
+    public interface Listener extends BLEFrameCodec.Listener {
+    }
+
+    public interface SendListener {
+        /**
+         * @param success Whether all fragments of the message are written
+         */
+        void onSent(final boolean success);
+    }
+
+    private static final class Message {
+        final List<byte[]> fragments;
+        final SendListener listener;
+        int next = 0;
+
+        Message(final List<byte[]> fragments, final SendListener listener) {
+            this.fragments = fragments;
+            this.listener = listener;
+        }
+    }
+
+    private final BLEDevice mDevice;
+    private final BLEData mTxData;
+    private final UUID mRxUuid;
+    private final int mWriteType;
+    private final BLEFrameCodec.Encoder mEncoder = new BLEFrameCodec.Encoder();
+    private final BLEFrameCodec.Decoder mDecoder;
+
+    // Only accessed on the GATT thread of the device
+    private final ArrayDeque<Message> mSendQueue = new ArrayDeque<Message>();
+    private boolean mWriting = false;
+
+    /**
+     * <p>Construction method of BLEMessageChannel
+     * @param device The connected device
+     * @param txData The characteristic to write the messages to
+     * @param rxUuid UUID of the characteristic notifying the messages, null for a channel only sending
+     * @param writeType Write type of the fragments, {@link BLEGattTransport#WRITE_TYPE_NO_RESPONSE} for throughput
+     *                  or {@link BLEGattTransport#WRITE_TYPE_DEFAULT} to have every fragment acknowledged
+     * @param pool Pool of the buffers of the received messages, it can be shared by channels
+     * @param listener Listener to receive the messages, called on the GATT thread of the device
+     */
+    public BLEMessageChannel(final BLEDevice device, final BLEData txData, final UUID rxUuid, final int writeType,
+                             final BLEBufferPool pool, final Listener listener) {
+        mDevice = device;
+        mTxData = txData;
+        mRxUuid = rxUuid;
+        mWriteType = writeType;
+        mDecoder = new BLEFrameCodec.Decoder(pool, listener);
+    }
+
+    /**
+     * <p>Method to start receiving messages, and reset the sequences of a channel opened before
+     */
+    public void open() {
+        mDevice.getGattThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                mEncoder.reset();
+                mDecoder.reset();
+            }
+        });
+        mDevice.addCharacterChangedListener(mRxListener);
+    }
+
+    /**
+     * <p>Method to stop receiving messages, the messages not sent yet are failed
+     */
+    public void close() {
+        mDevice.removeCharacterChangedListener(mRxListener);
+        mDevice.getGattThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                mDecoder.reset();
+                while (!mSendQueue.isEmpty()) {
+                    notifySent(mSendQueue.poll(), false);
+                }
+            }
+        });
+    }
+
+    // Fragments are reassembled on the GATT thread, before any callback executor of the device
+    private final BLEDevice.ValueChangedListener mRxListener = new BLEDevice.ValueChangedListener() {
+        @Override
+        public void onValueChanged(final BLEData data) {
+            if (!data.uuid.equals(mRxUuid)) {
+                return;
+            }
+            final byte[] fragment = data.getValue();
+            mDevice.getGattThread().execute(new Runnable() {
+                @Override
+                public void run() {
+                    mDecoder.decode(fragment);
+                }
+            });
+        }
+    };
+
+    /**
+     * <p>Method to send a message, messages are sent in the order of the calls
+     * @param message The message, up to {@link BLEFrameCodec#MAX_MESSAGE_SIZE} bytes
+     * @param listener Listener to receive the result, it can be null
+     */
+    public void send(final byte[] message, final SendListener listener) {
+        // Fragmented to the MTU when sent, the MTU may change until then
+        mDevice.getGattThread().execute(new Runnable() {
+            @Override
+            public void run() {
+                final int maxFragmentSize = mDevice.getMtu() - 3;
+                mSendQueue.add(new Message(mEncoder.encode(message, maxFragmentSize), listener));
+                writeNext();
+            }
+        });
+    }
+
+    private void writeNext() {
+        final Message message = mSendQueue.peek();
+        if (mWriting || message == null) {
+            return;
+        }
+        mWriting = true;
+        mTxData.setValue(message.fragments.get(message.next));
+        mDevice.writeCharacterData(mTxData, mWriteType, new BLEDevice.WriteValueStatusListener() {
+            @Override
+            public void onSetValue(final BLEData data, final int status) {
+                mDevice.getGattThread().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mWriting = false;
+                        processFragmentWritten(message, status);
+                    }
+                });
+            }
+
+            @Override
+            public void onSetValue(final BLEData data) {
+            }
+        });
+    }
+
+    private void processFragmentWritten(final Message message, final int status) {
+        if (mSendQueue.peek() != message) { // Failed by close()
+            writeNext();
+            return;
+        }
+        if (status != BLEGattTransport.STATUS_SUCCESS) {
+            Log.e(TAG, "Failed to write fragment "+message.next+" of "+message.fragments.size()+", status: "+status);
+            mSendQueue.poll();
+            notifySent(message, false);
+            // The receiver detects the missing fragments by the sequence
+        } else if (++message.next == message.fragments.size()) {
+            mSendQueue.poll();
+            notifySent(message, true);
+        }
+        writeNext();
+    }
+
+    private void notifySent(final Message message, final boolean success) {
+        if (message.listener == null) {
+            return;
+        }
+        mDevice.deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                message.listener.onSent(success);
+            }
+        });
+    }
+
+    public long getReceivedCount() {
+        return mDecoder.getMessageCount();
+    }
+
+    public long getDroppedCount() {
+        return mDecoder.getDroppedCount();
+    }
+}
@@ -0,0 +1,285 @@
+package com.hill.libblemanager;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>RSSI monitor of a connected {@link BLEDevice}. It samples the remote RSSI value while there are
+ * listeners registered, adapts the sampling interval to the stability of the signal, skips samples
+ * during sustained bulk traffic or while it's suspended, and delivers an exponentially smoothed value
+ * together with the raw one.
+ * <p>Get the monitor of a device by {@link BLEDevice#getRssiMonitor()}.
+ */
+public final class BLERssiMonitor {
+    private static final String TAG = "BLERssiMonitor";
+
+    public static final long DEFAULT_MIN_INTERVAL = 1000;
+    public static final long DEFAULT_MAX_INTERVAL = 8000;
+    public static final float DEFAULT_SMOOTHING_FACTOR = 0.25f;
+    public static final int DEFAULT_STABLE_THRESHOLD = 2;
+    public static final int DEFAULT_BUSY_THROUGHPUT = 8 * 1024;
+    public static final int DEFAULT_MAX_SKIPS = 3;
+
+    public interface RssiListener {
+        /**
+         * <p>Callback method when a new RSSI sample of the device is got.
+         * It's called on the callback thread of the device, see {@link BLEDevice#setCallbackExecutor}
+         * @param rssi The raw RSSI value of this sample
+         * @param smoothedRssi The exponentially smoothed RSSI value including this sample
+         */
+        void onRssiChanged(final int rssi, final float smoothedRssi);
+    }
+
+    private final BLEDevice mDevice;
+
+    BLERssiMonitor(final BLEDevice device) {
+        mDevice = device;
+    }
+
+    private long mMinInterval = DEFAULT_MIN_INTERVAL;
+    private long mMaxInterval = DEFAULT_MAX_INTERVAL;
+    private float mSmoothingFactor = DEFAULT_SMOOTHING_FACTOR;
+    private int mStableThreshold = DEFAULT_STABLE_THRESHOLD;
+    private int mBusyThroughput = DEFAULT_BUSY_THROUGHPUT;
+    private int mMaxSkips = DEFAULT_MAX_SKIPS;
+
+    /**
+     * <p>Method to set the sampling interval range. The monitor starts with the min interval and doubles it
+     * up to the max interval while the signal is stable, it goes back to the min interval once the signal changes.
+     * Pass the same value for both to get a fixed sampling interval.
+     * @param minInterval The min sampling interval in milliseconds
+     * @param maxInterval The max sampling interval in milliseconds
+     */
+    public synchronized void setSamplingInterval(final long minInterval, final long maxInterval) {
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid sampling interval: "+minInterval+" - "+maxInterval);
+        }
+        mMinInterval = minInterval;
+        mMaxInterval = maxInterval;
+        mCurInterval = minInterval;
+    }
+
+    /**
+     * <p>Method to set the factor of the exponential smoothing applied to the RSSI samples
+     * @param factor Weight of the new sample, in range (0, 1]. 1 means no smoothing
+     */
+    public synchronized void setSmoothingFactor(final float factor) {
+        if (factor <= 0 || factor > 1) {
+            throw new IllegalArgumentException("Invalid smoothing factor: "+factor);
+        }
+        mSmoothingFactor = factor;
+    }
+
+    /**
+     * <p>Method to set the max difference in dBm between a sample and the smoothed value for the signal to be
+     * treated as stable, which lets the sampling interval grow.
+     * @param threshold The threshold in dBm
+     */
+    public synchronized void setStableThreshold(final int threshold) {
+        mStableThreshold = threshold;
+    }
+
+    /**
+     * <p>Method to set when the link is treated as busy. A sample is skipped when the GATT traffic since the
+     * previous one reaches the throughput, but no more than the max number of samples in a row, so the RSSI
+     * is still sampled during long transfers.
+     * @param bytesPerSecond The throughput in bytes per second, 0 to never skip samples for traffic
+     * @param maxSkips The max number of samples skipped in a row
+     */
+    public synchronized void setBusyThreshold(final int bytesPerSecond, final int maxSkips) {
+        if (bytesPerSecond < 0 || maxSkips < 0) {
+            throw new IllegalArgumentException("Invalid busy threshold: "+bytesPerSecond+", "+maxSkips);
+        }
+        mBusyThroughput = bytesPerSecond;
+        mMaxSkips = maxSkips;
+    }
+
+    // Listener methods
+    private final List<RssiListener> mListeners = new ArrayList<RssiListener>();
+
+    /**
+     * <p>Method to add listener to receive the RSSI samples. The sampling starts when the first listener is added
+     * and the device is connected.
+     * @param listener The listener to add
+     */
+    public void addListener(final RssiListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (this) {
+            if (mListeners.contains(listener)) {
+                return;
+            }
+            mListeners.add(listener);
+        }
+        updateSampling();
+    }
+
+    /**
+     * <p>Method to remove the listener added by {@link #addListener}. The sampling stops when the last listener is removed.
+     * @param listener The listener to remove
+     */
+    public void removeListener(final RssiListener listener) {
+        if (listener == null) {
+            return;
+        }
+        synchronized (this) {
+            mListeners.remove(listener);
+        }
+        updateSampling();
+    }
+
+    private void notifyRssiChanged(final int rssi, final float smoothedRssi) {
+        final List<RssiListener> listeners;
+        synchronized (this) {
+            listeners = new ArrayList<RssiListener>(mListeners);
+        }
+        for (final RssiListener listener : listeners) {
+            listener.onRssiChanged(rssi, smoothedRssi);
+        }
+    }
+
+    /**
+     * <p>Get the latest smoothed RSSI value
+     * @return The smoothed RSSI value, or {@link Float#NaN} if there is no sample yet
+     */
+    public synchronized float getSmoothedRssi() {
+        return mSmoothedRssi;
+    }
+
+    /**
+     * <p>Get the current sampling interval chosen by the monitor
+     * @return The sampling interval in milliseconds
+     */
+    public synchronized long getCurrentInterval() {
+        return mCurInterval;
+    }
+
+    // Suspend methods
+    private int mSuspendCount = 0;
+
+    /**
+     * <p>Method to suspend the sampling, e.g. during bulk transfers. Each call shall be paired with {@link #resume()}.
+     * {@link BLEBulkTransfer} suspends it while it runs. Samples are also skipped automatically during sustained
+     * traffic, see {@link #setBusyThreshold}.
+     */
+    public synchronized void suspend() {
+        mSuspendCount++;
+    }
+
+    /**
+     * <p>Method to resume the sampling suspended by {@link #suspend()}
+     */
+    public synchronized void resume() {
+        if (mSuspendCount > 0) {
+            mSuspendCount--;
+        }
+    }
+
+    // Sampling methods
+    private boolean mConnected = false;
+    private boolean mSampling = false;
+    private long mCurInterval = DEFAULT_MIN_INTERVAL;
+    private float mSmoothedRssi = Float.NaN;
+    private long mActivityStartTime = 0;
+    private long mActivityBytes = 0;
+    private int mSkipCount = 0;
+
+    private final Runnable mSampleRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final long interval;
+            final boolean skip;
+            synchronized (BLERssiMonitor.this) {
+                if (!mSampling) {
+                    return;
+                }
+                interval = mCurInterval;
+                skip = mSuspendCount > 0 || isBusy();
+            }
+            if (skip) {
+                Log.d(TAG, "Link is busy, skip RSSI sample");
+            } else if (!mDevice.readRemoteRssi()) {
+                Log.w(TAG, "Failed to read RSSI of device: "+mDevice.getDisplayName());
+            }
+            mDevice.getGattThread().postDelayed(this, interval);
+        }
+    };
+
+    // Must be called with the lock of this held, it starts measuring the traffic until the next sample
+    private boolean isBusy() {
+        final long now = SystemClock.elapsedRealtime();
+        final long elapsed = now - mActivityStartTime;
+        final boolean busy = mBusyThroughput > 0 && mSkipCount < mMaxSkips && elapsed > 0
+                && mActivityBytes * 1000 / elapsed >= mBusyThroughput;
+        mSkipCount = busy ? mSkipCount + 1 : 0;
+        mActivityStartTime = now;
+        mActivityBytes = 0;
+        return busy;
+    }
+
+    private void updateSampling() {
+        final boolean shouldSample;
+        synchronized (this) {
+            shouldSample = mConnected && !mListeners.isEmpty();
+            if (shouldSample == mSampling) {
+                return;
+            }
+            mSampling = shouldSample;
+            mCurInterval = mMinInterval;
+            mActivityStartTime = SystemClock.elapsedRealtime();
+            mActivityBytes = 0;
+            mSkipCount = 0;
+        }
+        final BLEGattThread gattThread = mDevice.getGattThread();
+        gattThread.removeCallbacks(mSampleRunnable);
+        if (shouldSample) {
+            gattThread.post(mSampleRunnable);
+        }
+    }
+
+    void onConnectionStateChanged(final boolean connected) {
+        synchronized (this) {
+            mConnected = connected;
+            if (!connected) {
+                mSmoothedRssi = Float.NaN;
+            }
+        }
+        updateSampling();
+    }
+
+    void onLinkActivity(final int bytes) {
+        synchronized (this) {
+            mActivityBytes += bytes;
+        }
+    }
+
+    void onRssiRead(final int rssi) {
+        final float smoothedRssi;
+        synchronized (this) {
+            if (Float.isNaN(mSmoothedRssi)) {
+                mSmoothedRssi = rssi;
+            } else {
+                mSmoothedRssi += mSmoothingFactor * (rssi - mSmoothedRssi);
+            }
+            smoothedRssi = mSmoothedRssi;
+            if (Math.abs(rssi - smoothedRssi) <= mStableThreshold) {
+                mCurInterval = Math.min(mCurInterval * 2, mMaxInterval);
+            } else {
+                mCurInterval = mMinInterval;
+            }
+            if (!mSampling) {
+                return;
+            }
+        }
+        mDevice.deliverCallback(new Runnable() {
+            @Override
+            public void run() {
+                notifyRssiChanged(rssi, smoothedRssi);
+            }
+        });
+    }
+}
@@ -0,0 +1,323 @@
+package com.hill.libblemanager;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>Service owning the scan and the device connections, so connections outlive the Activities using them.
+ * Activities attach to it by {@link BLEServiceClient}, {@link #acquire} the devices they use and
+ * {@link #release} them when they go away. A released device stays connected for {@link #DEFAULT_LINGER_TIME},
+ * so a rotated or reopened Activity gets the connected device and its discovered services back at once.
+ * <p>While any device is held the service runs in the foreground with a notification, see
+ * {@link #buildNotification} to customize it. All methods must be called on the main thread, and listeners
+ * are called on the main thread.
+ */
+public class BLEService extends Service {
+    private static final String TAG = "BLEService";
+    private static final String NOTIFICATION_CHANNEL_ID = "com.hill.libblemanager.service";
+    private static final int NOTIFICATION_ID = 0x424C45;
+
+    /** Default time to keep a released device connected, in milliseconds */
+    public static final long DEFAULT_LINGER_TIME = 30000;
+
+    public interface DeviceListener {
+        /**
+         * <p>Callback method of the connection changes of the held devices
+         * @param device The device
+         * @param connected Whether it's connected
+         */
+        void onConnectionStateChanged(final BLEDevice device, final boolean connected);
+    }
+
+    /**
+     * <p>Binder returned to the clients bound to this service
+     */
+    public final class LocalBinder extends Binder {
+        public BLEService getService() {
+            return BLEService.this;
+        }
+    }
+
+    private final IBinder mBinder = new LocalBinder();
+    private Handler mHandler = null;
+    private final List<DeviceListener> mDeviceListeners = new CopyOnWriteArrayList<DeviceListener>();
+    private final Map<String, HeldDevice> mDevices = new HashMap<String, HeldDevice>();
+    private long mLingerTime = DEFAULT_LINGER_TIME;
+    private boolean mForeground = false;
+
+    private final class HeldDevice implements BLEDevice.ConnectionListener, Runnable {
+        final BLEDevice device;
+        int holders = 0;
+
+        HeldDevice(final BLEDevice device) {
+            this.device = device;
+        }
+
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mDevices.get(device.getAddress()) == HeldDevice.this) {
+                        notifyConnectionStateChanged(device, connected);
+                    } else if (connected) { // Connected after it's released
+                        device.disconnect();
+                    }
+                }
+            });
+        }
+
+        // Linger timeout
+        @Override
+        public void run() {
+            Log.d(TAG, "Release idle device: "+device.getAddress());
+            removeDevice(this);
+        }
+    }
+
+    // Service lifecycle methods
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mHandler = new Handler(getMainLooper());
+    }
+
+    @Override
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        // Connections can't be restored after the process is killed, so don't restart
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return mBinder;
+    }
+
+    @Override
+    public void onDestroy() {
+        stopScan();
+        for (final HeldDevice heldDevice : new ArrayList<HeldDevice>(mDevices.values())) {
+            removeDevice(heldDevice);
+        }
+        mHandler.removeCallbacksAndMessages(null);
+        super.onDestroy();
+    }
+
+    // Scan methods
+    /**
+     * <p>Method to scan devices, see {@link BLEManager#startScan(Context, UUID[], BLEManager.ScanResultListener)}
+     */
+    public void startScan(final UUID[] uuids, final BLEManager.ScanResultListener listener) {
+        BLEManager.getInstance().startScan(this, uuids, listener);
+    }
+
+    public void stopScan() {
+        BLEManager.getInstance().stopScan(this);
+    }
+
+    // Device methods
+    /**
+     * <p>Method to set how long a released device stays connected
+     * @param lingerTime The time in milliseconds, 0 to disconnect at once
+     */
+    public void setLingerTime(final long lingerTime) {
+        mLingerTime = Math.max(0, lingerTime);
+    }
+
+    public void addDeviceListener(final DeviceListener listener) {
+        if (listener != null) {
+            mDeviceListeners.add(listener);
+        }
+    }
+
+    public void removeDeviceListener(final DeviceListener listener) {
+        mDeviceListeners.remove(listener);
+    }
+
+    private void notifyConnectionStateChanged(final BLEDevice device, final boolean connected) {
+        for (final DeviceListener listener : mDeviceListeners) {
+            listener.onConnectionStateChanged(device, connected);
+        }
+    }
+
+    /**
+     * <p>Method to use a device, it's connected unless this service holds it connected already
+     * @param device The device, e.g. found by {@link #startScan}
+     * @return The device held by this service, use it instead of the passed one since it may be connected already
+     */
+    public BLEDevice acquire(final BLEDevice device) {
+        HeldDevice heldDevice = mDevices.get(device.getAddress());
+        if (heldDevice == null) {
+            heldDevice = new HeldDevice(device);
+            addDevice(heldDevice);
+            device.connect(this, false, heldDevice);
+        }
+        return hold(heldDevice);
+    }
+
+    /**
+     * <p>Method to use a device by its address, it's connected by {@link BLEManager#connectKnownDevice}
+     * unless this service holds it connected already
+     * @param address Address of the device
+     * @return The device held by this service, or null if it can't be connected
+     */
+    public BLEDevice acquire(final String address) {
+        HeldDevice heldDevice = mDevices.get(address);
+        if (heldDevice == null) {
+            final ConnectionForwarder forwarder = new ConnectionForwarder();
+            final BLEDevice device = BLEManager.getInstance().connectKnownDevice(this, address, forwarder);
+            if (device == null) {
+                return null;
+            }
+            heldDevice = new HeldDevice(device);
+            forwarder.target = heldDevice;
+            addDevice(heldDevice);
+        }
+        return hold(heldDevice);
+    }
+
+    // The device is created by connectKnownDevice, so its listener is set before the HeldDevice exists
+    private static final class ConnectionForwarder implements BLEDevice.ConnectionListener {
+        volatile BLEDevice.ConnectionListener target = null;
+
+        @Override
+        public void onConnectionStateChanged(final boolean connected) {
+            final BLEDevice.ConnectionListener listener = target;
+            if (listener != null) {
+                listener.onConnectionStateChanged(connected);
+            }
+        }
+    }
+
+    private BLEDevice hold(final HeldDevice heldDevice) {
+        heldDevice.holders++;
+        mHandler.removeCallbacks(heldDevice);
+        return heldDevice.device;
+    }
+
+    /**
+     * <p>Method to stop using a device acquired by {@link #acquire}. When no one uses it, it's disconnected
+     * after the linger time set by {@link #setLingerTime}.
+     * @param address Address of the device
+     */
+    public void release(final String address) {
+        final HeldDevice heldDevice = mDevices.get(address);
+        if (heldDevice == null || heldDevice.holders == 0) {
+            Log.w(TAG, "release, device isn't acquired: "+address);
+            return;
+        }
+        if (--heldDevice.holders == 0) {
+            mHandler.postDelayed(heldDevice, mLingerTime);
+        }
+    }
+
+    /**
+     * <p>Method to disconnect a device at once, even if it's still acquired
+     * @param address Address of the device
+     */
+    public void disconnect(final String address) {
+        final HeldDevice heldDevice = mDevices.get(address);
+        if (heldDevice != null) {
+            removeDevice(heldDevice);
+        }
+    }
+
+    /**
+     * <p>Get a device held by this service
+     * @param address Address of the device
+     * @return The device, or null if it isn't held
+     */
+    public BLEDevice getDevice(final String address) {
+        final HeldDevice heldDevice = mDevices.get(address);
+        return heldDevice != null ? heldDevice.device : null;
+    }
+
+    public List<BLEDevice> getDevices() {
+        final List<BLEDevice> devices = new ArrayList<BLEDevice>(mDevices.size());
+        for (final HeldDevice heldDevice : mDevices.values()) {
+            devices.add(heldDevice.device);
+        }
+        return devices;
+    }
+
+    private void addDevice(final HeldDevice heldDevice) {
+        mDevices.put(heldDevice.device.getAddress(), heldDevice);
+        updateForeground();
+    }
+
+    private void removeDevice(final HeldDevice heldDevice) {
+        mHandler.removeCallbacks(heldDevice);
+        if (mDevices.remove(heldDevice.device.getAddress()) == null) {
+            return;
+        }
+        heldDevice.device.disconnect();
+        updateForeground();
+    }
+
+    // Foreground methods
+    private void updateForeground() {
+        if (!mDevices.isEmpty()) {
+            if (!mForeground) {
+                // Start this service, so it keeps running when all clients unbind
+                final Intent intent = new Intent(this, getClass());
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                    startForegroundService(intent);
+                } else {
+                    startService(intent);
+                }
+                mForeground = true;
+            }
+            startForeground(NOTIFICATION_ID, buildNotification(mDevices.size()));
+        } else if (mForeground) {
+            mForeground = false;
+            stopForeground(true);
+            // Keeps running while clients are bound
+            stopSelf();
+        }
+    }
+
+    /**
+     * <p>Method to build the notification shown while devices are held, override it to customize the notification
+     * @param deviceCount Number of the held devices
+     * @return The notification
+     */
+    protected Notification buildNotification(final int deviceCount) {
+        final Notification.Builder builder;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            final NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            manager.createNotificationChannel(new NotificationChannel(NOTIFICATION_CHANNEL_ID,
+                    getString(R.string.ble_service_channel_name), NotificationManager.IMPORTANCE_LOW));
+            builder = new Notification.Builder(this, NOTIFICATION_CHANNEL_ID);
+        } else {
+            builder = newLegacyNotificationBuilder();
+        }
+        return builder.setSmallIcon(android.R.drawable.stat_sys_data_bluetooth)
+                .setContentTitle(getString(R.string.ble_service_notification_title))
+                .setContentText(getResources().getQuantityString(R.plurals.ble_service_notification_text,
+                        deviceCount, deviceCount))
+                .setOngoing(true)
+                .build();
+    }
+
+    // Notification channels don't exist before Android 8, the builder without a channel is the only one there
+    @SuppressWarnings("deprecation")
+    private Notification.Builder newLegacyNotificationBuilder() {
+        return new Notification.Builder(this);
+    }
+}
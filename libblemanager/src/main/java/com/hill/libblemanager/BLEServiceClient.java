@@ -0,0 +1,108 @@
+package com.hill.libblemanager;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.IBinder;
+import android.util.Log;
+
+/**
+ * <p>Client of {@link BLEService} for Activities. Call {@link #attach()} when the Activity is created and
+ * {@link #detach()} when it's destroyed, devices acquired from the service stay connected across them.
+ */
+public final class BLEServiceClient {
+    private static final String TAG = "BLEServiceClient";
+
+    public interface Listener {
+        /**
+         * <p>Callback method when the client is attached to the service, called on the main thread
+         * @param service The service
+         */
+        void onAttached(final BLEService service);
+
+        /**
+         * <p>Callback method when the service is gone unexpectedly, e.g. its process is killed
+         */
+        void onDetached();
+    }
+
+    private final Context mContext;
+    private final Class<? extends BLEService> mServiceClass;
+    private final Listener mListener;
+    private BLEService mService = null;
+    private boolean mAttached = false;
+
+    /**
+     * <p>Construction method of BLEServiceClient
+     * @param context The Activity or another Context
+     * @param listener Listener to receive the service
+     */
+    public BLEServiceClient(final Context context, final Listener listener) {
+        this(context, BLEService.class, listener);
+    }
+
+    /**
+     * <p>Construction method of BLEServiceClient of a subclass of {@link BLEService}, it must be declared
+     * in the manifest of the app
+     * @param context The Activity or another Context
+     * @param serviceClass The class of the service
+     * @param listener Listener to receive the service
+     */
+    public BLEServiceClient(final Context context, final Class<? extends BLEService> serviceClass, final Listener listener) {
+        mContext = context;
+        mServiceClass = serviceClass;
+        mListener = listener;
+    }
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(final ComponentName name, final IBinder binder) {
+            mService = ((BLEService.LocalBinder) binder).getService();
+            if (mListener != null) {
+                mListener.onAttached(mService);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(final ComponentName name) {
+            mService = null;
+            if (mListener != null) {
+                mListener.onDetached();
+            }
+        }
+    };
+
+    /**
+     * <p>Method to bind the service, the listener gets it by {@link Listener#onAttached}
+     */
+    public void attach() {
+        if (mAttached) {
+            return;
+        }
+        mAttached = mContext.bindService(new Intent(mContext, mServiceClass), mConnection, Context.BIND_AUTO_CREATE);
+        if (!mAttached) {
+            Log.e(TAG, "Failed to bind "+mServiceClass.getName()+", is it declared in the manifest?");
+        }
+    }
+
+    /**
+     * <p>Method to unbind the service, release the acquired devices before calling it
+     */
+    public void detach() {
+        if (!mAttached) {
+            return;
+        }
+        mAttached = false;
+        mService = null;
+        mContext.unbindService(mConnection);
+    }
+
+    /**
+     * <p>Get the attached service
+     * @return The service, or null if it isn't attached yet
+     */
+    public BLEService getService() {
+        return mService;
+    }
+}
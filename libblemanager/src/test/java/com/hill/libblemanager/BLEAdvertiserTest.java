@@ -0,0 +1,69 @@
+package com.hill.libblemanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BLEAdvertiserTest {
+    private static final UUID BATTERY_UUID = BLEUuid.fromShortUuid(0x180F);
+    private static final UUID VENDOR_UUID = UUID.fromString("8e400001-f315-4f60-9fb8-838830daea50");
+
+    @Test
+    public void nextId_inPutOrderAndWrapsAround() {
+        final List<String> ids = Arrays.asList("a", "b", "c");
+        assertEquals("a", BLEAdvertiser.getNextId(ids, null));
+        assertEquals("b", BLEAdvertiser.getNextId(ids, "a"));
+        assertEquals("c", BLEAdvertiser.getNextId(ids, "b"));
+        assertEquals("a", BLEAdvertiser.getNextId(ids, "c"));
+        assertEquals("a", BLEAdvertiser.getNextId(Collections.singletonList("a"), "a"));
+        assertNull(BLEAdvertiser.getNextId(Collections.<String>emptyList(), null));
+    }
+
+    @Test
+    public void nextId_afterRemovedOne() {
+        // remove() takes the next id before removing the current one
+        final List<String> ids = new ArrayList<String>(Arrays.asList("a", "b", "c"));
+        final String nextId = BLEAdvertiser.getNextId(ids, "b");
+        ids.remove("b");
+        assertEquals("c", nextId);
+        assertEquals("a", BLEAdvertiser.getNextId(ids, nextId));
+    }
+
+    @Test
+    public void dataLength_countsEveryField() {
+        assertEquals(3, new BLEAdvertiser.Advertisement.Builder().build().getDataLength());
+
+        final BLEAdvertiser.Advertisement advertisement = new BLEAdvertiser.Advertisement.Builder()
+                .addServiceUuid(BATTERY_UUID)
+                .addServiceData(BATTERY_UUID, new byte[] {100})
+                .addManufacturerData(0x004C, new byte[] {1, 2, 3, 4})
+                .setIncludeTxPower(true)
+                .build();
+        // Flags, 16-bit UUID, service data, manufacturer data, TX power
+        assertEquals(3 + 4 + 5 + 8 + 3, advertisement.getDataLength());
+        assertTrue(advertisement.isLegacy());
+    }
+
+    @Test
+    public void dataLength_longUuidsNeedExtendedAdvertising() {
+        final BLEAdvertiser.Advertisement advertisement = new BLEAdvertiser.Advertisement.Builder()
+                .addServiceUuid(VENDOR_UUID)
+                .addServiceData(VENDOR_UUID, new byte[1])
+                .build();
+        assertEquals(3 + 18 + 19, advertisement.getDataLength());
+        assertFalse(advertisement.isLegacy());
+
+        final BLEAdvertiser.Advertisement fitting = new BLEAdvertiser.Advertisement.Builder()
+                .addServiceUuid(VENDOR_UUID)
+                .addManufacturerData(0x004C, new byte[6])
+                .build();
+        assertEquals(BLEAdvertiser.LEGACY_MAX_DATA_LENGTH, fitting.getDataLength());
+        assertTrue(fitting.isLegacy());
+    }
+}
@@ -0,0 +1,326 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadows.ShadowSystemClock;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Transfers of {@link BLEBulkTransfer} to a simulated peripheral implementing its control protocol.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BLEBulkTransferTest {
+    private static final long TRANSFER_TIMEOUT = 10000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE_UUID = UUID.fromString("8e400001-f315-4f60-9fb8-838830daea50");
+    private static final UUID DATA_UUID = UUID.fromString("8e400002-f315-4f60-9fb8-838830daea50");
+    private static final UUID CONTROL_UUID = UUID.fromString("8e400003-f315-4f60-9fb8-838830daea50");
+    private static final int IMAGE_SIZE = 1000;
+    private static final int RECEIPT_INTERVAL = 4;
+    private static final long CLOCK_TICK = 5;
+
+    private BLESimulator mSimulator;
+    private BLESimulatedPeripheral mPeripheral;
+    private BLEGattThread mGattThread;
+    private BLEDevice mDevice;
+    private Thread mClock;
+    private final BlockingQueue<Boolean> mConnection = new LinkedBlockingQueue<Boolean>();
+    private ImageReceiver mReceiver;
+    private byte[] mImage;
+
+    /**
+     * Device side of the protocol, it keeps the received data across connections
+     */
+    private static final class ImageReceiver implements BLESimulatedPeripheral.RequestHandler {
+        private final BLESimulatedAttribute mData;
+        private final BLESimulatedAttribute mControl;
+        private final ByteArrayOutputStream mReceived = new ByteArrayOutputStream();
+        private int mSize = -1;
+        private int mImageCrc = 0;
+        private int mReceiptInterval = 0;
+        private int mPacketCount = 0;
+        // The link is lost once this much data is received, -1 not to lose it
+        private int mDisconnectOffset = -1;
+        private boolean mRepeatReceipts = false;
+        private int mRewinds = 0;
+
+        ImageReceiver(final BLESimulatedAttribute data, final BLESimulatedAttribute control) {
+            mData = data;
+            mControl = control;
+        }
+
+        synchronized void disconnectAt(final int offset) {
+            mDisconnectOffset = offset;
+        }
+
+        // Every receipt is notified twice, like a device retrying the notification
+        synchronized void repeatReceipts() {
+            mRepeatReceipts = true;
+        }
+
+        synchronized int getRewinds() {
+            return mRewinds;
+        }
+
+        synchronized byte[] getReceived() {
+            return mReceived.toByteArray();
+        }
+
+        @Override
+        public int onRead(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute) {
+            return BLEGattTransport.STATUS_READ_NOT_PERMITTED;
+        }
+
+        @Override
+        public synchronized int onWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute, final byte[] value) {
+            if (attribute == mData) {
+                mReceived.write(value, 0, value.length);
+                if (++mPacketCount % mReceiptInterval == 0) {
+                    final byte[] receipt = offsetValue(BLEBulkTransfer.OP_RECEIPT);
+                    peripheral.notifyValueChanged(mControl, receipt);
+                    if (mRepeatReceipts) {
+                        peripheral.notifyValueChanged(mControl, receipt);
+                    }
+                }
+                if (mDisconnectOffset >= 0 && mReceived.size() >= mDisconnectOffset) {
+                    mDisconnectOffset = -1;
+                    peripheral.disconnectAll();
+                }
+                return BLEGattTransport.STATUS_SUCCESS;
+            }
+            final int op = value[0];
+            byte[] response = new byte[] {BLEBulkTransfer.OP_RESPONSE, (byte) op, BLEBulkTransfer.RESULT_SUCCESS};
+            switch (op) {
+                case BLEBulkTransfer.OP_SET_RECEIPT_INTERVAL:
+                    mReceiptInterval = (value[1] & 0xFF) | (value[2] & 0xFF) << 8;
+                    break;
+                case BLEBulkTransfer.OP_START: {
+                    final int size = getUint32(value, 1);
+                    final int crc = getUint32(value, 5);
+                    if (size != mSize || crc != mImageCrc) { // Another image
+                        mSize = size;
+                        mImageCrc = crc;
+                        mReceived.reset();
+                    }
+                    mPacketCount = 0;
+                    response = withOffset(response);
+                    break;
+                }
+                case BLEBulkTransfer.OP_GET_OFFSET:
+                    response = withOffset(response);
+                    break;
+                case BLEBulkTransfer.OP_SET_OFFSET: {
+                    final byte[] kept = Arrays.copyOf(mReceived.toByteArray(), getUint32(value, 1));
+                    mReceived.reset();
+                    mReceived.write(kept, 0, kept.length);
+                    mPacketCount = 0;
+                    mRewinds++;
+                    break;
+                }
+                case BLEBulkTransfer.OP_FINISH:
+                    if (mReceived.size() != mSize || crcOf(mReceived.toByteArray()) != mImageCrc) {
+                        response[2] = BLEBulkTransfer.RESULT_CRC_MISMATCH;
+                    }
+                    break;
+                default:
+                    response[2] = BLEBulkTransfer.RESULT_INVALID_OPERATION;
+                    break;
+            }
+            peripheral.notifyValueChanged(mControl, response);
+            return BLEGattTransport.STATUS_SUCCESS;
+        }
+
+        private byte[] withOffset(final byte[] response) {
+            final byte[] offset = offsetValue(0);
+            final byte[] value = Arrays.copyOf(response, 11);
+            System.arraycopy(offset, 1, value, 3, 8);
+            return value;
+        }
+
+        // [op, offset u32, crc u32] of the received data
+        private byte[] offsetValue(final int op) {
+            final byte[] received = mReceived.toByteArray();
+            final byte[] value = new byte[9];
+            value[0] = (byte) op;
+            putUint32(value, 1, received.length);
+            putUint32(value, 5, crcOf(received));
+            return value;
+        }
+
+        private static void putUint32(final byte[] buffer, final int offset, final int value) {
+            for (int i = 0; i < 4; i++) {
+                buffer[offset + i] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        private static int getUint32(final byte[] buffer, final int offset) {
+            int value = 0;
+            for (int i = 0; i < 4; i++) {
+                value |= (buffer[offset + i] & 0xFF) << (i * 8);
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Records the result of a transfer
+     */
+    private static final class Result implements BLEBulkTransfer.Listener {
+        private final BlockingQueue<Object> mResults = new LinkedBlockingQueue<Object>();
+
+        BLEBulkTransfer.Progress completed() throws InterruptedException {
+            final Object result = mResults.poll(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("Not done in "+TRANSFER_TIMEOUT+" ms", result);
+            if (result instanceof String) {
+                fail((String) result);
+            }
+            return (BLEBulkTransfer.Progress) result;
+        }
+
+        @Override
+        public void onProgress(final BLEBulkTransfer.Progress progress) {
+        }
+
+        @Override
+        public void onCompleted(final BLEBulkTransfer.Progress progress) {
+            mResults.add(progress);
+        }
+
+        @Override
+        public void onFailed(final String error, final BLEBulkTransfer.Progress progress) {
+            mResults.add(error+", "+progress);
+        }
+    }
+
+    private static int crcOf(final byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    @Before
+    public void setUp() throws InterruptedException {
+        // The clock of Robolectric only moves when it's advanced, the transfer posts its retries and resumes delayed
+        mClock = new Thread("Clock") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Thread.sleep(CLOCK_TICK);
+                        ShadowSystemClock.advanceBy(Duration.ofMillis(CLOCK_TICK));
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped
+                }
+            }
+        };
+        mClock.start();
+        mSimulator = new BLESimulator(1, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        mPeripheral = new BLESimulatedPeripheral(ADDRESS, "Simulated");
+        mPeripheral.setAdvertisingInterval(20);
+        final BLESimulatedAttribute service = mPeripheral.addService(SERVICE_UUID);
+        mReceiver = new ImageReceiver(
+                service.addCharacteristic(DATA_UUID, BLEAttribute.PROPERTY_WRITE_NO_RESPONSE),
+                service.addCharacteristic(CONTROL_UUID, BLEAttribute.PROPERTY_WRITE | BLEAttribute.PROPERTY_NOTIFY));
+        mPeripheral.setRequestHandler(mReceiver);
+        mSimulator.addPeripheral(mPeripheral);
+        mImage = new byte[IMAGE_SIZE];
+        new Random(7).nextBytes(mImage);
+
+        mGattThread = BLEGattThread.create("BLEBulkTransferTest");
+        mDevice = new BLEDevice(mSimulator, ADDRESS, null, 0);
+        mDevice.setGattThread(mGattThread);
+        mDevice.connect(null, false, new BLEDevice.ConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(final boolean connected) {
+                mConnection.add(connected);
+            }
+        });
+        assertEquals(Boolean.TRUE, mConnection.poll(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.disconnect();
+        mGattThread.quit();
+        mSimulator.shutdown();
+        mClock.interrupt();
+    }
+
+    private BLEBulkTransfer.Builder newBuilder() {
+        return new BLEBulkTransfer.Builder(DATA_UUID, CONTROL_UUID)
+                .setWindow(RECEIPT_INTERVAL, RECEIPT_INTERVAL * 2)
+                .setResumes(1, 50);
+    }
+
+    @Test
+    public void crc32_sameAsZipOverSplitBuffers() {
+        final byte[] data = new byte[4099];
+        new Random(1).nextBytes(data);
+        final int[] splits = {0, 1, 7, 64, 1000, 4096, 4099};
+        int crc = 0;
+        for (int i = 1; i < splits.length; i++) {
+            crc = BLEBulkTransfer.crc32(crc, data, splits[i - 1], splits[i] - splits[i - 1]);
+            final CRC32 expected = new CRC32();
+            expected.update(data, 0, splits[i]);
+            assertEquals((int) expected.getValue(), crc);
+        }
+        assertEquals(0, BLEBulkTransfer.crc32(0, data, 0, 0));
+    }
+
+    @Test
+    public void transfer_deliversTheImage() throws InterruptedException {
+        final Result result = new Result();
+        newBuilder().build().start(null, mDevice, mImage, result);
+
+        final BLEBulkTransfer.Progress progress = result.completed();
+        assertEquals(IMAGE_SIZE, progress.offset);
+        assertEquals(0, progress.resumes);
+        assertArrayEquals(mImage, mReceiver.getReceived());
+    }
+
+    @Test
+    public void transfer_resumesAfterDisconnection() throws InterruptedException {
+        mReceiver.disconnectAt(IMAGE_SIZE / 2);
+        final Result result = new Result();
+        newBuilder().build().start(null, mDevice, mImage, result);
+
+        final BLEBulkTransfer.Progress progress = result.completed();
+        assertEquals(IMAGE_SIZE, progress.offset);
+        assertEquals(1, progress.resumes);
+        assertArrayEquals(mImage, mReceiver.getReceived());
+        // The listener of the app sees the link lost and connected again
+        assertEquals(Boolean.FALSE, mConnection.poll(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(Boolean.TRUE, mConnection.poll(TRANSFER_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void transfer_ignoresRepeatedReceipts() throws InterruptedException {
+        mReceiver.repeatReceipts();
+        final Result result = new Result();
+        newBuilder().build().start(null, mDevice, mImage, result);
+
+        final BLEBulkTransfer.Progress progress = result.completed();
+        assertEquals(IMAGE_SIZE, progress.offset);
+        assertEquals(0, mReceiver.getRewinds());
+        assertArrayEquals(mImage, mReceiver.getReceived());
+    }
+}
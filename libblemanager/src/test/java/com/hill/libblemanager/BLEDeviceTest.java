@@ -0,0 +1,448 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Reads, writes and retries of {@link BLEDevice} over a simulated peripheral, on the real GATT thread.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BLEDeviceTest {
+    private static final long CALLBACK_TIMEOUT = 5000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+    private static final UUID SERVICE_UUID = BLEUuid.fromShortUuid(0x180D);
+    private static final UUID SENSOR_UUID = BLEUuid.fromShortUuid(0x2A37);
+    private static final UUID CONTROL_UUID = BLEUuid.fromShortUuid(0x2A39);
+
+    private BLESimulator mSimulator;
+    private BLESimulatedPeripheral mPeripheral;
+    private BLESimulatedAttribute mSensor;
+    private BLEGattThread mGattThread;
+    private BLEDevice mDevice;
+    private final GatedHandler mHandler = new GatedHandler();
+
+    /**
+     * Records the requests reaching the peripheral as text, e.g. "write 2A39 03", and holds them while closed
+     */
+    private static final class GatedHandler implements BLESimulatedPeripheral.RequestHandler {
+        private final List<String> mRequests = new ArrayList<String>();
+        private volatile CountDownLatch mGate = null;
+        private volatile CountDownLatch mArrived = null;
+        private volatile int mStatus = BLEGattTransport.STATUS_SUCCESS;
+
+        void close() {
+            mArrived = new CountDownLatch(1);
+            mGate = new CountDownLatch(1);
+        }
+
+        void awaitArrived() throws InterruptedException {
+            assertTrue("No request in "+CALLBACK_TIMEOUT+" ms", mArrived.await(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+
+        void open() {
+            mGate.countDown();
+        }
+
+        void setStatus(final int status) {
+            mStatus = status;
+        }
+
+        synchronized List<String> getRequests() {
+            return new ArrayList<String>(mRequests);
+        }
+
+        private int onRequest(final String request) {
+            synchronized (this) {
+                mRequests.add(request);
+            }
+            final CountDownLatch arrived = mArrived;
+            final CountDownLatch gate = mGate;
+            if (gate != null) {
+                arrived.countDown();
+                try {
+                    gate.await(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return mStatus;
+        }
+
+        @Override
+        public int onRead(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute) {
+            return onRequest("read "+shortUuidOf(attribute));
+        }
+
+        @Override
+        public int onWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute, final byte[] value) {
+            final StringBuilder request = new StringBuilder("write ").append(shortUuidOf(attribute));
+            for (final byte b : value) {
+                request.append(String.format(" %02X", b));
+            }
+            return onRequest(request.toString());
+        }
+
+        private static String shortUuidOf(final BLEAttribute attribute) {
+            return String.format("%04X", BLEUuid.toShortUuid(attribute.getUuid()));
+        }
+    }
+
+    /**
+     * Records the results of reads and writes as text, e.g. "value 0 01 02", "written 0 2A39" or "written 133 null"
+     */
+    private static final class Results implements BLEDevice.QueryValueStatusListener, BLEDevice.WriteValueStatusListener {
+        private final BlockingQueue<String> mResults = new LinkedBlockingQueue<String>();
+
+        String next() throws InterruptedException {
+            final String result = mResults.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No result in "+CALLBACK_TIMEOUT+" ms", result);
+            return result;
+        }
+
+        @Override
+        public void onGotValue(final BLEData data) {
+            fail("The status variant must be called");
+        }
+
+        @Override
+        public void onGotValue(final BLEData data, final int status) {
+            mResults.add("value "+status+(data != null ? bytesOf(data.getValue()) : " null"));
+        }
+
+        @Override
+        public void onSetValue(final BLEData data) {
+            fail("The status variant must be called");
+        }
+
+        @Override
+        public void onSetValue(final BLEData data, final int status) {
+            mResults.add("written "+status+" "+(data != null ? String.format("%04X", BLEUuid.toShortUuid(data.uuid)) : "null"));
+        }
+
+        private static String bytesOf(final byte[] value) {
+            final StringBuilder text = new StringBuilder();
+            for (final byte b : value) {
+                text.append(String.format(" %02X", b));
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Records the results of RSSI queries
+     */
+    private static final class RssiResults implements BLEDevice.QueryRssiValueListener {
+        private final BlockingQueue<Boolean> mResults = new LinkedBlockingQueue<Boolean>();
+
+        boolean next() throws InterruptedException {
+            final Boolean success = mResults.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+            assertNotNull("No RSSI in "+CALLBACK_TIMEOUT+" ms", success);
+            return success;
+        }
+
+        @Override
+        public void onGotRssi(final boolean success, final int rssi) {
+            mResults.add(success);
+        }
+    }
+
+    @Before
+    public void setUp() throws InterruptedException {
+        mSimulator = new BLESimulator(1, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        mPeripheral = new BLESimulatedPeripheral(ADDRESS, "Simulated");
+        final BLESimulatedAttribute service = mPeripheral.addService(SERVICE_UUID);
+        mSensor = service.addCharacteristic(SENSOR_UUID, BLEAttribute.PROPERTY_READ | BLEAttribute.PROPERTY_WRITE);
+        mSensor.setValue(new byte[] {1, 2});
+        service.addCharacteristic(CONTROL_UUID, BLEAttribute.PROPERTY_WRITE);
+        mPeripheral.setRequestHandler(mHandler);
+        mSimulator.addPeripheral(mPeripheral);
+
+        mGattThread = BLEGattThread.create("BLEDeviceTest");
+        mDevice = new BLEDevice(mSimulator, ADDRESS, null, 0);
+        mDevice.setGattThread(mGattThread);
+        final BlockingQueue<Boolean> connection = new LinkedBlockingQueue<Boolean>();
+        mDevice.connect(null, false, new BLEDevice.ConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(final boolean connected) {
+                connection.add(connected);
+            }
+        });
+        assertEquals(Boolean.TRUE, connection.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS));
+        final BlockingQueue<List<BLEData>> services = new LinkedBlockingQueue<List<BLEData>>();
+        mDevice.queryServices(new BLEDevice.QueryResultsListener() {
+            @Override
+            public void onGotResults(final List<BLEData> dataList) {
+                services.add(dataList);
+            }
+        });
+        assertEquals(1, services.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS).size());
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.disconnect();
+        mGattThread.quit();
+        mSimulator.shutdown();
+    }
+
+    private BLEData characteristicOf(final UUID uuid) {
+        final BLEData data = mDevice.getGattTree().getCharacteristic(uuid);
+        assertNotNull(data);
+        return data;
+    }
+
+    // Waits until the GATT thread processed the calls made before
+    private void syncGattThread() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        mGattThread.post(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    // Writes the value, and waits until the GATT thread took it
+    private void write(final UUID uuid, final int value, final Results results) throws InterruptedException {
+        final BLEData data = characteristicOf(uuid);
+        assertTrue(data.setValue(new byte[] {(byte) value}));
+        mDevice.writeCharacterData(data, results);
+        syncGattThread();
+    }
+
+    @Test
+    public void concurrentReadsShareOneRequest() throws InterruptedException {
+        final BLEData sensor = characteristicOf(SENSOR_UUID);
+        final Results first = new Results();
+        final Results second = new Results();
+        mHandler.close();
+        mDevice.queryCharacterData(sensor, first);
+        mHandler.awaitArrived();
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), second);
+        syncGattThread();
+        mHandler.open();
+
+        assertEquals("value 0 01 02", first.next());
+        assertEquals("value 0 01 02", second.next());
+        assertEquals(Arrays.asList("read 2A37"), mHandler.getRequests());
+    }
+
+    @Test
+    public void laterReadsGetTheCurrentValue() throws InterruptedException {
+        final Results results = new Results();
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), results);
+        assertEquals("value 0 01 02", results.next());
+        mSensor.setValue(new byte[] {3});
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), results);
+
+        assertEquals("value 0 03", results.next());
+        assertEquals(Arrays.asList("read 2A37", "read 2A37"), mHandler.getRequests());
+    }
+
+    @Test
+    public void failedReadIsSharedByItsWaiters() throws InterruptedException {
+        final BLEData sensor = characteristicOf(SENSOR_UUID);
+        final Results first = new Results();
+        final Results second = new Results();
+        mHandler.setStatus(BLEGattTransport.STATUS_READ_NOT_PERMITTED);
+        mHandler.close();
+        mDevice.queryCharacterData(sensor, first);
+        mHandler.awaitArrived();
+        mDevice.queryCharacterData(sensor, second);
+        syncGattThread();
+        mHandler.open();
+
+        assertEquals("value "+BLEGattTransport.STATUS_READ_NOT_PERMITTED+" null", first.next());
+        assertEquals("value "+BLEGattTransport.STATUS_READ_NOT_PERMITTED+" null", second.next());
+        assertEquals(1, mHandler.getRequests().size());
+    }
+
+    @Test
+    public void waitersCanReadAgainFromTheirCallback() throws InterruptedException {
+        final BLEData sensor = characteristicOf(SENSOR_UUID);
+        final Results again = new Results();
+        mHandler.setStatus(BLEGattTransport.STATUS_READ_NOT_PERMITTED);
+        mDevice.queryCharacterData(sensor, new BLEDevice.QueryValueStatusListener() {
+            @Override
+            public void onGotValue(final BLEData data) {
+                fail("The status variant must be called");
+            }
+
+            @Override
+            public void onGotValue(final BLEData data, final int status) {
+                mHandler.setStatus(BLEGattTransport.STATUS_SUCCESS);
+                mDevice.queryCharacterData(sensor, again);
+            }
+        });
+
+        assertEquals("value 0 01 02", again.next());
+        assertEquals(Arrays.asList("read 2A37", "read 2A37"), mHandler.getRequests());
+    }
+
+    @Test
+    public void readOfAnotherCharacteristicFailsWhileOneIsInFlight() throws InterruptedException {
+        final Results first = new Results();
+        final Results other = new Results();
+        mHandler.close();
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), first);
+        mHandler.awaitArrived();
+        mDevice.queryCharacterData(characteristicOf(CONTROL_UUID), other);
+        assertEquals("value "+BLEGattTransport.STATUS_FAILURE+" null", other.next());
+        mHandler.open();
+
+        assertEquals("value 0 01 02", first.next());
+    }
+
+    @Test
+    public void readWaitersFailOnDisconnection() throws InterruptedException {
+        final BLEData sensor = characteristicOf(SENSOR_UUID);
+        final Results first = new Results();
+        final Results second = new Results();
+        mHandler.close();
+        mDevice.queryCharacterData(sensor, first);
+        mHandler.awaitArrived();
+        mDevice.queryCharacterData(sensor, second);
+        mPeripheral.disconnectAll();
+        // The response of the held request is dropped with the link
+        mHandler.open();
+
+        assertEquals("value "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" null", first.next());
+        assertEquals("value "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" null", second.next());
+    }
+
+    @Test
+    public void coalescedWritesSendTheLatestValue() throws InterruptedException {
+        final Results first = new Results();
+        final Results replaced = new Results();
+        final Results latest = new Results();
+        mDevice.setWriteCoalescing(CONTROL_UUID, 0);
+        mHandler.close();
+        write(CONTROL_UUID, 1, first);
+        mHandler.awaitArrived();
+        write(CONTROL_UUID, 2, replaced);
+        write(CONTROL_UUID, 3, latest);
+        mHandler.open();
+
+        assertEquals("written 0 2A39", first.next());
+        assertEquals("written 0 2A39", replaced.next());
+        assertEquals("written 0 2A39", latest.next());
+        assertEquals(Arrays.asList("write 2A39 01", "write 2A39 03"), mHandler.getRequests());
+    }
+
+    @Test
+    public void writeOfAnotherCharacteristicWaitsForTheCoalescedWrite() throws InterruptedException {
+        final Results control = new Results();
+        final Results sensor = new Results();
+        mDevice.setWriteCoalescing(CONTROL_UUID, 0);
+        mHandler.close();
+        write(CONTROL_UUID, 1, control);
+        mHandler.awaitArrived();
+        write(SENSOR_UUID, 5, sensor);
+        write(CONTROL_UUID, 2, control);
+        mHandler.open();
+
+        assertEquals("written 0 2A39", control.next());
+        assertEquals("written 0 2A37", sensor.next());
+        assertEquals("written 0 2A39", control.next());
+        // The waiting write goes ahead of the next coalesced value
+        assertEquals(Arrays.asList("write 2A39 01", "write 2A37 05", "write 2A39 02"), mHandler.getRequests());
+    }
+
+    @Test
+    public void waitingWritesFailOnDisconnection() throws InterruptedException {
+        final Results control = new Results();
+        final Results sensor = new Results();
+        mDevice.setWriteCoalescing(CONTROL_UUID, 0);
+        mHandler.close();
+        write(CONTROL_UUID, 1, control);
+        mHandler.awaitArrived();
+        write(SENSOR_UUID, 5, sensor);
+        write(CONTROL_UUID, 2, control);
+        mPeripheral.disconnectAll();
+        mHandler.open();
+
+        assertEquals("written "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" null", control.next());
+        assertEquals("written "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" null", sensor.next());
+        assertEquals("written "+BLEGattTransport.STATUS_CONNECTION_TERMINATED+" null", control.next());
+    }
+
+    @Test
+    public void transientFailureIsRetried() throws InterruptedException {
+        final AtomicInteger reads = new AtomicInteger();
+        mPeripheral.setRequestHandler(new BLESimulatedPeripheral.RequestHandler() {
+            @Override
+            public int onRead(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute) {
+                return reads.incrementAndGet() == 1 ? BLEGattTransport.STATUS_GATT_ERROR : BLEGattTransport.STATUS_SUCCESS;
+            }
+
+            @Override
+            public int onWrite(final BLESimulatedPeripheral peripheral, final BLESimulatedAttribute attribute, final byte[] value) {
+                return BLEGattTransport.STATUS_SUCCESS;
+            }
+        });
+        // The clock of Robolectric doesn't run, so the retries can't wait
+        mDevice.setRetryPolicy(new BLERetryPolicy.Builder().setBackoff(0, 1, 0).build());
+        final Results results = new Results();
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), results);
+
+        assertEquals("value 0 01 02", results.next());
+        assertEquals(2, reads.get());
+    }
+
+    @Test
+    public void lastStatusIsReportedWhenRetriesRunOut() throws InterruptedException {
+        mHandler.setStatus(BLEGattTransport.STATUS_GATT_ERROR);
+        mDevice.setRetryPolicy(new BLERetryPolicy.Builder().setMaxAttempts(2).setBackoff(0, 1, 0).build());
+        final Results results = new Results();
+        mDevice.queryCharacterData(characteristicOf(SENSOR_UUID), results);
+
+        assertEquals("value "+BLEGattTransport.STATUS_GATT_ERROR+" null", results.next());
+        assertEquals(Arrays.asList("read 2A37", "read 2A37"), mHandler.getRequests());
+    }
+
+    @Test
+    public void rssiQueryDuringMonitorSampleGetsItsResult() throws InterruptedException {
+        final RssiResults results = new RssiResults();
+        mGattThread.post(new Runnable() {
+            @Override
+            public void run() {
+                // Like a sample of the monitor, the stack rejects a second read while it's in flight
+                assertTrue(mDevice.readRemoteRssi());
+                mDevice.queryRemoteRssi(results);
+            }
+        });
+
+        assertTrue(results.next());
+    }
+
+    @Test
+    public void concurrentRssiQueriesShareOneRead() throws InterruptedException {
+        final RssiResults first = new RssiResults();
+        final RssiResults second = new RssiResults();
+        mDevice.queryRemoteRssi(first);
+        mDevice.queryRemoteRssi(second);
+
+        assertTrue(first.next());
+        assertTrue(second.next());
+    }
+}
@@ -0,0 +1,160 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrency and results of {@link BLEFleetExecutor} on simulated devices, the workflows finish from a pool
+ * of threads so the devices end and start concurrently.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BLEFleetExecutorTest {
+    private static final long CALLBACK_TIMEOUT = 10000;
+    private static final int DEVICES = 12;
+    private static final int MAX_CONCURRENCY = 3;
+
+    private BLESimulator mSimulator;
+    private BLEGattThread mGattThread;
+    private final List<String> mAddresses = new ArrayList<String>();
+    private ExecutorService mWorkers;
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicInteger mPeak = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        mSimulator = new BLESimulator(2, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        for (int i = 0; i < DEVICES; i++) {
+            final String address = String.format("00:11:22:33:44:%02X", i);
+            mSimulator.addPeripheral(new BLESimulatedPeripheral(address, "Simulated "+i));
+            mAddresses.add(address);
+        }
+        BLEManager.getInstance().setTransport(mSimulator);
+        mGattThread = BLEGattThread.create("BLEFleetExecutorTest");
+        mWorkers = Executors.newFixedThreadPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        BLEManager.getInstance().setTransport(null);
+        mWorkers.shutdownNow();
+        mGattThread.quit();
+        mSimulator.shutdown();
+    }
+
+    private final class Recorder implements BLEFleetExecutor.Listener {
+        final List<String> events = new ArrayList<String>();
+        final BlockingQueue<List<BLEFleetExecutor.Result>> finished =
+                new LinkedBlockingQueue<List<BLEFleetExecutor.Result>>();
+
+        @Override
+        public synchronized void onDeviceDone(final BLEFleetExecutor.Result result) {
+            events.add("done "+result.address);
+        }
+
+        @Override
+        public synchronized void onProgress(final int done, final int succeeded, final int total) {
+        }
+
+        @Override
+        public synchronized void onFinished(final List<BLEFleetExecutor.Result> results) {
+            events.add("finished");
+            finished.add(results);
+        }
+    }
+
+    // Workflow recording the devices worked on at a time, it fails the first attempt of every other device
+    private BLEFleetExecutor.Workflow countingWorkflow(final boolean finish) {
+        return new BLEFleetExecutor.Workflow() {
+            @Override
+            public void run(final BLEDevice device, final BLEFleetExecutor.Job job) {
+                final int active = mActive.incrementAndGet();
+                int peak;
+                while ((peak = mPeak.get()) < active && !mPeak.compareAndSet(peak, active)) {
+                }
+                if (!finish) {
+                    return;
+                }
+                mWorkers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        mActive.decrementAndGet();
+                        final int index = mAddresses.indexOf(job.getAddress());
+                        if (index % 2 == 1 && job.getAttempt() == 1) {
+                            job.fail("First attempt");
+                        } else {
+                            job.succeed(index);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    @Test
+    public void maxConcurrencyIsKeptAndAllDevicesAreDone() throws InterruptedException {
+        final BLEFleetExecutor executor = new BLEFleetExecutor.Builder()
+                .setGattThread(mGattThread)
+                .setMaxConcurrency(MAX_CONCURRENCY)
+                .setRetries(2, 0)
+                .build();
+        final Recorder recorder = new Recorder();
+        executor.start(null, mAddresses, countingWorkflow(true), recorder);
+
+        final List<BLEFleetExecutor.Result> results = recorder.finished.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(results);
+        assertTrue("Peak "+mPeak.get(), mPeak.get() <= MAX_CONCURRENCY);
+        assertEquals(DEVICES, results.size());
+        for (final BLEFleetExecutor.Result result : results) {
+            final int index = mAddresses.indexOf(result.address);
+            assertTrue(result.success);
+            assertEquals(index, result.value);
+            assertEquals(index % 2 == 1 ? 2 : 1, result.attempts);
+        }
+        assertEquals(DEVICES, executor.getDoneCount());
+        synchronized (recorder) {
+            // Finished once, after every device is done
+            assertEquals(DEVICES+1, recorder.events.size());
+            assertEquals("finished", recorder.events.get(DEVICES));
+        }
+    }
+
+    @Test
+    public void cancelFinishesWithTheResultsSoFar() throws InterruptedException {
+        final BLEFleetExecutor executor = new BLEFleetExecutor.Builder()
+                .setGattThread(mGattThread)
+                .setMaxConcurrency(MAX_CONCURRENCY)
+                .build();
+        final Recorder recorder = new Recorder();
+        executor.start(null, mAddresses, countingWorkflow(false), recorder);
+        final long deadline = System.currentTimeMillis()+CALLBACK_TIMEOUT;
+        while (mActive.get() < MAX_CONCURRENCY && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(MAX_CONCURRENCY, mActive.get());
+
+        executor.cancel();
+        final List<BLEFleetExecutor.Result> results = recorder.finished.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS);
+        assertNotNull(results);
+        assertTrue(results.isEmpty());
+        assertEquals(MAX_CONCURRENCY, mPeak.get());
+    }
+}
@@ -0,0 +1,309 @@
+package com.hill.libblemanager;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattServer;
+import android.bluetooth.BluetoothGattServerCallback;
+import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.annotation.Implementation;
+import org.robolectric.annotation.Implements;
+import org.robolectric.annotation.LooperMode;
+import org.robolectric.shadow.api.Shadow;
+import org.robolectric.shadows.ShadowBluetoothDevice;
+import org.robolectric.shadows.ShadowBluetoothManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests and notifications of {@link BLEGattServer}, driven through its BluetoothGattServerCallback with the
+ * calls to BluetoothGattServer recorded by a shadow.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+@Config(shadows = {BLEGattServerTest.ShadowGattManager.class, BLEGattServerTest.ShadowGattServer.class})
+public class BLEGattServerTest {
+    private static final UUID SERVICE_UUID = UUID.fromString("8e400001-f315-4f60-9fb8-838830daea50");
+    private static final UUID STREAM_UUID = UUID.fromString("8e400002-f315-4f60-9fb8-838830daea50");
+    private static final UUID CONFIG_UUID = UUID.fromString("8e400003-f315-4f60-9fb8-838830daea50");
+    private static final UUID CLIENT_CONFIG_UUID = BLEUuid.fromShortUuid(0x2902);
+
+    // Calls to the server, in the order they're made
+    private static final List<String> sCalls = new ArrayList<String>();
+    private static BluetoothGattServerCallback sCallback = null;
+    private static volatile boolean sNotifyResult = true;
+    // Request delivered by another thread while the server is being opened
+    private static Runnable sEarlyRequest = null;
+
+    @Implements(BluetoothManager.class)
+    public static class ShadowGattManager extends ShadowBluetoothManager {
+        @Implementation
+        protected BluetoothGattServer openGattServer(final Context context, final BluetoothGattServerCallback callback) {
+            sCallback = callback;
+            if (sEarlyRequest != null) { // The callbacks come on a binder thread
+                final Thread binder = new Thread(sEarlyRequest);
+                binder.start();
+                try {
+                    binder.join();
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+            }
+            return Shadow.newInstanceOf(BluetoothGattServer.class);
+        }
+    }
+
+    @Implements(BluetoothGattServer.class)
+    public static class ShadowGattServer {
+        @Implementation
+        protected boolean sendResponse(final BluetoothDevice device, final int requestId, final int status,
+                                       final int offset, final byte[] value) {
+            record("response "+device.getAddress()+" "+requestId+" "+status+" "+offset+" "+toString(value));
+            return true;
+        }
+
+        @Implementation
+        protected boolean notifyCharacteristicChanged(final BluetoothDevice device,
+                                                      final BluetoothGattCharacteristic characteristic,
+                                                      final boolean confirm) {
+            if (!sNotifyResult) {
+                return false;
+            }
+            record((confirm ? "indicate " : "notify ")+device.getAddress()+" "+toString(characteristic.getValue()));
+            return true;
+        }
+
+        @Implementation
+        protected void close() {
+        }
+
+        private static String toString(final byte[] value) {
+            return value == null ? "null" : new String(value);
+        }
+    }
+
+    private static void record(final String call) {
+        synchronized (sCalls) {
+            sCalls.add(call);
+        }
+    }
+
+    // Method to take the calls made so far
+    private List<String> takeCalls() {
+        mServer.getConnectedCentrals(); // Runs after the requests posted before
+        synchronized (sCalls) {
+            final List<String> calls = new ArrayList<String>(sCalls);
+            sCalls.clear();
+            return calls;
+        }
+    }
+
+    private final List<String> mEvents = new ArrayList<String>();
+    private final BluetoothDevice mCentral = ShadowBluetoothDevice.newInstance("00:11:22:33:44:01");
+    private final BluetoothDevice mOtherCentral = ShadowBluetoothDevice.newInstance("00:11:22:33:44:02");
+    private BLEGattThread mGattThread;
+    private BLEGattServer mServer;
+    private BLEData mStream;
+    private BluetoothGattCharacteristic mStreamCharacteristic;
+    private BluetoothGattDescriptor mStreamConfig;
+    private BluetoothGattCharacteristic mConfigCharacteristic;
+
+    @Before
+    public void setUp() {
+        synchronized (sCalls) {
+            sCalls.clear();
+        }
+        sCallback = null;
+        sNotifyResult = true;
+        sEarlyRequest = null;
+        final BLEData service = BLEGattServer.createService(SERVICE_UUID, true);
+        mStream = BLEGattServer.addCharacteristic(service, STREAM_UUID,
+                BLEAttribute.PROPERTY_NOTIFY | BLEAttribute.PROPERTY_INDICATE, BLEGattServer.PERMISSION_READ);
+        mStreamCharacteristic = (BluetoothGattCharacteristic) mStream.data;
+        mStreamConfig = mStreamCharacteristic.getDescriptor(CLIENT_CONFIG_UUID);
+        mConfigCharacteristic = (BluetoothGattCharacteristic) BLEGattServer.addCharacteristic(service, CONFIG_UUID,
+                BLEAttribute.PROPERTY_READ | BLEAttribute.PROPERTY_WRITE,
+                BLEGattServer.PERMISSION_READ | BLEGattServer.PERMISSION_WRITE).data;
+
+        mGattThread = BLEGattThread.create("BLEGattServerTest");
+        mServer = new BLEGattServer(mGattThread);
+        mServer.setListener(new BLEGattServer.Listener() {
+            @Override
+            public void onCentralConnectionChanged(final String address, final boolean connected) {
+                mEvents.add((connected ? "connected " : "disconnected ")+address);
+            }
+
+            @Override
+            public void onSubscriptionChanged(final String address, final BLEData characterData, final boolean subscribed) {
+                mEvents.add((subscribed ? "subscribed " : "unsubscribed ")+address+" "+characterData.uuid);
+            }
+
+            @Override
+            public void onNotificationQueueEmpty(final String address) {
+                mEvents.add("empty "+address);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mServer.close();
+        mGattThread.quit();
+    }
+
+    private void openAndConnect() {
+        assertTrue(mServer.open(RuntimeEnvironment.application));
+        sCallback.onConnectionStateChange(mCentral, BLEGattTransport.STATUS_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        sCallback.onConnectionStateChange(mOtherCentral, BLEGattTransport.STATUS_SUCCESS, BluetoothProfile.STATE_CONNECTED);
+        assertEquals(2, mServer.getConnectedCentrals().size());
+    }
+
+    private void subscribe(final BluetoothDevice central, final byte[] config) {
+        sCallback.onDescriptorWriteRequest(central, 1, mStreamConfig, false, true, 0, config);
+        assertEquals(Arrays.asList("response "+central.getAddress()+" 1 0 0 null"), takeCalls());
+    }
+
+    @Test
+    public void open_answersRequestsArrivingMeanwhile() {
+        sEarlyRequest = new Runnable() {
+            @Override
+            public void run() {
+                mConfigCharacteristic.setValue("on".getBytes());
+                sCallback.onCharacteristicReadRequest(mCentral, 7, 0, mConfigCharacteristic);
+            }
+        };
+        assertTrue(mServer.open(RuntimeEnvironment.application));
+
+        assertEquals(Arrays.asList("response 00:11:22:33:44:01 7 0 0 on"), takeCalls());
+    }
+
+    @Test
+    public void subscriptions_trackedPerCentral() {
+        openAndConnect();
+        subscribe(mCentral, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        subscribe(mOtherCentral, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+        // Subscribing again changes nothing
+        subscribe(mCentral, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+
+        // The configuration read back is the one of the central
+        sCallback.onDescriptorReadRequest(mCentral, 2, 0, mStreamConfig);
+        sCallback.onDescriptorReadRequest(mOtherCentral, 3, 0, mStreamConfig);
+        assertEquals(Arrays.asList(
+                "response 00:11:22:33:44:01 2 0 0 "+new String(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE),
+                "response 00:11:22:33:44:02 3 0 0 "+new String(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE)),
+                takeCalls());
+
+        subscribe(mOtherCentral, BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+        mServer.notifyCharacteristic(mStream, "a".getBytes());
+        assertEquals(Arrays.asList("notify 00:11:22:33:44:01 a"), takeCalls());
+        assertEquals(Arrays.asList(
+                "connected 00:11:22:33:44:01", "connected 00:11:22:33:44:02",
+                "subscribed 00:11:22:33:44:01 "+STREAM_UUID, "subscribed 00:11:22:33:44:02 "+STREAM_UUID,
+                "unsubscribed 00:11:22:33:44:02 "+STREAM_UUID), mEvents);
+    }
+
+    @Test
+    public void notifications_oneInFlightPerCentral() {
+        openAndConnect();
+        subscribe(mCentral, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        subscribe(mOtherCentral, BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+
+        mServer.notifyCharacteristic(mStream, "a".getBytes());
+        mServer.notifyCharacteristic(mStream, "b".getBytes());
+        mServer.notifyCharacteristic(mCentral.getAddress(), mStream, "c".getBytes());
+        // The centrals are served in no particular order
+        final List<String> calls = takeCalls();
+        Collections.sort(calls);
+        assertEquals(Arrays.asList("indicate 00:11:22:33:44:02 a", "notify 00:11:22:33:44:01 a"), calls);
+        assertEquals(3, mServer.getQueuedNotificationCount(mCentral.getAddress()));
+        assertEquals(2, mServer.getQueuedNotificationCount(mOtherCentral.getAddress()));
+
+        // A slow central doesn't hold back the other one
+        sCallback.onNotificationSent(mCentral, BLEGattTransport.STATUS_SUCCESS);
+        sCallback.onNotificationSent(mCentral, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(Arrays.asList("notify 00:11:22:33:44:01 b", "notify 00:11:22:33:44:01 c"), takeCalls());
+        sCallback.onNotificationSent(mCentral, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(0, mServer.getQueuedNotificationCount(mCentral.getAddress()));
+        assertEquals(2, mServer.getQueuedNotificationCount(mOtherCentral.getAddress()));
+        assertTrue(takeCalls().isEmpty());
+        assertEquals("empty 00:11:22:33:44:01", mEvents.get(mEvents.size() - 1));
+
+        sCallback.onNotificationSent(mOtherCentral, BLEGattTransport.STATUS_SUCCESS);
+        assertEquals(Arrays.asList("indicate 00:11:22:33:44:02 b"), takeCalls());
+    }
+
+    @Test
+    public void notifications_beyondTheQueueAreDropped() {
+        openAndConnect();
+        subscribe(mCentral, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+        mServer.setMaxQueuedNotifications(2);
+
+        // One in flight and two queued
+        for (final String value : new String[] {"a", "b", "c", "d", "e"}) {
+            mServer.notifyCharacteristic(mStream, value.getBytes());
+        }
+        assertEquals(3, mServer.getQueuedNotificationCount(mCentral.getAddress()));
+        assertEquals(2, mServer.getDroppedNotificationCount(mCentral.getAddress()));
+
+        // Failures of the stack count as well
+        sCallback.onNotificationSent(mCentral, BLEGattTransport.STATUS_FAILURE);
+        assertEquals(Arrays.asList("notify 00:11:22:33:44:01 a", "notify 00:11:22:33:44:01 b"), takeCalls());
+        sNotifyResult = false;
+        sCallback.onNotificationSent(mCentral, BLEGattTransport.STATUS_SUCCESS);
+        assertTrue(takeCalls().isEmpty());
+        assertEquals(0, mServer.getQueuedNotificationCount(mCentral.getAddress()));
+        assertEquals(4, mServer.getDroppedNotificationCount(mCentral.getAddress()));
+    }
+
+    @Test
+    public void longWrite_preparedThenExecuted() {
+        final List<String> writes = new ArrayList<String>();
+        mServer.setWriteHandler(CONFIG_UUID, new BLEGattServer.WriteHandler() {
+            @Override
+            public int onWriteRequest(final String address, final BLEData data, final byte[] value) {
+                writes.add(address+" "+new String(value));
+                return BLEGattTransport.STATUS_SUCCESS;
+            }
+        });
+        openAndConnect();
+
+        sCallback.onCharacteristicWriteRequest(mCentral, 1, mConfigCharacteristic, true, true, 0, "abc".getBytes());
+        sCallback.onCharacteristicWriteRequest(mCentral, 2, mConfigCharacteristic, true, true, 3, "def".getBytes());
+        // A gap after the prepared data
+        sCallback.onCharacteristicWriteRequest(mCentral, 3, mConfigCharacteristic, true, true, 9, "x".getBytes());
+        sCallback.onCharacteristicWriteRequest(mOtherCentral, 4, mConfigCharacteristic, true, true, 0, "zz".getBytes());
+        assertEquals(Arrays.asList(
+                "response 00:11:22:33:44:01 1 0 0 abc",
+                "response 00:11:22:33:44:01 2 0 3 def",
+                "response 00:11:22:33:44:01 3 "+BLEGattTransport.STATUS_INVALID_OFFSET+" 9 null",
+                "response 00:11:22:33:44:02 4 0 0 zz"), takeCalls());
+        assertTrue(writes.isEmpty());
+
+        sCallback.onExecuteWrite(mCentral, 5, true);
+        sCallback.onExecuteWrite(mOtherCentral, 6, false);
+        assertEquals(Arrays.asList("response 00:11:22:33:44:01 5 0 0 null", "response 00:11:22:33:44:02 6 0 0 null"),
+                takeCalls());
+        assertEquals(Arrays.asList("00:11:22:33:44:01 abcdef"), writes);
+
+        // Nothing is left prepared
+        sCallback.onExecuteWrite(mCentral, 7, true);
+        takeCalls();
+        assertEquals(1, writes.size());
+    }
+}
@@ -0,0 +1,127 @@
+package com.hill.libblemanager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class BLEGattTreeTest {
+    private static final UUID HEART_RATE_UUID = BLEUuid.fromShortUuid(0x180D);
+    private static final UUID BATTERY_UUID = BLEUuid.fromShortUuid(0x180F);
+    private static final UUID MEASUREMENT_UUID = BLEUuid.fromShortUuid(0x2A37);
+    private static final UUID LEVEL_UUID = BLEUuid.fromShortUuid(0x2A19);
+    private static final UUID VENDOR_SERVICE_UUID = UUID.fromString("8e400001-f315-4f60-9fb8-838830daea50");
+    private static final UUID VENDOR_CHARACTERISTIC_UUID = UUID.fromString("8e400002-f315-4f60-9fb8-838830daea50");
+
+    private BLESimulatedAttribute mHeartRate;
+    private BLESimulatedAttribute mMeasurement;
+    private BLESimulatedAttribute mHeartRateLevel;
+    private BLESimulatedAttribute mBattery;
+    private BLESimulatedAttribute mBatteryLevel;
+    private BLESimulatedAttribute mSecondBattery;
+    private BLESimulatedAttribute mSecondBatteryLevel;
+    private BLESimulatedAttribute mVendor;
+    private BLESimulatedAttribute mVendorCharacteristic;
+    private BLEGattTree mTree;
+
+    @Before
+    public void setUp() {
+        final BLESimulatedPeripheral peripheral = new BLESimulatedPeripheral("00:11:22:33:44:55", "Simulated");
+        mHeartRate = peripheral.addService(HEART_RATE_UUID);
+        mMeasurement = mHeartRate.addCharacteristic(MEASUREMENT_UUID, BLEAttribute.PROPERTY_NOTIFY);
+        // The same characteristic UUID in several services
+        mHeartRateLevel = mHeartRate.addCharacteristic(LEVEL_UUID, BLEAttribute.PROPERTY_READ);
+        mBattery = peripheral.addService(BATTERY_UUID);
+        mBatteryLevel = mBattery.addCharacteristic(LEVEL_UUID, BLEAttribute.PROPERTY_READ);
+        mSecondBattery = peripheral.addService(BATTERY_UUID);
+        mSecondBatteryLevel = mSecondBattery.addCharacteristic(LEVEL_UUID, BLEAttribute.PROPERTY_READ);
+        mVendor = peripheral.addService(VENDOR_SERVICE_UUID);
+        mVendorCharacteristic = mVendor.addCharacteristic(VENDOR_CHARACTERISTIC_UUID, BLEAttribute.PROPERTY_WRITE);
+        mTree = BLEGattTree.build(new ArrayList<BLEAttribute>(peripheral.getServices()));
+    }
+
+    private static void assertAttributes(final List<BLEData> dataList, final BLEAttribute... attributes) {
+        assertEquals(attributes.length, dataList.size());
+        for (int i = 0; i < attributes.length; i++) {
+            assertSame(attributes[i], dataList.get(i).attribute);
+        }
+    }
+
+    @Test
+    public void services_inDiscoveryOrder() {
+        assertAttributes(mTree.getServices(), mHeartRate, mBattery, mSecondBattery, mVendor);
+        assertAttributes(mTree.getCharacteristics(mTree.getService(HEART_RATE_UUID)), mMeasurement, mHeartRateLevel);
+    }
+
+    @Test
+    public void shortAndLongUuidKeys() {
+        assertEquals(0x180D, BLEGattTree.toShortUuid(HEART_RATE_UUID));
+        assertEquals(-1, BLEGattTree.toShortUuid(VENDOR_SERVICE_UUID));
+        assertEquals(HEART_RATE_UUID, BLEGattTree.fromShortUuid(0x180D));
+
+        assertSame(mHeartRate, mTree.getService(0x180D).attribute);
+        assertSame(mHeartRate, mTree.getService(HEART_RATE_UUID).attribute);
+        assertSame(mMeasurement, mTree.getCharacteristic(0x2A37).attribute);
+        assertSame(mMeasurement, mTree.getCharacteristic(MEASUREMENT_UUID).attribute);
+        assertSame(mVendor, mTree.getService(VENDOR_SERVICE_UUID).attribute);
+        assertSame(mVendorCharacteristic, mTree.getCharacteristic(VENDOR_CHARACTERISTIC_UUID).attribute);
+        assertNull(mTree.getService(0x1800));
+        assertNull(mTree.getCharacteristic(UUID.fromString("8e400003-f315-4f60-9fb8-838830daea50")));
+    }
+
+    @Test
+    public void duplicateUuids_firstInDiscoveryOrder() {
+        assertSame(mBattery, mTree.getService(BATTERY_UUID).attribute);
+        assertAttributes(mTree.getServices(BATTERY_UUID), mBattery, mSecondBattery);
+        assertSame(mHeartRateLevel, mTree.getCharacteristic(LEVEL_UUID).attribute);
+        assertAttributes(mTree.getCharacteristics(LEVEL_UUID), mHeartRateLevel, mBatteryLevel, mSecondBatteryLevel);
+        assertTrue(mTree.getCharacteristics(VENDOR_SERVICE_UUID).isEmpty());
+    }
+
+    @Test
+    public void characteristicOfService() {
+        assertSame(mHeartRateLevel, mTree.getCharacteristic(HEART_RATE_UUID, LEVEL_UUID).attribute);
+        // The first service of the UUID containing it
+        assertSame(mBatteryLevel, mTree.getCharacteristic(BATTERY_UUID, LEVEL_UUID).attribute);
+        assertNull(mTree.getCharacteristic(BATTERY_UUID, MEASUREMENT_UUID));
+        assertNull(mTree.getCharacteristic(VENDOR_SERVICE_UUID, LEVEL_UUID));
+
+        final BLEData secondLevel = mTree.getCharacteristics(LEVEL_UUID).get(2);
+        assertSame(mSecondBattery, mTree.getServiceOf(secondLevel).attribute);
+    }
+
+    @Test
+    public void instanceIdLookup() {
+        assertSame(mSecondBattery, mTree.getServiceByInstanceId(mSecondBattery.getInstanceId()).attribute);
+        assertSame(mSecondBatteryLevel, mTree.getCharacteristicByInstanceId(mSecondBatteryLevel.getInstanceId()).attribute);
+        assertNull(mTree.getServiceByInstanceId(mMeasurement.getInstanceId()));
+        assertNull(mTree.getCharacteristicByInstanceId(mBattery.getInstanceId()));
+        assertNull(mTree.getCharacteristicByInstanceId(1000));
+    }
+
+    @Test
+    public void descriptorsOfCharacteristic() {
+        final BLEData measurement = mTree.getCharacteristic(MEASUREMENT_UUID);
+        assertEquals(1, mTree.getDescriptors(measurement).size());
+        assertEquals(BLESimulatedAttribute.CLIENT_CONFIG_UUID,
+                mTree.getDescriptor(measurement, BLESimulatedAttribute.CLIENT_CONFIG_UUID).uuid);
+        assertTrue(mTree.getDescriptors(mTree.getCharacteristic(LEVEL_UUID)).isEmpty());
+    }
+
+    @Test
+    public void dataOfAnotherTree_notFound() {
+        final BLESimulatedPeripheral other = new BLESimulatedPeripheral("66:77:88:99:AA:BB", "Other");
+        final BLESimulatedAttribute service = other.addService(HEART_RATE_UUID);
+        service.addCharacteristic(MEASUREMENT_UUID, BLEAttribute.PROPERTY_NOTIFY);
+        final BLEGattTree otherTree = BLEGattTree.build(new ArrayList<BLEAttribute>(other.getServices()));
+
+        // Same instance ids, different attributes
+        assertTrue(mTree.getCharacteristics(otherTree.getService(HEART_RATE_UUID)).isEmpty());
+        assertNull(mTree.getServiceOf(otherTree.getCharacteristic(MEASUREMENT_UUID)));
+        assertTrue(mTree.getDescriptors(otherTree.getCharacteristic(MEASUREMENT_UUID)).isEmpty());
+    }
+}
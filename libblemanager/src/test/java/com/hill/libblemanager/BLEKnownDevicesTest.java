@@ -0,0 +1,111 @@
+package com.hill.libblemanager;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.LooperMode;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records of {@link BLEKnownDevices} for devices connected through {@link BLEDirectConnector}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@LooperMode(LooperMode.Mode.PAUSED)
+public class BLEKnownDevicesTest {
+    private static final long CALLBACK_TIMEOUT = 5000;
+    private static final String ADDRESS = "00:11:22:33:44:55";
+
+    private BLESimulator mSimulator;
+    private BLEGattThread mGattThread;
+    private BLEKnownDevices mKnownDevices;
+    private BLEDevice mDevice;
+
+    @Before
+    public void setUp() {
+        mSimulator = new BLESimulator(1, 42);
+        mSimulator.setLatency(0, 2);
+        mSimulator.setConnectionInterval(5);
+        final BLESimulatedPeripheral peripheral = new BLESimulatedPeripheral(ADDRESS, "Simulated");
+        peripheral.addService(BLEUuid.fromShortUuid(0x180F))
+                .addCharacteristic(BLEUuid.fromShortUuid(0x2A19), BLEAttribute.PROPERTY_READ);
+        mSimulator.addPeripheral(peripheral);
+
+        mGattThread = BLEGattThread.create("BLEKnownDevicesTest");
+        mKnownDevices = new BLEKnownDevices(RuntimeEnvironment.application);
+        mKnownDevices.clear();
+        mDevice = new BLEDevice(mSimulator, ADDRESS, "Simulated", 0);
+        mDevice.setGattThread(mGattThread);
+    }
+
+    @After
+    public void tearDown() {
+        mDevice.disconnect();
+        mGattThread.quit();
+        mSimulator.shutdown();
+    }
+
+    private void connectDirectly() throws InterruptedException {
+        final BlockingQueue<Boolean> connection = new LinkedBlockingQueue<Boolean>();
+        new BLEDirectConnector(null, mDevice, mSimulator.getScanTransport(), mKnownDevices, CALLBACK_TIMEOUT,
+                CALLBACK_TIMEOUT, new BLEDevice.ConnectionListener() {
+            @Override
+            public void onConnectionStateChanged(final boolean connected) {
+                connection.add(connected);
+            }
+        }).start();
+        assertEquals(Boolean.TRUE, connection.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private void discoverServices() throws InterruptedException {
+        final BlockingQueue<List<BLEData>> services = new LinkedBlockingQueue<List<BLEData>>();
+        mDevice.queryServices(new BLEDevice.QueryResultsListener() {
+            @Override
+            public void onGotResults(final List<BLEData> dataList) {
+                services.add(dataList);
+            }
+        });
+        assertEquals(1, services.poll(CALLBACK_TIMEOUT, TimeUnit.MILLISECONDS).size());
+    }
+
+    @Test
+    public void connectedDeviceIsRemembered() throws InterruptedException {
+        connectDirectly();
+
+        final BLEKnownDevice knownDevice = mKnownDevices.get(ADDRESS);
+        assertNotNull(knownDevice);
+        assertEquals("Simulated", knownDevice.name);
+        assertTrue(knownDevice.lastConnectedTime > 0);
+        // The services aren't discovered when the connection comes up
+        assertEquals(BLEKnownDevice.GATT_HASH_UNKNOWN, knownDevice.gattHash);
+    }
+
+    @Test
+    public void discoveryUpdatesTheGattHash() throws InterruptedException {
+        connectDirectly();
+        discoverServices();
+
+        final long gattHash = mDevice.getGattHash();
+        assertNotEquals(BLEKnownDevice.GATT_HASH_UNKNOWN, gattHash);
+        assertEquals(gattHash, mKnownDevices.get(ADDRESS).gattHash);
+        // Persisted for the next launch
+        assertEquals(gattHash, new BLEKnownDevices(RuntimeEnvironment.application).get(ADDRESS).gattHash);
+    }
+
+    @Test
+    public void forgottenDeviceIsNotAddedBack() throws InterruptedException {
+        connectDirectly();
+        mKnownDevices.remove(ADDRESS);
+        discoverServices();
+
+        assertNull(mKnownDevices.get(ADDRESS));
+    }
+}